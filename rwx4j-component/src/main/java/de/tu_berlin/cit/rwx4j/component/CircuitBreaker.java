@@ -0,0 +1,353 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker per peer. It lets requests to unhealthy peers fail fast
+ * instead of waiting for their timeout.
+ *
+ * While the breaker of a peer is closed, the outcomes of the last requests
+ * are recorded. If the share of errors and timeouts reaches the threshold,
+ * the breaker opens and no requests are permitted. After the open time, or
+ * as soon as the peer shows that it is alive again, the breaker becomes half
+ * open and permits a limited number of probe requests. It closes if all
+ * probes succeed and opens again if one of them fails.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class CircuitBreaker {
+
+	private final static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	/**
+	 * The state of a breaker.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The outcome of a request.
+	 */
+	public enum Outcome {
+		/**
+		 * The peer answered the request.
+		 */
+		SUCCESS,
+		/**
+		 * The peer or its server failed to process the request.
+		 */
+		ERROR,
+		/**
+		 * The peer did not answer in time.
+		 */
+		TIMEOUT,
+		/**
+		 * The request has not been answered for a reason that does not
+		 * concern the health of the peer, e.g. it has been cancelled.
+		 */
+		IGNORED
+	}
+
+	private final int windowSize;
+
+	private final int minRequests;
+
+	private final double failureThreshold;
+
+	private final long openNanos;
+
+	private final int probes;
+
+	private final ConcurrentHashMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+	/**
+	 * Creates the circuit breaker.
+	 *
+	 * @param windowSize
+	 *            The number of recent outcomes that are recorded per peer.
+	 * @param minRequests
+	 *            The number of recorded outcomes below which the breaker
+	 *            does not open.
+	 * @param failureThreshold
+	 *            The share of errors and timeouts at which the breaker opens.
+	 * @param openMillis
+	 *            The time in milliseconds the breaker stays open.
+	 * @param probes
+	 *            The number of probe requests permitted while half open.
+	 */
+	public CircuitBreaker(int windowSize, int minRequests, double failureThreshold, long openMillis, int probes) {
+		if(windowSize < 1 || minRequests < 1 || minRequests > windowSize)
+			throw new IllegalArgumentException("Illegal window size");
+		if(failureThreshold <= 0 || failureThreshold > 1)
+			throw new IllegalArgumentException("Illegal failure threshold: " + failureThreshold);
+		if(probes < 1)
+			throw new IllegalArgumentException("Illegal number of probes: " + probes);
+		this.windowSize = windowSize;
+		this.minRequests = minRequests;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.probes = probes;
+	}
+
+	/**
+	 * Asks for permission to send a request to a peer.
+	 *
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The permit, whose outcome must be recorded when the request is
+	 *         completed, or <tt>null</tt> if the breaker of the peer is open.
+	 */
+	public Permit acquire(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null) {
+			Breaker created = new Breaker(peer);
+			breaker = this.breakers.putIfAbsent(peer, created);
+			if(breaker == null)
+				breaker = created;
+		}
+		synchronized (breaker) {
+			if(breaker.state == State.OPEN && System.nanoTime() - breaker.openedAt >= this.openNanos)
+				breaker.halfOpen();
+			if(breaker.state == State.CLOSED)
+				return new Permit(breaker);
+			if(breaker.state == State.HALF_OPEN && breaker.probesInFlight + breaker.probeSuccesses < this.probes) {
+				breaker.probesInFlight++;
+				return new Permit(breaker);
+			}
+			breaker.rejected++;
+			return null;
+		}
+	}
+
+	/**
+	 * Records a sign of life of a peer, e.g. its presence. An open breaker
+	 * becomes half open, so that the peer is probed without waiting for the
+	 * open time to end.
+	 *
+	 * @param peer
+	 *            The JID of the peer.
+	 */
+	public void alive(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null)
+			return;
+		synchronized (breaker) {
+			if(breaker.state == State.OPEN)
+				breaker.halfOpen();
+		}
+	}
+
+	/**
+	 * @return The peers that requests have been sent to.
+	 */
+	public Set<String> getPeers() {
+		return this.breakers.keySet();
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The state of the breaker of the peer.
+	 */
+	public State getState(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null)
+			return State.CLOSED;
+		synchronized (breaker) {
+			return breaker.state;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The share of errors among the recorded outcomes of the peer.
+	 */
+	public double getErrorRate(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null)
+			return 0;
+		synchronized (breaker) {
+			return breaker.count == 0 ? 0 : (double) breaker.errors / breaker.count;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The share of timeouts among the recorded outcomes of the peer.
+	 */
+	public double getTimeoutRate(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null)
+			return 0;
+		synchronized (breaker) {
+			return breaker.count == 0 ? 0 : (double) breaker.timeouts / breaker.count;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The number of requests to the peer that have been rejected by
+	 *         its breaker.
+	 */
+	public long getRejected(String peer) {
+		Breaker breaker = this.breakers.get(peer);
+		if(breaker == null)
+			return 0;
+		synchronized (breaker) {
+			return breaker.rejected;
+		}
+	}
+
+	/**
+	 * The permission to send a request.
+	 */
+	public final class Permit {
+
+		private final Breaker breaker;
+
+		/**
+		 * The generation of the breaker that issued the permit
+		 */
+		private final long generation;
+
+		private Permit(Breaker breaker) {
+			this.breaker = breaker;
+			this.generation = breaker.generation;
+		}
+
+		/**
+		 * Records the outcome of the request. Outcomes of requests that have
+		 * been permitted before the breaker changed its state are ignored.
+		 *
+		 * @param outcome
+		 *            The outcome.
+		 */
+		public void record(Outcome outcome) {
+			synchronized (this.breaker) {
+				if(this.generation == this.breaker.generation)
+					this.breaker.record(outcome);
+			}
+		}
+	}
+
+	/**
+	 * The state of a peer, guarded by its lock.
+	 */
+	private class Breaker {
+
+		private final String peer;
+
+		private State state = State.CLOSED;
+
+		/**
+		 * Incremented on every change of the state
+		 */
+		private long generation = 0;
+
+		/**
+		 * The recent outcomes as a ring buffer
+		 */
+		private final Outcome[] outcomes = new Outcome[windowSize];
+
+		private int next = 0;
+
+		private int count = 0;
+
+		private int errors = 0;
+
+		private int timeouts = 0;
+
+		private long openedAt;
+
+		private int probesInFlight = 0;
+
+		private int probeSuccesses = 0;
+
+		private long rejected = 0;
+
+		private Breaker(String peer) {
+			this.peer = peer;
+		}
+
+		private void record(Outcome outcome) {
+			if(this.state == State.HALF_OPEN) {
+				this.probesInFlight--;
+				if(outcome == Outcome.SUCCESS && ++this.probeSuccesses >= probes)
+					close();
+				else if(outcome == Outcome.ERROR || outcome == Outcome.TIMEOUT)
+					open();
+				return;
+			}
+			if(outcome == Outcome.IGNORED)
+				return;
+			Outcome old = this.outcomes[this.next];
+			if(old == Outcome.ERROR)
+				this.errors--;
+			else if(old == Outcome.TIMEOUT)
+				this.timeouts--;
+			if(old == null)
+				this.count++;
+			this.outcomes[this.next] = outcome;
+			this.next = (this.next + 1) % this.outcomes.length;
+			if(outcome == Outcome.ERROR)
+				this.errors++;
+			else if(outcome == Outcome.TIMEOUT)
+				this.timeouts++;
+			if(this.count >= minRequests && this.errors + this.timeouts >= failureThreshold * this.count)
+				open();
+		}
+
+		private void open() {
+			logger.warn("Circuit breaker of " + this.peer + " opened");
+			this.state = State.OPEN;
+			this.openedAt = System.nanoTime();
+			this.generation++;
+		}
+
+		private void halfOpen() {
+			this.state = State.HALF_OPEN;
+			this.probesInFlight = 0;
+			this.probeSuccesses = 0;
+			this.generation++;
+		}
+
+		private void close() {
+			logger.info("Circuit breaker of " + this.peer + " closed");
+			this.state = State.CLOSED;
+			this.generation++;
+			for (int i = 0; i < this.outcomes.length; i++) {
+				this.outcomes[i] = null;
+			}
+			this.next = 0;
+			this.count = 0;
+			this.errors = 0;
+			this.timeouts = 0;
+		}
+	}
+
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tu_berlin.cit.rwx4j.xmpp.util.StringUtils;
+
+/**
+ * Caches the results of service discovery for a limited time. Concurrent
+ * lookups of the same entity share one request, failed lookups are not
+ * cached.
+ *
+ * Entities may advertise the hash of their features with Entity Capabilities
+ * (XEP-0115). The features of a verified hash, i.e. a hash that has been
+ * computed from a disco#info result, are reused for all entities that
+ * advertise it without querying them. An entity whose advertised hash changes
+ * is queried again. An advertised hash that does not match the features of
+ * the entity is discarded.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class DiscoveryCache {
+
+	/**
+	 * The 'Entity Capabilities' namespace
+	 */
+	public static final String NAMESPACE_CAPS = "http://jabber.org/protocol/caps";
+
+	private static final String NAMESPACE_DATA_FORMS = "jabber:x:data";
+
+	private final static Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Orders strings by their UTF-8 bytes, i.e. 'i;octet' collation.
+	 */
+	private static final Comparator<String> OCTET_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			byte[] x = a.getBytes(UTF8);
+			byte[] y = b.getBytes(UTF8);
+			for (int i = 0; i < x.length && i < y.length; i++) {
+				if (x[i] != y[i])
+					return (x[i] & 0xff) - (y[i] & 0xff);
+			}
+			return x.length - y.length;
+		}
+	};
+
+	private static class Lookup<V> {
+
+		private final CompletableFuture<V> result = new CompletableFuture<V>();
+
+		/**
+		 * The expiry time, or 0 while the lookup is running.
+		 */
+		private volatile long expires = 0;
+
+		private boolean isExpired(long now) {
+			return this.expires != 0 && now - this.expires > 0;
+		}
+	}
+
+	private final long ttlNanos;
+
+	private final ConcurrentHashMap<String, Lookup<IntercloudDiscoItems>> items = new ConcurrentHashMap<String, Lookup<IntercloudDiscoItems>>();
+
+	private final ConcurrentHashMap<String, Lookup<IntercloudDiscoFeatures>> features = new ConcurrentHashMap<String, Lookup<IntercloudDiscoFeatures>>();
+
+	/**
+	 * The features of the verified capability hashes
+	 */
+	private final ConcurrentHashMap<String, List<String>> verifiedFeatures = new ConcurrentHashMap<String, List<String>>();
+
+	/**
+	 * The capability hashes advertised by entities
+	 */
+	private final ConcurrentHashMap<String, String> advertisedHashes = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param ttlMillis
+	 *            The time in milliseconds a result is kept.
+	 */
+	public DiscoveryCache(long ttlMillis) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	/**
+	 * Returns the cached items of a domain or discovers them.
+	 *
+	 * @param domain
+	 *            The domain.
+	 * @param discovery
+	 *            Discovers the items of a domain.
+	 * @return The future of the items.
+	 */
+	public CompletableFuture<IntercloudDiscoItems> getItems(String domain,
+			Function<String, CompletableFuture<IntercloudDiscoItems>> discovery) {
+		return lookup(this.items, domain, discovery);
+	}
+
+	/**
+	 * Returns the cached features of an entity or discovers them. The
+	 * features are not discovered if the entity advertises a verified
+	 * capability hash.
+	 *
+	 * @param jid
+	 *            The JID of the entity.
+	 * @param discovery
+	 *            Discovers the features of an entity, see
+	 *            {@link #verify(String, Element)}.
+	 * @return The future of the features.
+	 */
+	public CompletableFuture<IntercloudDiscoFeatures> getFeatures(String jid,
+			Function<String, CompletableFuture<IntercloudDiscoFeatures>> discovery) {
+		String hash = this.advertisedHashes.get(jid);
+		List<String> known = hash == null ? null : this.verifiedFeatures.get(hash);
+		if(known != null)
+			return CompletableFuture.completedFuture(new IntercloudDiscoFeatures(jid, new ArrayList<String>(known)));
+		return lookup(this.features, jid, discovery);
+	}
+
+	/**
+	 * Records the capability hash advertised by an entity, e.g. in its
+	 * presence. Only hashes of the 'sha-1' algorithm are supported.
+	 *
+	 * @param jid
+	 *            The JID of the entity.
+	 * @param algorithm
+	 *            The hash algorithm.
+	 * @param hash
+	 *            The advertised hash.
+	 */
+	public void advertise(String jid, String algorithm, String hash) {
+		if(!"sha-1".equals(algorithm) || hash == null)
+			return;
+		String previous = this.advertisedHashes.put(jid, hash);
+		if(previous != null && !previous.equals(hash)) {
+			// the features of the entity have changed
+			this.features.remove(jid);
+		}
+	}
+
+	/**
+	 * Extracts the features of a disco#info result and verifies the
+	 * capability hash advertised by the entity.
+	 *
+	 * @param jid
+	 *            The JID of the entity.
+	 * @param query
+	 *            The query element of the disco#info result.
+	 * @return The features of the entity.
+	 */
+	public IntercloudDiscoFeatures verify(String jid, Element query) {
+		ArrayList<String> features = new ArrayList<String>();
+		for (Object child : query.elements("feature")) {
+			features.add(((Element) child).attributeValue("var"));
+		}
+		String hash = computeHash(query);
+		this.verifiedFeatures.put(hash, Collections.unmodifiableList(new ArrayList<String>(features)));
+		String advertised = this.advertisedHashes.get(jid);
+		if(advertised != null && !advertised.equals(hash)) {
+			logger.warn("The capability hash advertised by " + jid + " does not match its features");
+			this.advertisedHashes.remove(jid, advertised);
+		}
+		return new IntercloudDiscoFeatures(jid, features);
+	}
+
+	/**
+	 * @return The number of cached lookups.
+	 */
+	public int size() {
+		return this.items.size() + this.features.size();
+	}
+
+	/**
+	 * Computes the 'sha-1' capability hash of a disco#info result as
+	 * specified by XEP-0115, section 5.1.
+	 *
+	 * @param query
+	 *            The query element of the disco#info result.
+	 * @return The base64 encoded hash.
+	 */
+	static String computeHash(Element query) {
+		StringBuilder s = new StringBuilder();
+		ArrayList<String> identities = new ArrayList<String>();
+		for (Object child : query.elements("identity")) {
+			Element identity = (Element) child;
+			identities.add(value(identity.attributeValue("category")) + "/"
+					+ value(identity.attributeValue("type")) + "/"
+					+ value(identity.attributeValue(QName.get("lang", Namespace.XML_NAMESPACE))) + "/"
+					+ value(identity.attributeValue("name")));
+		}
+		appendSorted(s, identities);
+		ArrayList<String> features = new ArrayList<String>();
+		for (Object child : query.elements("feature")) {
+			features.add(value(((Element) child).attributeValue("var")));
+		}
+		appendSorted(s, features);
+		ArrayList<String> forms = new ArrayList<String>();
+		for (Object child : query.elements(QName.get("x", NAMESPACE_DATA_FORMS))) {
+			forms.add(formString((Element) child));
+		}
+		Collections.sort(forms, OCTET_ORDER);
+		for (String form : forms) {
+			s.append(form);
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return StringUtils.encodeBase64(digest.digest(s.toString().getBytes(UTF8)));
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform supports SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Builds the part of the verification string of an extended data form,
+	 * which starts with its FORM_TYPE, so that forms can be ordered by it.
+	 */
+	private static String formString(Element form) {
+		StringBuilder s = new StringBuilder();
+		ArrayList<String> fields = new ArrayList<String>();
+		for (Object child : form.elements("field")) {
+			Element field = (Element) child;
+			ArrayList<String> values = new ArrayList<String>();
+			for (Object value : field.elements("value")) {
+				values.add(((Element) value).getText());
+			}
+			if("FORM_TYPE".equals(field.attributeValue("var"))) {
+				appendSorted(s, values);
+				continue;
+			}
+			StringBuilder f = new StringBuilder(value(field.attributeValue("var"))).append('<');
+			appendSorted(f, values);
+			fields.add(f.toString());
+		}
+		Collections.sort(fields, OCTET_ORDER);
+		for (String field : fields) {
+			s.append(field);
+		}
+		return s.toString();
+	}
+
+	private static void appendSorted(StringBuilder s, List<String> values) {
+		Collections.sort(values, OCTET_ORDER);
+		for (String value : values) {
+			s.append(value).append('<');
+		}
+	}
+
+	private static String value(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Returns the running or cached lookup of a key or starts a new one.
+	 */
+	private <V> CompletableFuture<V> lookup(final ConcurrentHashMap<String, Lookup<V>> lookups,
+			final String key, Function<String, CompletableFuture<V>> discovery) {
+		final long now = System.nanoTime();
+		while (true) {
+			Lookup<V> lookup = lookups.get(key);
+			if(lookup != null && !lookup.isExpired(now))
+				return lookup.result;
+			final Lookup<V> created = new Lookup<V>();
+			boolean registered = lookup == null ? lookups.putIfAbsent(key, created) == null
+					: lookups.replace(key, lookup, created);
+			if(!registered)
+				continue;
+			CompletableFuture<V> result;
+			try {
+				result = discovery.apply(key);
+			} catch (RuntimeException e) {
+				result = new CompletableFuture<V>();
+				result.completeExceptionally(e);
+			}
+			result.whenComplete(new BiConsumer<V, Throwable>() {
+				public void accept(V value, Throwable failure) {
+					if(failure != null) {
+						// failed lookups are executed again
+						lookups.remove(key, created);
+						created.result.completeExceptionally(failure);
+					} else {
+						created.expires = System.nanoTime() + ttlNanos;
+						created.result.complete(value);
+					}
+				}
+			});
+			return created.result;
+		}
+	}
+
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Limits the number of requests that are in flight to each peer. Requests
+ * beyond the window of a peer are queued and sent as soon as earlier requests
+ * have been answered.
+ *
+ * The window adapts to the latency of the peer: it grows by one request per
+ * window of responses as long as the latency stays close to the lowest
+ * latency observed, and shrinks when the latency rises, i.e. when requests
+ * start to queue up at the peer. A timeout halves the window.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class FlowControl {
+
+	/**
+	 * The factor by which the latency may exceed the lowest latency before
+	 * the window shrinks.
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * The factor by which the window shrinks when the latency rises.
+	 */
+	private static final double DECREASE = 0.9;
+
+	/**
+	 * The factor by which the lowest latency rises per response, so that it
+	 * follows a lasting change of the network.
+	 */
+	private static final double MIN_LATENCY_DRIFT = 1.01;
+
+	/**
+	 * The lowest latency that is measured. Shorter latencies are scheduling
+	 * noise and must not shrink the window.
+	 */
+	private static final long MIN_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final int initialLimit;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final int maxQueueSize;
+
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	/**
+	 * Creates the flow control.
+	 *
+	 * @param initialLimit
+	 *            The initial window of a peer.
+	 * @param minLimit
+	 *            The smallest window.
+	 * @param maxLimit
+	 *            The largest window.
+	 * @param maxQueueSize
+	 *            The maximum number of queued requests per peer.
+	 */
+	public FlowControl(int initialLimit, int minLimit, int maxLimit, int maxQueueSize) {
+		if(minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+			throw new IllegalArgumentException("Illegal window limits");
+		this.initialLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	/**
+	 * Sends a request as soon as the window of the peer allows it. The
+	 * request leaves the window when its response future is completed.
+	 *
+	 * @param peer
+	 *            The JID of the peer.
+	 * @param response
+	 *            The future of the response. If it is completed while the
+	 *            request is queued, e.g. by a timeout, the request is not
+	 *            sent.
+	 * @param send
+	 *            Sends the request.
+	 * @throws RejectedExecutionException
+	 *             if the queue of the peer is full.
+	 */
+	public void send(String peer, CompletableFuture<?> response, Runnable send) {
+		Window window = this.windows.get(peer);
+		if(window == null) {
+			Window created = new Window();
+			window = this.windows.putIfAbsent(peer, created);
+			if(window == null)
+				window = created;
+		}
+		Request request = new Request(window, send);
+		boolean sendNow = false;
+		synchronized (window) {
+			if(window.inFlight < (int) window.limit) {
+				window.inFlight++;
+				request.sent = System.nanoTime();
+				sendNow = true;
+			} else if(window.queue.size() - window.cancelled < this.maxQueueSize) {
+				window.queue.add(request);
+			} else {
+				throw new RejectedExecutionException("Too many requests queued for " + peer);
+			}
+		}
+		response.whenComplete(request);
+		if(sendNow)
+			send.run();
+	}
+
+	/**
+	 * @return The peers that requests have been sent to.
+	 */
+	public Set<String> getPeers() {
+		return this.windows.keySet();
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The number of requests that are in flight to the peer.
+	 */
+	public int getInFlight(String peer) {
+		Window window = this.windows.get(peer);
+		if(window == null)
+			return 0;
+		synchronized (window) {
+			return window.inFlight;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The number of requests that are queued for the peer.
+	 */
+	public int getQueueDepth(String peer) {
+		Window window = this.windows.get(peer);
+		if(window == null)
+			return 0;
+		synchronized (window) {
+			return window.queue.size() - window.cancelled;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The current window of the peer.
+	 */
+	public int getLimit(String peer) {
+		Window window = this.windows.get(peer);
+		if(window == null)
+			return this.initialLimit;
+		synchronized (window) {
+			return (int) window.limit;
+		}
+	}
+
+	/**
+	 * @param peer
+	 *            The JID of the peer.
+	 * @return The smoothed latency of the peer in milliseconds, or 0 if no
+	 *         response has been received.
+	 */
+	public double getLatency(String peer) {
+		Window window = this.windows.get(peer);
+		if(window == null)
+			return 0;
+		synchronized (window) {
+			return window.latency / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+	/**
+	 * Removes a request from the window and sends queued requests.
+	 */
+	private void complete(Request request, Throwable failure) {
+		Window window = request.window;
+		List<Request> next = new ArrayList<Request>();
+		synchronized (window) {
+			if(request.sent == 0) {
+				// the request has been completed while it was queued, it is
+				// skipped when it is polled
+				request.cancelled = true;
+				window.cancelled++;
+				if(window.cancelled > window.queue.size() / 2)
+					purge(window);
+				return;
+			}
+			window.inFlight--;
+			if(failure instanceof TimeoutException
+					|| failure != null && failure.getCause() instanceof TimeoutException) {
+				window.limit = Math.max(this.minLimit, window.limit / 2);
+			} else if(failure == null) {
+				adapt(window, Math.max(MIN_LATENCY_NANOS, System.nanoTime() - request.sent));
+			}
+			long now = System.nanoTime();
+			while (window.inFlight < (int) window.limit && !window.queue.isEmpty()) {
+				Request queued = window.queue.poll();
+				if(queued.cancelled) {
+					window.cancelled--;
+					continue;
+				}
+				queued.sent = now;
+				window.inFlight++;
+				next.add(queued);
+			}
+		}
+		for (Request queued : next) {
+			queued.send.run();
+		}
+	}
+
+	/**
+	 * Removes the cancelled requests from the queue of a window. This is only
+	 * done when they make up half of the queue, so that many requests that
+	 * time out while they are queued do not scan the queue each.
+	 */
+	private void purge(Window window) {
+		Iterator<Request> queued = window.queue.iterator();
+		while (queued.hasNext()) {
+			if(queued.next().cancelled)
+				queued.remove();
+		}
+		window.cancelled = 0;
+	}
+
+	private void adapt(Window window, double latency) {
+		window.latency = window.latency == 0 ? latency : 0.8 * window.latency + 0.2 * latency;
+		window.minLatency = window.minLatency == 0 ? latency
+				: Math.min(window.minLatency * MIN_LATENCY_DRIFT, latency);
+		if(window.latency <= window.minLatency * LATENCY_TOLERANCE) {
+			window.limit = Math.min(this.maxLimit, window.limit + 1 / window.limit);
+		} else {
+			window.limit = Math.max(this.minLimit, window.limit * DECREASE);
+		}
+	}
+
+	/**
+	 * The state of a peer, guarded by its lock.
+	 */
+	private class Window {
+
+		private double limit = initialLimit;
+
+		private int inFlight = 0;
+
+		private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+
+		/**
+		 * The number of cancelled requests in the queue.
+		 */
+		private int cancelled = 0;
+
+		/**
+		 * The smoothed latency in nanoseconds
+		 */
+		private double latency = 0;
+
+		/**
+		 * The lowest latency in nanoseconds
+		 */
+		private double minLatency = 0;
+	}
+
+	private class Request implements BiConsumer<Object, Throwable> {
+
+		private final Window window;
+
+		private final Runnable send;
+
+		/**
+		 * The time the request has been sent, or 0 while it is queued.
+		 * Guarded by the lock of the window.
+		 */
+		private long sent = 0;
+
+		/**
+		 * If the request has been completed while it was queued. Guarded by
+		 * the lock of the window.
+		 */
+		private boolean cancelled = false;
+
+		private Request(Window window, Runnable send) {
+			this.window = window;
+			this.send = send;
+		}
+
+		public void accept(Object response, Throwable failure) {
+			complete(this, failure);
+		}
+	}
+
+}
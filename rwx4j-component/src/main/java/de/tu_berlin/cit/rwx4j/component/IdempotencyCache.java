@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * A bounded, time-windowed cache of request executions. Each execution is
+ * registered under a request key, e.g. the sender and id of an IQ stanza. A
+ * duplicate request within the window receives the registered execution,
+ * which is either still running or already completed, instead of being
+ * executed again. An execution may be registered with a fingerprint of the
+ * request, so that a different request that reuses the key is detected.
+ *
+ * Entries are evicted in the order their executions complete as soon as they
+ * leave the window or the cache exceeds its capacity. Executions that are
+ * still running are never evicted, and they do not hold up the eviction of
+ * completed ones.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ * @param <V> The type of the execution result.
+ */
+public class IdempotencyCache<V> {
+
+	private static class Entry<V> {
+
+		private final String key;
+
+		private final String fingerprint;
+
+		private final CompletableFuture<V> execution;
+
+		private final long created;
+
+		private Entry(String key, String fingerprint, CompletableFuture<V> execution, long created) {
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.execution = execution;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * Thrown if a key is registered for a request that differs from the
+	 * request of the registered execution.
+	 */
+	public static class ConflictException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private ConflictException(String key) {
+			super("The key " + key + " has been registered for another request");
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+
+	private final ConcurrentLinkedQueue<Entry<V>> order = new ConcurrentLinkedQueue<Entry<V>>();
+
+	private final int capacity;
+
+	private final long windowNanos;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param capacity
+	 *            The maximum number of completed executions to keep.
+	 * @param windowMillis
+	 *            The time in milliseconds a completed execution is kept.
+	 */
+	public IdempotencyCache(int capacity, long windowMillis) {
+		this.capacity = capacity;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+
+	/**
+	 * Registers a new execution under the given key, unless an execution
+	 * has already been registered within the window.
+	 *
+	 * @param key
+	 *            The request key.
+	 * @param execution
+	 *            The execution of the current request.
+	 * @return The previously registered execution or <tt>null</tt> if the
+	 *         given execution has been registered.
+	 */
+	public CompletableFuture<V> register(String key, CompletableFuture<V> execution) {
+		return register(key, null, execution);
+	}
+
+	/**
+	 * Registers a new execution under the given key, unless an execution
+	 * has already been registered within the window.
+	 *
+	 * @param key
+	 *            The request key.
+	 * @param fingerprint
+	 *            Identifies the content of the request, e.g. a hash of its
+	 *            payload, or <tt>null</tt> if the content is not compared.
+	 * @param execution
+	 *            The execution of the current request.
+	 * @return The previously registered execution or <tt>null</tt> if the
+	 *         given execution has been registered.
+	 * @throws ConflictException
+	 *             if the previously registered execution has another
+	 *             fingerprint.
+	 */
+	public CompletableFuture<V> register(String key, String fingerprint, CompletableFuture<V> execution) {
+		long now = System.nanoTime();
+		evict(now);
+		Entry<V> entry = new Entry<V>(key, fingerprint, execution, now);
+		while (true) {
+			Entry<V> existing = this.entries.putIfAbsent(key, entry);
+			if (existing == null) {
+				track(entry);
+				return null;
+			}
+			if (!isExpired(existing, now)) {
+				if (fingerprint != null && existing.fingerprint != null
+						&& !fingerprint.equals(existing.fingerprint)) {
+					throw new ConflictException(key);
+				}
+				return existing.execution;
+			}
+			// replace the stale entry that has not been evicted yet
+			if (this.entries.replace(key, existing, entry)) {
+				track(entry);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Removes an execution, e.g. because it failed and a retry should be
+	 * executed again.
+	 *
+	 * @param key
+	 *            The request key.
+	 * @param execution
+	 *            The execution to remove.
+	 */
+	public void remove(String key, CompletableFuture<V> execution) {
+		Entry<V> entry = this.entries.get(key);
+		if (entry != null && entry.execution == execution) {
+			this.entries.remove(key, entry);
+		}
+	}
+
+	/**
+	 * @return The number of registered executions.
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return entry.execution.isDone() && now - entry.created > this.windowNanos;
+	}
+
+	/**
+	 * Adds an entry to the eviction order once its execution has completed.
+	 */
+	private void track(final Entry<V> entry) {
+		entry.execution.whenComplete(new BiConsumer<V, Throwable>() {
+			public void accept(V result, Throwable failure) {
+				order.offer(entry);
+			}
+		});
+	}
+
+	private void evict(long now) {
+		Entry<V> head;
+		while ((head = this.order.peek()) != null) {
+			boolean overCapacity = this.entries.size() > this.capacity;
+			boolean stale = this.entries.get(head.key) != head;
+			if (!stale && !overCapacity && now - head.created <= this.windowNanos) {
+				return;
+			}
+			if (this.order.remove(head)) {
+				this.entries.remove(head.key, head);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TimingWheel;
+
+/**
+ * The IQ requests that wait for their response, by packet ID. Every request
+ * is completed by its response, so that any number of requests can be
+ * outstanding at the same time. A response only completes a request if it
+ * has been sent by the addressee of the request. Requests that are not answered in time are
+ * completed exceptionally with a <code>TimeoutException</code>.
+ *
+ * A request is removed from the table before its future is completed by the
+ * response or the timeout, and as soon as the caller completes or cancels the
+ * future itself.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class PendingRequests {
+
+	private final ConcurrentHashMap<String, Pending> requests = new ConcurrentHashMap<String, Pending>();
+
+	private final TimingWheel timer;
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param timer
+	 *            The timer of the request timeouts.
+	 */
+	public PendingRequests(TimingWheel timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Registers a request before it is sent.
+	 *
+	 * @param request
+	 *            The IQ request.
+	 * @param timeoutMillis
+	 *            The time in milliseconds to wait for the response.
+	 * @return The future that is completed with the response, or
+	 *         exceptionally with an <code>IllegalStateException</code> if a
+	 *         request with the same ID is already pending.
+	 */
+	public CompletableFuture<IQ> register(IQ request, long timeoutMillis) {
+		Pending pending = new Pending(request.getID(), request.getTo(), timeoutMillis);
+		if (this.requests.putIfAbsent(pending.id, pending) != null) {
+			CompletableFuture<IQ> failed = new CompletableFuture<IQ>();
+			failed.completeExceptionally(new IllegalStateException(
+					"A request with id " + pending.id + " is already pending"));
+			return failed;
+		}
+		pending.timeout = this.timer.schedule(pending, timeoutMillis);
+		pending.future.whenComplete(pending);
+		return pending.future;
+	}
+
+	/**
+	 * Completes the request that a response answers.
+	 *
+	 * @param response
+	 *            The IQ of type <tt>result</tt> or <tt>error</tt>.
+	 * @return <tt>true</tt> if the response answers a pending request.
+	 */
+	public boolean complete(IQ response) {
+		Pending pending = this.requests.get(response.getID());
+		// a response from another entity must not complete the request
+		if (pending == null || pending.to != null && !pending.to.equals(response.getFrom())
+				|| !this.requests.remove(pending.id, pending)) {
+			return false;
+		}
+		return pending.future.complete(response);
+	}
+
+	/**
+	 * Cancels all pending requests, e.g. on shutdown.
+	 */
+	public void cancelAll() {
+		for (Pending pending : this.requests.values()) {
+			this.requests.remove(pending.id, pending);
+			pending.future.completeExceptionally(
+					new CancellationException("The request " + pending.id + " has been cancelled"));
+		}
+	}
+
+	/**
+	 * @return The number of pending requests.
+	 */
+	public int size() {
+		return this.requests.size();
+	}
+
+	private class Pending implements Runnable, BiConsumer<IQ, Throwable> {
+
+		private final String id;
+
+		private final JID to;
+
+		private final long timeoutMillis;
+
+		private final CompletableFuture<IQ> future = new CompletableFuture<IQ>();
+
+		private volatile TimingWheel.Timeout timeout;
+
+		private Pending(String id, JID to, long timeoutMillis) {
+			this.id = id;
+			this.to = to;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		/**
+		 * Expires the request.
+		 */
+		public void run() {
+			requests.remove(this.id, this);
+			this.future.completeExceptionally(new TimeoutException(
+					"No response to request " + this.id + " within " + this.timeoutMillis + " ms"));
+		}
+
+		/**
+		 * Removes the completed request and cancels its timeout.
+		 */
+		public void accept(IQ response, Throwable failure) {
+			requests.remove(this.id, this);
+			TimingWheel.Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
+
+/**
+ * Thrown when a request of a {@link ResourceContainerSocket} fails, either
+ * because the remote entity answered with an IQ error or because the request
+ * or response is invalid.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RemoteRequestException extends Exception {
+
+	private static final long serialVersionUID = 2911645079632364458L;
+
+	private final String jid;
+
+	private final PacketError error;
+
+	/**
+	 * Creates an exception for an IQ error reply.
+	 *
+	 * @param jid
+	 *            The JID the request was sent to.
+	 * @param error
+	 *            The error of the reply, or <tt>null</tt> if the reply does
+	 *            not contain an error element.
+	 */
+	public RemoteRequestException(String jid, PacketError error) {
+		super("Request to " + jid + " failed: "
+				+ (error == null ? "unknown error" : error.getCondition().toXMPP()
+						+ (error.getText() == null ? "" : " (" + error.getText() + ")")));
+		this.jid = jid;
+		this.error = error;
+	}
+
+	/**
+	 * Creates an exception for an invalid request or response.
+	 *
+	 * @param jid
+	 *            The JID the request was sent to.
+	 * @param message
+	 *            The detail message.
+	 * @param cause
+	 *            The cause, or <tt>null</tt>.
+	 */
+	public RemoteRequestException(String jid, String message, Throwable cause) {
+		super(message, cause);
+		this.jid = jid;
+		this.error = null;
+	}
+
+	/**
+	 * @return The JID the request was sent to.
+	 */
+	public String getJid() {
+		return jid;
+	}
+
+	/**
+	 * @return The error of the IQ error reply, or <tt>null</tt> if the
+	 *         request did not fail due to an error reply.
+	 */
+	public PacketError getError() {
+		return error;
+	}
+
+}
@@ -16,19 +16,46 @@
 
 package de.tu_berlin.cit.rwx4j.component;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.apache.xmlbeans.XmlException;
+import org.dom4j.Attribute;
 import org.dom4j.Document;
+import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.tu_berlin.cit.rwx4j.annotations.RateLimit;
+import de.tu_berlin.cit.rwx4j.container.Deadline;
+import de.tu_berlin.cit.rwx4j.container.InvocationResult;
 import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
 import de.tu_berlin.cit.rwx4j.rest.RestDocument;
 import de.tu_berlin.cit.rwx4j.xmpp.core.AbstractComponent;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Presence;
+import de.tu_berlin.cit.rwx4j.xmpp.util.RateLimiter;
 import de.tu_berlin.cit.rwx4j.xwadl.XwadlDocument;
 
 /**
@@ -57,15 +84,46 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 	
 	private final ResourceContainerSocketManager socketManager;
 	
+	/**
+	 * Marks a rate limit that is invalid
+	 */
+	private static final Object INVALID_RATE = new Object();
+	
+	/**
+	 * The rates of the rate limits of the resources, by limit
+	 */
+	private final ConcurrentHashMap<RateLimit, Object> rates = new ConcurrentHashMap<RateLimit, Object>();
+	
+	/**
+	 * Responses to recently executed set requests, kept for 5 minutes in
+	 * order to answer retries without executing them again.
+	 */
+	private final IdempotencyCache<IQ> executedRequests = new IdempotencyCache<IQ>(10000, 300000);
 
 	/**
-	 * Optimal container component configuration: 24 threads, queue 100,000
+	 * The number of requests that expired before they were registered
+	 */
+	private final AtomicLong expiredRequests = new AtomicLong();
+
+	/**
+	 * Executes the requests of sockets of other components in this process,
+	 * separately from the requests received over XMPP. Idle threads time out.
+	 */
+	private final ThreadPoolExecutor localExecutor;
+
+	/**
+	 * Optimal container component configuration: 12 threads and a queue of
+	 * 50,000 for both read (XWADL and REST GET) and write (other REST)
+	 * requests
 	 * @param container
 	 */
 	protected ResourceContainerComponent(ResourceContainer container) {
-		super(24, 100000, true);
+		super(12, 50000, 12, 50000, true);
 		this.container = container;
 		this.socketManager = ResourceContainerSocketManager.buildInstance(this);
+		this.localExecutor = new ThreadPoolExecutor(12, 12, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(50000));
+		this.localExecutor.allowCoreThreadTimeOut(true);
 	}
 
 	@Override
@@ -90,6 +148,101 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 		return ("rest");
 	}
 
+	/**
+	 * REST requests are sent as IQ <tt>set</tt>, so reads are recognized by
+	 * the method of the request. The method is read from the raw stanza
+	 * without parsing it.
+	 */
+	@Override
+	protected boolean isReadRequest(Packet packet) {
+		if(super.isReadRequest(packet))
+			return true;
+		if(!(packet instanceof IQ) || ((IQ) packet).getType() != IQ.Type.set)
+			return false;
+		IQ iq = (IQ) packet;
+		return NAMESPACE_REST_XML.equals(iq.getChildNamespace())
+				&& "GET".equals(iq.getChildContentAttribute("method", "type"));
+	}
+
+	/**
+	 * REST requests are ordered per sender and resource path, so that a
+	 * sender's requests to one resource are still processed in order, while
+	 * its requests to other resources are processed in parallel. Thus the
+	 * requests of another container are not serialized, and two containers
+	 * that call each other synchronously while handling a request do not
+	 * wait for each other. The path is read from the raw stanza without
+	 * parsing it.
+	 */
+	@Override
+	protected Object getOrderingKey(Packet packet) {
+		if(packet instanceof IQ && ((IQ) packet).getType() == IQ.Type.set
+				&& packet.getFrom() != null) {
+			IQ iq = (IQ) packet;
+			String path = iq.getChildAttribute("path");
+			if(path != null && NAMESPACE_REST_XML.equals(iq.getChildNamespace()))
+				return packet.getFrom() + " " + path;
+		}
+		return super.getOrderingKey(packet);
+	}
+
+	/**
+	 * Applies the {@link RateLimit} of the addressed method or action to REST
+	 * requests. The limit applies to each sender and resource separately.
+	 */
+	@Override
+	protected boolean isWithinRequestRateLimit(Packet packet) {
+		if(!(packet instanceof IQ) || ((IQ) packet).getType() != IQ.Type.set
+				|| packet.getFrom() == null)
+			return true;
+		IQ iq = (IQ) packet;
+		if(!NAMESPACE_REST_XML.equals(iq.getChildNamespace()))
+			return true;
+		// the request addresses either a method or an action, which are read
+		// from the raw stanza because the dispatching thread must not parse
+		boolean action = false;
+		String operation = iq.getChildContentAttribute("method", "type");
+		if(operation == null) {
+			operation = iq.getChildContentAttribute("action", "name");
+			action = true;
+		}
+		return isWithinRateLimit(packet.getFrom(), iq.getChildAttribute("path"), operation, action);
+	}
+
+	private boolean isWithinRateLimit(JID from, String path, String operation, boolean action) {
+		if(from == null || path == null || operation == null)
+			return true;
+		RateLimit limit = this.container.getRateLimit(path, operation, action);
+		if(limit == null)
+			return true;
+		RateLimiter.Rate rate = getRate(limit);
+		// an invalid limit rejects all requests until it is fixed
+		if(rate == null)
+			return false;
+		return tryAcquirePermit(from.toBareJID() + " " + path + " " + operation, rate);
+	}
+
+	/**
+	 * Returns the rate of a rate limit. The rate is validated and created
+	 * once per limit.
+	 * 
+	 * @param limit
+	 *            The rate limit of an operation.
+	 * @return The rate, or <tt>null</tt> if the limit is invalid.
+	 */
+	private RateLimiter.Rate getRate(RateLimit limit) {
+		Object rate = this.rates.get(limit);
+		if(rate == null) {
+			try {
+				rate = new RateLimiter.Rate(limit.value(), limit.burst());
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid rate limit " + limit + ", requests are rejected", e);
+				rate = INVALID_RATE;
+			}
+			this.rates.putIfAbsent(limit, rate);
+		}
+		return rate == INVALID_RATE ? null : (RateLimiter.Rate) rate;
+	}
+
 	/**
 	 * Override this method to handle the IQ stanzas of type <tt>get</tt> that
 	 * could not be processed by the {@link AbstractComponent} implementation.
@@ -115,16 +268,22 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 	 */
 	@Override
 	protected IQ handleIQGet(IQ iq) throws Exception {
-		logger.info("the following iq get stanza has been received:" +
-				iq.toString());
-		Element child = iq.getChildElement();
-		String path = child.attribute("path").getValue();
-		XwadlDocument xwadl = this.container.getXWADL(path);
-		Document doc = DocumentHelper.parseText(xwadl.toString());
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq get stanza has been received:" +
+					iq.toXML());
+		Element child = iq.getChildElementReadOnly();
+		Attribute path = child.attribute("path");
+		if(path == null)
+			return createErrorIQ(iq, Condition.bad_request, "Missing path attribute");
+		InvocationResult<XwadlDocument> result = this.container.generateXWADL(path.getValue());
+		if(!result.isSuccess())
+			return createErrorIQ(iq, result);
+		Document doc = DocumentHelper.parseText(result.getValue().toString());
 		IQ response = IQ.createResultIQ(iq);
 		response.setChildElement(doc.getRootElement());
-		logger.info("the following iq result stanza will be send:" +
-				response.toString());
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq result stanza will be send:" +
+					response.toXML());
 		return response;
 	}
 
@@ -142,8 +301,13 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 	 * <tt>error</tt>, condition 'internal-server-error' will be returned to the
 	 * sender of the original request.
 	 * 
-	 * The default implementation of this method returns <tt>null</tt>. It is
-	 * expected that most child classes will override this method.
+	 * Retries of a request, i.e. stanzas with the same sender and id or the
+	 * same idempotency key, are answered with the response of the first
+	 * execution. Reads are executed again, so that they return the current
+	 * state. A retry that arrives while the first execution is still
+	 * running is answered once it completes, without blocking a thread. A
+	 * reused idempotency key with another payload is answered with
+	 * 'conflict'.
 	 * 
 	 * @param iq
 	 *            The IQ request stanza of type <tt>set</tt> that was received
@@ -153,20 +317,373 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 	 */
 	@Override
 	protected IQ handleIQSet(IQ iq) throws Exception {
-		logger.info("the following iq set stanza has been received:" +
-				iq.toString());
-		Element child = iq.getChildElement();
-		RestDocument xmlRequest = RestDocument.Factory.parse(child
-				.asXML());
-		RestDocument xmlResponse = this.container.execute(xmlRequest);
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq set stanza has been received:" +
+					iq.toXML());
+		CompletableFuture<IQ> response = handleRestRequest(iq, getDeadline(iq));
+		if(response.isDone()) {
+			try {
+				return response.join();
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+		// a retry of a running request or a GET request that is coalesced
+		// with a running one is answered once the running execution has
+		// completed, the thread is not blocked until then
+		final IQ request = iq;
+		response.whenComplete(new BiConsumer<IQ, Throwable>() {
+			public void accept(IQ result, Throwable failure) {
+				if(failure != null) {
+					logger.error("Exception while processing request", failure);
+					result = IQ.createErrorIQ(request, Condition.internal_server_error);
+				}
+				send(result);
+			}
+		});
+		return DEFERRED_RESPONSE;
+	}
+
+	/**
+	 * Executes a REST request once per idempotency key. A request whose
+	 * deadline has expired is answered before it is registered or parsed.
+	 * The returned future is completed at once, unless the request is a
+	 * retry of a request that is still running or a GET request that is
+	 * coalesced with a running one.
+	 */
+	private CompletableFuture<IQ> handleRestRequest(final IQ iq, Deadline deadline) {
+		if(deadline.isExpired()) {
+			this.expiredRequests.incrementAndGet();
+			return CompletableFuture.completedFuture(createErrorIQ(iq, InvocationResult.<RestDocument> failure(
+					InvocationResult.Failure.DEADLINE_EXCEEDED, "Deadline expired before execution")));
+		}
+		// reads have no side effects to protect, so their responses are not
+		// stored
+		String key = isReadRequest(iq) ? null : getIdempotencyKey(iq);
+		CompletableFuture<IQ> execution = new CompletableFuture<IQ>();
+		CompletableFuture<IQ> previous = null;
+		try {
+			if(key != null)
+				previous = this.executedRequests.register(key, getFingerprint(iq), execution);
+		} catch (IdempotencyCache.ConflictException e) {
+			logger.debug("Rejecting request " + key + ", the key has been used for another request");
+			return CompletableFuture.completedFuture(createErrorIQ(iq, Condition.conflict,
+					"The idempotency key has been used for another request"));
+		}
+		if(previous != null) {
+			logger.debug("Answering duplicate request " + key + " with the stored response");
+			return previous.thenApply(new Function<IQ, IQ>() {
+				public IQ apply(IQ stored) {
+					IQ response = stored.createCopy();
+					response.setID(iq.getID());
+					response.setTo(iq.getFrom());
+					response.setFrom(iq.getTo());
+					return response;
+				}
+			});
+		}
+		
+		final String executionKey = key;
+		final CompletableFuture<IQ> pending = execution;
+		executeRestRequest(iq, deadline).whenComplete(
+				new BiConsumer<InvocationResult<RestDocument>, Throwable>() {
+			public void accept(InvocationResult<RestDocument> result, Throwable failure) {
+				try {
+					if(failure != null)
+						throw failure instanceof CompletionException && failure.getCause() != null
+								? failure.getCause() : failure;
+					IQ response = result.isSuccess() ? createResultIQ(iq, result.getValue())
+							: createErrorIQ(iq, result);
+					if(result.getFailure() == InvocationResult.Failure.DEADLINE_EXCEEDED
+							&& executionKey != null) {
+						// expired requests are not stored, a retry is executed again
+						executedRequests.remove(executionKey, pending);
+					}
+					pending.complete(response);
+				} catch (Throwable e) {
+					// failed executions are not stored, a retry is executed again
+					if(executionKey != null)
+						executedRequests.remove(executionKey, pending);
+					pending.completeExceptionally(e);
+				}
+			}
+		});
+		return execution;
+	}
+
+	/**
+	 * Returns a hash of the payload of a request that carries a
+	 * client-supplied idempotency key, so that a reuse of the key for
+	 * another request is detected. Requests that are identified by their
+	 * id are not compared.
+	 */
+	private String getFingerprint(IQ iq) {
+		String idempotencyKey = iq.getChildAttribute("idempotencyKey");
+		if(idempotencyKey == null || idempotencyKey.isEmpty())
+			return null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(
+					digest.digest(iq.getChildElementXML().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+
+	/**
+	 * Returns the key that identifies a set request and its retries. A
+	 * client-supplied idempotency key is scoped by the bare JID of the
+	 * sender, otherwise the full JID and the IQ id are used.
+	 * 
+	 * @param iq
+	 *            The IQ request stanza of type <tt>set</tt>.
+	 * @return The idempotency key.
+	 */
+	protected String getIdempotencyKey(IQ iq) {
+		String idempotencyKey = iq.getChildAttribute("idempotencyKey");
+		if(idempotencyKey != null && !idempotencyKey.isEmpty() && iq.getFrom() != null)
+			return iq.getFrom().toBareJID() + " key " + idempotencyKey;
+		return iq.getFrom() + " id " + iq.getID();
+	}
+
+	private CompletableFuture<InvocationResult<RestDocument>> executeRestRequest(IQ iq, Deadline deadline) {
+		RestDocument xmlRequest;
+		try {
+			xmlRequest = RestDocument.Factory.parse(iq.getChildElementXML());
+		} catch (XmlException e) {
+			return CompletableFuture.completedFuture(InvocationResult.<RestDocument> failure(
+					InvocationResult.Failure.BAD_REQUEST, e.getMessage()));
+		}
+		return this.container.invokeAsync(xmlRequest, deadline);
+	}
+
+	private IQ createResultIQ(IQ iq, RestDocument xmlResponse) throws Exception {
 		Document doc = DocumentHelper.parseText(xmlResponse.toString());
 		IQ response = IQ.createResultIQ(iq);
 		response.setChildElement(doc.getRootElement());
-		logger.info("the following iq result stanza will be send:" +
-				response.toString());
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq result stanza will be send:" +
+					response.toXML());
 		return response;
 	}
 
+	/**
+	 * Returns the deadline of a request. The optional timeout of the request
+	 * is counted from the moment the stanza was received by this component,
+	 * so that time spent in the queue is taken into account.
+	 * 
+	 * @param iq
+	 *            The IQ request stanza of type <tt>set</tt>.
+	 * @return The deadline of the request or {@link Deadline#NONE}.
+	 */
+	protected Deadline getDeadline(IQ iq) {
+		String timeout = iq.getChildAttribute("timeout");
+		if(timeout == null)
+			return Deadline.NONE;
+		try {
+			return Deadline.after(Long.parseLong(timeout.trim()) - getPacketAgeMillis());
+		} catch (NumberFormatException e) {
+			return Deadline.NONE;
+		}
+	}
+
+	/**
+	 * @return The number of requests that were not executed because their
+	 *         timeout expired while they were queued.
+	 */
+	public long getExpiredRequestCount() {
+		return this.expiredRequests.get() + this.container.getExpiredInvocationCount();
+	}
+
+	/**
+	 * Maps a failed container invocation to an IQ error stanza.
+	 * 
+	 * @param iq
+	 *            The IQ request stanza.
+	 * @param result
+	 *            The failed invocation result.
+	 * @return The IQ error stanza.
+	 */
+	protected IQ createErrorIQ(IQ iq, InvocationResult<?> result) {
+		return createErrorIQ(iq, getCondition(result), result.getMessage());
+	}
+
+	private static Condition getCondition(InvocationResult<?> result) {
+		switch(result.getFailure()) {
+		case RESOURCE_NOT_FOUND:
+			return Condition.item_not_found;
+		case NOT_IMPLEMENTED:
+			return Condition.feature_not_implemented;
+		case BAD_REQUEST:
+			return Condition.bad_request;
+		case DEADLINE_EXCEEDED:
+			return Condition.resource_constraint;
+		default:
+			return Condition.internal_server_error;
+		}
+	}
+
+	private IQ createErrorIQ(IQ iq, Condition condition, String text) {
+		logger.debug("Replying to iq " + iq.getID() + " with error " + condition
+				+ ": " + text);
+		IQ response = IQ.createResultIQ(iq);
+		response.setError(new PacketError(condition, condition.getDefaultType(), text));
+		return response;
+	}
+
+	/**
+	 * Generates the xwadl of a resource for a socket of another component in
+	 * this process, without sending stanzas. The request is answered as if
+	 * it had been received over XMPP, failures complete the future with the
+	 * same {@link RemoteRequestException}.
+	 * 
+	 * @param from
+	 *            The JID of the requesting component.
+	 * @param path
+	 *            The path of the resource.
+	 * @return The future of the xwadl.
+	 */
+	CompletableFuture<XwadlDocument> generateXWADLLocally(final JID from, final String path) {
+		return executeLocally(new Supplier<XwadlDocument>() {
+			public XwadlDocument get() {
+				if(path == null)
+					throw new CompletionException(localError(Condition.bad_request, "Missing path attribute"));
+				InvocationResult<XwadlDocument> result = container.generateXWADL(path);
+				if(!result.isSuccess())
+					throw new CompletionException(localError(getCondition(result), result.getMessage()));
+				return result.getValue();
+			}
+		});
+	}
+
+	/**
+	 * Invokes a method or action of a resource for a socket of another
+	 * component in this process, without sending stanzas. The documents are
+	 * passed by reference, so the request must not be modified until the
+	 * future is completed. The request is answered as if it had been
+	 * received over XMPP: rate limits and deadlines apply, retries with the
+	 * same idempotency key are answered with the stored response and
+	 * failures complete the future with the same
+	 * {@link RemoteRequestException}.
+	 * 
+	 * @param from
+	 *            The JID of the requesting component.
+	 * @param request
+	 *            The rest xml request.
+	 * @return The future of the response.
+	 */
+	CompletableFuture<RestDocument> invokeLocally(final JID from, final RestDocument request) {
+		final RestDocument.Rest rest = request.getRest();
+		boolean action = rest.isSetAction();
+		String operation = action ? rest.getAction().getName()
+				: rest.isSetMethod() ? rest.getMethod().getType().toString() : null;
+		// rate limits are checked before the request is queued
+		if(!isWithinRateLimit(from, rest.getPath(), operation, action)) {
+			CompletableFuture<RestDocument> rejected = new CompletableFuture<RestDocument>();
+			rejected.completeExceptionally(new RemoteRequestException(getJID().toString(),
+					new PacketError(Condition.policy_violation, PacketError.Type.wait,
+							"Rate limit exceeded")));
+			return rejected;
+		}
+		// the request has not been queued by this component, so its timeout
+		// is counted from now on
+		final Deadline deadline = rest.isSetTimeout() ? Deadline.after(rest.getTimeout()) : Deadline.NONE;
+		// a retry of a running request and a GET request that is coalesced
+		// with a running one complete with the running execution, without
+		// blocking the local executor
+		return executeLocally(new Supplier<CompletableFuture<RestDocument>>() {
+			public CompletableFuture<RestDocument> get() {
+				if(rest.isSetIdempotencyKey())
+					return invokeIdempotently(from, request, deadline);
+				return container.invokeAsync(request, deadline).handle(
+						new BiFunction<InvocationResult<RestDocument>, Throwable, RestDocument>() {
+					public RestDocument apply(InvocationResult<RestDocument> result, Throwable failure) {
+						if(failure != null) {
+							logger.warn("Unexpected exception while processing local request", failure);
+							throw new CompletionException(localError(Condition.internal_server_error, null));
+						}
+						if(!result.isSuccess())
+							throw new CompletionException(localError(getCondition(result), result.getMessage()));
+						return result.getValue();
+					}
+				});
+			}
+		}).thenCompose(Function.<CompletableFuture<RestDocument>> identity());
+	}
+
+	/**
+	 * Executes a local request that carries an idempotency key as IQ
+	 * stanza, so that it shares the stored responses with the requests
+	 * received over XMPP.
+	 */
+	private CompletableFuture<RestDocument> invokeIdempotently(JID from, RestDocument request, Deadline deadline) {
+		IQ iq = new IQ(IQ.Type.set);
+		iq.setFrom(from);
+		iq.setTo(getJID());
+		try {
+			iq.setChildElement(DocumentHelper.parseText(request.toString()).getRootElement());
+		} catch (DocumentException e) {
+			throw new CompletionException(e);
+		}
+		return handleRestRequest(iq, deadline).handle(new BiFunction<IQ, Throwable, RestDocument>() {
+			public RestDocument apply(IQ response, Throwable failure) {
+				if(failure != null) {
+					logger.warn("Unexpected exception while processing local request", failure);
+					throw new CompletionException(localError(Condition.internal_server_error, null));
+				}
+				if(response.getType() == IQ.Type.error)
+					throw new CompletionException(new RemoteRequestException(getJID().toString(),
+							response.getError()));
+				try {
+					return RestDocument.Factory.parse(response.getChildElementXML());
+				} catch (XmlException e) {
+					logger.warn("Unexpected exception while processing local request", e);
+					throw new CompletionException(localError(Condition.internal_server_error, null));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes a local request on the local executor. Unexpected exceptions
+	 * are answered with 'internal-server-error', like those of requests
+	 * received over XMPP.
+	 */
+	private <T> CompletableFuture<T> executeLocally(final Supplier<T> request) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			this.localExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.complete(request.get());
+					} catch (CompletionException e) {
+						if(e.getCause() instanceof RemoteRequestException) {
+							future.completeExceptionally(e.getCause());
+							return;
+						}
+						logger.warn("Unexpected exception while processing local request", e.getCause());
+						future.completeExceptionally(localError(Condition.internal_server_error, null));
+					} catch (RuntimeException e) {
+						logger.warn("Unexpected exception while processing local request", e);
+						future.completeExceptionally(localError(Condition.internal_server_error, null));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("(serving component '" + getName() + "') Local queue exhausted, request rejected");
+			future.completeExceptionally(localError(Condition.resource_constraint,
+					"Local queue exhausted"));
+		}
+		return future;
+	}
+
+	private RemoteRequestException localError(Condition condition, String text) {
+		return new RemoteRequestException(getJID().toString(),
+				new PacketError(condition, condition.getDefaultType(), text));
+	}
+
 	/**
 	 * Override this method to handle the IQ stanzas of type <tt>result</tt>
 	 * that are received by the component. If you do not override this method,
@@ -178,8 +695,9 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 	 */
 	@Override
 	protected void handleIQResult(IQ iq) {
-		logger.info("the following iq result stanza has been received:" +
-				iq.toString());
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq result stanza has been received:" +
+					iq.toXML());
 		
 		this.socketManager.handleIQResult(iq);
 	}
@@ -201,6 +719,38 @@ public abstract class ResourceContainerComponent extends AbstractComponent {
 		this.socketManager.handleIQError(iq);
 	}
 
+	/**
+	 * Records the entity capabilities of the sender, so that the socket
+	 * manager need not discover its features again.
+	 * 
+	 * @param presence
+	 *            The presence that was received by this component.
+	 */
+	@Override
+	protected void handlePresence(Presence presence) {
+		this.socketManager.handlePresence(presence);
+	}
+
+	/**
+	 * Gives up the requests of the sockets, whose responses are lost once
+	 * the component is shut down, e.g. because the connection was lost, and
+	 * stops the timer of the sockets.
+	 */
+	@Override
+	public void preComponentShutdown() {
+		ResourceContainerSocketManager.unregisterLocalComponent(this);
+		this.socketManager.shutdown();
+	}
+
+	/**
+	 * Registers the component, so that sockets of other components in this
+	 * process address its container directly.
+	 */
+	@Override
+	public void postComponentStart() {
+		ResourceContainerSocketManager.registerLocalComponent(this);
+	}
+
 	/**
 	 * Helper method for socket manager to send packets.
 	 * 
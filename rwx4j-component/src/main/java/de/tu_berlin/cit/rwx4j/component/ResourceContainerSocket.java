@@ -16,32 +16,57 @@
 
 package de.tu_berlin.cit.rwx4j.component;
 
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
-import org.dom4j.Document;
+import org.apache.xmlbeans.XmlException;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import de.tu_berlin.cit.rwx4j.rest.RestDocument;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Message;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ.Type;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TaskEngine;
 import de.tu_berlin.cit.rwx4j.xwadl.XwadlDocument;
 
 /**
- * TODO
+ * A socket to the resource container of another component. Requests are
+ * correlated with their responses by the IQ id, so that any number of
+ * requests can be outstanding on one socket. A request that is not answered
+ * within {@link ResourceContainerSocketManager#getRequestTimeout()} is given
+ * up.
+ * 
+ * The asynchronous methods return without waiting for the response, the
+ * synchronous methods wait for the result of the asynchronous ones. The
+ * synchronous methods log failures and return <tt>null</tt>, the
+ * asynchronous ones complete exceptionally with the cause, so that an
+ * error response can be told apart from a timeout. Cancelling the future of
+ * a request gives up the request.
+ * 
+ * Requests to a component that is started in the same process are passed
+ * to its resource container directly instead of being sent over XMPP.
+ * They complete in the same way, errors included, but the documents are
+ * passed by reference: a request must not be modified until its response
+ * has arrived.
  * 
  * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
  */
 public class ResourceContainerSocket {
 
+	private final static Logger logger = LoggerFactory
+			.getLogger(ResourceContainerSocket.class);
+
 	private final ResourceContainerSocketManager socketManager;
 	
 	private final String jid;
-	
-	protected final Exchanger<XwadlDocument> xwadlExchanger = new Exchanger<XwadlDocument>();
-	
-	protected final Exchanger<RestDocument> restXmlExchanger = new Exchanger<RestDocument>();
 
 	/**
 	 * This constructor should only be used by the ResourceContainerSocketManager.
@@ -64,89 +89,183 @@ public class ResourceContainerSocket {
 		this.socketManager.sendMessage(m);
 	}
 	
+	/**
+	 * Requests the xwadl of a resource and waits for the response.
+	 * 
+	 * @param path
+	 *            The path of the resource.
+	 * @return The xwadl, or <tt>null</tt> if the request failed or timed out.
+	 * @throws InterruptedException
+	 *             if the current thread has been interrupted while waiting.
+	 */
 	public XwadlDocument requestXWADL(String path) throws InterruptedException {
-		IQ iq = new IQ(Type.get);
-		iq.setTo(jid);
+		return waitForResponse(requestXWADLAsync(path));
+	}
 
+	/**
+	 * Requests the xwadl of a resource without waiting for the response.
+	 * 
+	 * @param path
+	 *            The path of the resource.
+	 * @return The future that is completed with the xwadl, or exceptionally
+	 *         with a {@link RemoteRequestException} if the remote entity
+	 *         answers with an error and a <code>TimeoutException</code> if it
+	 *         does not answer in time.
+	 */
+	public CompletableFuture<XwadlDocument> requestXWADLAsync(String path) {
+		ResourceContainerComponent local = this.socketManager.getLocalComponent(jid);
+		if(local != null)
+			return this.socketManager.requestLocalXWADL(local, path);
 		// create request
 		XwadlDocument request = XwadlDocument.Factory.newInstance();
 		request.addNewXwadl().setPath(path);
-		try {
-			Document doc;
-			doc = DocumentHelper.parseText(request.toString());
-			// set request
-			iq.setChildElement(doc.getRootElement());
-		} catch (DocumentException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
-		}
-		
-		this.socketManager.sendIQ(iq, this);
-		
-		// wait for response
-		XwadlDocument response;
-		response = this.xwadlExchanger.exchange(request);
-		return response;
+		return sendRequest(Type.get, request.toString(), new Function<String, XwadlDocument>() {
+			public XwadlDocument apply(String xml) {
+				try {
+					return XwadlDocument.Factory.parse(xml);
+				} catch (XmlException e) {
+					throw new CompletionException(new RemoteRequestException(jid,
+							"Invalid xwadl response from " + jid, e));
+				}
+			}
+		});
 	}
-	
+
+	/**
+	 * Invokes a method of a resource and waits for the response.
+	 * 
+	 * @param request
+	 *            The rest xml request.
+	 * @return The response, or <tt>null</tt> if the request failed or timed
+	 *         out.
+	 * @throws InterruptedException
+	 *             if the current thread has been interrupted while waiting.
+	 */
 	public RestDocument invokeRestXML(RestDocument request) throws InterruptedException {
-		IQ iq = new IQ(Type.set);
-		iq.setTo(jid);
+		return waitForResponse(invokeRestXMLAsync(request));
+	}
 
+	/**
+	 * Invokes a method of a resource and passes the response to a listener.
+	 * The listener is notified by a thread of the {@link TaskEngine} and
+	 * receives <tt>null</tt> if the request failed or timed out.
+	 * 
+	 * @param request
+	 *            The rest xml request.
+	 * @param listener
+	 *            The listener of the response.
+	 */
+	public void invokeAsyncRestXML(RestDocument request, final AsynchronousResultListener listener) {
+		invokeRestXMLAsync(request).handleAsync(new BiFunction<RestDocument, Throwable, Void>() {
+			public Void apply(RestDocument response, Throwable failure) {
+				if(failure != null)
+					logFailure(failure);
+				listener.processResult(response);
+				return null;
+			}
+		}, TaskEngine.getInstance());
+	}
+
+	/**
+	 * Invokes a method of a resource without waiting for the response.
+	 * 
+	 * @param request
+	 *            The rest xml request.
+	 * @return The future that is completed with the response, or
+	 *         exceptionally with a {@link RemoteRequestException} if the
+	 *         remote entity answers with an error and a
+	 *         <code>TimeoutException</code> if it does not answer in time.
+	 */
+	public CompletableFuture<RestDocument> invokeRestXMLAsync(RestDocument request) {
+		ResourceContainerComponent local = this.socketManager.getLocalComponent(jid);
+		if(local != null)
+			return this.socketManager.invokeLocalRestXML(local, request);
+		return sendRequest(Type.set, request.toString(), new Function<String, RestDocument>() {
+			public RestDocument apply(String xml) {
+				try {
+					return RestDocument.Factory.parse(xml);
+				} catch (XmlException e) {
+					throw new CompletionException(new RemoteRequestException(jid,
+							"Invalid rest xml response from " + jid, e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a request and parses the child element of its response. No
+	 * thread waits for the response. The response is parsed by the common
+	 * fork join pool, so that large responses do not hold up the thread that
+	 * receives the responses of all requests. Dependent actions that block
+	 * should be executed asynchronously by an executor.
+	 */
+	private <T> CompletableFuture<T> sendRequest(Type type, String xml,
+			final Function<String, T> parser) {
+		IQ iq = new IQ(type);
+		iq.setTo(jid);
 		// create request
 		try {
-			Document doc;
-			doc = DocumentHelper.parseText(request.toString());
-			// set request
-			iq.setChildElement(doc.getRootElement());
+			iq.setChildElement(DocumentHelper.parseText(xml).getRootElement());
 		} catch (DocumentException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
+			CompletableFuture<T> failed = new CompletableFuture<T>();
+			failed.completeExceptionally(new RemoteRequestException(jid, "Invalid request", e));
+			return failed;
 		}
-		
-		this.socketManager.sendIQ(iq, this);
-		
-		// wait for response
-		RestDocument response;
-		response = this.restXmlExchanger.exchange(request);
-		return response;
-		
-	}
 
-	public void invokeAsyncRestXML(RestDocument request, AsynchronousResultListener listener) {
-		IQ iq = new IQ(Type.set);
-		iq.setTo(jid);
+		final CompletableFuture<IQ> sent = this.socketManager.sendIQ(iq);
+		CompletableFuture<T> result = sent.thenApplyAsync(new Function<IQ, T>() {
+			public T apply(IQ response) {
+				if(response.getType() == Type.error)
+					throw new CompletionException(new RemoteRequestException(jid, response.getError()));
+				String child = response.getChildElementXML();
+				if(child == null)
+					throw new CompletionException(new RemoteRequestException(jid,
+							"Empty response from " + jid, null));
+				return parser.apply(child);
+			}
+		});
+		// the caller only holds the dependent future, so its cancellation is
+		// forwarded to give up the pending request, its window slot and its
+		// circuit breaker permit at once
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T response, Throwable failure) {
+				if(failure instanceof CancellationException)
+					sent.cancel(false);
+			}
+		});
+		return result;
+	}
 
-		// create request
+	/**
+	 * Waits for the response to a request.
+	 * 
+	 * @param future
+	 *            The future of the response.
+	 * @return The response, or <tt>null</tt> if the request failed or timed
+	 *         out.
+	 * @throws InterruptedException
+	 *             if the current thread has been interrupted, the request is
+	 *             then given up.
+	 */
+	private <T> T waitForResponse(CompletableFuture<T> future) throws InterruptedException {
 		try {
-			Document doc;
-			doc = DocumentHelper.parseText(request.toString());
-			// set request
-			iq.setChildElement(doc.getRootElement());
-		} catch (DocumentException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			throw e;
+		} catch (ExecutionException e) {
+			logFailure(e.getCause());
+			return null;
 		}
-		
-		this.socketManager.sendIQ(iq, this);
-		
-		// process the result in a separate thread
-		new Thread( new Runnable() {
-		    @Override
-		    public void run() {
-				// wait for response
-				RestDocument response;
-				try {
-					response = restXmlExchanger.exchange(request);
-					listener.processResult(response);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-		    }
-		}).start();
+	}
+
+	private void logFailure(Throwable failure) {
+		if(failure instanceof CompletionException && failure.getCause() != null)
+			failure = failure.getCause();
+		if(failure instanceof RemoteRequestException && failure.getCause() == null)
+			logger.error(failure.getMessage());
+		else
+			logger.error("Request to " + jid + " failed", failure);
 	}
 
 }
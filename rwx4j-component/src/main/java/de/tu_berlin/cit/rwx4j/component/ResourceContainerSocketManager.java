@@ -17,11 +17,15 @@
 package de.tu_berlin.cit.rwx4j.component;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-import org.apache.xmlbeans.XmlException;
 import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,7 +34,10 @@ import de.tu_berlin.cit.rwx4j.rest.RestDocument;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Message;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Presence;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ.Type;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TimingWheel;
 import de.tu_berlin.cit.rwx4j.xwadl.XwadlDocument;
 
 /**
@@ -48,19 +55,54 @@ public class ResourceContainerSocketManager {
 	 */
 	private static ResourceContainerSocketManager instance;
 
+	/**
+	 * The started components of this process, by JID
+	 */
+	private static final ConcurrentHashMap<String, ResourceContainerComponent> localComponents = new ConcurrentHashMap<String, ResourceContainerComponent>();
+
 	/**
 	 * The ResourceContainerComponent instance
 	 */
 	private final ResourceContainerComponent component;
 	
 	/**
-	 * Map of connected sockets
+	 * The default time in milliseconds a socket waits for the response to a
+	 * request.
+	 */
+	public static final long REQUEST_TIMEOUT = 300000;
+
+	private volatile long requestTimeout = REQUEST_TIMEOUT;
+	
+	private final TimingWheel timer = new TimingWheel("Socket request timeouts", 100, 512);
+	
+	/**
+	 * The requests of all sockets that wait for their response
+	 */
+	private final PendingRequests pendingRequests = new PendingRequests(this.timer);
+	
+	/**
+	 * The time in milliseconds to wait for a discovery result.
 	 */
-	private ConcurrentHashMap<String, ResourceContainerSocket> connections = new ConcurrentHashMap<String, ResourceContainerSocket>();
+	public static final long DISCOVERY_TIMEOUT = 30000;
+	
+	/**
+	 * The time in milliseconds discovery results are cached.
+	 */
+	public static final long DISCOVERY_TTL = 300000;
+	
+	private final DiscoveryCache discoveryCache = new DiscoveryCache(DISCOVERY_TTL);
 	
-	private final Exchanger<IntercloudDiscoItems> discoItemExchanger = new Exchanger<IntercloudDiscoItems>();
+	/**
+	 * Limits the requests in flight to each remote container
+	 */
+	private final FlowControl flowControl = new FlowControl(16, 1, 256, 10000);
 	
-	private final Exchanger<IntercloudDiscoFeatures> discoFeatureExchanger = new Exchanger<IntercloudDiscoFeatures>();
+	/**
+	 * Lets requests to unhealthy remote containers fail fast. A breaker
+	 * opens if half of the last 20 requests failed and probes the remote
+	 * container again after 30 seconds.
+	 */
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(20, 10, 0.5, 30000, 2);
 	
 	/**
 	 * Default constructor
@@ -71,20 +113,20 @@ public class ResourceContainerSocketManager {
 	}
 	
 	/**
-	 * This method builds the singleton instance. Only the ResourceContainerComponent is allowed 
-	 * to call this method.
+	 * This method builds the socket manager of a component. Only the ResourceContainerComponent
+	 * is allowed to call this method. The manager of the first component becomes the singleton
+	 * instance, further components of the same process get their own manager.
 	 * 
 	 * @param component The ResourceContainerComponent instance
-	 * @return The singleton instance
+	 * @return The socket manager of the component
 	 */
-	protected static ResourceContainerSocketManager buildInstance(ResourceContainerComponent component) {
+	protected static synchronized ResourceContainerSocketManager buildInstance(ResourceContainerComponent component) {
+		ResourceContainerSocketManager manager = new ResourceContainerSocketManager(component);
 		if (ResourceContainerSocketManager.instance == null) {
-			ResourceContainerSocketManager.instance = new ResourceContainerSocketManager(component);
-		} else {
-			throw new RuntimeException("ResourceContainerSocketManager is already initialized!");
+			ResourceContainerSocketManager.instance = manager;
 		}
 		
-		return ResourceContainerSocketManager.getInstance();
+		return manager;
 	}
 
 	/**
@@ -99,63 +141,247 @@ public class ResourceContainerSocketManager {
 		return ResourceContainerSocketManager.instance;
 	}
 	
+	/**
+	 * Creates a socket to the resource container of another component.
+	 * Requests to a component of this process do not pass the XMPP server.
+	 * 
+	 * @param jid
+	 *            The JID of the component.
+	 * @return The socket.
+	 */
 	public ResourceContainerSocket createSocket(String jid) {
 		return new ResourceContainerSocket(this, jid);
 	}
 
+	/**
+	 * Adds a started component to the local routing table.
+	 * 
+	 * @param component
+	 *            The component.
+	 */
+	protected static void registerLocalComponent(ResourceContainerComponent component) {
+		if(component.getJID() != null)
+			localComponents.put(component.getJID().toString(), component);
+	}
+
+	/**
+	 * Removes a component that is shut down from the local routing table.
+	 * 
+	 * @param component
+	 *            The component.
+	 */
+	protected static void unregisterLocalComponent(ResourceContainerComponent component) {
+		if(component.getJID() != null)
+			localComponents.remove(component.getJID().toString(), component);
+	}
+
+	/**
+	 * @param jid
+	 *            The JID of a component.
+	 * @return The component if it is started in this process, otherwise
+	 *         <tt>null</tt>.
+	 */
+	protected ResourceContainerComponent getLocalComponent(String jid) {
+		return localComponents.get(jid);
+	}
+
+	/**
+	 * Requests the xwadl of a resource of a component of this process.
+	 * 
+	 * @param target
+	 *            The component.
+	 * @param path
+	 *            The path of the resource.
+	 * @return The future of the xwadl, which fails like the response of a
+	 *         remote component.
+	 */
+	protected CompletableFuture<XwadlDocument> requestLocalXWADL(ResourceContainerComponent target, String path) {
+		return withTimeout(target.generateXWADLLocally(this.component.getJID(), path), this.requestTimeout);
+	}
+
+	/**
+	 * Invokes a method of a resource of a component of this process. The
+	 * documents are passed by reference.
+	 * 
+	 * @param target
+	 *            The component.
+	 * @param request
+	 *            The rest xml request.
+	 * @return The future of the response, which fails like the response of
+	 *         a remote component.
+	 */
+	protected CompletableFuture<RestDocument> invokeLocalRestXML(ResourceContainerComponent target, RestDocument request) {
+		return withTimeout(target.invokeLocally(this.component.getJID(), request), this.requestTimeout);
+	}
+
+	/**
+	 * Completes a future exceptionally if it is not completed in time, like
+	 * the requests that wait for their response.
+	 */
+	private <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeoutMillis) {
+		final TimingWheel.Timeout timeout = this.timer.schedule(new Runnable() {
+			public void run() {
+				future.completeExceptionally(new TimeoutException(
+						"No local response within " + timeoutMillis + " ms"));
+			}
+		}, timeoutMillis);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable failure) {
+				timeout.cancel();
+			}
+		});
+		return future;
+	}
+
 	
-	public synchronized IntercloudDiscoItems discoverIntercloudServices() {
-		this.sendDiscoveryItems(this.component.getDomain());
-		// wait for discovery result
-		IntercloudDiscoItems discoItems = new IntercloudDiscoItems();
+	/**
+	 * Discovers the services of the domain of this component and waits for
+	 * the result.
+	 * 
+	 * @return The services, which are empty if the discovery failed.
+	 */
+	public IntercloudDiscoItems discoverIntercloudServices() {
 		try {
-			discoItems = discoItemExchanger.exchange(discoItems);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return discoverIntercloudServicesAsync().get();
+		} catch (Exception e) {
+			logger.error("Discovery of domain " + this.component.getDomain() + " failed", e);
+			return new IntercloudDiscoItems();
 		}
-		
-		return discoItems;
+	}
+
+	/**
+	 * Discovers the services of the domain of this component without
+	 * waiting for the result. Results are cached for {@link #DISCOVERY_TTL}.
+	 * 
+	 * @return The future of the services.
+	 */
+	public CompletableFuture<IntercloudDiscoItems> discoverIntercloudServicesAsync() {
+		return this.discoveryCache.getItems(this.component.getDomain(),
+				new Function<String, CompletableFuture<IntercloudDiscoItems>>() {
+			public CompletableFuture<IntercloudDiscoItems> apply(String domain) {
+				return sendDiscoveryItems(domain);
+			}
+		});
 	}
 	
-	private void sendDiscoveryItems(String domain) {
+	private CompletableFuture<IntercloudDiscoItems> sendDiscoveryItems(final String domain) {
 		// discover services
 		IQ discoIQ = new IQ(Type.get);
 		logger.info("Start discovering domain: " + domain);
 		discoIQ.setTo(domain);
-		discoIQ.setFrom(this.component.getJID());
 		discoIQ.setChildElement("query", ResourceContainerComponent.NAMESPACE_DISCO_ITEMS);
-		logger.info(discoIQ.toXML());
-		// the response have to be caught in handleIQResult
-		this.sendPacket(discoIQ);
+		return sendIQ(discoIQ, DISCOVERY_TIMEOUT).thenApply(new Function<IQ, IntercloudDiscoItems>() {
+			public IntercloudDiscoItems apply(IQ result) {
+				Element query = discoveryResult(domain, result);
+				IntercloudDiscoItems discoItems = new IntercloudDiscoItems();
+				for (Object child : query.elements("item")) {
+					Element item = (Element) child;
+					discoItems.addItem(item.attributeValue("jid"), item.attributeValue("name"));
+				}
+				return discoItems;
+			}
+		});
 	}
 
-	public synchronized IntercloudDiscoFeatures discoverIntercloudFeatures(String jid) {
-		this.sendDiscoveryFeatures(jid);
-		// wait for discovery result
-		IntercloudDiscoFeatures discoFeatures = new IntercloudDiscoFeatures(jid);
+	/**
+	 * Discovers the features of an entity and waits for the result.
+	 * 
+	 * @param jid
+	 *            The JID of the entity.
+	 * @return The features, which are empty if the discovery failed.
+	 */
+	public IntercloudDiscoFeatures discoverIntercloudFeatures(String jid) {
 		try {
-			discoFeatures = discoFeatureExchanger.exchange(discoFeatures);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return discoverIntercloudFeaturesAsync(jid).get();
+		} catch (Exception e) {
+			logger.error("Discovery of the features of " + jid + " failed", e);
+			return new IntercloudDiscoFeatures(jid);
 		}
-		
-		return discoFeatures;
+	}
+
+	/**
+	 * Discovers the features of an entity without waiting for the result.
+	 * Results are cached for {@link #DISCOVERY_TTL}, the features of
+	 * entities that advertise known entity capabilities are not discovered
+	 * at all.
+	 * 
+	 * @param jid
+	 *            The JID of the entity.
+	 * @return The future of the features.
+	 */
+	public CompletableFuture<IntercloudDiscoFeatures> discoverIntercloudFeaturesAsync(String jid) {
+		return this.discoveryCache.getFeatures(jid,
+				new Function<String, CompletableFuture<IntercloudDiscoFeatures>>() {
+			public CompletableFuture<IntercloudDiscoFeatures> apply(String jid) {
+				return sendDiscoveryFeatures(jid);
+			}
+		});
+	}
+
+	/**
+	 * Discovers the services of the domain of this component and the
+	 * features of all services. The features are discovered in parallel.
+	 * Services whose features cannot be discovered are omitted.
+	 * 
+	 * @return The future of the features of the services.
+	 */
+	public CompletableFuture<List<IntercloudDiscoFeatures>> discoverIntercloudServiceFeaturesAsync() {
+		return discoverIntercloudServicesAsync().thenCompose(
+				new Function<IntercloudDiscoItems, CompletableFuture<List<IntercloudDiscoFeatures>>>() {
+			public CompletableFuture<List<IntercloudDiscoFeatures>> apply(IntercloudDiscoItems discoItems) {
+				final List<CompletableFuture<IntercloudDiscoFeatures>> lookups = new ArrayList<CompletableFuture<IntercloudDiscoFeatures>>();
+				for (String jid : discoItems.getItems().keySet()) {
+					lookups.add(discoverIntercloudFeaturesAsync(jid).exceptionally(
+							new Function<Throwable, IntercloudDiscoFeatures>() {
+						public IntercloudDiscoFeatures apply(Throwable failure) {
+							logger.warn("Discovery of features failed: " + failure.getMessage());
+							return null;
+						}
+					}));
+				}
+				return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[lookups.size()]))
+						.thenApply(new Function<Void, List<IntercloudDiscoFeatures>>() {
+					public List<IntercloudDiscoFeatures> apply(Void done) {
+						List<IntercloudDiscoFeatures> features = new ArrayList<IntercloudDiscoFeatures>();
+						for (CompletableFuture<IntercloudDiscoFeatures> lookup : lookups) {
+							IntercloudDiscoFeatures discoFeatures = lookup.join();
+							if(discoFeatures != null)
+								features.add(discoFeatures);
+						}
+						return features;
+					}
+				});
+			}
+		});
 	}
 	
-	private void sendDiscoveryFeatures(String jid) {
+	private CompletableFuture<IntercloudDiscoFeatures> sendDiscoveryFeatures(final String jid) {
 		// discover services
 		IQ discoIQ = new IQ(Type.get);
 		logger.info("Start discovering features of: " + jid);
 		discoIQ.setTo(jid);
-		discoIQ.setFrom(this.component.getJID());
 		discoIQ.setChildElement("query", ResourceContainerComponent.NAMESPACE_DISCO_INFO);
-		logger.info(discoIQ.toXML());
-		// the response have to be caught in handleIQResult
-		this.sendPacket(discoIQ);
+		return sendIQ(discoIQ, DISCOVERY_TIMEOUT).thenApply(new Function<IQ, IntercloudDiscoFeatures>() {
+			public IntercloudDiscoFeatures apply(IQ result) {
+				return discoveryCache.verify(jid, discoveryResult(jid, result));
+			}
+		});
+	}
+
+	/**
+	 * @return The query element of a discovery result.
+	 * @throws CompletionException
+	 *             if the result is an error.
+	 */
+	private static Element discoveryResult(String jid, IQ result) {
+		if(result.getType() == Type.error)
+			throw new CompletionException(new RemoteRequestException(jid, result.getError()));
+		Element query = result.getChildElementReadOnly();
+		if(query == null)
+			throw new CompletionException(new RemoteRequestException(jid,
+					"Empty discovery result from " + jid, null));
+		return query;
 	}
-	
 
 	/**
 	 * This method handles the IQ stanzas of type <tt>result</tt>
@@ -166,121 +392,33 @@ public class ResourceContainerSocketManager {
 	 *            this component.
 	 */
 	protected void handleIQResult(IQ iq) {
-		logger.info("the following iq result stanza has been received:" +
-				iq.toString());
-		
-		// IQ get (and set) stanza's MUST be replied to.
-		final Element childElement = iq.getChildElement();
-		String namespace = null;
-		if (childElement != null) {
-			namespace = childElement.getNamespaceURI();
-		}
-		if (namespace == null) {
-			logger.info("(serving component '{}') Invalid XMPP "
-					+ "- no child element or namespace in IQ "
-					+ "request (packetId {})", this.component.getName(), iq.getID());
-			// this isn't valid XMPP.
-			return;
-		}
-		if (ResourceContainerComponent.NAMESPACE_DISCO_ITEMS.equals(namespace)) {
-			logger.info("discovery item result.");
-			@SuppressWarnings("rawtypes")
-			Iterator iter = childElement.elementIterator();
-			IntercloudDiscoItems discoItems = new IntercloudDiscoItems();
-//			String rootJID = null;
-//			ArrayList<String> exchangeJIDs = new ArrayList<String>();
-//			ArrayList<String> gatewayJIDs = new ArrayList<String>();
-			while (iter.hasNext()) {
-				Element item = (Element) iter.next();
-				// filter
-				discoItems.addItem(item.attributeValue("jid"), item.attributeValue("name"));
-//				if(item.attributeValue("name").equals(ServiceNames.RootComponentName)) {
-//					rootJID = item.attributeValue("jid");
-//				} else if(item.attributeValue("name").equals(ServiceNames.ExchangeComponentName)) {
-//					exchangeJIDs.add(item.attributeValue("jid"));
-//				} else if(item.attributeValue("name").equals(ServiceNames.GatewayComponentName)) {
-//					gatewayJIDs.add(item.attributeValue("jid"));
-//				}
-			}
-//			IntercloudDiscoItems discoItems = new IntercloudDiscoItems(rootJID, exchangeJIDs, gatewayJIDs);
-			try {
-				discoItems = discoItemExchanger.exchange(discoItems);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		} else if (ResourceContainerComponent.NAMESPACE_DISCO_INFO.equals(namespace)) {
-			logger.info("discovery info result.");
-			@SuppressWarnings("rawtypes")
-			Iterator iter = childElement.elementIterator();
-			ArrayList<String> features = new ArrayList<String>();
-			while (iter.hasNext()) {
-				Element feature = (Element) iter.next();
-				if(feature.getName().equals("feature")) {
-					features.add(feature.attributeValue("var"));
-				}
-			}
-			IntercloudDiscoFeatures discoFeatures = new IntercloudDiscoFeatures(iq.getFrom().toBareJID(), features);
-			try {
-				discoFeatures = discoFeatureExchanger.exchange(discoFeatures);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		} else if (ResourceContainerComponent.NAMESPACE_REST_XWADL.equals(namespace)) {
-			logger.info("received xwadl iq.");
-			try {
-				handleRestXWADL(iq.getID(), XwadlDocument.Factory.parse(childElement
-						.asXML()));
-			} catch (XmlException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-		} else if (ResourceContainerComponent.NAMESPACE_REST_XML.equals(namespace)) {
-			logger.info("received rest xml iq.");
-			try {
-				handleRestXML(iq.getID(), RestDocument.Factory.parse(childElement
-						.asXML()));
-			} catch (XmlException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-	}
-
-	protected void handleRestXWADL(String key, XwadlDocument parse) {
-		logger.info("handleRestXWADL");
-		ResourceContainerSocket resourceContainerSocket = this.connections.get(key);
-		// remove key
-		this.connections.remove(key);
-		if(resourceContainerSocket == null) {
-			throw new RuntimeException("unable to find resource for key");
-		}
+		if(logger.isDebugEnabled())
+			logger.debug("the following iq result stanza has been received:" +
+					iq.toXML());
 		
-		try {
-			resourceContainerSocket.xwadlExchanger.exchange(parse);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		// responses to requests of sockets and discoveries are correlated by
+		// their id, other results are not expected
+		if(!this.pendingRequests.complete(iq))
+			logger.info("(serving component '{}') Ignoring unexpected "
+					+ "result (packetId {}, from {})", this.component.getName(), iq.getID(), iq.getFrom());
 	}
 
-	protected void handleRestXML(String key, RestDocument parse) {
-		logger.info("handleRestXML");
-		ResourceContainerSocket resourceContainerSocket = this.connections.get(key);
-		// remove key
-		this.connections.remove(key);
-		if(resourceContainerSocket == null) {
-			throw new RuntimeException("unable to find resource for key");
-		}
-		
-		try {
-			resourceContainerSocket.restXmlExchanger.exchange(parse);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * This method handles the presences that are received by the component.
+	 * The entity capabilities of the sender are recorded, so that its
+	 * features need not be discovered if they are already known.
+	 * 
+	 * @param presence
+	 *            The presence that was received by this component.
+	 */
+	protected void handlePresence(Presence presence) {
+		// an available remote container is probed again at once
+		if(presence.getFrom() != null && presence.isAvailable())
+			this.circuitBreaker.alive(presence.getFrom().toString());
+		Element caps = presence.getChildElement("c", DiscoveryCache.NAMESPACE_CAPS);
+		if(caps != null && presence.getFrom() != null)
+			this.discoveryCache.advertise(presence.getFrom().toString(),
+					caps.attributeValue("hash"), caps.attributeValue("ver"));
 	}
 
 	/**
@@ -294,6 +432,8 @@ public class ResourceContainerSocketManager {
 	protected void handleIQError(IQ iq) {
 		logger.info("the following iq error stanza has been received:" +
 				iq.toString());
+		// the socket that sent the request receives the error
+		this.pendingRequests.complete(iq);
 	}
 
 	protected void sendMessage(Message m) {
@@ -302,12 +442,139 @@ public class ResourceContainerSocketManager {
 		this.sendPacket(m);
 	}
 
-	protected void sendIQ(IQ iq, ResourceContainerSocket resourceContainerSocket) {
+	/**
+	 * Sends a request of a socket. The request is queued while the window of
+	 * the remote container is full, see {@link #getFlowControl()}, and fails
+	 * at once while the remote container is unhealthy, see
+	 * {@link #getCircuitBreaker()}.
+	 * 
+	 * @param iq
+	 *            The IQ request.
+	 * @return The future that is completed with the response, which is of
+	 *         type <tt>result</tt> or <tt>error</tt>, or exceptionally if
+	 *         there is no response within {@link #getRequestTimeout()}, the
+	 *         queue of the remote container is full or its circuit breaker
+	 *         is open.
+	 */
+	protected CompletableFuture<IQ> sendIQ(IQ iq) {
+		return sendIQ(iq, this.requestTimeout);
+	}
+
+	private CompletableFuture<IQ> sendIQ(final IQ iq, long timeoutMillis) {
 		iq.setFrom(this.component.getJID());
-		// register socket
-		this.connections.put(iq.getID(), resourceContainerSocket);
-		// send iq
-		this.sendPacket(iq);
+		final String peer = iq.getTo().toString();
+		final CircuitBreaker.Permit permit = this.circuitBreaker.acquire(peer);
+		if(permit == null) {
+			CompletableFuture<IQ> rejected = new CompletableFuture<IQ>();
+			rejected.completeExceptionally(new RemoteRequestException(peer, new PacketError(
+					PacketError.Condition.service_unavailable, PacketError.Type.wait,
+					"The circuit breaker of " + peer + " is open")));
+			return rejected;
+		}
+		// register the request before the response can arrive, the timeout
+		// includes the time the request is queued
+		CompletableFuture<IQ> response = this.pendingRequests.register(iq, timeoutMillis);
+		if(response.isDone()) {
+			// the ID is already pending
+			permit.record(CircuitBreaker.Outcome.IGNORED);
+			return response;
+		}
+		response.whenComplete(new BiConsumer<IQ, Throwable>() {
+			public void accept(IQ result, Throwable failure) {
+				permit.record(outcome(result, failure));
+			}
+		});
+		try {
+			this.flowControl.send(peer, response, new Runnable() {
+				public void run() {
+					sendPacket(iq);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			response.completeExceptionally(e);
+		}
+		return response;
+	}
+
+	/**
+	 * Classifies the response to a request for the circuit breaker. Only
+	 * errors that indicate an unavailable or overloaded remote container
+	 * count as failures.
+	 */
+	private static CircuitBreaker.Outcome outcome(IQ result, Throwable failure) {
+		if(failure != null) {
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+					? failure.getCause() : failure;
+			return cause instanceof TimeoutException ? CircuitBreaker.Outcome.TIMEOUT
+					: CircuitBreaker.Outcome.IGNORED;
+		}
+		if(result.getType() != Type.error || result.getErrorReadOnly() == null)
+			return CircuitBreaker.Outcome.SUCCESS;
+		switch (result.getErrorReadOnly().getCondition()) {
+		case internal_server_error:
+		case recipient_unavailable:
+		case remote_server_not_found:
+		case remote_server_timeout:
+		case resource_constraint:
+		case service_unavailable:
+			return CircuitBreaker.Outcome.ERROR;
+		default:
+			// the remote container rejected the request itself
+			return CircuitBreaker.Outcome.SUCCESS;
+		}
+	}
+
+	/**
+	 * Returns the time a socket waits for the response to a request.
+	 * 
+	 * @return The timeout in milliseconds, {@link #REQUEST_TIMEOUT} by
+	 *         default.
+	 */
+	public long getRequestTimeout() {
+		return this.requestTimeout;
+	}
+
+	/**
+	 * Sets the time a socket waits for the response to a request. The
+	 * timeout applies to requests that are sent afterwards.
+	 * 
+	 * @param timeoutMillis
+	 *            The timeout in milliseconds.
+	 */
+	public void setRequestTimeout(long timeoutMillis) {
+		if(timeoutMillis <= 0)
+			throw new IllegalArgumentException("The timeout must be positive");
+		this.requestTimeout = timeoutMillis;
+	}
+
+	/**
+	 * Returns the circuit breaker of the requests, which provides the
+	 * state and the error and timeout rates per remote container.
+	 * 
+	 * @return The circuit breaker.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	/**
+	 * Returns the flow control of the requests, which provides the number
+	 * of requests in flight and queued per remote container.
+	 * 
+	 * @return The flow control.
+	 */
+	public FlowControl getFlowControl() {
+		return this.flowControl;
+	}
+
+	/**
+	 * Completes the pending requests of all sockets exceptionally and stops
+	 * the thread of the request timeouts. The thread is started again by the
+	 * next request, e.g. once the component has been restarted.
+	 */
+	protected void shutdown() {
+		this.pendingRequests.cancelAll();
+		this.timer.stop();
 	}
 
 	protected void sendPacket(Packet packet) {
@@ -18,14 +18,18 @@
 package de.tu_berlin.cit.rwx4j.xmpp.core;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.dom4j.Element;
+import org.dom4j.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,9 +37,14 @@ import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Message;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Presence;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.StanzaTemplate;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ.Type;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+import de.tu_berlin.cit.rwx4j.xmpp.util.AdmissionController;
+import de.tu_berlin.cit.rwx4j.xmpp.util.KeyedExecutor;
+import de.tu_berlin.cit.rwx4j.xmpp.util.RateLimiter;
 import de.tu_berlin.cit.rwx4j.xmpp.util.XMPPConstants;
 
 /**
@@ -55,10 +64,34 @@ import de.tu_berlin.cit.rwx4j.xmpp.util.XMPPConstants;
  * thread pool to process stanzas. This pool will use up to the configured
  * maximum amount of threads to process stanzas that are sent to this component.
  * If more stanzas are to be processed simultaneously, they will be placed in a
- * queue (of configurable size) until a thread becomes available again. If the
- * queue is full, the stanza will be dropped and an exception will be logged. If
- * the stanza was an IQ request stanza, an IQ error stanza
- * (internal-server-error/wait) will be returned.
+ * queue (of configurable size) until a thread becomes available again. The
+ * number of queued IQ requests is limited adaptively: if requests wait longer
+ * than {@link #TARGET_QUEUEING_DELAY_MILLIS} in the queue, new requests are
+ * rejected early with an IQ error stanza (resource-constraint/wait) that
+ * carries a hint when to retry (see {@link #NAMESPACE_RETRY_AFTER}). If the
+ * queue is full, the stanza will be dropped. If the stanza was an IQ request
+ * stanza, the same IQ error stanza will be returned.
+ * 
+ * Before a stanza is queued, the rate limit of its sender (see
+ * {@link #setSenderRateLimit(String, RateLimiter.Rate)}) and the rate limit of
+ * the request (see {@link #isWithinRequestRateLimit(Packet)}) are checked. IQ
+ * requests beyond the limits are answered by an IQ error stanza
+ * (policy-violation/wait), other stanzas are dropped.
+ * 
+ * Stanzas are processed in separate lanes, each with its own thread pool and
+ * queue. Requests answered by the built-in handlers (ping, service discovery,
+ * last activity and entity time) and IQ responses are processed in a control
+ * lane, so that they are not delayed by heavy requests. IQ responses are
+ * never dropped: if the control lane is full, they are processed by the
+ * thread that received them. Read requests (see
+ * {@link #isReadRequest(Packet)}) are processed in the read lane, all other
+ * stanzas in the write lane. By default, the read and write lane share a
+ * single pool.
+ * 
+ * Within the read and write lane, stanzas of the same sender (see
+ * {@link #getOrderingKey(Packet)}) are processed one after another in the
+ * order they were received, while stanzas of different senders are processed
+ * in parallel. This order also holds between read and write requests.
  * 
  * By default, instances of this class are guaranteed to return an IQ response
  * on every consumed IQ of the <tt>get</tt> or <tt>set</tt> type, as required by
@@ -73,6 +106,8 @@ import de.tu_berlin.cit.rwx4j.xmpp.util.XMPPConstants;
  * translated in an IQ error. This allows the extending implementation to
  * respond to IQ requests in an asynchrous manner. It will be up to the
  * extending implementation to ensure that every IQ request is responded to.
+ * Individual requests can be responded to asynchronously regardless of this
+ * flag by returning {@link #DEFERRED_RESPONSE}.
  * 
  * Note that instances of this class can be used to implement internal (e.g.
  * Openfire plugins) as well as external components.
@@ -119,6 +154,19 @@ public abstract class AbstractComponent implements Component {
 	 * @see <a href="http://xmpp.org/extensions/xep-0202.html">XEP-0202</a>
 	 */
 	public static final String NAMESPACE_ENTITY_TIME = "urn:xmpp:time";
+
+	/**
+	 * The namespace of the application-specific error condition
+	 * <tt>&lt;retry-after millis='...'/&gt;</tt>, which tells the sender of a
+	 * rejected request when to retry.
+	 */
+	public static final String NAMESPACE_RETRY_AFTER = "urn:xmpp:rwx4j:retry-after";
+
+	/**
+	 * The queueing delay (in milliseconds) above which the number of admitted
+	 * requests is reduced.
+	 */
+	public static final long TARGET_QUEUEING_DELAY_MILLIS = 100;
 	
 	/**
 	 * The component manager to which this Component has been registered.
@@ -131,20 +179,104 @@ public abstract class AbstractComponent implements Component {
 	protected JID jid = null;
 	
 	/**
-	 * The pool of threads that will process the queue.
+	 * Returned by {@link #handleIQGet(IQ)} or {@link #handleIQSet(IQ)} if the
+	 * response is sent later with {@link #send(Packet)}, e.g. once an
+	 * asynchronous operation has completed. The thread that processes the
+	 * request is released at once.
+	 */
+	protected static final IQ DEFERRED_RESPONSE = new IQ(Type.result, "deferred");
+
+	/**
+	 * The number of threads that answer control stanzas.
+	 */
+	private static final int CONTROL_THREAD_POOL_SIZE = 4;
+
+	/**
+	 * Capacity of the queue that holds control stanzas. The queue holds the
+	 * responses to all requests the component has sent at once, e.g. by
+	 * a fan-out to many containers.
+	 */
+	private static final int CONTROL_QUEUE_SIZE = 50000;
+
+	/**
+	 * The maximum number of queued stanzas of a single sender per lane.
+	 */
+	private static final int MAX_QUEUE_SIZE_PER_SENDER = 1000;
+
+	/**
+	 * The pool of threads that answers control stanzas, i.e. requests that are
+	 * handled by the built-in lightweight handlers and IQ responses. This lane
+	 * is never blocked by heavy requests, so that pings are answered in time
+	 * and pending requests of the component receive their responses.
+	 */
+	private ThreadPoolExecutor controlExecutor;
+
+	/**
+	 * The pool of threads that processes IQ requests of type <tt>get</tt>.
+	 */
+	private ThreadPoolExecutor readExecutor;
+
+	/**
+	 * The pool of threads that processes IQ requests of type <tt>set</tt>,
+	 * messages and presences. This is the read pool if the component has
+	 * been configured with a single pool.
 	 */
-	private ThreadPoolExecutor executor;
+	private ThreadPoolExecutor writeExecutor;
 
 	/**
-	 * The maximum number of threads that will process work for this component.
+	 * Orders the stanzas of the read and the write lane by sender. The queue
+	 * of a sender moves between the pools of the lanes, so that the order
+	 * holds across lanes.
 	 */
-	private final int maxThreadPoolSize;
+	private KeyedExecutor requestQueue;
 
 	/**
-	 * Capacity of the queue that holds tasks that are to be executed by the
-	 * thread pool.
+	 * The token buckets of senders and requests.
 	 */
-	private final int maxQueueSize;
+	private final RateLimiter rateLimiter = new RateLimiter();
+
+	/**
+	 * The rate limits of senders, keyed by bare JID or domain.
+	 */
+	private final ConcurrentHashMap<String, RateLimiter.Rate> senderRateLimits = new ConcurrentHashMap<String, RateLimiter.Rate>();
+
+	/**
+	 * The rate limit of every sender without a specific limit, or
+	 * <tt>null</tt>.
+	 */
+	private volatile RateLimiter.Rate defaultSenderRateLimit = null;
+
+	/**
+	 * Limits the number of queued requests in the read lane.
+	 */
+	private AdmissionController readAdmission;
+
+	/**
+	 * Limits the number of queued requests in the write lane. This is the
+	 * read admission if the component has been configured with a single pool.
+	 */
+	private AdmissionController writeAdmission;
+
+	/**
+	 * The maximum number of threads that will process read requests.
+	 */
+	private final int maxReadThreadPoolSize;
+
+	/**
+	 * Capacity of the queue that holds read requests.
+	 */
+	private final int maxReadQueueSize;
+
+	/**
+	 * The maximum number of threads that will process write requests, or
+	 * <tt>0</tt> if read and write requests share a single pool.
+	 */
+	private final int maxWriteThreadPoolSize;
+
+	/**
+	 * Capacity of the queue that holds write requests.
+	 */
+	private final int maxWriteQueueSize;
 
 	/**
 	 * if <tt>true</tt>, the component will make sure that every request that is
@@ -156,6 +288,23 @@ public abstract class AbstractComponent implements Component {
 	 * The timestamp (in milliseconds) when the component was last (re)started. 
 	 */
 	private long lastStartMillis = System.currentTimeMillis();
+
+	/**
+	 * The packet processor that is executed by the current thread.
+	 */
+	private static final ThreadLocal<PacketProcessor> currentProcessor = new ThreadLocal<PacketProcessor>();
+
+	/**
+	 * The reply to Ping requests.
+	 */
+	private static final StanzaTemplate PING_REPLY = new StanzaTemplate(
+			new IQ(Type.result, null));
+
+	/**
+	 * The reply to Service Discovery Info requests, rendered on the first
+	 * request.
+	 */
+	private volatile StanzaTemplate discoInfoReply;
 	
 	/**
 	 * Instantiates a new AbstractComponent with a maximum thread pool size of
@@ -181,8 +330,36 @@ public abstract class AbstractComponent implements Component {
 	 */
 	public AbstractComponent(int maxThreadpoolSize, int maxQueueSize,
 			boolean enforceIQResult) {
-		this.maxThreadPoolSize = maxThreadpoolSize;
-		this.maxQueueSize = maxQueueSize;
+		this(maxThreadpoolSize, maxQueueSize, 0, 0, enforceIQResult);
+	}
+
+	/**
+	 * Instantiates a new AbstractComponent with separate lanes for read
+	 * (IQ <tt>get</tt>) and write (IQ <tt>set</tt>, messages and presences)
+	 * requests, so that reads are not starved by writes and vice versa.
+	 * 
+	 * @param maxReadThreadPoolSize
+	 *            the maximum number of threads that will process read
+	 *            requests.
+	 * @param maxReadQueueSize
+	 *            capacity of the queue that holds read requests.
+	 * @param maxWriteThreadPoolSize
+	 *            the maximum number of threads that will process write
+	 *            requests, or <tt>0</tt> to process them in the read pool.
+	 * @param maxWriteQueueSize
+	 *            capacity of the queue that holds write requests.
+	 * @param enforceIQResult
+	 *            if <tt>true</tt>, the component will make sure that every
+	 *            request that is received is answered, as specified by the XMPP
+	 *            specification.
+	 */
+	public AbstractComponent(int maxReadThreadPoolSize, int maxReadQueueSize,
+			int maxWriteThreadPoolSize, int maxWriteQueueSize,
+			boolean enforceIQResult) {
+		this.maxReadThreadPoolSize = maxReadThreadPoolSize;
+		this.maxReadQueueSize = maxReadQueueSize;
+		this.maxWriteThreadPoolSize = maxWriteThreadPoolSize;
+		this.maxWriteQueueSize = maxWriteQueueSize;
 		this.enforceIQResult = enforceIQResult;
 	}
 
@@ -204,27 +381,258 @@ public abstract class AbstractComponent implements Component {
 	 * @todo document me
 	 */
 	final public void processPacket(final Packet packet) {
-		final Packet copy = packet.createCopy();
+		// packets of external components are parsed from the stream for this
+		// component only, so they are not shared and need not be copied
+		final Packet copy = compMan != null && compMan.isExternalMode() ? packet
+				: packet.createCopy();
 		
-		if (executor == null) {
-			
+		if (isControlPacket(copy)) {
+			final PacketProcessor processor = new PacketProcessor(copy, null, false);
+			try {
+				controlExecutor.execute(processor);
+			} catch (RejectedExecutionException ex) {
+				if (((IQ) copy).isResponse()) {
+					// a dropped response would leave its request waiting
+					// until it times out
+					log.warn("(serving component '{}') Control queue exhausted, "
+							+ "processing response on the receiving thread (packetId {}, from {})",
+							new Object[] { getName(), copy.getID(), copy.getFrom() });
+					processor.run();
+					return;
+				}
+				log.warn("(serving component '{}') Control queue exhausted, "
+						+ "packet dropped (packetId {}, from {})",
+						new Object[] { getName(), copy.getID(), copy.getFrom() });
+				rejectPacket(copy, TARGET_QUEUEING_DELAY_MILLIS);
+			}
+			return;
+		}
+
+		if (!isWithinSenderRateLimit(copy) || !isWithinRequestRateLimit(copy)) {
+			log.debug("(serving component '{}') Rate limit exceeded, "
+					+ "packet rejected (packetId {}, from {})",
+					new Object[] { getName(), copy.getID(), copy.getFrom() });
+			if (copy instanceof IQ && ((IQ) copy).isRequest()) {
+				final IQ response = IQ.createResultIQ((IQ) copy);
+				response.setError(new PacketError(Condition.policy_violation,
+						PacketError.Type.wait, "Rate limit exceeded"));
+				send(response);
+			}
+			return;
+		}
+
+		final boolean read = isReadRequest(copy);
+		final ThreadPoolExecutor executor = read ? readExecutor : writeExecutor;
+		final AdmissionController admission = read ? readAdmission
+				: writeAdmission;
+		// only requests are subject to admission control, as only they can
+		// be answered with an error
+		final boolean request = copy instanceof IQ && ((IQ) copy).isRequest();
+		if (request && !admission.tryAcquire()) {
+			log.debug("(serving component '{}') Queueing delay too high, "
+					+ "request rejected (packetId {}, from {})",
+					new Object[] { getName(), copy.getID(), copy.getFrom() });
+			rejectPacket(copy, admission.getRetryAfterMillis());
+			return;
 		}
 		try {
-			executor.execute(new PacketProcessor(copy));
+			requestQueue.execute(getOrderingKey(copy), executor,
+					new PacketProcessor(copy, admission, request));
 		} catch (RejectedExecutionException ex) {
-			log.error("(serving component '" + getName()
-					+ "') Unable to process packet! "
-					+ "Is the thread pool queue exhausted? "
-					+ "Packet dropped in component '" + getName()
-					+ "'. Packet that's dropped: " + packet.toXML(), ex);
-			// If the original packet was an IQ request, we should return an
-			// error.
-			if (packet instanceof IQ && ((IQ) packet).isRequest()) {
-				final IQ response = IQ.createResultIQ((IQ) packet);
-				response.setError(Condition.internal_server_error);
-				send(response);
+			if (request) {
+				admission.release();
 			}
+			log.warn("(serving component '{}') Unable to process packet, "
+					+ "queue exhausted. Packet dropped (packetId {}, from {})",
+					new Object[] { getName(), copy.getID(), copy.getFrom() });
+			rejectPacket(copy, admission.getRetryAfterMillis());
+		}
+	}
+
+	/**
+	 * Answers a request that could not be queued with an IQ error stanza
+	 * (resource-constraint/wait) that tells the sender when to retry. Other
+	 * stanzas are silently dropped.
+	 * 
+	 * @param packet
+	 *            The rejected stanza.
+	 * @param retryAfterMillis
+	 *            The time after which the request should be retried.
+	 */
+	private void rejectPacket(final Packet packet, final long retryAfterMillis) {
+		if (packet instanceof IQ && ((IQ) packet).isRequest()) {
+			final PacketError error = new PacketError(
+					Condition.resource_constraint,
+					Condition.resource_constraint.getDefaultType(),
+					"Retry after " + retryAfterMillis + " ms");
+			error.setApplicationCondition("retry-after", NAMESPACE_RETRY_AFTER);
+			error.getElement()
+					.element(QName.get("retry-after", NAMESPACE_RETRY_AFTER))
+					.addAttribute("millis", String.valueOf(retryAfterMillis));
+			final IQ response = IQ.createResultIQ((IQ) packet);
+			response.setError(error);
+			send(response);
+		}
+	}
+
+	/**
+	 * Sets the rate limit of a sender. The limit of a bare JID applies to
+	 * each of its resources, the limit of a domain applies to all of its
+	 * entities together, unless a limit has been set for their bare JID. A
+	 * changed limit applies once the bucket of the sender has become idle.
+	 * 
+	 * @param jidOrDomain
+	 *            a bare JID or a domain.
+	 * @param rate
+	 *            the rate limit, or <tt>null</tt> to remove the limit.
+	 */
+	public void setSenderRateLimit(String jidOrDomain, RateLimiter.Rate rate) {
+		if (rate == null) {
+			senderRateLimits.remove(jidOrDomain);
+		} else {
+			senderRateLimits.put(jidOrDomain, rate);
+		}
+	}
+
+	/**
+	 * Sets the rate limit of every sender without a specific limit. Each bare
+	 * JID is limited separately.
+	 * 
+	 * @param rate
+	 *            the rate limit, or <tt>null</tt> to remove the limit.
+	 */
+	public void setDefaultSenderRateLimit(RateLimiter.Rate rate) {
+		defaultSenderRateLimit = rate;
+	}
+
+	/**
+	 * Checks the rate limit of the sender of a stanza, and consumes a permit
+	 * if the stanza is within the limit.
+	 * 
+	 * @param packet
+	 *            The stanza that will be processed.
+	 * @return <tt>true</tt> if the stanza is within the limit.
+	 */
+	private boolean isWithinSenderRateLimit(final Packet packet) {
+		final JID from = packet.getFrom();
+		if (from == null) {
+			return true;
+		}
+		final String bareJID = from.toBareJID();
+		RateLimiter.Rate rate = senderRateLimits.get(bareJID);
+		if (rate != null) {
+			return rateLimiter.tryAcquire("jid " + bareJID, rate);
+		}
+		rate = senderRateLimits.get(from.getDomain());
+		if (rate != null) {
+			return rateLimiter.tryAcquire("domain " + from.getDomain(), rate);
+		}
+		rate = defaultSenderRateLimit;
+		if (rate != null) {
+			return rateLimiter.tryAcquire("jid " + bareJID, rate);
+		}
+		return true;
+	}
+
+	/**
+	 * Override this method to apply rate limits to particular requests, e.g.
+	 * depending on the requested operation. The limits are checked before the
+	 * stanza is queued, so implementations must be cheap. Use
+	 * {@link #tryAcquirePermit(String, RateLimiter.Rate)} to consume a permit.
+	 * 
+	 * The default implementation of this method returns <tt>true</tt>.
+	 * 
+	 * @param packet
+	 *            The stanza that will be processed.
+	 * @return <tt>true</tt> if the stanza is within the limit.
+	 */
+	protected boolean isWithinRequestRateLimit(final Packet packet) {
+		return true;
+	}
+
+	/**
+	 * Tries to consume a permit of a rate limit.
+	 * 
+	 * @param key
+	 *            the key of the token bucket.
+	 * @param rate
+	 *            the rate limit that is applied if the bucket is created.
+	 * @return <tt>true</tt> if the permit has been acquired.
+	 */
+	protected final boolean tryAcquirePermit(String key, RateLimiter.Rate rate) {
+		return rateLimiter.tryAcquire("request " + key, rate);
+	}
+
+	/**
+	 * @return the number of requests that have been rejected because of a
+	 *         high queueing delay.
+	 */
+	public long getRejectedRequestCount() {
+		long rejected = readAdmission.getRejectedCount();
+		if (writeAdmission != readAdmission) {
+			rejected += writeAdmission.getRejectedCount();
 		}
+		return rejected;
+	}
+
+	/**
+	 * Returns the key by which stanzas are ordered. Stanzas with equal keys
+	 * are processed one after another in the order they were received. The
+	 * default implementation orders the stanzas of each sender, override this
+	 * method to order e.g. by the addressed resource instead.
+	 * 
+	 * @param packet
+	 *            The stanza that will be processed.
+	 * @return the ordering key, or <tt>null</tt> if the stanza can be
+	 *         processed in any order.
+	 */
+	protected Object getOrderingKey(final Packet packet) {
+		return packet.getFrom();
+	}
+
+	/**
+	 * Checks if a stanza is processed in the read lane. The default
+	 * implementation classifies IQ requests of type <tt>get</tt> as reads.
+	 * Override this method if reads are sent as IQ <tt>set</tt>, e.g. by
+	 * inspecting the child element with {@link IQ#getChildAttribute(String)}.
+	 * The check happens before the stanza is queued, so implementations must
+	 * not parse the stanza.
+	 * 
+	 * @param packet
+	 *            The stanza that will be processed.
+	 * @return <tt>true</tt> if the stanza is processed in the read lane.
+	 */
+	protected boolean isReadRequest(final Packet packet) {
+		return packet instanceof IQ && ((IQ) packet).getType() == Type.get;
+	}
+
+	/**
+	 * Checks if a stanza is processed in the control lane, i.e. it is an IQ
+	 * response or a request that is answered by one of the built-in
+	 * lightweight handlers, e.g. {@link #handlePing(IQ)} or
+	 * {@link #handleDiscoInfo(IQ)}.
+	 * 
+	 * @param packet
+	 *            The stanza that will be processed.
+	 * @return <tt>true</tt> if the stanza is processed in the control lane.
+	 */
+	private boolean isControlPacket(final Packet packet) {
+		if (!(packet instanceof IQ)) {
+			return false;
+		}
+		final IQ iq = (IQ) packet;
+		if (iq.isResponse()) {
+			return true;
+		}
+		if (iq.getType() != Type.get) {
+			return false;
+		}
+		final String namespace = iq.getChildNamespace();
+		return NAMESPACE_XMPP_PING.equals(namespace)
+				|| NAMESPACE_DISCO_INFO.equals(namespace)
+				|| NAMESPACE_DISCO_ITEMS.equals(namespace)
+				|| NAMESPACE_LAST_ACTIVITY.equals(namespace)
+				|| NAMESPACE_ENTITY_TIME.equals(namespace);
 	}
 
 	/**
@@ -273,8 +681,10 @@ public abstract class AbstractComponent implements Component {
 	 *            The IQ stanza that was received by this component.
 	 */
 	final private void processIQ(final IQ iq) {
-		log.debug("(serving component '{}') Processing IQ (packetId {}): {}",
-				new Object[] {getName(), iq.getID(), iq.toXML() });
+		if (log.isDebugEnabled()) {
+			log.debug("(serving component '{}') Processing IQ (packetId {}): {}",
+					new Object[] {getName(), iq.getID(), iq.toXML() });
+		}
 
 		IQ response = null;
 		final Type type = iq.getType();
@@ -288,13 +698,16 @@ public abstract class AbstractComponent implements Component {
 				final String requestID = iq.getID();
 				response = processIQRequest(iq);
 				// validate the response IQ stanza.
-				if (response == null) {
+				if (response == DEFERRED_RESPONSE) {
+					// the extending implementation responds later
+					response = null;
+				} else if (response == null) {
 					// A request (IQ type 'get' or 'set') MUST be responded to.
 					// If no response was generated, create an 'error' type
 					// response.
 					if (enforceIQResult) {
-						response = IQ.createResultIQ(iq);
-						response.setError(Condition.feature_not_implemented);
+						response = IQ.createErrorIQ(iq,
+								Condition.feature_not_implemented);
 					}
 				} else {
 					// responses MUST be of type 'result' or 'error'. Everything
@@ -317,7 +730,9 @@ public abstract class AbstractComponent implements Component {
 								+ "was incorrect: " + iq.toXML()
 								+ ". The response was: " + response.toXML());
 					}
-					log.debug("(serving component '{}') Responding to IQ (packetId {}) with: {}", new Object[] { getName(), iq.getID(), response.toXML() }); 
+					if (log.isDebugEnabled()) {
+						log.debug("(serving component '{}') Responding to IQ (packetId {}) with: {}", new Object[] { getName(), iq.getID(), response.toXML() });
+					}
 				}
 				break;
 
@@ -355,8 +770,7 @@ public abstract class AbstractComponent implements Component {
 				// if the received IQ stanza was a 'get' or 'set' request,
 				// return an error, as some kind of response MUST be sent back
 				// to those stanzas.
-				response = IQ.createResultIQ(iq);
-				response.setError(Condition.internal_server_error);
+				response = IQ.createErrorIQ(iq, Condition.internal_server_error);
 			}
 		}
 		// send the response, if there's any.
@@ -375,8 +789,10 @@ public abstract class AbstractComponent implements Component {
 	 *            The message stanza to process.
 	 */
 	final private void processMessage(Message message) {
-		log.trace("(serving component '{}') Processing message stanza: {}",
-				getName(), message.toXML());
+		if (log.isTraceEnabled()) {
+			log.trace("(serving component '{}') Processing message stanza: {}",
+					getName(), message.toXML());
+		}
 		if (servesLocalUsersOnly() && !sentByLocalEntity(message)) {
 			log.info("(serving component '{}') Dropping message "
 					+ "stanza sent by a user from another domain: {}",
@@ -399,8 +815,10 @@ public abstract class AbstractComponent implements Component {
 	 *            The presence stanza to process.
 	 */
 	final private void processPresence(Presence presence) {
-		log.trace("(serving component '{}') Processing presence stanza: {}",
-				getName(), presence.toXML());
+		if (log.isTraceEnabled()) {
+			log.trace("(serving component '{}') Processing presence stanza: {}",
+					getName(), presence.toXML());
+		}
 		if (servesLocalUsersOnly() && !sentByLocalEntity(presence)) {
 			log.info("(serving component '{}') Dropping presence "
 					+ "stanza sent by a user from another domain: {}",
@@ -454,18 +872,13 @@ public abstract class AbstractComponent implements Component {
 				+ "request (packetId {}).", getName(), iq.getID());
 
 		// IQ get (and set) stanza's MUST be replied to.
-		final Element childElement = iq.getChildElement();
-		String namespace = null;
-		if (childElement != null) {
-			namespace = childElement.getNamespaceURI();
-		}
+		final String namespace = iq.getChildNamespace();
 		if (namespace == null) {
 			log.debug("(serving component '{}') Invalid XMPP "
 					+ "- no child element or namespace in IQ "
 					+ "request (packetId {})", getName(), iq.getID());
 			// this isn't valid XMPP.
-			final IQ response = IQ.createResultIQ(iq);
-			response.setError(Condition.bad_request);
+			final IQ response = IQ.createErrorIQ(iq, Condition.bad_request);
 			return response;
 		}
 		// check if this is a component for local users only.
@@ -476,8 +889,7 @@ public abstract class AbstractComponent implements Component {
 			log.debug("(serving component '{}') Returning "
 					+ "'not-authorized' IQ error to a user from "
 					+ "another domain: {}", getName(), iq.toXML());
-			final IQ error = IQ.createResultIQ(iq);
-			error.setError(Condition.not_authorized);
+			final IQ error = IQ.createErrorIQ(iq, Condition.not_authorized);
 			return error;
 		}
 		final Type type = iq.getType();
@@ -647,12 +1059,29 @@ public abstract class AbstractComponent implements Component {
 	 * Note that you should include the 'Service Discovery Items' feature if
 	 * {@link #handleDiscoInfo(IQ)} returns a non-null value.
 	 * 
+	 * The response is rendered once, when the first request is received, as
+	 * the identity and the features of a component do not change. Later
+	 * responses only differ in their addressing attributes.
+	 * 
 	 * @param iq
 	 *            The Service Discovery 'info' request stanza.
 	 * @return A response to the received Service Discovery 'info' request.
 	 */
 	protected IQ handleDiscoInfo(IQ iq) {
-		final IQ replyPacket = IQ.createResultIQ(iq);
+		StanzaTemplate template = discoInfoReply;
+		if (template == null) {
+			template = new StanzaTemplate(createDiscoInfoReply());
+			discoInfoReply = template;
+		}
+		return template.createReply(iq);
+	}
+
+	/**
+	 * Builds the constant content of the response to Service Discovery Info
+	 * requests.
+	 */
+	private IQ createDiscoInfoReply() {
+		final IQ replyPacket = new IQ(Type.result, null);
 		final Element responseElement = replyPacket.setChildElement("query",
 				NAMESPACE_DISCO_INFO);
 
@@ -686,7 +1115,7 @@ public abstract class AbstractComponent implements Component {
 	 * @return The XMPP way of saying 'pong'.
 	 */
 	protected IQ handlePing(IQ iq) {
-		return IQ.createResultIQ(iq);
+		return PING_REPLY.createReply(iq);
 	}
 	
 	/**
@@ -873,6 +1302,7 @@ public abstract class AbstractComponent implements Component {
 	public final void shutdown() {
 		preComponentShutdown();
 		closeQueue();
+		rateLimiter.stop();
 		postComponentShutdown();
 	}
 
@@ -890,22 +1320,35 @@ public abstract class AbstractComponent implements Component {
 		 * from the routing tables. We don't need to worry about new packets to
 		 * arrive - there won't be any.
 		 */
-		executor.shutdown();
+		controlExecutor.shutdown();
+		readExecutor.shutdown();
+		writeExecutor.shutdown();
 		try {
-			if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
-				final List<Runnable> wasAwatingExecution = executor
-						.shutdownNow();
-				for (final Runnable abortMe : wasAwatingExecution) {
-					final Packet packet = ((PacketProcessor) abortMe).packet;
-					if (packet instanceof IQ) {
-						final IQ iq = (IQ) packet;
-						if (iq.isRequest()) {
-							log.debug("Responding 'service unavailable' to "
-									+ "unprocessed stanza: {}", iq.toXML());
-							final IQ error = IQ.createResultIQ(iq);
-							error.setError(Condition.service_unavailable);
-							send(error);
-						}
+			final long deadline = System.nanoTime()
+					+ TimeUnit.SECONDS.toNanos(2);
+			final List<Runnable> wasAwatingExecution = new ArrayList<Runnable>();
+			for (final ThreadPoolExecutor executor : Arrays.asList(
+					controlExecutor, readExecutor, writeExecutor)) {
+				if (!executor.awaitTermination(deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS)) {
+					wasAwatingExecution.addAll(executor.shutdownNow());
+				}
+			}
+			wasAwatingExecution.addAll(requestQueue.drain());
+			for (final Runnable abortMe : wasAwatingExecution) {
+				if (!(abortMe instanceof PacketProcessor)) {
+					// the queue of a sender, its packets have been drained
+					continue;
+				}
+				final Packet packet = ((PacketProcessor) abortMe).packet;
+				if (packet instanceof IQ) {
+					final IQ iq = (IQ) packet;
+					if (iq.isRequest()) {
+						log.debug("Responding 'service unavailable' to "
+								+ "unprocessed stanza: {}", iq.toXML());
+						final IQ error = IQ.createErrorIQ(iq,
+								Condition.service_unavailable);
+						send(error);
 					}
 				}
 			}
@@ -968,11 +1411,39 @@ public abstract class AbstractComponent implements Component {
 	}
 
 	private void startExecutor() {
-		if (executor == null || executor.isShutdown()) {
-			executor = new ThreadPoolExecutor(maxThreadPoolSize,
-					maxThreadPoolSize, 60L, TimeUnit.SECONDS,
-					new LinkedBlockingQueue<Runnable>(maxQueueSize));
+		rateLimiter.start();
+		if (controlExecutor == null || controlExecutor.isShutdown()) {
+			controlExecutor = newExecutor(CONTROL_THREAD_POOL_SIZE,
+					CONTROL_QUEUE_SIZE);
+		}
+		final boolean restart = readExecutor == null || readExecutor.isShutdown();
+		if (restart) {
+			// the queue holds at most one entry per sender, it is bounded by
+			// the keyed executor
+			readExecutor = newExecutor(maxReadThreadPoolSize, Integer.MAX_VALUE);
+			readAdmission = new AdmissionController(maxReadThreadPoolSize,
+					maxReadQueueSize, TARGET_QUEUEING_DELAY_MILLIS);
+		}
+		if (maxWriteThreadPoolSize <= 0) {
+			writeExecutor = readExecutor;
+			writeAdmission = readAdmission;
+		} else if (writeExecutor == null || writeExecutor.isShutdown()) {
+			writeExecutor = newExecutor(maxWriteThreadPoolSize,
+					Integer.MAX_VALUE);
+			writeAdmission = new AdmissionController(maxWriteThreadPoolSize,
+					maxWriteQueueSize, TARGET_QUEUEING_DELAY_MILLIS);
 		}
+		if (restart) {
+			final int maxQueueSize = writeExecutor == readExecutor
+					? maxReadQueueSize : maxReadQueueSize + maxWriteQueueSize;
+			requestQueue = new KeyedExecutor(readExecutor,
+					MAX_QUEUE_SIZE_PER_SENDER, maxQueueSize);
+		}
+	}
+
+	private static ThreadPoolExecutor newExecutor(int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize));
 	}
 	
 	/**
@@ -998,6 +1469,24 @@ public abstract class AbstractComponent implements Component {
 		// Doesn't do anything. Override this method to process messages.
 	}
 
+	/**
+	 * Returns the time that has passed since the stanza which is processed by
+	 * the current thread was received by this component, including the time
+	 * it has been waiting in the queue. Handlers can use this to honor
+	 * timeouts that were specified by the sender.
+	 * 
+	 * @return the age of the current stanza in milliseconds, or <tt>0</tt> if
+	 *         the current thread does not process a stanza.
+	 */
+	protected long getPacketAgeMillis() {
+		final PacketProcessor processor = currentProcessor.get();
+		if (processor == null) {
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- processor.receivedNanos);
+	}
+
 	/**
 	 * Checks if the packet was sent by an entity inside the XMPP domain of the
 	 * component.
@@ -1032,14 +1521,38 @@ public abstract class AbstractComponent implements Component {
 		 */
 		private final Packet packet;
 
+		/**
+		 * The time (in nanoseconds) when the packet was received.
+		 */
+		private final long receivedNanos = System.nanoTime();
+
+		/**
+		 * The admission control of the lane, or <tt>null</tt>.
+		 */
+		private final AdmissionController admission;
+
+		/**
+		 * <tt>true</tt> if the packet has been admitted by the admission
+		 * control and must be released after processing.
+		 */
+		private final boolean admitted;
+
 		/**
 		 * Creates a new wrapper for a Packet.
 		 * 
 		 * @param packet
 		 *            the Packet to be processed.
+		 * @param admission
+		 *            the admission control of the lane, or <tt>null</tt>.
+		 * @param admitted
+		 *            <tt>true</tt> if the packet has been admitted by the
+		 *            admission control.
 		 */
-		public PacketProcessor(final Packet packet) {
+		public PacketProcessor(final Packet packet,
+				final AdmissionController admission, final boolean admitted) {
 			this.packet = packet;
+			this.admission = admission;
+			this.admitted = admitted;
 		}
 
 		/*
@@ -1048,7 +1561,18 @@ public abstract class AbstractComponent implements Component {
 		 * @see java.lang.Runnable#run()
 		 */
 		public void run() {
-			processQueuedPacket(packet);
+			if (admission != null) {
+				admission.onQueueingDelay(System.nanoTime() - receivedNanos);
+			}
+			currentProcessor.set(this);
+			try {
+				processQueuedPacket(packet);
+			} finally {
+				currentProcessor.remove();
+				if (admitted) {
+					admission.release();
+				}
+			}
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -22,6 +22,7 @@ import org.dom4j.Element;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * IQ (Info/Query) packet. IQ packets are used to get and set information
@@ -35,16 +36,20 @@ import java.util.Random;
 public class IQ extends Packet {
 
     // Sequence and random number generator used for creating unique ID's.
-    private static int sequence = 0;
+    private static final AtomicLong sequence = new AtomicLong();
     private static Random random = new Random();
 
+    // Templates of the error replies with a standard condition, by ordinal.
+    private static final StanzaTemplate[] errorTemplates =
+            new StanzaTemplate[PacketError.Condition.values().length];
+
     /**
      * Constructs a new IQ with an automatically generated ID and a type
      * of {@link Type#get IQ.Type.get}.
      */
     public IQ() {
         this.element = docFactory.createDocument().addElement("iq");
-        String id = String.valueOf(random.nextInt(1000) + "-" + sequence++);
+        String id = String.valueOf(random.nextInt(1000) + "-" + sequence.getAndIncrement());
         setType(Type.get);
         setID(id);
     }
@@ -58,7 +63,7 @@ public class IQ extends Packet {
     public IQ(Type type) {
         this.element = docFactory.createDocument().addElement("iq");
         setType(type);
-        String id = String.valueOf(random.nextInt(1000) + "-" + sequence++);
+        String id = String.valueOf(random.nextInt(1000) + "-" + sequence.getAndIncrement());
         setID(id);
     }
 
@@ -97,19 +102,37 @@ public class IQ extends Packet {
         super(element, skipValidation);
     }
 
+    /**
+     * Constructs a new IQ that is backed by a raw stanza. The IQ
+     * element is only parsed when its content is accessed.
+     *
+     * @param stanza the raw IQ stanza.
+     */
+    public IQ(RawStanza stanza) {
+        super(stanza);
+    }
+
+    /**
+     * Constructs a new IQ that is backed by a template.
+     *
+     * @param template the template of the IQ.
+     * @param ID the packet ID of the IQ.
+     * @param from the XMPP address that the IQ comes from.
+     * @param to the XMPP address that the IQ is addressed to.
+     * @see StanzaTemplate#createReply(IQ)
+     */
+    IQ(StanzaTemplate template, String ID, JID from, JID to) {
+        super(template, ID, from, to);
+    }
+
     /**
      * Constructs a new IQ that is a copy of an existing IQ.
      *
      * @param iq the iq packet.
      * @see #createCopy()
      */
-    private IQ(IQ iq) {
-        Element elementCopy = iq.element.createCopy();
-        docFactory.createDocument().add(elementCopy);
-        this.element = elementCopy;
-        // Copy cached JIDs (for performance reasons)
-        this.toJID = iq.toJID;
-        this.fromJID = iq.fromJID;
+    protected IQ(IQ iq) {
+        super(iq);
     }
 
     /**
@@ -119,7 +142,7 @@ public class IQ extends Packet {
      * @see Type
      */
     public Type getType() {
-        String type = element.attributeValue("type");
+        String type = attributeValue("type");
         if (type != null) {
             return Type.valueOf(type);
         }
@@ -135,7 +158,7 @@ public class IQ extends Packet {
      * @see Type
      */
     public void setType(Type type) {
-        element.addAttribute("type", type==null?null:type.toString());
+        mutableElement().addAttribute("type", type==null?null:type.toString());
     }
 
     /**
@@ -167,13 +190,34 @@ public class IQ extends Packet {
      * of XMPP. Although any valid XML can be included in a child element
      * in an extended namespace, many common features have been standardized
      * as <a href="http://xmpp.org/extensions/">XMPP Extension Protocols</a>
-     * (XEPs).
+     * (XEPs).<p>
+     *
+     * The returned element may be modified. The child element of a copied IQ is
+     * shared with the original until either of them is modified, so this method
+     * copies a shared element first. Use {@link #getChildElementReadOnly()} to
+     * only read it.
      *
      * @return the child element.
      */
-    @SuppressWarnings("unchecked")
     public Element getChildElement() {
-        List<Element> elements = element.elements();
+        return findChildElement(mutableElement());
+    }
+
+    /**
+     * Returns the child element of this IQ for reading. The element may be shared
+     * with a copy of this IQ and must not be modified, in return it is never
+     * copied.
+     *
+     * @return the child element.
+     * @see #getChildElement()
+     */
+    public Element getChildElementReadOnly() {
+        return findChildElement(readableElement());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Element findChildElement(Element iq) {
+        List<Element> elements = iq.elements();
         if (elements.isEmpty()) {
             return null;
         }
@@ -192,6 +236,87 @@ public class IQ extends Packet {
         }
     }
 
+    /**
+     * Returns the namespace of the child element of this IQ. An IQ that is backed
+     * by a raw stanza is not parsed, so requests can be routed by their namespace
+     * before their payload is inspected.
+     *
+     * @return the namespace of the child element, or <tt>null</tt> if there is no
+     *      child element.
+     */
+    public String getChildNamespace() {
+        RawStanza stanza = getRawStanza();
+        if (stanza != null) {
+            return stanza.getChildNamespace();
+        }
+        Element childElement = getChildElementReadOnly();
+        return childElement == null ? null : childElement.getNamespaceURI();
+    }
+
+    /**
+     * Returns the value of an attribute of the child element of this IQ. An IQ
+     * that is backed by a raw stanza is not parsed.
+     *
+     * @param name the name of the attribute.
+     * @return the value of the attribute, or <tt>null</tt> if there is no child
+     *      element or the attribute is not set.
+     */
+    public String getChildAttribute(String name) {
+        RawStanza stanza = getRawStanza();
+        if (stanza != null) {
+            return stanza.childAttributeValue(name);
+        }
+        Element childElement = getChildElementReadOnly();
+        return childElement == null ? null : childElement.attributeValue(name);
+    }
+
+    /**
+     * Returns the value of an attribute of the first element within the child
+     * element of this IQ, if that element has the given name. This allows to
+     * classify requests by their operation, e.g. the method of a REST request.
+     * An IQ that is backed by a raw stanza is not parsed.
+     *
+     * @param elementName the local name of the element.
+     * @param name the name of the attribute.
+     * @return the value of the attribute, or <tt>null</tt> if the first element
+     *      within the child element has another name or the attribute is not set.
+     */
+    public String getChildContentAttribute(String elementName, String name) {
+        RawStanza stanza = getRawStanza();
+        if (stanza != null) {
+            return elementName.equals(stanza.getChildContentName())
+                    ? stanza.childContentAttributeValue(name) : null;
+        }
+        Element childElement = getChildElementReadOnly();
+        if (childElement == null) {
+            return null;
+        }
+        Iterator<?> elements = childElement.elementIterator();
+        if (!elements.hasNext()) {
+            return null;
+        }
+        Element content = (Element) elements.next();
+        return elementName.equals(content.getName()) ? content.attributeValue(name) : null;
+    }
+
+    /**
+     * Returns the textual XML representation of the child element of this IQ. If
+     * the IQ is backed by a raw stanza and the child element declares its namespace
+     * itself, the XML is taken from the raw stanza without parsing it. This allows
+     * to bind the payload directly to other XML representations.
+     *
+     * @return the XML of the child element, or <tt>null</tt> if there is no child
+     *      element.
+     */
+    public String getChildElementXML() {
+        RawStanza stanza = getRawStanza();
+        if (stanza != null && stanza.getChildXML() != null) {
+            return stanza.getChildXML();
+        }
+        Element childElement = getChildElementReadOnly();
+        return childElement == null ? null : childElement.asXML();
+    }
+
     /**
      * Sets the child element of this IQ. IQ packets may have a single child
      * element in an extended namespace. This is a convenience method to
@@ -214,10 +339,10 @@ public class IQ extends Packet {
      */
     @SuppressWarnings("unchecked")
     public void setChildElement(Element childElement) {
-        for (Iterator<Element> i=element.elementIterator(); i.hasNext(); ) {
-            element.remove(i.next());
+        for (Iterator<Element> i=mutableElement().elementIterator(); i.hasNext(); ) {
+            mutableElement().remove(i.next());
         }
-        element.add(childElement);
+        mutableElement().add(childElement);
     }
 
     /**
@@ -244,16 +369,17 @@ public class IQ extends Packet {
      */
     @SuppressWarnings("unchecked")
     public Element setChildElement(String name, String namespace) {
-        for (Iterator<Element> i=element.elementIterator(); i.hasNext(); ) {
-            element.remove(i.next());
+        for (Iterator<Element> i=mutableElement().elementIterator(); i.hasNext(); ) {
+            mutableElement().remove(i.next());
         }
-        return element.addElement(name, namespace);
+        return mutableElement().addElement(name, namespace);
     }
 
     /**
-     * Returns a deep copy of this IQ.
+     * Returns a copy of this IQ that shares the backing element until
+     * either of them is modified.
      *
-     * @return a deep copy of this IQ.
+     * @return a copy of this IQ.
      */
     public IQ createCopy() {
         return new IQ(this);
@@ -286,6 +412,31 @@ public class IQ extends Packet {
         return result;
     }
 
+    /**
+     * Convenience method to create a new {@link Type#error IQ.Type.error} IQ with a
+     * standard error condition based on a {@link Type#get IQ.Type.get} or
+     * {@link Type#set IQ.Type.set} IQ. The result is equivalent to calling
+     * {@link #createResultIQ(IQ)} and {@link #setError(PacketError.Condition)}, but
+     * the reply is created from a pre-rendered {@link StanzaTemplate}.
+     *
+     * @param iq the {@link Type#get IQ.Type.get} or {@link Type#set IQ.Type.set} IQ packet.
+     * @param condition the error condition.
+     * @throws IllegalArgumentException if the IQ packet does not have a type of
+     *      {@link Type#get IQ.Type.get} or {@link Type#set IQ.Type.set}.
+     * @return a new {@link Type#error IQ.Type.error} IQ based on the originating IQ.
+     */
+    public static IQ createErrorIQ(IQ iq, PacketError.Condition condition) {
+        StanzaTemplate template = errorTemplates[condition.ordinal()];
+        if (template == null) {
+            // Templates are immutable, so a concurrent creation is harmless
+            IQ prototype = new IQ(Type.result, null);
+            prototype.setError(condition);
+            template = new StanzaTemplate(prototype);
+            errorTemplates[condition.ordinal()] = template;
+        }
+        return template.createReply(iq);
+    }
+
     /**
      * Type-safe enumeration to represent the type of the IQ packet. The types are:
      *
@@ -70,6 +70,16 @@ public class Message extends Packet {
         super(element, skipValidation);
     }
 
+    /**
+     * Constructs a new Message that is backed by a raw stanza. The message
+     * element is only parsed when its content is accessed.
+     *
+     * @param stanza the raw message stanza.
+     */
+    public Message(RawStanza stanza) {
+        super(stanza);
+    }
+
     /**
      * Constructs a new Message that is a copy of an existing Message.
      *
@@ -77,12 +87,7 @@ public class Message extends Packet {
      * @see #createCopy()
      */
     private Message(Message message) {
-        Element elementCopy = message.element.createCopy();
-        docFactory.createDocument().add(elementCopy);
-        this.element = elementCopy;
-        // Copy cached JIDs (for performance reasons)
-        this.toJID = message.toJID;
-        this.fromJID = message.fromJID;
+        super(message);
     }
 
     /**
@@ -92,7 +97,7 @@ public class Message extends Packet {
      * @see Type
      */
     public Type getType() {
-        String type = element.attributeValue("type");
+        String type = attributeValue("type");
         if (type != null) {
             return Type.valueOf(type);
         }
@@ -108,7 +113,7 @@ public class Message extends Packet {
      * @see Type
      */
     public void setType(Type type) {
-        element.addAttribute("type", type==null?null:type.toString());
+        mutableElement().addAttribute("type", type==null?null:type.toString());
     }
 
     /**
@@ -117,7 +122,7 @@ public class Message extends Packet {
      * @return the subject.
      */
     public String getSubject() {
-        return element.elementText("subject");
+        return readableElement().elementText("subject");
     }
 
     /**
@@ -126,10 +131,10 @@ public class Message extends Packet {
      * @param subject the subject.
      */
     public void setSubject(String subject) {
-        Element subjectElement = element.element("subject");
+        Element subjectElement = mutableElement().element("subject");
         // If subject is null, clear the subject.
         if (subject == null && subjectElement != null) {
-            element.remove(subjectElement);
+            mutableElement().remove(subjectElement);
             return;
         }
         // Do nothing if the new subject is null
@@ -137,7 +142,7 @@ public class Message extends Packet {
             return;
         }
         if (subjectElement == null) {
-            subjectElement = element.addElement("subject");
+            subjectElement = mutableElement().addElement("subject");
         }
         subjectElement.setText(subject);
     }
@@ -148,7 +153,7 @@ public class Message extends Packet {
      * @return the body.
      */
     public String getBody() {
-        return element.elementText("body");
+        return readableElement().elementText("body");
     }
 
     /**
@@ -157,16 +162,16 @@ public class Message extends Packet {
      * @param body the body.
      */
     public void setBody(String body) {
-        Element bodyElement = element.element("body");
+        Element bodyElement = mutableElement().element("body");
         // If body is null, clear the body.
         if (body == null) {
             if (bodyElement != null) {
-                element.remove(bodyElement);
+                mutableElement().remove(bodyElement);
             }
             return;
         }
         if (bodyElement == null) {
-            bodyElement = element.addElement("body");
+            bodyElement = mutableElement().addElement("body");
         }
         bodyElement.setText(body);
     }
@@ -180,7 +185,7 @@ public class Message extends Packet {
      * @return the thread value.
      */
     public String getThread() {
-        return element.elementText("thread");
+        return readableElement().elementText("thread");
     }
 
     /**
@@ -191,17 +196,17 @@ public class Message extends Packet {
      * @param thread thread value.
      */
     public void setThread(String thread) {
-        Element threadElement = element.element("thread");
+        Element threadElement = mutableElement().element("thread");
         // If thread is null, clear the thread.
         if (thread == null) {
             if (threadElement != null) {
-                element.remove(threadElement);
+                mutableElement().remove(threadElement);
             }
             return;
         }
 
         if (threadElement == null) {
-            threadElement = element.addElement("thread");
+            threadElement = mutableElement().addElement("thread");
         }
         threadElement.setText(thread);
     }
@@ -226,7 +231,7 @@ public class Message extends Packet {
      */
     @SuppressWarnings("unchecked")
     public Element getChildElement(String name, String namespace) {
-        for (Iterator<Element> i=element.elementIterator(name); i.hasNext(); ) {
+        for (Iterator<Element> i=mutableElement().elementIterator(name); i.hasNext(); ) {
             Element element = i.next();
             if (element.getNamespaceURI().equals(namespace)) {
                 return element;
@@ -238,7 +243,7 @@ public class Message extends Packet {
     @SuppressWarnings("unchecked")
     public List<Element> getChildElements(String name, String namespace) {
     	ArrayList<Element> elements = new ArrayList<Element>();
-        for (Iterator<Element> i=element.elementIterator(name); i.hasNext(); ) {
+        for (Iterator<Element> i=mutableElement().elementIterator(name); i.hasNext(); ) {
             Element element = i.next();
             if (element.getNamespaceURI().equals(namespace)) {
                 elements.add(element);
@@ -265,13 +270,14 @@ public class Message extends Packet {
      * @return the newly created child element.
      */
     public Element addChildElement(String name, String namespace) {
-        return element.addElement(name, namespace);
+        return mutableElement().addElement(name, namespace);
     }
 
     /**
-     * Returns a deep copy of this Message.
+     * Returns a copy of this Message that shares the backing element until
+     * either of them is modified.
      *
-     * @return a deep copy of this Message.
+     * @return a copy of this Message.
      */
     public Message createCopy() {
         return new Message(this);
@@ -37,14 +37,44 @@ import java.io.StringWriter;
  *          request/response protocol.
  * </ul>
  *
+ * Packets that are read from a stream may be backed by a {@link RawStanza}
+ * instead. The element of such a packet is only parsed when it is accessed,
+ * the addresses, the ID and the type are read from the raw stanza. Likewise,
+ * replies that are created from a {@link StanzaTemplate} only build their
+ * element when it is accessed.
+ *
  * @author Matt Tucker
  */
 public abstract class Packet {
 
     protected static final DocumentFactory docFactory = DocumentFactory.getInstance();
 
+    /**
+     * The element that backs the packet, <tt>null</tt> while the packet is backed
+     * by a raw stanza that has not been parsed yet. Use {@link #readableElement()}
+     * to read it.
+     */
     protected Element element;
 
+    /**
+     * The raw stanza that the packet has been read from, if any.
+     */
+    private RawStanza stanza;
+
+    /**
+     * The template that the packet has been created from, if any, and the ID of
+     * the packet. The addresses are kept by the cached JIDs.
+     */
+    private StanzaTemplate template;
+    private String templateID;
+
+    /**
+     * True if the element is shared with a copy of this packet. A shared
+     * element is never modified, it is copied on the first modification.
+     * Copies may be created by other threads, e.g. when a packet is sent.
+     */
+    private volatile boolean shared = false;
+
     // Cache to and from JIDs
     protected JID toJID;
     protected JID fromJID;
@@ -73,33 +103,74 @@ public abstract class Packet {
      */
     public Packet(Element element, boolean skipValidation) {
         this.element = element;
+        prepareAddresses(skipValidation);
+    }
+
+    /**
+     * Constructs a new Packet that is backed by a raw stanza. The element is parsed
+     * when it is accessed for the first time. Only the TO address is verified.
+     *
+     * @param stanza the raw stanza that contains the packet contents.
+     * @throws IllegalArgumentException if the TO address is not valid.
+     */
+    public Packet(RawStanza stanza) {
+        this.stanza = stanza;
+        prepareAddresses(false);
+    }
+
+    /**
+     * Constructs a new Packet that is backed by a template. The element is built
+     * when it is accessed for the first time.
+     *
+     * @param template the template that contains the packet contents.
+     * @param ID the packet ID.
+     * @param from the XMPP address that the packet comes from.
+     * @param to the XMPP address that the packet is addressed to.
+     */
+    Packet(StanzaTemplate template, String ID, JID from, JID to) {
+        this.template = template;
+        this.templateID = ID;
+        this.fromJID = from;
+        this.toJID = to;
+    }
+
+    private void prepareAddresses(boolean skipValidation) {
         // Apply stringprep profiles to the "to" and "from" values.
-        String to = element.attributeValue("to");
+        String to = attributeValue("to");
         if (to != null) {
             if (to.length() == 0) {
                 // Remove empty TO values
-                element.addAttribute("to", null);
+                setAddress("to", null);
             }
             else {
                 String[] parts = JID.getParts(to);
                 toJID = new JID(parts[0], parts[1], parts[2], skipValidation);
-                element.addAttribute("to", toJID.toString());
+                setAddress("to", toJID.toString());
             }
         }
-        String from = element.attributeValue("from");
+        String from = attributeValue("from");
         if (from != null) {
             if (from.length() == 0) {
                 // Remove empty FROM values
-                element.addAttribute("from", null);
+                setAddress("from", null);
             }
             else {
                 String[] parts = JID.getParts(from);
                 fromJID = new JID(parts[0], parts[1], parts[2], true);
-                element.addAttribute("from", fromJID.toString());
+                setAddress("from", fromJID.toString());
             }
         }
     }
 
+    private void setAddress(String name, String value) {
+        if (element != null) {
+            element.addAttribute(name, value);
+        }
+        else {
+            stanza.setAttributeValue(name, value);
+        }
+    }
+
     /**
      * Constructs a new Packet with no element data. This method is used by
      * extensions of this class that require a more optimized path for creating
@@ -109,6 +180,115 @@ public abstract class Packet {
 
     }
 
+    /**
+     * Constructs a new Packet that is a copy of an existing packet. Both packets
+     * share the backing element until one of them is modified, which copies the
+     * element first. Packets that are only read are thus never copied.
+     *
+     * @param packet the packet to copy.
+     * @see #createCopy()
+     */
+    protected Packet(Packet packet) {
+        if (packet.element != null) {
+            packet.shared = true;
+            this.shared = true;
+            this.element = packet.element;
+        }
+        this.stanza = packet.stanza;
+        this.template = packet.template;
+        this.templateID = packet.templateID;
+        // Copy cached JIDs (for performance reasons)
+        this.toJID = packet.toJID;
+        this.fromJID = packet.fromJID;
+    }
+
+    /**
+     * Returns the element that backs the packet for modification. If the element
+     * is shared with a copy of this packet, it is replaced by a deep copy first.
+     *
+     * @return the element that backs the packet and is owned by this packet.
+     */
+    protected Element mutableElement() {
+        readableElement();
+        if (shared) {
+            Element elementCopy = element.createCopy();
+            docFactory.createDocument().add(elementCopy);
+            element = elementCopy;
+            shared = false;
+        }
+        return element;
+    }
+
+    /**
+     * Returns the element that backs the packet for reading. A packet that is backed
+     * by a raw stanza is parsed first. The element must not be modified, because it
+     * may be shared with a copy of this packet.
+     *
+     * @return the element that backs the packet.
+     * @throws IllegalStateException if the raw stanza cannot be parsed.
+     */
+    protected Element readableElement() {
+        if (element == null) {
+            if (stanza != null) {
+                element = stanza.parse();
+            }
+            else if (template != null) {
+                element = template.createElement(templateID, attributeValue("from"),
+                        attributeValue("to"));
+            }
+            shared = false;
+        }
+        return element;
+    }
+
+    /**
+     * Returns the raw stanza that backs the packet as long as its element has not
+     * been parsed.
+     *
+     * @return the raw stanza, or <tt>null</tt> if the packet is backed by an element.
+     */
+    protected RawStanza getRawStanza() {
+        return element == null ? stanza : null;
+    }
+
+    /**
+     * Returns the template that backs the packet as long as its element has not
+     * been built.
+     *
+     * @return the template, or <tt>null</tt> if the packet is not backed by a template.
+     */
+    StanzaTemplate getTemplate() {
+        return element == null ? template : null;
+    }
+
+    /**
+     * Returns the value of an attribute of the packet element without parsing a raw
+     * stanza.
+     *
+     * @param name the name of the attribute.
+     * @return the value of the attribute, or <tt>null</tt> if it is not set.
+     */
+    protected String attributeValue(String name) {
+        if (element == null) {
+            if (stanza != null) {
+                return stanza.attributeValue(name);
+            }
+            if (template != null) {
+                if ("id".equals(name)) {
+                    return templateID;
+                }
+                else if ("from".equals(name)) {
+                    return fromJID == null ? null : fromJID.toString();
+                }
+                else if ("to".equals(name)) {
+                    return toJID == null ? null : toJID.toString();
+                }
+                return template.attributeValue(name);
+            }
+        }
+        return element.attributeValue(name);
+    }
+
     /**
      * Returns the packet ID, or <tt>null</tt> if the packet does not have an ID.
      * Packet ID's are optional, except for IQ packets.
@@ -116,7 +296,7 @@ public abstract class Packet {
      * @return the packet ID.
      */
     public String getID() {
-        return element.attributeValue("id");
+        return attributeValue("id");
     }
 
     /**
@@ -125,7 +305,7 @@ public abstract class Packet {
      * @param ID the packet ID.
      */
     public void setID(String ID) {
-        element.addAttribute("id", ID);
+        mutableElement().addAttribute("id", ID);
     }
 
     /**
@@ -137,7 +317,7 @@ public abstract class Packet {
      *      if not set.
      */
     public JID getTo() {
-        String to = element.attributeValue("to");
+        String to = attributeValue("to");
         if (to == null || to.length() == 0) {
             return null;
         }
@@ -171,7 +351,7 @@ public abstract class Packet {
         } else {
         	toJID = null;
         }
-        element.addAttribute("to", to);
+        mutableElement().addAttribute("to", to);
     }
 
     /**
@@ -183,10 +363,10 @@ public abstract class Packet {
     public void setTo(JID to) {
         toJID = to;
         if (to == null) {
-            element.addAttribute("to", null);
+            mutableElement().addAttribute("to", null);
         }
         else {
-            element.addAttribute("to", to.toString());
+            mutableElement().addAttribute("to", to.toString());
         }
     }
 
@@ -199,7 +379,7 @@ public abstract class Packet {
      *      if not set.
      */
     public JID getFrom() {
-        String from = element.attributeValue("from");
+        String from = attributeValue("from");
         if (from == null || from.length() == 0) {
             return null;
         }
@@ -233,7 +413,7 @@ public abstract class Packet {
         } else {
         	fromJID = null;
         }
-        element.addAttribute("from", from);
+        mutableElement().addAttribute("from", from);
     }
 
     /**
@@ -245,20 +425,38 @@ public abstract class Packet {
     public void setFrom(JID from) {
         fromJID = from;
         if (from == null) {
-            element.addAttribute("from", null);
+            mutableElement().addAttribute("from", null);
         }
         else {
-            element.addAttribute("from", from.toString());
+            mutableElement().addAttribute("from", from.toString());
         }
     }
 
     /**
      * Returns the packet error, or <tt>null</tt> if there is no packet error.
+     * The returned error may be modified, an element that is shared with a copy
+     * of this packet is copied first. Use {@link #getErrorReadOnly()} to only
+     * read the error.
      *
      * @return the packet error.
      */
     public PacketError getError() {
-        Element error = element.element("error");
+        Element error = mutableElement().element("error");
+        if (error != null) {
+            return new PacketError(error);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the packet error for reading. The error may be backed by an element
+     * that is shared with a copy of this packet and must not be modified, in return
+     * it is never copied.
+     *
+     * @return the packet error, or <tt>null</tt> if there is no packet error.
+     */
+    public PacketError getErrorReadOnly() {
+        Element error = readableElement().element("error");
         if (error != null) {
             return new PacketError(error);
         }
@@ -272,9 +470,10 @@ public abstract class Packet {
      * @param error the packet error.
      */
     public void setError(PacketError error) {
-        if (element == null) {
+        if (element == null && stanza == null && template == null) {
             throw new NullPointerException("Error cannot be null");
         }
+        Element element = mutableElement();
         // Force the packet type to "error".
         element.addAttribute("type", "error");
         // Remove an existing error packet.
@@ -299,21 +498,24 @@ public abstract class Packet {
     }
 
     /**
-     * Creates a deep copy of this packet.
+     * Creates a copy of this packet. The copy shares the backing element with
+     * this packet until either of them is modified, so copying is cheap for
+     * packets that are only read.
      *
-     * @return a deep copy of this packet.
+     * @return a copy of this packet.
      */
     public abstract Packet createCopy();
 
     /**
      * Returns the DOM4J Element that backs the packet. The element is the definitive
      * representation of the packet and can be manipulated directly to change
-     * packet contents.
+     * packet contents. If the element is shared with a copy of this packet,
+     * it is copied first.
      *
      * @return the DOM4J Element that represents the packet.
      */
     public Element getElement() {
-        return element;
+        return mutableElement();
     }
 
     /**
@@ -322,14 +524,14 @@ public abstract class Packet {
      * @return the textual XML representation of this packet.
      */
     public String toXML() {
-        return element.asXML();
+        return readableElement().asXML();
     }
 
     public String toString() {
         StringWriter out = new StringWriter();
         XMLWriter writer = new XMLWriter(out, OutputFormat.createPrettyPrint());
         try {
-            writer.write(element);
+            writer.write(readableElement());
         }
         catch (Exception e) {
             // Ignore.
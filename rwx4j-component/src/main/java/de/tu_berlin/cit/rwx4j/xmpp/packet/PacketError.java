@@ -393,6 +393,13 @@ public class PacketError {
          */
         payment_required("payment-required", Type.auth, 402),
 
+        /**
+         * The entity has violated some local service policy, e.g. by
+         * exceeding a rate limit; the associated error type SHOULD be
+         * "modify" or "wait" (RFC 6120).
+         */
+        policy_violation("policy-violation", Type.modify, 405),
+
         /**
          * The intended recipient is temporarily unavailable; the associated
          * error type SHOULD be "wait" (note: an application MUST NOT return
@@ -517,6 +524,9 @@ public class PacketError {
             else if (payment_required.toXMPP().equals(condition)) {
                 return payment_required;
             }
+            else if (policy_violation.toXMPP().equals(condition)) {
+                return policy_violation;
+            }
             else if (recipient_unavailable.toXMPP().equals(condition)) {
                 return recipient_unavailable;
             }
@@ -73,6 +73,16 @@ public class Presence extends Packet {
         super(element, skipValidation);
     }
 
+    /**
+     * Constructs a new Presence that is backed by a raw stanza. The presence
+     * element is only parsed when its content is accessed.
+     *
+     * @param stanza the raw presence stanza.
+     */
+    public Presence(RawStanza stanza) {
+        super(stanza);
+    }
+
     /**
      * Constructs a new Presence that is a copy of an existing Presence.
      *
@@ -80,12 +90,7 @@ public class Presence extends Packet {
      * @see #createCopy() 
      */
     private Presence(Presence presence) {
-        Element elementCopy = presence.element.createCopy();
-        docFactory.createDocument().add(elementCopy);
-        this.element = elementCopy;
-        // Copy cached JIDs (for performance reasons)
-        this.toJID = presence.toJID;
-        this.fromJID = presence.fromJID;
+        super(presence);
     }
 
     /**
@@ -108,7 +113,7 @@ public class Presence extends Packet {
      * @see Type
      */
     public Type getType() {
-        String type = element.attributeValue("type");
+        String type = attributeValue("type");
         if (type == null) {
             return null;
         }
@@ -124,7 +129,7 @@ public class Presence extends Packet {
      * @see Type
      */
     public void setType(Type type) {
-        element.addAttribute("type", type==null?null:type.toString());
+        mutableElement().addAttribute("type", type==null?null:type.toString());
     }
 
     /**
@@ -138,7 +143,7 @@ public class Presence extends Packet {
      * @see Show
      */
     public Show getShow() {
-        String show = element.elementText("show");
+        String show = readableElement().elementText("show");
         if (show == null) {
             return null;
         }
@@ -158,11 +163,11 @@ public class Presence extends Packet {
      * @see Show
      */
     public void setShow(Show show) {
-        Element showElement = element.element("show");
+        Element showElement = mutableElement().element("show");
         // If show is null, clear the subject.
         if (show == null) {
             if (showElement != null) {
-                element.remove(showElement);
+                mutableElement().remove(showElement);
             }
             return;
         }
@@ -170,7 +175,7 @@ public class Presence extends Packet {
             if (!isAvailable()) {
                 throw new IllegalArgumentException("Cannot set 'show' if 'type' attribute is set.");
             }
-            showElement = element.addElement("show");
+            showElement = mutableElement().addElement("show");
         }
         showElement.setText(show.toString());
     }
@@ -182,7 +187,7 @@ public class Presence extends Packet {
      * @return the status.
      */
     public String getStatus() {
-        return element.elementText("status");
+        return readableElement().elementText("status");
     }
 
     /**
@@ -192,17 +197,17 @@ public class Presence extends Packet {
      * @param status the status.
      */
     public void setStatus(String status) {
-        Element statusElement = element.element("status");
+        Element statusElement = mutableElement().element("status");
         // If subject is null, clear the subject.
         if (status == null) {
             if (statusElement != null) {
-                element.remove(statusElement);
+                mutableElement().remove(statusElement);
             }
             return;
         }
 
         if (statusElement == null) {
-            statusElement = element.addElement("status");
+            statusElement = mutableElement().addElement("status");
         }
         statusElement.setText(status);
     }
@@ -215,7 +220,7 @@ public class Presence extends Packet {
      * @return the priority.
      */
     public int getPriority() {
-        String priority = element.elementText("priority");
+        String priority = readableElement().elementText("priority");
         if (priority == null) {
             return 0;
         }
@@ -241,9 +246,9 @@ public class Presence extends Packet {
             throw new IllegalArgumentException("Priority value of " + priority +
                     " is outside the valid range of -128 through 128");
         }
-        Element priorityElement = element.element("priority");
+        Element priorityElement = mutableElement().element("priority");
         if (priorityElement == null) {
-            priorityElement = element.addElement("priority");
+            priorityElement = mutableElement().addElement("priority");
         }
         priorityElement.setText(Integer.toString(priority));
     }
@@ -268,7 +273,7 @@ public class Presence extends Packet {
      */
     @SuppressWarnings("unchecked")
     public Element getChildElement(String name, String namespace) {
-        for (Iterator<Element> i=element.elementIterator(name); i.hasNext(); ) {
+        for (Iterator<Element> i=mutableElement().elementIterator(name); i.hasNext(); ) {
             Element element = i.next();
             if (element.getNamespaceURI().equals(namespace)) {
                 return element;
@@ -295,13 +300,14 @@ public class Presence extends Packet {
      * @return the newly created child element.
      */
     public Element addChildElement(String name, String namespace) {
-        return element.addElement(name, namespace);
+        return mutableElement().addElement(name, namespace);
     }
 
     /**
-     * Returns a deep copy of this Presence.
+     * Returns a copy of this Presence that shares the backing element until
+     * either of them is modified.
      *
-     * @return a deep copy of this Presence.
+     * @return a copy of this Presence.
      */
     public Presence createCopy() {
         return new Presence(this);
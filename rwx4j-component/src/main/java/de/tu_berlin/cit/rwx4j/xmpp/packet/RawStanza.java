@@ -0,0 +1,605 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Element;
+
+/**
+ * The unparsed XML of a received stanza together with the information that
+ * is needed to route it: the name and the attributes of the stanza element
+ * and the name and namespace of its child element. This information is
+ * captured by a single scan over the characters of the stanza, the element
+ * tree is only built by a {@link Parser} when a packet that is backed by
+ * the stanza is actually inspected or modified.
+ *
+ * The scan only supports what it can decide safely. Stanzas with a prefixed
+ * element name, a child element whose prefix is not declared within the
+ * stanza, unknown entities or attribute values that would be normalized by
+ * a parser are rejected and have to be parsed completely.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public final class RawStanza {
+
+	/**
+	 * Builds the element of a stanza.
+	 */
+	public interface Parser {
+
+		/**
+		 * Parses a stanza into an element.
+		 *
+		 * @param stanza
+		 *            the XML of the stanza.
+		 * @return the element of the stanza.
+		 * @throws Exception
+		 *             if the stanza is not well-formed.
+		 */
+		Element readElement(String stanza) throws Exception;
+	}
+
+	/**
+	 * The namespaces that are removed from stanzas by the parser.
+	 */
+	private static final String[] STREAM_NAMESPACES = { "jabber:client",
+			"jabber:server", "jabber:component:accept",
+			"http://jabber.org/protocol/httpbind" };
+
+	private final String xml;
+
+	private final Parser parser;
+
+	private String name;
+
+	private final List<String> attributes = new ArrayList<String>(8);
+
+	private String defaultNamespace;
+
+	private List<String> namespaces;
+
+	private String childName;
+
+	private String childNamespace;
+
+	private List<String> childAttributes;
+
+	/**
+	 * The local name and the attributes of the first element within the
+	 * child element.
+	 */
+	private String contentName;
+
+	private List<String> contentAttributes;
+
+	private int childStart = -1;
+
+	private int childEnd = -1;
+
+	private boolean childSelfContained = false;
+
+	/**
+	 * The position of the scan.
+	 */
+	private int position = 0;
+
+	private RawStanza(String xml, Parser parser) {
+		this.xml = xml;
+		this.parser = parser;
+	}
+
+	/**
+	 * Scans a stanza for its routing information.
+	 *
+	 * @param xml
+	 *            the XML of the stanza.
+	 * @param parser
+	 *            the parser that builds the element of the stanza on demand.
+	 * @return the scanned stanza or <tt>null</tt> if the stanza has to be
+	 *         parsed completely.
+	 */
+	public static RawStanza scan(String xml, Parser parser) {
+		final RawStanza stanza = new RawStanza(xml, parser);
+		return stanza.scan() ? stanza : null;
+	}
+
+	/**
+	 * @return the XML of the stanza.
+	 */
+	public String getXML() {
+		return this.xml;
+	}
+
+	/**
+	 * @return the name of the stanza element, e.g. <tt>iq</tt>.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the value of an attribute of the stanza element.
+	 *
+	 * @param name
+	 *            the qualified name of the attribute.
+	 * @return the value or <tt>null</tt> if the attribute is not present.
+	 */
+	public String attributeValue(String name) {
+		return findValue(this.attributes, name);
+	}
+
+	/**
+	 * Replaces the value of an attribute before the stanza is shared, e.g.
+	 * by a normalized address.
+	 */
+	void setAttributeValue(String name, String value) {
+		for (int i = 0; i < this.attributes.size(); i += 2) {
+			if (this.attributes.get(i).equals(name)) {
+				if (value == null) {
+					this.attributes.remove(i + 1);
+					this.attributes.remove(i);
+				} else {
+					this.attributes.set(i + 1, value);
+				}
+				return;
+			}
+		}
+		if (value != null) {
+			this.attributes.add(name);
+			this.attributes.add(value);
+		}
+	}
+
+	/**
+	 * Returns the local name of the child element, which is the first child
+	 * element in an extended namespace like {@link IQ#getChildElement()}.
+	 *
+	 * @return the name or <tt>null</tt> if there is no child element.
+	 */
+	public String getChildName() {
+		return this.childName;
+	}
+
+	/**
+	 * @return the namespace of the child element or <tt>null</tt> if there is
+	 *         no child element.
+	 */
+	public String getChildNamespace() {
+		return this.childNamespace;
+	}
+
+	/**
+	 * Returns the value of an attribute of the child element.
+	 *
+	 * @param name
+	 *            the qualified name of the attribute.
+	 * @return the value or <tt>null</tt> if there is no child element or the
+	 *         attribute is not present.
+	 */
+	public String childAttributeValue(String name) {
+		return this.childAttributes == null ? null : findValue(this.childAttributes, name);
+	}
+
+	/**
+	 * Returns the local name of the first element within the child element,
+	 * e.g. the operation of a request.
+	 *
+	 * @return the name or <tt>null</tt> if the child element is empty.
+	 */
+	public String getChildContentName() {
+		return this.contentName;
+	}
+
+	/**
+	 * Returns the value of an attribute of the first element within the
+	 * child element.
+	 *
+	 * @param name
+	 *            the qualified name of the attribute.
+	 * @return the value or <tt>null</tt> if the child element is empty or the
+	 *         attribute is not present.
+	 */
+	public String childContentAttributeValue(String name) {
+		return this.contentAttributes == null ? null : findValue(this.contentAttributes, name);
+	}
+
+	/**
+	 * Returns the XML of the child element if it can be parsed on its own,
+	 * i.e. it declares its namespace itself and the stanza element does not
+	 * declare any prefixes.
+	 *
+	 * @return the XML or <tt>null</tt> if there is no such child element.
+	 */
+	public String getChildXML() {
+		if (!this.childSelfContained) {
+			return null;
+		}
+		return this.xml.substring(this.childStart, this.childEnd);
+	}
+
+	/**
+	 * Builds the element of the stanza. The attributes of the stanza element
+	 * are replaced by the values of this stanza, which may have been
+	 * normalized.
+	 *
+	 * @return the element of the stanza.
+	 * @throws IllegalStateException
+	 *             if the stanza cannot be parsed.
+	 */
+	public Element parse() {
+		final Element element;
+		try {
+			element = this.parser.readElement(this.xml);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot parse stanza: "
+					+ e.getMessage(), e);
+		}
+		element.addAttribute("to", attributeValue("to"));
+		element.addAttribute("from", attributeValue("from"));
+		return element;
+	}
+
+	private boolean scan() {
+		skipWhitespace();
+		if (!this.xml.startsWith("<", this.position)) {
+			return false;
+		}
+		this.position++;
+		this.name = readName();
+		if (this.name == null || this.name.indexOf(':') >= 0) {
+			return false;
+		}
+		final List<String> declarations = new ArrayList<String>(2);
+		final int end = readAttributes(this.attributes, declarations);
+		if (end < 0) {
+			return false;
+		}
+		for (int i = 0; i < declarations.size(); i += 2) {
+			if (declarations.get(i).length() == 0) {
+				this.defaultNamespace = declarations.get(i + 1);
+			} else {
+				if (this.namespaces == null) {
+					this.namespaces = new ArrayList<String>(2);
+				}
+				this.namespaces.add(declarations.get(i));
+				this.namespaces.add(declarations.get(i + 1));
+			}
+		}
+		if (end == 1) {
+			// an empty stanza element
+			return true;
+		}
+		return scanChildren();
+	}
+
+	/**
+	 * Scans the content of the stanza element until the child element has
+	 * been found and skipped.
+	 */
+	private boolean scanChildren() {
+		final List<String> attributes = new ArrayList<String>(8);
+		final List<String> declarations = new ArrayList<String>(2);
+		int depth = 1;
+		while (true) {
+			final int start = this.xml.indexOf('<', this.position);
+			if (start < 0) {
+				return false;
+			}
+			this.position = start + 1;
+			if (this.xml.startsWith("/", this.position)) {
+				this.position = this.xml.indexOf('>', this.position);
+				if (this.position < 0) {
+					return false;
+				}
+				this.position++;
+				depth--;
+				if (depth == 1 && this.childStart >= 0) {
+					this.childEnd = this.position;
+					return true;
+				}
+				if (depth == 0) {
+					return true;
+				}
+			} else if (this.xml.startsWith("!--", this.position)) {
+				if (!skipTo("-->")) {
+					return false;
+				}
+			} else if (this.xml.startsWith("![CDATA[", this.position)) {
+				if (!skipTo("]]>")) {
+					return false;
+				}
+			} else if (this.xml.startsWith("?", this.position)) {
+				if (!skipTo("?>")) {
+					return false;
+				}
+			} else if (this.xml.startsWith("!", this.position)) {
+				return false;
+			} else if (depth > 1) {
+				// skip a nested element, quoted values may contain '>'
+				attributes.clear();
+				declarations.clear();
+				final String name = readName();
+				if (name == null) {
+					return false;
+				}
+				final int end = readAttributes(attributes, declarations);
+				if (end < 0) {
+					return false;
+				}
+				if (depth == 2 && this.childStart >= 0 && this.contentName == null) {
+					this.contentName = name.substring(name.indexOf(':') + 1);
+					this.contentAttributes = new ArrayList<String>(attributes);
+				}
+				if (end == 0) {
+					depth++;
+				}
+			} else {
+				attributes.clear();
+				declarations.clear();
+				final String name = readName();
+				if (name == null) {
+					return false;
+				}
+				final int end = readAttributes(attributes, declarations);
+				if (end < 0) {
+					return false;
+				}
+				if (!resolveChild(start, name, declarations)) {
+					return false;
+				}
+				if (this.childStart == start) {
+					this.childAttributes = new ArrayList<String>(attributes);
+				}
+				if (end == 1) {
+					if (this.childStart >= 0) {
+						this.childEnd = this.position;
+						return true;
+					}
+				} else {
+					depth++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resolves the namespace of an element below the stanza element and
+	 * records it as the child element if it is in an extended namespace.
+	 *
+	 * @return <tt>false</tt> if the namespace cannot be resolved.
+	 */
+	private boolean resolveChild(int start, String name, List<String> declarations) {
+		final int colon = name.indexOf(':');
+		final String prefix = colon < 0 ? "" : name.substring(0, colon);
+		String namespace = findNamespace(declarations, prefix);
+		final boolean declaredLocally = namespace != null;
+		if (namespace == null) {
+			if (prefix.length() == 0) {
+				namespace = this.defaultNamespace == null ? "" : this.defaultNamespace;
+			} else {
+				namespace = this.namespaces == null ? null : findNamespace(this.namespaces, prefix);
+				if (namespace == null) {
+					// declared by the stream or not at all
+					return false;
+				}
+			}
+		}
+		if (namespace.length() == 0 || isStreamNamespace(namespace)) {
+			return true;
+		}
+		this.childName = name.substring(colon + 1);
+		this.childNamespace = namespace;
+		this.childStart = start;
+		// descendants of a prefixed child may use the default namespace of
+		// the stanza
+		this.childSelfContained = declaredLocally && this.namespaces == null
+				&& (prefix.length() == 0 || this.defaultNamespace == null
+						|| isStreamNamespace(this.defaultNamespace));
+		return true;
+	}
+
+	private static String findValue(List<String> attributes, String name) {
+		for (int i = 0; i < attributes.size(); i += 2) {
+			if (attributes.get(i).equals(name)) {
+				return attributes.get(i + 1);
+			}
+		}
+		return null;
+	}
+
+	private static String findNamespace(List<String> declarations, String prefix) {
+		for (int i = 0; i < declarations.size(); i += 2) {
+			if (declarations.get(i).equals(prefix)) {
+				return declarations.get(i + 1);
+			}
+		}
+		return null;
+	}
+
+	private static boolean isStreamNamespace(String namespace) {
+		for (String streamNamespace : STREAM_NAMESPACES) {
+			if (streamNamespace.equals(namespace)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the attributes of a start tag up to and including its end.
+	 * Namespace declarations are added as pairs of prefix and namespace.
+	 *
+	 * @return 0 for a start tag, 1 for an empty element tag, -1 if the tag
+	 *         is not supported.
+	 */
+	private int readAttributes(List<String> attributes, List<String> declarations) {
+		while (true) {
+			skipWhitespace();
+			if (this.position >= this.xml.length()) {
+				return -1;
+			}
+			final char c = this.xml.charAt(this.position);
+			if (c == '>') {
+				this.position++;
+				return 0;
+			}
+			if (c == '/') {
+				if (!this.xml.startsWith(">", this.position + 1)) {
+					return -1;
+				}
+				this.position += 2;
+				return 1;
+			}
+			final String name = readName();
+			if (name == null) {
+				return -1;
+			}
+			skipWhitespace();
+			if (!this.xml.startsWith("=", this.position)) {
+				return -1;
+			}
+			this.position++;
+			skipWhitespace();
+			final String value = readValue();
+			if (value == null) {
+				return -1;
+			}
+			if (name.equals("xmlns")) {
+				declarations.add("");
+				declarations.add(value);
+			} else if (name.startsWith("xmlns:")) {
+				declarations.add(name.substring(6));
+				declarations.add(value);
+			} else {
+				attributes.add(name);
+				attributes.add(value);
+			}
+		}
+	}
+
+	private String readName() {
+		final int start = this.position;
+		while (this.position < this.xml.length()) {
+			final char c = this.xml.charAt(this.position);
+			if (c == '>' || c == '/' || c == '=' || c == '<' || isWhitespace(c)) {
+				break;
+			}
+			this.position++;
+		}
+		if (this.position == start) {
+			return null;
+		}
+		return this.xml.substring(start, this.position);
+	}
+
+	/**
+	 * Reads a quoted attribute value and replaces its references.
+	 *
+	 * @return the value or <tt>null</tt> if it is not supported.
+	 */
+	private String readValue() {
+		if (this.position >= this.xml.length()) {
+			return null;
+		}
+		final char quote = this.xml.charAt(this.position);
+		if (quote != '"' && quote != '\'') {
+			return null;
+		}
+		final int start = this.position + 1;
+		final int end = this.xml.indexOf(quote, start);
+		if (end < 0) {
+			return null;
+		}
+		this.position = end + 1;
+		StringBuilder value = null;
+		int copied = start;
+		for (int i = start; i < end; i++) {
+			final char c = this.xml.charAt(i);
+			if (c == '<' || c == '\t' || c == '\n' || c == '\r') {
+				// malformed or subject to normalization
+				return null;
+			}
+			if (c == '&') {
+				final int semicolon = this.xml.indexOf(';', i);
+				if (semicolon < 0 || semicolon > end) {
+					return null;
+				}
+				final int decoded = decodeReference(this.xml.substring(i + 1, semicolon));
+				if (decoded < 0) {
+					return null;
+				}
+				if (value == null) {
+					value = new StringBuilder(end - start);
+				}
+				value.append(this.xml, copied, i).appendCodePoint(decoded);
+				i = semicolon;
+				copied = semicolon + 1;
+			}
+		}
+		if (value == null) {
+			return this.xml.substring(start, end);
+		}
+		return value.append(this.xml, copied, end).toString();
+	}
+
+	private static int decodeReference(String reference) {
+		if (reference.equals("amp")) {
+			return '&';
+		} else if (reference.equals("lt")) {
+			return '<';
+		} else if (reference.equals("gt")) {
+			return '>';
+		} else if (reference.equals("quot")) {
+			return '"';
+		} else if (reference.equals("apos")) {
+			return '\'';
+		} else if (reference.startsWith("#")) {
+			try {
+				final int codePoint = reference.startsWith("#x")
+						? Integer.parseInt(reference.substring(2), 16)
+						: Integer.parseInt(reference.substring(1));
+				return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private boolean skipTo(String terminator) {
+		final int end = this.xml.indexOf(terminator, this.position);
+		if (end < 0) {
+			return false;
+		}
+		this.position = end + terminator.length();
+		return true;
+	}
+
+	private void skipWhitespace() {
+		while (this.position < this.xml.length()
+				&& isWhitespace(this.xml.charAt(this.position))) {
+			this.position++;
+		}
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+}
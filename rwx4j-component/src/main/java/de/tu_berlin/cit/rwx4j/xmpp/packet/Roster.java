@@ -75,9 +75,7 @@ public class Roster extends IQ {
      * @see #createCopy()
      */
     private Roster(Roster roster) {
-        Element elementCopy = roster.element.createCopy();
-        docFactory.createDocument().add(elementCopy);
-        this.element = elementCopy;
+        super(roster);
     }
 
     /**
@@ -90,6 +88,16 @@ public class Roster extends IQ {
         super(element);
     }
 
+    /**
+     * Constructs a new Roster that is backed by a raw stanza. The roster
+     * element is only parsed when its content is accessed.
+     *
+     * @param stanza the raw roster stanza.
+     */
+    public Roster(RawStanza stanza) {
+        super(stanza);
+    }
+
     /**
      * Adds a new item to the roster. The name and groups are set to <tt>null</tt>
      * If the roster packet already contains an item using the same JID, the
@@ -162,9 +170,9 @@ public class Roster extends IQ {
         if (subscription == null) {
             throw new NullPointerException("Subscription cannot be null");
         }
-        Element query = element.element(new QName("query", Namespace.get("jabber:iq:roster")));
+        Element query = mutableElement().element(new QName("query", Namespace.get("jabber:iq:roster")));
         if (query == null) {
-            query = element.addElement("query", "jabber:iq:roster");
+            query = mutableElement().addElement("query", "jabber:iq:roster");
         }
         Element item = null;
         for (Iterator<Element> i=query.elementIterator("item"); i.hasNext(); ) {
@@ -202,7 +210,7 @@ public class Roster extends IQ {
      */
     @SuppressWarnings("unchecked")
     public void removeItem(JID jid) {
-        Element query = element.element(new QName("query", Namespace.get("jabber:iq:roster")));
+        Element query = mutableElement().element(new QName("query", Namespace.get("jabber:iq:roster")));
         if (query != null) {
             for (Iterator<Element> i=query.elementIterator("item"); i.hasNext(); ) {
                 Element item = i.next();
@@ -222,7 +230,7 @@ public class Roster extends IQ {
     @SuppressWarnings("unchecked")
     public Collection<Item> getItems() {
         Collection<Item> items = new ArrayList<Item>();
-        Element query = element.element(new QName("query", Namespace.get("jabber:iq:roster")));
+        Element query = readableElement().element(new QName("query", Namespace.get("jabber:iq:roster")));
         if (query != null) {
             for (Iterator<Element> i=query.elementIterator("item"); i.hasNext(); ) {
                 Element item = i.next();
@@ -245,9 +253,10 @@ public class Roster extends IQ {
     }
 
     /**
-     * Returns a deep copy of this Roster.
+     * Returns a copy of this Roster that shares the backing element until
+     * either of them is modified.
      *
-     * @return a deep copy of this Roster.
+     * @return a copy of this Roster.
      */
     public Roster createCopy() {
         return new Roster(this);
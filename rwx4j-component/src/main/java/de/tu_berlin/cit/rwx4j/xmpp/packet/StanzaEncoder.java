@@ -0,0 +1,441 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import java.nio.ByteBuffer;
+
+import org.dom4j.Attribute;
+import org.dom4j.CDATA;
+import org.dom4j.Comment;
+import org.dom4j.Element;
+import org.dom4j.Entity;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.ProcessingInstruction;
+import org.dom4j.Text;
+import org.dom4j.tree.NamespaceStack;
+
+/**
+ * Serializes packets directly into a reusable buffer of UTF-8 encoded bytes.
+ * The output is identical to the output of a dom4j <code>XMLWriter</code>
+ * with the default format whose characters are encoded as UTF-8, but no
+ * intermediate strings or character buffers are created: names and values
+ * are encoded character by character and the characters that have to be
+ * escaped are looked up in precomputed tables.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public final class StanzaEncoder {
+
+	/**
+	 * The escape sequences of the ASCII characters in text content, or
+	 * <tt>null</tt> if a character is written as is.
+	 */
+	private static final byte[][] TEXT_ESCAPES = new byte[128][];
+
+	/**
+	 * The escape sequences of the ASCII characters in attribute values, which
+	 * are quoted with double quotes.
+	 */
+	private static final byte[][] ATTRIBUTE_ESCAPES = new byte[128][];
+
+	static {
+		for (int c = 0; c < 32; c++) {
+			if (c != '\t' && c != '\n' && c != '\r') {
+				TEXT_ESCAPES[c] = ascii("&#" + c + ";");
+				ATTRIBUTE_ESCAPES[c] = TEXT_ESCAPES[c];
+			}
+		}
+		TEXT_ESCAPES['<'] = ascii("&lt;");
+		TEXT_ESCAPES['>'] = ascii("&gt;");
+		TEXT_ESCAPES['&'] = ascii("&amp;");
+		ATTRIBUTE_ESCAPES['<'] = TEXT_ESCAPES['<'];
+		ATTRIBUTE_ESCAPES['>'] = TEXT_ESCAPES['>'];
+		ATTRIBUTE_ESCAPES['&'] = TEXT_ESCAPES['&'];
+		ATTRIBUTE_ESCAPES['"'] = ascii("&quot;");
+	}
+
+	/**
+	 * The byte that replaces an unpaired surrogate, like the replacement of
+	 * the UTF-8 charset encoder.
+	 */
+	private static final byte REPLACEMENT = '?';
+
+	private final int initialCapacity;
+
+	private byte[] buffer;
+
+	private int count = 0;
+
+	private ByteBuffer view;
+
+	/**
+	 * The namespaces in scope, like the namespace stack of an
+	 * <code>XMLWriter</code>.
+	 */
+	private final NamespaceStack namespaces = new NamespaceStack();
+
+	/**
+	 * Creates an encoder.
+	 *
+	 * @param initialCapacity
+	 *            the initial capacity of the buffer in bytes. The buffer
+	 *            grows for larger stanzas and shrinks back on reset.
+	 */
+	public StanzaEncoder(int initialCapacity) {
+		this.initialCapacity = initialCapacity;
+		this.buffer = new byte[initialCapacity];
+		this.namespaces.push(Namespace.NO_NAMESPACE);
+	}
+
+	/**
+	 * @return the number of encoded bytes.
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * Discards the encoded bytes. A buffer that has grown beyond four times
+	 * its initial capacity is released.
+	 */
+	public void reset() {
+		this.count = 0;
+		if (this.buffer.length > 4 * this.initialCapacity) {
+			this.buffer = new byte[this.initialCapacity];
+			this.view = null;
+		}
+	}
+
+	/**
+	 * Returns the encoded bytes. The returned buffer is backed by the buffer of
+	 * the encoder and is only valid until the encoder is modified.
+	 *
+	 * @return the encoded bytes between the position and the limit.
+	 */
+	public ByteBuffer getBytes() {
+		if (this.view == null) {
+			this.view = ByteBuffer.wrap(this.buffer);
+		}
+		this.view.clear();
+		this.view.limit(this.count);
+		return this.view;
+	}
+
+	/**
+	 * Encodes the element of a packet. If the packet cannot be encoded, e.g.
+	 * because it is backed by a malformed raw stanza, the bytes encoded so
+	 * far for the packet are discarded and the exception is rethrown.
+	 *
+	 * @param packet
+	 *            the packet to encode.
+	 */
+	public void encode(Packet packet) {
+		final int start = this.count;
+		final int declaredNamespaces = this.namespaces.size();
+		try {
+			final StanzaTemplate template = packet.getTemplate();
+			if (template != null) {
+				template.encode(this, packet.attributeValue("id"),
+						packet.attributeValue("from"), packet.attributeValue("to"));
+			} else {
+				writeElement(packet.readableElement());
+			}
+		} catch (RuntimeException e) {
+			this.count = start;
+			while (this.namespaces.size() > declaredNamespaces) {
+				this.namespaces.pop();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Encodes an element and its content.
+	 *
+	 * @param element
+	 *            the element to encode.
+	 */
+	public void encode(Element element) {
+		writeElement(element);
+	}
+
+	/**
+	 * Encodes raw data without escaping it, e.g. a heartbeat or the end of
+	 * the stream.
+	 *
+	 * @param data
+	 *            the data to encode.
+	 */
+	public void encodeRaw(String data) {
+		writeChars(data);
+	}
+
+	/**
+	 * Appends pre-rendered bytes.
+	 */
+	void writeBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+		this.count += bytes.length;
+	}
+
+	/**
+	 * Encodes an attribute of a start tag, unless its value is <tt>null</tt>.
+	 */
+	void writeAttribute(String name, String value) {
+		if (value == null) {
+			return;
+		}
+		writeAscii(' ');
+		writeChars(name);
+		writeAscii('=');
+		writeAscii('"');
+		writeEscaped(value, ATTRIBUTE_ESCAPES);
+		writeAscii('"');
+	}
+
+	private void writeElement(Element element) {
+		final int size = element.nodeCount();
+		final String qualifiedName = element.getQualifiedName();
+		writeAscii('<');
+		writeChars(qualifiedName);
+		final int previouslyDeclaredNamespaces = this.namespaces.size();
+		final Namespace ns = element.getNamespace();
+		if (isNamespaceDeclaration(ns)) {
+			this.namespaces.push(ns);
+			writeNamespace(ns.getPrefix(), ns.getURI());
+		}
+		for (int i = 0; i < size; i++) {
+			final Node node = element.node(i);
+			if (node instanceof Namespace) {
+				final Namespace additional = (Namespace) node;
+				if (isNamespaceDeclaration(additional)) {
+					this.namespaces.push(additional);
+					writeNamespace(additional.getPrefix(), additional.getURI());
+				}
+			}
+		}
+		writeAttributes(element);
+		if (size <= 0) {
+			writeAscii('/');
+			writeAscii('>');
+		} else {
+			writeAscii('>');
+			writeContent(element);
+			writeAscii('<');
+			writeAscii('/');
+			writeChars(qualifiedName);
+			writeAscii('>');
+		}
+		while (this.namespaces.size() > previouslyDeclaredNamespaces) {
+			this.namespaces.pop();
+		}
+	}
+
+	private boolean isNamespaceDeclaration(Namespace ns) {
+		return ns != null && ns != Namespace.XML_NAMESPACE && ns.getURI() != null
+				&& !this.namespaces.contains(ns);
+	}
+
+	private void writeAttributes(Element element) {
+		for (int i = 0, size = element.attributeCount(); i < size; i++) {
+			final Attribute attribute = element.attribute(i);
+			final Namespace ns = attribute.getNamespace();
+			if (ns != null && ns != Namespace.NO_NAMESPACE && ns != Namespace.XML_NAMESPACE) {
+				final String uri = this.namespaces.getURI(ns.getPrefix());
+				if (!ns.getURI().equals(uri)) {
+					writeNamespace(ns.getPrefix(), ns.getURI());
+					this.namespaces.push(ns);
+				}
+			}
+			final String name = attribute.getName();
+			if (name.startsWith("xmlns:")) {
+				final String prefix = name.substring(6);
+				if (this.namespaces.getNamespaceForPrefix(prefix) == null) {
+					this.namespaces.push(prefix, attribute.getValue());
+					writeNamespace(prefix, attribute.getValue());
+				}
+			} else if (name.equals("xmlns")) {
+				if (this.namespaces.getDefaultNamespace() == null) {
+					this.namespaces.push(null, attribute.getValue());
+					writeNamespace(null, attribute.getValue());
+				}
+			} else {
+				writeAscii(' ');
+				writeChars(attribute.getQualifiedName());
+				writeAscii('=');
+				writeAscii('"');
+				writeEscaped(attribute.getValue(), ATTRIBUTE_ESCAPES);
+				writeAscii('"');
+			}
+		}
+	}
+
+	private void writeNamespace(String prefix, String uri) {
+		if (prefix != null && prefix.length() > 0) {
+			writeChars(" xmlns:");
+			writeChars(prefix);
+			writeChars("=\"");
+		} else {
+			writeChars(" xmlns=\"");
+		}
+		writeChars(uri);
+		writeAscii('"');
+	}
+
+	private void writeContent(Element element) {
+		for (int i = 0, size = element.nodeCount(); i < size; i++) {
+			final Node node = element.node(i);
+			if (node instanceof Element) {
+				writeElement((Element) node);
+			} else if (node instanceof Text) {
+				writeEscaped(node.getText(), TEXT_ESCAPES);
+			} else if (node instanceof CDATA) {
+				writeChars("<![CDATA[");
+				writeChars(node.getText());
+				writeChars("]]>");
+			} else if (node instanceof Comment) {
+				writeChars("<!--");
+				writeChars(node.getText());
+				writeChars("-->");
+			} else if (node instanceof ProcessingInstruction) {
+				writeChars("<?");
+				writeChars(node.getName());
+				writeAscii(' ');
+				writeChars(node.getText());
+				writeChars("?>");
+			} else if (node instanceof Entity) {
+				writeAscii('&');
+				writeChars(node.getName());
+				writeAscii(';');
+			} else if (!(node instanceof Namespace)) {
+				writeChars(node.asXML());
+			}
+		}
+	}
+
+	/**
+	 * Encodes a string and escapes the characters that have an entry in the
+	 * given table.
+	 */
+	private void writeEscaped(String text, byte[][] escapes) {
+		if (text == null) {
+			return;
+		}
+		ensureCapacity(text.length());
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			final char c = text.charAt(i);
+			if (c < 128) {
+				final byte[] escape = escapes[c];
+				if (escape == null) {
+					writeAscii(c);
+				} else {
+					ensureCapacity(escape.length);
+					System.arraycopy(escape, 0, this.buffer, this.count, escape.length);
+					this.count += escape.length;
+				}
+			} else {
+				i = writeNonAscii(text, i);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a string without escaping.
+	 */
+	private void writeChars(String text) {
+		if (text == null) {
+			return;
+		}
+		final int length = text.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			final char c = text.charAt(i);
+			if (c < 128) {
+				writeAscii(c);
+			} else {
+				i = writeNonAscii(text, i);
+			}
+		}
+	}
+
+	private void writeAscii(char c) {
+		if (this.count == this.buffer.length) {
+			ensureCapacity(1);
+		}
+		this.buffer[this.count++] = (byte) c;
+	}
+
+	/**
+	 * Encodes a character beyond ASCII and its low surrogate, if any.
+	 *
+	 * @return the index of the last encoded character.
+	 */
+	private int writeNonAscii(String text, int index) {
+		ensureCapacity(4);
+		final char c = text.charAt(index);
+		final byte[] b = this.buffer;
+		if (c < 0x800) {
+			b[this.count++] = (byte) (0xc0 | (c >> 6));
+			b[this.count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			if (index + 1 < text.length() && Character.isLowSurrogate(text.charAt(index + 1))) {
+				final int codePoint = Character.toCodePoint(c, text.charAt(index + 1));
+				b[this.count++] = (byte) (0xf0 | (codePoint >> 18));
+				b[this.count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				b[this.count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				b[this.count++] = (byte) (0x80 | (codePoint & 0x3f));
+				return index + 1;
+			}
+			b[this.count++] = REPLACEMENT;
+		} else if (Character.isLowSurrogate(c)) {
+			b[this.count++] = REPLACEMENT;
+		} else {
+			b[this.count++] = (byte) (0xe0 | (c >> 12));
+			b[this.count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			b[this.count++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return index;
+	}
+
+	/**
+	 * Ensures that the buffer can take at least the given number of bytes. Strings
+	 * are sized by their length first, so that ASCII strings are checked once.
+	 */
+	private void ensureCapacity(int additional) {
+		final int required = this.count + additional;
+		if (required > this.buffer.length) {
+			final byte[] grown = new byte[Math.max(required, 2 * this.buffer.length)];
+			System.arraycopy(this.buffer, 0, grown, 0, this.count);
+			this.buffer = grown;
+			this.view = null;
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		final byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+}
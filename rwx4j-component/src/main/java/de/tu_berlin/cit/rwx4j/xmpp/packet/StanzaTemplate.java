@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.dom4j.Element;
+
+/**
+ * A pre-rendered reply whose content is constant apart from the addressing
+ * attributes <tt>id</tt>, <tt>from</tt> and <tt>to</tt>. The constant part
+ * is encoded once when the template is created. The replies created from a
+ * template are backed by the template and their values only: they are
+ * written by a {@link StanzaEncoder} by copying the pre-rendered bytes and
+ * inserting the values, their element is only built if it is accessed.
+ *
+ * The addressing attributes are written after the constant attributes in
+ * the order <tt>id</tt>, <tt>from</tt>, <tt>to</tt>, which is the order
+ * used by {@link IQ#createResultIQ(IQ)}. Templates are immutable and thread
+ * safe.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public final class StanzaTemplate {
+
+	private final Element prototype;
+
+	/**
+	 * The start tag of the stanza element up to the addressing attributes.
+	 */
+	private final byte[] head;
+
+	/**
+	 * The rest of the stanza after the addressing attributes.
+	 */
+	private final byte[] tail;
+
+	/**
+	 * Creates a template of IQ replies.
+	 *
+	 * @param prototype
+	 *            an IQ of type <tt>result</tt> or <tt>error</tt> with the
+	 *            constant content of the replies. Its addressing attributes
+	 *            are ignored and it is not modified.
+	 * @throws IllegalArgumentException
+	 *             if the prototype is not a response.
+	 */
+	public StanzaTemplate(IQ prototype) {
+		if (!prototype.isResponse()) {
+			throw new IllegalArgumentException(
+					"The prototype must be of type 'result' or 'error': " + prototype.toXML());
+		}
+		this.prototype = prototype.readableElement().createCopy();
+		this.prototype.addAttribute("id", null);
+		this.prototype.addAttribute("from", null);
+		this.prototype.addAttribute("to", null);
+		final StanzaEncoder encoder = new StanzaEncoder(256);
+		encoder.encode(this.prototype);
+		final ByteBuffer bytes = encoder.getBytes();
+		final byte[] rendered = Arrays.copyOf(bytes.array(), bytes.limit());
+		// escaped attribute values do not contain '>', so the first one ends
+		// the start tag
+		int split = 0;
+		while (rendered[split] != '>') {
+			split++;
+		}
+		if (rendered[split - 1] == '/') {
+			split--;
+		}
+		this.head = Arrays.copyOfRange(rendered, 0, split);
+		this.tail = Arrays.copyOfRange(rendered, split, rendered.length);
+	}
+
+	/**
+	 * Creates a reply to a request. The reply is addressed to the sender of
+	 * the request and has the same ID.
+	 *
+	 * @param request
+	 *            the IQ request.
+	 * @return the reply.
+	 * @throws IllegalArgumentException
+	 *             if the request is not of type <tt>get</tt> or <tt>set</tt>.
+	 */
+	public IQ createReply(IQ request) {
+		if (!request.isRequest()) {
+			throw new IllegalArgumentException(
+					"IQ must be of type 'set' or 'get'. Original IQ: " + request.toXML());
+		}
+		return new IQ(this, request.getID(), request.getTo(), request.getFrom());
+	}
+
+	/**
+	 * @return the value of a constant attribute of the stanza element.
+	 */
+	String attributeValue(String name) {
+		return this.prototype.attributeValue(name);
+	}
+
+	/**
+	 * Builds the element of a reply.
+	 */
+	Element createElement(String id, String from, String to) {
+		final Element element = this.prototype.createCopy();
+		Packet.docFactory.createDocument().add(element);
+		element.addAttribute("id", id);
+		element.addAttribute("from", from);
+		element.addAttribute("to", to);
+		return element;
+	}
+
+	/**
+	 * Encodes a reply.
+	 */
+	void encode(StanzaEncoder encoder, String id, String from, String to) {
+		encoder.writeBytes(this.head);
+		encoder.writeAttribute("id", id);
+		encoder.writeAttribute("from", from);
+		encoder.writeAttribute("to", to);
+		encoder.writeBytes(this.tail);
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests that are admitted to a queue, based on the
+ * time requests spend waiting in it. The limit adapts in an AIMD manner:
+ * while the measured queueing delay stays below the target, the limit grows
+ * by about one per limit requests; if the delay exceeds the target, the limit
+ * is reduced multiplicatively, at most once per target interval. Requests
+ * beyond the limit are rejected early, instead of letting them wait until
+ * their senders have given up.
+ *
+ * The limit is updated without locking. Concurrent updates may get lost,
+ * which is acceptable for a heuristic.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class AdmissionController {
+
+	private static final double DECREASE_FACTOR = 0.8;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final long targetDelayNanos;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile double limit;
+
+	/**
+	 * Smoothed queueing delay in nanoseconds.
+	 */
+	private volatile long averageDelayNanos = 0;
+
+	/**
+	 * Creates an admission controller.
+	 *
+	 * @param minLimit
+	 *            the minimum number of admitted requests, e.g. the number of
+	 *            worker threads.
+	 * @param maxLimit
+	 *            the maximum number of admitted requests, e.g. the capacity
+	 *            of the queue.
+	 * @param targetDelayMillis
+	 *            the queueing delay in milliseconds up to which the limit
+	 *            grows.
+	 */
+	public AdmissionController(int minLimit, int maxLimit, long targetDelayMillis) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(targetDelayMillis);
+		this.limit = this.maxLimit;
+	}
+
+	/**
+	 * Tries to admit a request. Every admitted request must be released by
+	 * {@link #release()} once it has been processed.
+	 *
+	 * @return <tt>true</tt> if the request has been admitted.
+	 */
+	public boolean tryAcquire() {
+		if (this.inFlight.incrementAndGet() > (int) this.limit) {
+			this.inFlight.decrementAndGet();
+			this.rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases an admitted request.
+	 */
+	public void release() {
+		this.inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Records the time a request was waiting in the queue before it has been
+	 * processed and adapts the limit.
+	 *
+	 * @param delayNanos
+	 *            the queueing delay in nanoseconds.
+	 */
+	public void onQueueingDelay(long delayNanos) {
+		this.averageDelayNanos += (delayNanos - this.averageDelayNanos) / 8;
+		final double current = this.limit;
+		if (delayNanos > this.targetDelayNanos) {
+			final long now = System.nanoTime();
+			final long last = this.lastDecrease.get();
+			if (now - last >= this.targetDelayNanos
+					&& this.lastDecrease.compareAndSet(last, now)) {
+				this.limit = Math.max(this.minLimit, current * DECREASE_FACTOR);
+			}
+		} else if (current < this.maxLimit) {
+			this.limit = Math.min(this.maxLimit, current + 1.0 / current);
+		}
+	}
+
+	/**
+	 * Returns the time after which a rejected request should be retried. This
+	 * is the smoothed queueing delay, but at least the target delay.
+	 *
+	 * @return the retry hint in milliseconds.
+	 */
+	public long getRetryAfterMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(Math.max(this.targetDelayNanos,
+				this.averageDelayNanos));
+	}
+
+	/**
+	 * @return the current limit of admitted requests.
+	 */
+	public int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * @return the number of requests currently admitted.
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * @return the number of rejected requests.
+	 */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes tasks in the order of their submission per key, while tasks of
+ * different keys are executed in parallel by the underlying executor.
+ *
+ * Every key with pending tasks owns a queue, which occupies at most one
+ * thread of the underlying executor at a time. After each task the queue is
+ * handed back to the executor, so that a busy key cannot starve the others.
+ * Queues are created on demand and removed as soon as they run empty. Only
+ * the queue of a single key is locked on submission, there is no global lock.
+ *
+ * A task may be executed by another executor than the default one, e.g. by
+ * the thread pool of its priority class. The order of the tasks of a key
+ * holds across executors: the queue of the key moves to the executor of its
+ * next task once the previous task has been executed.
+ *
+ * The underlying executors must not reject tasks while they are running, e.g.
+ * thread pools with an unbounded queue. Their queues hold at most one entry
+ * per key, the number of pending tasks is bounded by this executor.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class KeyedExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(KeyedExecutor.class);
+
+	private final Executor executor;
+
+	private final int maxQueueSizePerKey;
+
+	private final int maxQueueSize;
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final ConcurrentHashMap<Object, SerialQueue> queues = new ConcurrentHashMap<Object, SerialQueue>();
+
+	/**
+	 * Creates a keyed executor.
+	 *
+	 * @param executor
+	 *            the default executor that runs the tasks.
+	 * @param maxQueueSizePerKey
+	 *            the maximum number of pending tasks of a single key.
+	 * @param maxQueueSize
+	 *            the maximum number of pending tasks of all keys.
+	 */
+	public KeyedExecutor(Executor executor, int maxQueueSizePerKey, int maxQueueSize) {
+		this.executor = executor;
+		this.maxQueueSizePerKey = maxQueueSizePerKey;
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	/**
+	 * Executes a task after all previously submitted tasks of the same key
+	 * have been executed.
+	 *
+	 * @param key
+	 *            the ordering key, or <tt>null</tt> if the task does not need
+	 *            to be ordered.
+	 * @param task
+	 *            the task to execute.
+	 * @throws RejectedExecutionException
+	 *             if the queue of the key or the executor is full.
+	 */
+	public void execute(Object key, Runnable task) {
+		execute(key, this.executor, task);
+	}
+
+	/**
+	 * Executes a task by a specific executor after all previously submitted
+	 * tasks of the same key have been executed.
+	 *
+	 * @param key
+	 *            the ordering key, or <tt>null</tt> if the task does not need
+	 *            to be ordered.
+	 * @param executor
+	 *            the executor that runs the task.
+	 * @param task
+	 *            the task to execute.
+	 * @throws RejectedExecutionException
+	 *             if the queue of the key or the executor is full.
+	 */
+	public void execute(Object key, Executor executor, Runnable task) {
+		if (this.pending.incrementAndGet() > this.maxQueueSize) {
+			this.pending.decrementAndGet();
+			throw new RejectedExecutionException("Queue is full");
+		}
+		if (key == null) {
+			key = new Object();
+		}
+		try {
+			while (true) {
+				SerialQueue queue = this.queues.get(key);
+				if (queue == null) {
+					SerialQueue created = new SerialQueue(key);
+					queue = this.queues.putIfAbsent(key, created);
+					if (queue == null) {
+						queue = created;
+					}
+				}
+				if (queue.offer(new Entry(executor, task))) {
+					return;
+				}
+				// the queue has been closed concurrently, retry with a new one
+			}
+		} catch (RuntimeException e) {
+			this.pending.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of tasks that are waiting to be executed.
+	 */
+	public int getPendingCount() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Removes all tasks that have not been started yet. This is intended to
+	 * be called after the underlying executor has been shut down.
+	 *
+	 * @return the removed tasks.
+	 */
+	public List<Runnable> drain() {
+		final List<Runnable> drained = new ArrayList<Runnable>();
+		for (SerialQueue queue : this.queues.values()) {
+			synchronized (queue) {
+				for (Entry entry : queue.tasks) {
+					drained.add(entry.task);
+				}
+				this.pending.addAndGet(-queue.tasks.size());
+				queue.tasks.clear();
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * A pending task and the executor that runs it.
+	 */
+	private static final class Entry {
+
+		private final Executor executor;
+
+		private final Runnable task;
+
+		private Entry(Executor executor, Runnable task) {
+			this.executor = executor;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * The pending tasks of a single key.
+	 */
+	private final class SerialQueue implements Runnable {
+
+		private final Object key;
+
+		private final ArrayDeque<Entry> tasks = new ArrayDeque<Entry>();
+
+		/**
+		 * <tt>true</tt> while this queue is submitted to the executor.
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * <tt>true</tt> after this queue has run empty and has been removed.
+		 */
+		private boolean closed = false;
+
+		private SerialQueue(Object key) {
+			this.key = key;
+		}
+
+		private boolean offer(Entry entry) {
+			synchronized (this) {
+				if (this.closed) {
+					return false;
+				}
+				if (this.tasks.size() >= maxQueueSizePerKey) {
+					throw new RejectedExecutionException("Queue of " + this.key + " is full");
+				}
+				this.tasks.add(entry);
+				if (this.scheduled) {
+					return true;
+				}
+				this.scheduled = true;
+			}
+			try {
+				entry.executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					this.tasks.removeLastOccurrence(entry);
+					this.scheduled = false;
+				}
+				throw e;
+			}
+			return true;
+		}
+
+		public void run() {
+			final Entry entry;
+			synchronized (this) {
+				entry = this.tasks.poll();
+			}
+			if (entry != null) {
+				pending.decrementAndGet();
+				try {
+					entry.task.run();
+				} catch (RuntimeException e) {
+					logger.error("Task of " + this.key + " failed", e);
+					scheduleNext();
+					throw e;
+				} catch (Error e) {
+					logger.error("Task of " + this.key + " failed", e);
+					scheduleNext();
+					throw e;
+				}
+			}
+			scheduleNext();
+		}
+
+		/**
+		 * Submits this queue again if tasks are pending, otherwise closes it.
+		 */
+		private void scheduleNext() {
+			final Executor next;
+			synchronized (this) {
+				if (this.tasks.isEmpty()) {
+					this.scheduled = false;
+					this.closed = true;
+					queues.remove(this.key, this);
+					return;
+				}
+				next = this.tasks.peek().executor;
+			}
+			// hand the thread back so that other keys get their turn, the
+			// next task may belong to another executor
+			try {
+				next.execute(this);
+			} catch (RejectedExecutionException e) {
+				// the executor has been shut down, the remaining tasks are
+				// left for drain()
+			}
+		}
+	}
+
+}
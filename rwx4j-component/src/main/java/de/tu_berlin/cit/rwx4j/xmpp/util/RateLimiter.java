@@ -0,0 +1,207 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiting for an arbitrary number of keys, e.g. sender
+ * JIDs. Each key owns a bucket that is created on first use. The buckets
+ * implement the generic cell rate algorithm (GCRA), which keeps the state
+ * of a token bucket in a single timestamp that is updated by compare and
+ * set, so that no locks are needed.
+ *
+ * Buckets that have been idle long enough to be full again carry no state
+ * and are removed periodically by {@link TaskEngine}.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RateLimiter {
+
+	/**
+	 * The interval (in milliseconds) in which idle buckets are removed.
+	 */
+	private static final long SWEEP_INTERVAL_MILLIS = 60000;
+
+	/**
+	 * A rate limit, i.e. the sustained rate and the number of permits that
+	 * may be acquired at once.
+	 */
+	public static final class Rate {
+
+		private final double permitsPerSecond;
+
+		private final int burst;
+
+		/**
+		 * Creates a rate limit.
+		 *
+		 * @param permitsPerSecond
+		 *            the sustained rate.
+		 * @param burst
+		 *            the number of permits that may be acquired at once.
+		 */
+		public Rate(double permitsPerSecond, int burst) {
+			if (permitsPerSecond <= 0 || burst < 1) {
+				throw new IllegalArgumentException("Invalid rate " + permitsPerSecond
+						+ "/s with burst " + burst);
+			}
+			this.permitsPerSecond = permitsPerSecond;
+			this.burst = burst;
+		}
+
+		public double getPermitsPerSecond() {
+			return this.permitsPerSecond;
+		}
+
+		public int getBurst() {
+			return this.burst;
+		}
+
+		@Override
+		public String toString() {
+			return this.permitsPerSecond + "/s (burst " + this.burst + ")";
+		}
+	}
+
+	/**
+	 * The state of a single key.
+	 */
+	private static final class Bucket {
+
+		/**
+		 * The time (in nanoseconds) between two permits.
+		 */
+		private final long intervalNanos;
+
+		/**
+		 * The time (in nanoseconds) by which a permit may be acquired ahead
+		 * of its schedule.
+		 */
+		private final long toleranceNanos;
+
+		/**
+		 * The theoretical arrival time of the next permit.
+		 */
+		private final AtomicLong theoreticalArrival;
+
+		private Bucket(Rate rate, long now) {
+			this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate.getPermitsPerSecond());
+			this.toleranceNanos = this.intervalNanos * rate.getBurst();
+			this.theoreticalArrival = new AtomicLong(now);
+		}
+
+		private boolean tryAcquire(long now) {
+			while (true) {
+				final long tat = this.theoreticalArrival.get();
+				final long next = Math.max(tat, now) + this.intervalNanos;
+				if (next - now > this.toleranceNanos) {
+					return false;
+				}
+				if (this.theoreticalArrival.compareAndSet(tat, next)) {
+					return true;
+				}
+			}
+		}
+
+		private boolean isIdle(long now) {
+			return this.theoreticalArrival.get() - now <= 0;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	private TimerTask sweepTask;
+
+	/**
+	 * Tries to acquire a permit of a key.
+	 *
+	 * @param key
+	 *            the key, e.g. the sender of a request.
+	 * @param rate
+	 *            the rate limit of the key. It is applied when the bucket of
+	 *            the key is created.
+	 * @return <tt>true</tt> if the permit has been acquired.
+	 */
+	public boolean tryAcquire(String key, Rate rate) {
+		final long now = System.nanoTime();
+		Bucket bucket = this.buckets.get(key);
+		if (bucket == null) {
+			final Bucket created = new Bucket(rate, now);
+			bucket = this.buckets.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket.tryAcquire(now);
+	}
+
+	/**
+	 * @return the number of buckets.
+	 */
+	public int size() {
+		return this.buckets.size();
+	}
+
+	/**
+	 * Removes all buckets that are full, i.e. their keys have been idle long
+	 * enough that they would not limit the next request.
+	 */
+	public void removeIdleBuckets() {
+		final long now = System.nanoTime();
+		final Iterator<Map.Entry<String, Bucket>> it = this.buckets.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Bucket> entry = it.next();
+			if (entry.getValue().isIdle(now)) {
+				this.buckets.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Starts the periodic removal of idle buckets.
+	 */
+	public synchronized void start() {
+		if (this.sweepTask == null) {
+			this.sweepTask = new TimerTask() {
+				@Override
+				public void run() {
+					removeIdleBuckets();
+				}
+			};
+			TaskEngine.getInstance().scheduleAtFixedRate(this.sweepTask,
+					SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS);
+		}
+	}
+
+	/**
+	 * Stops the periodic removal of idle buckets and removes all buckets.
+	 */
+	public synchronized void stop() {
+		if (this.sweepTask != null) {
+			TaskEngine.getInstance().cancelScheduledTask(this.sweepTask);
+			this.sweepTask = null;
+		}
+		this.buckets.clear();
+	}
+
+}
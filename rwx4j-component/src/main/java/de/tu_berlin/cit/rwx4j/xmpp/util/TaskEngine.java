@@ -26,7 +26,12 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Performs tasks using worker threads. It also allows tasks to be scheduled to be
@@ -34,13 +39,25 @@ import java.util.concurrent.atomic.AtomicInteger;
  * {@link ExecutorService} and {@link Timer}. Any {@link TimerTask} that's
  * scheduled to be run in the future will automatically be run using the thread
  * executor's thread pool. This means that the standard restriction that TimerTasks
- * should run quickly does not apply.
+ * should run quickly does not apply.<p>
+ *
+ * A single scheduler thread triggers the scheduled tasks, which are executed by a
+ * bounded pool of worker threads. A slow task therefore does not delay other tasks as
+ * long as workers are available. Tasks that exceed the pool are queued. Tasks that are
+ * submitted for immediate execution may block, e.g. callbacks of the application, so
+ * they are executed by a separate pool that grows on demand and never delays the
+ * scheduled tasks. Scheduled tasks should therefore not block. A periodic task
+ * is never executed concurrently with itself: an execution that would overlap the
+ * previous one is skipped. The run times of each scheduled task are recorded in its
+ * {@link Statistics}.
  *
  * @author Matt Tucker
  */
-public class TaskEngine {
+public class TaskEngine implements Executor {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskEngine.class);
 
-    private static TaskEngine instance = new TaskEngine();
+    private static TaskEngine instance = new TaskEngine(Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
 
     /**
      * Returns a task engine instance (singleton).
@@ -51,31 +68,26 @@ public class TaskEngine {
         return instance;
     }
 
-    private Timer timer;
-    private ExecutorService executor;
-    private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor taskExecutor;
+    private final Map<TimerTask, ScheduledTask> wrappedTasks = new ConcurrentHashMap<TimerTask, ScheduledTask>();
 
     /**
      * Constructs a new task engine.
+     *
+     * @param maxThreads the maximum number of worker threads.
      */
-    private TaskEngine() {
-        timer = new Timer("timer-whack", true);
-        executor = Executors.newCachedThreadPool(new ThreadFactory() {
-
-            final AtomicInteger threadNumber = new AtomicInteger(1);
-
-            public Thread newThread(Runnable runnable) {
-                // Use our own naming scheme for the threads.
-                Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable,
-                                      "pool-whack" + threadNumber.getAndIncrement(), 0);
-                // Make workers daemon threads.
-                thread.setDaemon(true);
-                if (thread.getPriority() != Thread.NORM_PRIORITY) {
-                    thread.setPriority(Thread.NORM_PRIORITY);
-                }
-                return thread;
-            }
-        });
+    TaskEngine(int maxThreads) {
+        scheduler = new ScheduledThreadPoolExecutor(1, new WhackThreadFactory("timer-whack"));
+        // Cancelled tasks must not stay in the queue until their time has come
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WhackThreadFactory("pool-whack"));
+        executor.allowCoreThreadTimeOut(true);
+        taskExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new WhackThreadFactory("task-whack"));
     }
 
     /**
@@ -91,7 +103,19 @@ public class TaskEngine {
      * @throws NullPointerException if task null.
      */
     public Future<?> submit(Runnable task) {
-        return executor.submit(task);
+        return taskExecutor.submit(task);
+    }
+
+    /**
+     * Executes a Runnable task using the thread pool. The task may block, it does not
+     * delay the scheduled tasks.
+     *
+     * @param task the task to execute.
+     * @throws java.util.concurrent.RejectedExecutionException if the task engine has
+     *      been shut down.
+     */
+    public void execute(Runnable task) {
+        taskExecutor.execute(task);
     }
 
     /**
@@ -99,13 +123,13 @@ public class TaskEngine {
      *
      * @param task  task to be scheduled.
      * @param delay delay in milliseconds before task is to be executed.
-     * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
-     *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, or timer was cancelled.
+     * @throws IllegalArgumentException if <tt>delay</tt> is negative.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(new TimerTaskWrapper(task), delay);
+        checkDelay(delay);
+        new ScheduledTask(task, 0).schedule(delay);
     }
 
     /**
@@ -115,11 +139,11 @@ public class TaskEngine {
      * @param task task to be scheduled.
      * @param time time at which task is to be executed.
      * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void schedule(TimerTask task, Date time) {
-        timer.schedule(new TimerTaskWrapper(task), time);
+        new ScheduledTask(task, 0).schedule(delayUntil(time));
     }
 
     /**
@@ -148,14 +172,14 @@ public class TaskEngine {
      * @param delay  delay in milliseconds before task is to be executed.
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
-     *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     *         <tt>period</tt> is not positive.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void schedule(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, delay, period);
+        checkDelay(delay);
+        checkPeriod(period);
+        new ScheduledTask(task, -period).schedule(delay);
     }
 
     /**
@@ -183,14 +207,14 @@ public class TaskEngine {
      * @param task task to be scheduled.
      * @param firstTime First time at which task is to be executed.
      * @param period time in milliseconds between successive task executions.
-     * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative, or
+     *         <tt>period</tt> is not positive.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void schedule(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, firstTime, period);
+        checkPeriod(period);
+        new ScheduledTask(task, -period).schedule(delayUntil(firstTime));
     }
 
     /**
@@ -216,18 +240,22 @@ public class TaskEngine {
      * scheduling multiple repeating timer tasks that must remain synchronized
      * with respect to one another.
      *
+     * <p>The executions are scheduled on the monotonic clock, so the schedule does
+     * not drift when the system time is changed. An execution that is due while the
+     * previous one is still running is skipped instead of being executed concurrently.
+     *
      * @param task task to be scheduled.
      * @param delay  delay in milliseconds before task is to be executed.
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
-     *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     *         <tt>period</tt> is not positive.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, delay, period);
+        checkDelay(delay);
+        checkPeriod(period);
+        new ScheduledTask(task, period).schedule(delay);
     }
 
     /**
@@ -253,60 +281,294 @@ public class TaskEngine {
      * scheduling multiple repeating timer tasks that must remain synchronized
      * with respect to one another.
      *
+     * <p>The executions are scheduled on the monotonic clock, so the schedule does
+     * not drift when the system time is changed. An execution that is due while the
+     * previous one is still running is skipped instead of being executed concurrently.
+     *
      * @param task task to be scheduled.
      * @param firstTime First time at which task is to be executed.
      * @param period time in milliseconds between successive task executions.
-     * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative, or
+     *         <tt>period</tt> is not positive.
+     * @throws IllegalStateException if task was already scheduled.
+     * @throws RejectedExecutionException if the task engine has been shut down.
      */
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
+        checkPeriod(period);
+        new ScheduledTask(task, period).schedule(delayUntil(firstTime));
     }
 
     /**
      * Cancels the execution of a scheduled task. {@link java.util.TimerTask#cancel()}
+     * An execution that is already running is completed.
      *
      * @param task the scheduled task to cancel.
      */
     public void cancelScheduledTask(TimerTask task) {
-        TaskEngine.TimerTaskWrapper taskWrapper = wrappedTasks.remove(task);
-        if (taskWrapper != null) {
-            taskWrapper.cancel();
+        ScheduledTask scheduledTask = wrappedTasks.remove(task);
+        if (scheduledTask != null) {
+            scheduledTask.cancel();
         }
     }
 
     /**
-     * Shuts down the task engine service.
+     * Returns the run time statistics of a scheduled task.
+     *
+     * @param task the scheduled task.
+     * @return the statistics of the task or <tt>null</tt> if the task is not scheduled.
+     */
+    public Statistics getStatistics(TimerTask task) {
+        ScheduledTask scheduledTask = wrappedTasks.get(task);
+        return scheduledTask == null ? null : scheduledTask.statistics;
+    }
+
+    /**
+     * Shuts down the task engine service. Scheduled tasks are cancelled and running
+     * tasks are given a few seconds to complete before they are interrupted.
      */
     public void shutdown() {
-        if (executor != null) {
+        scheduler.shutdownNow();
+        for (ScheduledTask scheduledTask : wrappedTasks.values()) {
+            scheduledTask.cancel();
+        }
+        wrappedTasks.clear();
+        executor.shutdown();
+        taskExecutor.shutdown();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+            if (!taskExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                taskExecutor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
             executor.shutdownNow();
-            executor = null;
+            taskExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void checkDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Negative delay.");
+        }
+    }
+
+    private static void checkPeriod(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
         }
+    }
 
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+    private static long delayUntil(Date time) {
+        if (time.getTime() < 0) {
+            throw new IllegalArgumentException("Illegal execution time.");
         }
+        return Math.max(0, time.getTime() - System.currentTimeMillis());
     }
 
     /**
-     * Wrapper class for a standard TimerTask. It simply executes the TimerTask
-     * using the executor's thread pool.
+     * The run time statistics of a scheduled task. All times are in milliseconds.
      */
-    private class TimerTaskWrapper extends TimerTask {
+    public static final class Statistics {
+
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private volatile long maxNanos;
+
+        private Statistics() {
+        }
 
-        private TimerTask task;
+        private void record(long nanos, boolean failed) {
+            // Executions of a task do not overlap, so the maximum has a single writer
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+            totalNanos.addAndGet(nanos);
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            executions.incrementAndGet();
+        }
+
+        /**
+         * @return the number of completed executions.
+         */
+        public long getExecutionCount() {
+            return executions.get();
+        }
+
+        /**
+         * @return the number of executions that threw an exception.
+         */
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * @return the number of executions that were skipped because the previous
+         *      execution was still running.
+         */
+        public long getSkippedCount() {
+            return skipped.get();
+        }
+
+        /**
+         * @return the total run time of the completed executions.
+         */
+        public long getTotalRunTime() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+        }
 
-        public TimerTaskWrapper(TimerTask task) {
+        /**
+         * @return the average run time of the completed executions.
+         */
+        public double getAverageRunTime() {
+            long count = executions.get();
+            return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+        }
+
+        /**
+         * @return the longest run time of an execution.
+         */
+        public long getMaxRunTime() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+        }
+    }
+
+    /**
+     * Wrapper class for a standard TimerTask. It is triggered by the scheduler thread
+     * and executes the TimerTask using the executor's thread pool.
+     */
+    private class ScheduledTask implements Runnable {
+
+        private final TimerTask task;
+        /**
+         * The period in milliseconds of a fixed-rate task if positive, of a fixed-delay task
+         * if negative, 0 if the task is executed once.
+         */
+        private final long period;
+        private final Statistics statistics = new Statistics();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile Future<?> future;
+        private volatile boolean cancelled = false;
+
+        private final Runnable execution = new Runnable() {
+            public void run() {
+                execute();
+            }
+        };
+
+        private ScheduledTask(TimerTask task, long period) {
             this.task = task;
+            this.period = period;
         }
 
+        private void schedule(long delay) {
+            if (wrappedTasks.putIfAbsent(task, this) != null) {
+                throw new IllegalStateException("Task already scheduled.");
+            }
+            try {
+                if (period > 0) {
+                    future = scheduler.scheduleAtFixedRate(this, delay, period, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (RejectedExecutionException e) {
+                wrappedTasks.remove(task, this);
+                throw e;
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Hands the task over to the pool, unless the previous execution is still running.
+         */
         public void run() {
-            executor.submit(task);
+            if (cancelled) {
+                return;
+            }
+            if (!running.compareAndSet(false, true)) {
+                statistics.skipped.incrementAndGet();
+                return;
+            }
+            try {
+                executor.execute(execution);
+            }
+            catch (RejectedExecutionException e) {
+                running.set(false);
+            }
+        }
+
+        private void execute() {
+            if (cancelled) {
+                // The task was cancelled while it was waiting for a thread
+                running.set(false);
+                return;
+            }
+            boolean failed = false;
+            long start = System.nanoTime();
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                failed = true;
+                logger.error("Error executing scheduled task " + task, t);
+            }
+            finally {
+                statistics.record(System.nanoTime() - start, failed);
+                running.set(false);
+            }
+            if (period == 0) {
+                wrappedTasks.remove(task, this);
+            }
+            else if (period < 0 && !cancelled) {
+                // A fixed delay is measured from the end of the previous execution
+                try {
+                    future = scheduler.schedule(this, -period, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e) {
+                    // The task engine has been shut down
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads with our own naming scheme.
+     */
+    private static class WhackThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private WhackThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            // Use our own naming scheme for the threads.
+            Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable,
+                                  prefix + threadNumber.getAndIncrement(), 0);
+            // Make workers daemon threads.
+            thread.setDaemon(true);
+            if (thread.getPriority() != Thread.NORM_PRIORITY) {
+                thread.setPriority(Thread.NORM_PRIORITY);
+            }
+            return thread;
         }
     }
 }
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel that executes tasks after a delay. It is intended for
+ * large numbers of timeouts that are usually cancelled before they expire,
+ * e.g. the timeouts of pending requests.
+ *
+ * The wheel is an array of buckets, each of which covers one tick. A timeout
+ * is added to the bucket of the tick in which it expires, timeouts that
+ * expire after more than one rotation of the wheel stay in their bucket until
+ * their tick has come. Scheduling and cancelling a timeout only lock its
+ * bucket and take constant time. A timeout expires at the end of its tick,
+ * i.e. at most one tick after its deadline.
+ *
+ * The expired tasks are executed by the thread of the wheel, which is started
+ * on first use. Tasks must therefore be short and hand longer work over to an
+ * executor.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class TimingWheel {
+
+	private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+	private static final int PENDING = 0;
+
+	private static final int EXPIRED = 1;
+
+	private static final int CANCELLED = 2;
+
+	private final String name;
+
+	private final long tickNanos;
+
+	private final Bucket[] buckets;
+
+	private final int mask;
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile long startNanos;
+
+	/**
+	 * The last tick whose timeouts have been expired. It is only changed
+	 * while the bucket of the tick is locked.
+	 */
+	private volatile long processedTick;
+
+	private volatile Thread thread;
+
+	/**
+	 * Creates a timing wheel.
+	 *
+	 * @param name
+	 *            the name of the thread of the wheel.
+	 * @param tickMillis
+	 *            the duration of a tick in milliseconds, which is the
+	 *            precision of the timeouts.
+	 * @param wheelSize
+	 *            the number of buckets, which is rounded up to a power of two.
+	 *            One rotation of the wheel should cover the usual timeouts.
+	 */
+	public TimingWheel(String name, long tickMillis, int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("The tick must be positive: " + tickMillis);
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Illegal wheel size: " + wheelSize);
+		}
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			this.buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Starts the thread of the wheel unless it is already running.
+	 */
+	public synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.startNanos = System.nanoTime();
+		this.processedTick = -1;
+		this.thread = new Thread(new Worker(), this.name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the thread of the wheel. The pending timeouts are cancelled
+	 * without executing their tasks.
+	 */
+	public synchronized void stop() {
+		final Thread thread = this.thread;
+		if (thread == null) {
+			return;
+		}
+		this.thread = null;
+		LockSupport.unpark(thread);
+		for (Bucket bucket : this.buckets) {
+			synchronized (bucket) {
+				for (Timeout timeout = bucket.head; timeout != null; timeout = timeout.next) {
+					timeout.state = CANCELLED;
+				}
+				bucket.head = null;
+			}
+		}
+		this.pending.set(0);
+	}
+
+	/**
+	 * Schedules a task, which is executed after the delay unless the timeout
+	 * is cancelled before.
+	 *
+	 * @param task
+	 *            the task to execute.
+	 * @param delayMillis
+	 *            the delay in milliseconds.
+	 * @return the timeout, which can be cancelled.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		if (this.thread == null) {
+			start();
+		}
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+		// the first tick that ends at or after the deadline
+		final long tick = (deadline - this.startNanos + this.tickNanos - 1) / this.tickNanos - 1;
+		final Timeout timeout = new Timeout(task);
+		this.pending.incrementAndGet();
+		while (true) {
+			// timeouts whose tick has already been processed expire with the next one
+			final long target = Math.max(tick, this.processedTick + 1);
+			final Bucket bucket = this.buckets[(int) (target & this.mask)];
+			synchronized (bucket) {
+				if (this.processedTick < target) {
+					timeout.tick = target;
+					timeout.bucket = bucket;
+					bucket.add(timeout);
+					return timeout;
+				}
+			}
+			// the tick has been processed concurrently, retry with the next one
+		}
+	}
+
+	/**
+	 * @return the number of timeouts that have neither expired nor been
+	 *         cancelled.
+	 */
+	public int size() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Expires the timeouts of a tick and executes their tasks.
+	 *
+	 * @return <tt>false</tt> if the wheel has been stopped.
+	 */
+	private boolean expire(Thread worker, long tick) {
+		Timeout expired = null;
+		final Bucket bucket = this.buckets[(int) (tick & this.mask)];
+		synchronized (bucket) {
+			if (this.thread != worker) {
+				return false;
+			}
+			this.processedTick = tick;
+			Timeout timeout = bucket.head;
+			while (timeout != null) {
+				final Timeout next = timeout.next;
+				if (timeout.tick <= tick) {
+					bucket.remove(timeout);
+					timeout.state = EXPIRED;
+					timeout.next = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+		}
+		while (expired != null) {
+			this.pending.decrementAndGet();
+			try {
+				expired.task.run();
+			} catch (RuntimeException e) {
+				logger.error("Error executing timeout task", e);
+			}
+			expired = expired.next;
+		}
+		return true;
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public final class Timeout {
+
+		private final Runnable task;
+
+		private long tick;
+
+		private Bucket bucket;
+
+		private Timeout prev;
+
+		private Timeout next;
+
+		/**
+		 * Guarded by the lock of the bucket.
+		 */
+		private int state = PENDING;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the timeout, so that its task is not executed.
+		 *
+		 * @return <tt>true</tt> if the timeout has been cancelled,
+		 *         <tt>false</tt> if it has already expired or been cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (this.bucket) {
+				if (this.state != PENDING) {
+					return false;
+				}
+				this.bucket.remove(this);
+				this.state = CANCELLED;
+			}
+			pending.decrementAndGet();
+			return true;
+		}
+
+		/**
+		 * @return <tt>true</tt> if the task has been executed or is being
+		 *         executed.
+		 */
+		public boolean isExpired() {
+			synchronized (this.bucket) {
+				return this.state == EXPIRED;
+			}
+		}
+
+		/**
+		 * @return <tt>true</tt> if the timeout has been cancelled.
+		 */
+		public boolean isCancelled() {
+			synchronized (this.bucket) {
+				return this.state == CANCELLED;
+			}
+		}
+	}
+
+	/**
+	 * The doubly linked list of the timeouts of a slot of the wheel.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private void add(Timeout timeout) {
+			timeout.next = this.head;
+			if (this.head != null) {
+				this.head.prev = timeout;
+			}
+			this.head = timeout;
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				this.head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+
+	/**
+	 * Processes the ticks at the end of their time span. Ticks that have been
+	 * missed, e.g. due to a long garbage collection, are caught up.
+	 */
+	private class Worker implements Runnable {
+
+		public void run() {
+			final Thread current = Thread.currentThread();
+			final long start = startNanos;
+			long tick = processedTick + 1;
+			while (thread == current) {
+				final long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(TimingWheel.this, wait);
+				} else if (expire(current, tick)) {
+					tick++;
+				}
+			}
+		}
+	}
+
+}
@@ -22,12 +22,11 @@ package de.tu_berlin.cit.rwx4j.xmpp.whack;
 
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
-import org.dom4j.io.XMLWriter;
-import org.dom4j.io.XPPPacketReader;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import de.tu_berlin.cit.rwx4j.xmpp.core.AbstractComponent;
 import de.tu_berlin.cit.rwx4j.xmpp.core.Component;
 import de.tu_berlin.cit.rwx4j.xmpp.core.ComponentException;
 import de.tu_berlin.cit.rwx4j.xmpp.core.ComponentManager;
@@ -35,19 +34,21 @@ import de.tu_berlin.cit.rwx4j.xmpp.core.IQResultListener;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.StreamError;
+import de.tu_berlin.cit.rwx4j.xmpp.util.KeyedExecutor;
 import de.tu_berlin.cit.rwx4j.xmpp.util.StringUtils;
 import de.tu_berlin.cit.rwx4j.xmpp.util.TaskEngine;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TimingWheel;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.StringReader;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -61,30 +62,18 @@ import java.util.concurrent.TimeUnit;
  */
 public class ExternalComponent implements Component {
 
-    /**
-     * The utf-8 charset for decoding and encoding XMPP packet streams.
-     */
-    private static String CHARSET = "UTF-8";
-
     private Component component;
     private ExternalComponentManager manager;
 
-    private Socket socket;
-    private XMLWriter xmlSerializer;
-    private XmlPullParserFactory factory = null;
-    private XPPPacketReader reader = null;
-    private Writer writer = null;
-    private boolean shutdown = false;
-    private boolean reconnecting = false;
-
-    private KeepAliveTask keepAliveTask;
-    private TimeoutTask timeoutTask;
     /**
-     * Timestamp when the last stanza was sent to the server. This information is used
-     * by the keep alive process to only send heartbeats when the connection has been idle.
+     * The connection to the server, which is served by the I/O thread of the manager.
      */
-    private long lastActive = System.currentTimeMillis();
+    private volatile NioConnection connection;
+    private PacketReader packetReader = null;
+    private volatile boolean shutdown = false;
+    private volatile boolean reconnecting = false;
 
+    private KeepAliveTask keepAliveTask;
     private String connectionID;
     /**
      * Hold the full domain of this component. The full domain is composed by the subdomain plus
@@ -105,17 +94,35 @@ public class ExternalComponent implements Component {
     private int port;
 
     /**
-     * Pool of threads that are available for processing the requests.
+     * The maximum number of received stanzas that have not been handed over to the component.
+     * If more stanzas are pending, the connection stops reading from the server.
      */
-    private ThreadPoolExecutor threadPool;
+    private static final int MAX_PENDING_STANZAS = 1000;
+
     /**
-     * Thread that will read the XML from the socket and ask this component to process the read
-     * packets.
+     * The maximum number of packets of a single sender that wait for the pool. Further packets
+     * of the sender are rejected, so that one sender cannot fill up the memory.
      */
-    private SocketReadThread readerThread;
+    private static final int MAX_QUEUE_SIZE_PER_SENDER = 1000;
 
-    private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
-    private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    /**
+     * The maximum number of packets of all senders that wait for the pool.
+     */
+    private static final int MAX_QUEUE_SIZE = 10000;
+
+    /**
+     * Pool of threads that are available for parsing and processing the requests.
+     */
+    private ThreadPoolExecutor threadPool;
+    /**
+     * Hands over the packets of each sender to the pool in the order they were read, so that
+     * the wrapped component receives them in that order.
+     */
+    private KeyedExecutor orderedPool;
+    /**
+     * The listeners that wait for the answers to IQ packets sent by the component, by packet ID.
+     */
+    private Map<String, PendingAnswer> resultListeners = new ConcurrentHashMap<String, PendingAnswer>();
 
     public ExternalComponent(Component component, ExternalComponentManager manager) {
         // Be default create a pool of 25 threads to process the received requests
@@ -126,10 +133,13 @@ public class ExternalComponent implements Component {
         this.component = component;
         this.manager = manager;
 
-        // Create a pool of threads that will process requests received by this component. If more
-        // threads are required then the command will be executed on the SocketReadThread process
+        // Create a pool of threads that will parse and process requests received by this
+        // component. The number of stanzas waiting to be parsed is bounded by the connection,
+        // which stops reading if the pool falls behind, the number of parsed packets waiting to
+        // be processed is bounded per sender
         threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 15, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+                        new LinkedBlockingQueue<Runnable>());
+        orderedPool = new KeyedExecutor(threadPool, MAX_QUEUE_SIZE_PER_SENDER, MAX_QUEUE_SIZE);
     }
 
     /**
@@ -142,10 +152,13 @@ public class ExternalComponent implements Component {
      * @throws ComponentException if an error happens during the connection and authentication steps.
      */
     public void connect(String host, int port, String subdomain) throws ComponentException {
+        NioConnection connection = null;
         try {
-            // Open a socket to the server
-            this.socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), manager.getConnectTimeout());
+            // Open a connection to the server. The stream is negotiated in blocking mode before
+            // the connection is handed over to the I/O thread
+            connection = NioConnection.open(manager.getReactor(),
+                    new InetSocketAddress(host, port), manager.getConnectTimeout(),
+                    manager.getMaxWriteDelay());
             if (manager.getServerName() != null) {
                 this.domain = subdomain + "." + manager.getServerName();
             }
@@ -157,115 +170,69 @@ public class ExternalComponent implements Component {
             this.host= host;
             this.port = port;
 
-            try {
-                factory = XmlPullParserFactory.newInstance();
-                reader = new XPPPacketReader();
-                reader.setXPPFactory(factory);
-
-                reader.getXPPParser().setInput(new InputStreamReader(socket.getInputStream(),
-                        CHARSET));
-
-                // Get a writer for sending the open stream tag
-                writer =
-                        new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
-                                CHARSET));
-                // Open the stream.
-                StringBuilder stream = new StringBuilder();
-                stream.append("<stream:stream");
-                stream.append(" xmlns=\"jabber:component:accept\"");
-                stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
-                if (manager.isMultipleAllowed(subdomain)) {
-                    stream.append(" allowMultiple=\"true\"");
-                }
-                stream.append(" to=\"").append(domain).append("\">");
-                writer.write(stream.toString());
-                writer.flush();
-                stream = null;
-
-                // Get the answer from the server
-                XmlPullParser xpp = reader.getXPPParser();
-                for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                    eventType = xpp.next();
-                }
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
 
-                // Set the streamID returned from the server
-                connectionID = xpp.getAttributeValue("", "id");
-                if (xpp.getAttributeValue("", "from") != null) {
-                    this.domain = xpp.getAttributeValue("", "from");
-                }
-                xmlSerializer = new XMLWriter(writer);
-
-                // Handshake with the server
-                stream = new StringBuilder();
-                stream.append("<handshake>");
-                stream.append(StringUtils.hash(connectionID + manager.getSecretKey(subdomain)));
-                stream.append("</handshake>");
-                writer.write(stream.toString());
-                writer.flush();
-                stream = null;
-
-                // Get the answer from the server
-                try {
-                    Element doc = reader.parseDocument().getRootElement();
-                    if ("error".equals(doc.getName())) {
-                        StreamError error = new StreamError(doc);
-                        // Close the connection
-                        socket.close();
-                        socket = null;
-                        // throw the exception with the wrapped error
-                        throw new ComponentException(error);
-                    }
-                    // Everything went fine
-                    // Start keep alive thread to send every 30 seconds of inactivity a heart beat
-                    keepAliveTask = new KeepAliveTask();
-                    TaskEngine.getInstance().scheduleAtFixedRate(keepAliveTask, 15000, 30000);
-
-                    timeoutTask = new TimeoutTask();
-                    TaskEngine.getInstance().scheduleAtFixedRate(timeoutTask, 2000, 2000);
-
-                } catch (DocumentException e) {
-                    try {
-                        socket.close();
-                    }
-                    catch (IOException ioe) {
-                        // Do nothing
-                    }
-                    throw new ComponentException(e);
-                } catch (XmlPullParserException e) {
-                    try {
-                        socket.close();
-                    }
-                    catch (IOException ioe) {
-                        // Do nothing
-                    }
-                    throw new ComponentException(e);
-                }
-            } catch (XmlPullParserException e) {
-                try {
-                    socket.close();
-                }
-                catch (IOException ioe) {
-                    // Do nothing
-                }
-                throw new ComponentException(e);
+            // Open the stream.
+            StringBuilder stream = new StringBuilder();
+            stream.append("<stream:stream");
+            stream.append(" xmlns=\"jabber:component:accept\"");
+            stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+            if (manager.isMultipleAllowed(subdomain)) {
+                stream.append(" allowMultiple=\"true\"");
             }
-        }
-        catch (UnknownHostException uhe) {
-            try {
-                if (socket != null) socket.close();
+            stream.append(" to=\"").append(domain).append("\">");
+            connection.writeBlocking(stream.toString());
+            stream = null;
+
+            // Get the answer from the server
+            String streamHeader = connection.readStreamHeader();
+            XmlPullParser xpp = factory.newPullParser();
+            xpp.setInput(new StringReader(streamHeader));
+            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+                eventType = xpp.next();
+            }
+
+            // Set the streamID returned from the server
+            connectionID = xpp.getAttributeValue("", "id");
+            if (xpp.getAttributeValue("", "from") != null) {
+                this.domain = xpp.getAttributeValue("", "from");
             }
-            catch (IOException e) {
-                // Do nothing
+            packetReader = new PacketReader(factory, streamHeader);
+
+            // Handshake with the server
+            stream = new StringBuilder();
+            stream.append("<handshake>");
+            stream.append(StringUtils.hash(connectionID + manager.getSecretKey(subdomain)));
+            stream.append("</handshake>");
+            connection.writeBlocking(stream.toString());
+            stream = null;
+
+            // Get the answer from the server
+            Element doc = packetReader.readElement(connection.readStanza());
+            if ("error".equals(doc.getName())) {
+                StreamError error = new StreamError(doc);
+                // Close the connection
+                connection.close();
+                // throw the exception with the wrapped error
+                throw new ComponentException(error);
             }
-            throw new ComponentException(uhe);
+            this.connection = connection;
+            // Everything went fine
+            // Start keep alive thread to send every 30 seconds of inactivity a heart beat
+            keepAliveTask = new KeepAliveTask();
+            TaskEngine.getInstance().scheduleAtFixedRate(keepAliveTask, 15000, 30000);
+        }
+        catch (DocumentException e) {
+            connection.close();
+            throw new ComponentException(e);
+        }
+        catch (XmlPullParserException e) {
+            connection.close();
+            throw new ComponentException(e);
         }
         catch (IOException ioe) {
-            try {
-                if (socket != null) socket.close();
-            }
-            catch (IOException e) {
-                // Do nothing
-            }
+            if (connection != null) connection.close();
             throw new ComponentException(ioe);
         }
     }
@@ -312,48 +279,62 @@ public class ExternalComponent implements Component {
     }
 
     public void processPacket(final Packet packet) {
-        threadPool.execute(new Runnable() {
-            public void run() {
-                if (packet instanceof IQ) {
-                    IQ iq = (IQ) packet;
-                    IQ.Type iqType = iq.getType();
-                    if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
-                        // The server got an answer to an IQ packet that was sent from the component
-                        IQResultListener iqResultListener = resultListeners.remove(iq.getID());
-                        resultTimeout.remove(iq.getID());
-                        if (iqResultListener != null) {
-                            try {
-                                iqResultListener.receivedAnswer(iq);
-                            }
-                            catch (Exception e) {
-                                 manager.getLog().error("Error processing answer of remote entity", e);
-                            }
-                            return;
-                        }
+        if (packet instanceof IQ) {
+            IQ iq = (IQ) packet;
+            IQ.Type iqType = iq.getType();
+            if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
+                // The server got an answer to an IQ packet that was sent from the component.
+                // Listeners only hand the answer over, so they are notified by the dispatcher of
+                // the stanza pipeline instead of a worker of the pool
+                PendingAnswer pendingAnswer = resultListeners.remove(iq.getID());
+                if (pendingAnswer != null) {
+                    pendingAnswer.cancelTimeout();
+                    try {
+                        pendingAnswer.listener.receivedAnswer(iq);
+                    }
+                    catch (Exception e) {
+                         manager.getLog().error("Error processing answer of remote entity", e);
                     }
+                    return;
+                }
+            }
+        }
+        if (component instanceof AbstractComponent) {
+            // The component queues packets in its own executors, so the packet
+            // is dispatched directly instead of adding another thread handoff
+            component.processPacket(packet);
+            return;
+        }
+        try {
+            orderedPool.execute(packet.getFrom(), new Runnable() {
+                public void run() {
+                    component.processPacket(packet);
                 }
-                component.processPacket(packet);
+            });
+        }
+        catch (RejectedExecutionException e) {
+            manager.getLog().warn("Queue exhausted, packet dropped: " + packet.getID()
+                    + " from " + packet.getFrom());
+            if (packet instanceof IQ && ((IQ) packet).isRequest()) {
+                // A request must be answered, so that the sender does not wait for a timeout
+                IQ response = IQ.createResultIQ((IQ) packet);
+                response.setError(new PacketError(PacketError.Condition.resource_constraint,
+                        PacketError.Type.wait, "Queue exhausted"));
+                send(response);
             }
-        });
+        }
     }
 
     public void send(Packet packet) {
-        synchronized (writer) {
-            try {
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
-                // Keep track of the last time a stanza was sent to the server
-                lastActive = System.currentTimeMillis();
-            }
-            catch (IOException e) {
-                // Log the exception
-                manager.getLog().error(e.getMessage());
-                if (!shutdown) {
-                    // Connection was lost so try to reconnect
-                    connectionLost();
-                }
-            }
+        NioConnection connection = this.connection;
+        if (connection == null) {
+            manager.getLog().debug("Not connected, packet dropped: " + packet.getID());
+            return;
         }
+        // The packet is serialized later by the I/O thread. The copy shares the element
+        // with the packet and protects it from modifications by the sender. The connection
+        // reports write failures asynchronously, which triggers a reconnect
+        connection.write(packet.createCopy());
     }
 
     public void initialize(JID jid, ComponentManager componentManager) throws ComponentException {
@@ -362,9 +343,7 @@ public class ExternalComponent implements Component {
 
     public void start() {
         // Everything went fine so start reading packets from the server
-        readerThread = new SocketReadThread(this, reader);
-        readerThread.setDaemon(true);
-        readerThread.start();
+        connection.start(new StreamHandler(connection, packetReader));
         // Notify the component that it will be notified of new received packets
         component.start();
     }
@@ -375,40 +354,20 @@ public class ExternalComponent implements Component {
     }
 
     private void disconnect() {
-        if (readerThread != null) {
-            readerThread.shutdown();
-        }
         threadPool.shutdown();
         TaskEngine.getInstance().cancelScheduledTask(keepAliveTask);
-        TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
-        if (socket != null && !socket.isClosed()) {
-            try {
-                synchronized (writer) {
-                    try {
-                        writer.write("</stream:stream>");
-                        xmlSerializer.flush();
-                    }
-                    catch (IOException e) {
-                        // Do nothing
-                    }
-                }
-            }
-            catch (Exception e) {
-                // Do nothing
-            }
-            try {
-                socket.close();
-            }
-            catch (Exception e) {
-                manager.getLog().error(e.getMessage());
-            }
+        NioConnection connection = this.connection;
+        if (connection != null) {
+            this.connection = null;
+            // Close the stream once all queued packets have been written
+            connection.closeGracefully("</stream:stream>");
         }
     }
 
     /**
      * Notification message that the connection with the server was lost unexpectedly. We will try
      * to reestablish the connection for ever until the connection has been reestablished or this
-     * thread has been stopped.
+     * component has been shut down. The attempts are scheduled, so no thread waits between them.
      */
     public void connectionLost() {
         // Ensure that only one thread will try to reconnect.
@@ -418,39 +377,53 @@ public class ExternalComponent implements Component {
             }
             reconnecting = true;
         }
-        readerThread = null;
-        boolean isConnected = false;
+        connection = null;
+        TaskEngine.getInstance().cancelScheduledTask(keepAliveTask);
         if (!shutdown) {
             // Notify the component that connection was lost so it needs to shutdown. The component is
             // still registered in the local component manager but just not connected to the server
             component.shutdown();
         }
-        while (!isConnected && !shutdown) {
+        reconnect();
+    }
+
+    /**
+     * Tries once to reestablish the connection with the server and schedules the next attempt
+     * if it fails.
+     */
+    private void reconnect() {
+        if (shutdown) {
+            reconnecting = false;
+            return;
+        }
+        try {
+            connect(host, port, subdomain);
+            // It may be possible that while a new connection was being established the
+            // component was required to shutdown so in this case we need to close the new
+            // connection
+            if (shutdown) {
+                disconnect();
+            }
+            else {
+                // Component is back again working so start it up again
+                start();
+            }
+            reconnecting = false;
+        } catch (ComponentException e) {
+            manager.getLog().error("Error trying to reconnect with the server", e);
+            // Retry in 5 seconds
             try {
-                connect(host, port, subdomain);
-                isConnected = true;
-                // It may be possible that while a new connection was being established the
-                // component was required to shutdown so in this case we need to close the new
-                // connection
-                if (shutdown) {
-                    disconnect();
-                }
-                else {
-                    // Component is back again working so start it up again
-                    start();
-                }
-            } catch (ComponentException e) {
-                manager.getLog().error("Error trying to reconnect with the server", e);
-                // Wait for 5 seconds until the next retry
-                try {
-                    Thread.sleep(5000);
-                }
-                catch (InterruptedException e1) {
-                    // Do nothing
-                }
+                TaskEngine.getInstance().schedule(new TimerTask() {
+                    public void run() {
+                        reconnect();
+                    }
+                }, 5000);
+            }
+            catch (RejectedExecutionException e1) {
+                // The task engine has been shut down
+                reconnecting = false;
             }
         }
-        reconnecting = false;
     }
 
     /**
@@ -466,10 +439,57 @@ public class ExternalComponent implements Component {
      * @param timeoutmillis The amount of milliseconds after which waiting for a response should be stopped.
      */
     void addIQResultListener(String id, IQResultListener listener, long timeoutmillis) {
-        // be generated by the server and simulate like the client sent it. This will let listeners
-        // react and be removed from the collection
-        resultListeners.put(id, listener);
-        resultTimeout.put(id, System.currentTimeMillis() + timeoutmillis);
+        PendingAnswer pendingAnswer = new PendingAnswer(id, listener);
+        PendingAnswer replaced = resultListeners.put(id, pendingAnswer);
+        if (replaced != null) {
+            replaced.cancelTimeout();
+        }
+        // The timeout is cancelled as soon as the answer is received
+        pendingAnswer.timeout = manager.getTimer().schedule(pendingAnswer, timeoutmillis);
+    }
+
+    /**
+     * Receives the stanzas read by the I/O thread, has them parsed by the pool and hands the
+     * packets over to this component in the order they were read.
+     */
+    private class StreamHandler implements NioConnection.Listener, StanzaPipeline.Handler {
+
+        private final NioConnection connection;
+        private final StanzaPipeline pipeline;
+
+        private StreamHandler(NioConnection connection, PacketReader packetReader) {
+            this.connection = connection;
+            this.pipeline = new StanzaPipeline(threadPool, packetReader, this, connection,
+                    MAX_PENDING_STANZAS);
+        }
+
+        public void stanzaRead(String stanza) {
+            // The I/O thread only frames the stanzas, they are parsed by the pool
+            pipeline.submit(stanza);
+        }
+
+        public void packetRead(Packet packet) {
+            // Request the component to process the received packet
+            processPacket(packet);
+        }
+
+        public void streamClosed() {
+            // Normal disconnect
+        }
+
+        public void connectionFailed(IOException cause) {
+            // Do nothing if the connection failed while shutting down the component or if it
+            // has already been replaced, otherwise log the error and try to establish a new
+            // connection without blocking the I/O thread
+            if (!shutdown && ExternalComponent.this.connection == connection) {
+                manager.getLog().error(cause.getMessage());
+                TaskEngine.getInstance().submit(new Runnable() {
+                    public void run() {
+                        connectionLost();
+                    }
+                });
+            }
+        }
     }
 
     /**
@@ -479,73 +499,51 @@ public class ExternalComponent implements Component {
     private class KeepAliveTask extends TimerTask {
 
         public void run() {
-            synchronized (writer) {
-                // Send heartbeat if no packet has been sent to the server for a given time
-                if (System.currentTimeMillis() - lastActive >= 30000) {
-                    try {
-                        writer.write(" ");
-                        writer.flush();
-                    }
-                    catch (IOException e) {
-                        // Log the exception
-                        manager.getLog().error(e.getMessage());
-                        if (!shutdown) {
-                            // Connection was lost so try to reconnect
-                            connectionLost();
-                        }
-                    }
-                    catch (Exception e) {
-                        // Do nothing
-                    }
-                }
+            NioConnection connection = ExternalComponent.this.connection;
+            // Send heartbeat if no packet has been sent to the server for a given time
+            if (connection != null
+                    && System.currentTimeMillis() - connection.getLastActive() >= 30000) {
+                // Write failures are reported by the connection, which then tries to reconnect
+                connection.write(" ");
             }
         }
     }
 
     /**
-	 * Timer task that will remove Listeners that wait for results to IQ stanzas
-	 * that have timed out. Time out values can be set to each listener
-	 * individually by adjusting the timeout value in the third parameter of
-	 * {@link ExternalComponent#addIQResultListener(String, IQResultListener, long)}.
-	 *
-	 * @author Guus der Kinderen, guus@nimbuzz.com
-	 */
-    private class TimeoutTask extends TimerTask {
-
-        /**
-         * Iterates over and removes all timed out results.<p>
-         *
-         * The map that keeps track of timeout values is ordered by timeout
-         * date. This way, iteration can be stopped as soon as the first value
-         * has been found that didn't timeout yet.
-         */
-        @Override
-        public void run() {
-            // Use an Iterator to allow changes to the Map that is backing
-            // the Iterator.
-            final Iterator<Map.Entry<String, Long>> it = resultTimeout.entrySet().iterator();
-
-            while (it.hasNext()) {
-                final Map.Entry<String, Long> pointer = it.next();
+     * A listener that waits for the answer to an IQ packet. It is executed by the timer of the
+     * manager if no answer has been received in time. Time out values can be set to each
+     * listener individually by adjusting the timeout value in the third parameter of
+     * {@link ExternalComponent#addIQResultListener(String, IQResultListener, long)}.
+     */
+    private class PendingAnswer implements Runnable {
 
-                if (System.currentTimeMillis() < pointer.getValue()) {
-                    // This entry has not expired yet. Ignore it.
-                    continue;
-                }
+        private final String packetId;
+        private final IQResultListener listener;
+        private volatile TimingWheel.Timeout timeout;
 
-                final String packetId = pointer.getKey();
+        private PendingAnswer(String packetId, IQResultListener listener) {
+            this.packetId = packetId;
+            this.listener = listener;
+        }
 
-                // remove this listener from the list
-                final IQResultListener listener = resultListeners.remove(packetId);
-                if (listener != null) {
-                    // notify listener of the timeout.
-                    listener.answerTimeout(packetId);
-                }
+        private void cancelTimeout() {
+            TimingWheel.Timeout timeout = this.timeout;
+            // The timeout is not yet set if the answer arrived while it was being scheduled,
+            // it then finds the listener removed when it expires
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
 
-                // remove the packet from the list that's used to track
-                // timeouts
-                it.remove();
+        public void run() {
+            if (resultListeners.remove(packetId, this)) {
+                // Listeners may block, so they are notified by the pool instead of the timer
+                TaskEngine.getInstance().submit(new Runnable() {
+                    public void run() {
+                        listener.answerTimeout(packetId);
+                    }
+                });
             }
         }
-	}
+    }
 }
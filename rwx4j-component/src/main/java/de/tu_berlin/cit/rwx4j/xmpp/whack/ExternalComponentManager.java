@@ -21,6 +21,7 @@
 package de.tu_berlin.cit.rwx4j.xmpp.whack;
 
 
+import java.io.IOException;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -38,6 +39,7 @@ import de.tu_berlin.cit.rwx4j.xmpp.core.IQResultListener;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
 import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TimingWheel;
 
 
 /**
@@ -67,6 +69,15 @@ public class ExternalComponentManager implements ComponentManager {
      * Timeout to use when trying to connect to the server.
      */
     private int connectTimeout = 2000;
+    /**
+     * Time in milliseconds by which outbound packets may be delayed to be written together
+     * with subsequent packets.
+     */
+    private long maxWriteDelay = 0;
+    /**
+     * Precision in milliseconds of the timeouts of IQ packets that wait for an answer.
+     */
+    private long timeoutTick = 100;
     /**
      * This is a global secret key that will be used during the handshake with the server. If a
      * secret key was not defined for the specific component then the global secret key will be
@@ -97,6 +108,15 @@ public class ExternalComponentManager implements ComponentManager {
      */
     private Map<Component, ExternalComponent> components  = new Hashtable<Component,ExternalComponent>();
 
+    /**
+     * The I/O thread that serves the connections of all components.
+     */
+    private final NioReactor reactor = new NioReactor("Component I/O");
+    /**
+     * The timer of the timeouts of all components, which is created on first use.
+     */
+    private TimingWheel timer;
+
     private Logger logger = LoggerFactory.getLogger(ExternalComponentManager.class);;
 
     /**
@@ -236,6 +256,11 @@ public class ExternalComponentManager implements ComponentManager {
         if (externalComponent != null) {
             components.remove(externalComponent.getComponent());
             externalComponent.shutdown();
+            if (components.isEmpty()) {
+                // Stop the I/O thread after the stream has been closed
+                reactor.stop();
+                stopTimer();
+            }
         }
     }
 
@@ -336,10 +361,93 @@ public class ExternalComponentManager implements ComponentManager {
         this.connectTimeout = connectTimeout;
     }
 
+    /**
+     * Returns the time (in milliseconds) by which outbound packets may be delayed, so that
+     * they are written to the server together with subsequent packets. The default value is
+     * 0, i.e. packets are written as soon as possible and only packets that have been queued
+     * while the connection was busy are written together.
+     *
+     * @return the maximum delay of outbound packets, in milliseconds.
+     */
+    public long getMaxWriteDelay() {
+        return maxWriteDelay;
+    }
+
+    /**
+     * Sets the time (in milliseconds) by which outbound packets may be delayed, so that
+     * they are written to the server together with subsequent packets. A higher value
+     * reduces the number of system calls at high packet rates at the cost of latency. The
+     * value applies to connections that are established afterwards.
+     *
+     * @param maxWriteDelay the maximum delay of outbound packets, in milliseconds.
+     */
+    public void setMaxWriteDelay(long maxWriteDelay) {
+        this.maxWriteDelay = maxWriteDelay;
+    }
+
+    /**
+     * Returns the precision (in milliseconds) of the timeouts of IQ packets that wait for an
+     * answer. Timeouts expire at most this long after they are due. The default value is
+     * 100 milliseconds.
+     *
+     * @return the precision of the timeouts, in milliseconds.
+     */
+    public long getTimeoutTick() {
+        return timeoutTick;
+    }
+
+    /**
+     * Sets the precision (in milliseconds) of the timeouts of IQ packets that wait for an
+     * answer. A lower value makes timeouts expire closer to their due time at the cost of
+     * more frequent wake-ups. The value applies once the timer is started again, i.e. after
+     * all components have been removed.
+     *
+     * @param timeoutTick the precision of the timeouts, in milliseconds.
+     */
+    public void setTimeoutTick(long timeoutTick) {
+        if (timeoutTick <= 0) {
+            throw new IllegalArgumentException("The timeout tick must be positive");
+        }
+        this.timeoutTick = timeoutTick;
+    }
+
     public boolean isExternalMode() {
         return true;
     }
 
+    /**
+     * Returns the I/O thread that serves the connections of the components, which is
+     * started on first use.
+     *
+     * @return the I/O thread of the connections.
+     * @throws IOException if the I/O thread cannot be started.
+     */
+    NioReactor getReactor() throws IOException {
+        reactor.start();
+        return reactor;
+    }
+
+    /**
+     * Returns the timer that expires the timeouts of the components, which is started on
+     * first use. Expired tasks are executed by the thread of the timer.
+     *
+     * @return the timer of the components.
+     */
+    synchronized TimingWheel getTimer() {
+        if (timer == null) {
+            // 512 ticks of 100 ms cover the usual query timeouts in one rotation
+            timer = new TimingWheel("Component timer", timeoutTick, 512);
+        }
+        return timer;
+    }
+
+    private synchronized void stopTimer() {
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+        }
+    }
+
     public Logger getLog() {
         return logger;
     }
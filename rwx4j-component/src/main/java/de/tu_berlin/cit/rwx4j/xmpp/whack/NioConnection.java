@@ -0,0 +1,538 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.StanzaEncoder;
+
+/**
+ * The connection of an external component to the server. The stream is
+ * negotiated in blocking mode by the thread that connects the component.
+ * Afterwards, the connection is registered with a {@link NioReactor} and
+ * served by its I/O thread: received bytes are decoded into a reusable
+ * buffer and split into stanzas by a {@link StanzaFramer}. Outbound packets
+ * are queued by any thread. The I/O thread drains the queue in batches,
+ * encodes each batch into a reusable buffer of UTF-8 bytes with a
+ * {@link StanzaEncoder} and writes it with a single system call whenever
+ * the socket accepts it.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+class NioConnection {
+
+	private static final Logger log = LoggerFactory.getLogger(NioConnection.class);
+
+	/**
+	 * Receives the events of a registered connection on the I/O thread.
+	 */
+	interface Listener {
+
+		/**
+		 * A complete stanza has been received.
+		 *
+		 * @param stanza
+		 *            the XML of the stanza.
+		 */
+		void stanzaRead(String stanza);
+
+		/**
+		 * The server has closed the stream or the input of the socket.
+		 */
+		void streamClosed();
+
+		/**
+		 * The connection failed and has been closed.
+		 *
+		 * @param cause
+		 *            the cause of the failure.
+		 */
+		void connectionFailed(IOException cause);
+	}
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final NioReactor reactor;
+
+	private final SocketChannel channel;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final CharBuffer charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+
+	private final CharsetDecoder decoder = CHARSET.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private final StanzaFramer framer = new StanzaFramer();
+
+	/**
+	 * Stanzas that have been framed but not dispatched yet.
+	 */
+	private final ArrayDeque<String> stanzas = new ArrayDeque<String>();
+
+	/**
+	 * The packets and raw data to write, which are added by any thread and
+	 * removed by the I/O thread.
+	 */
+	private final ConcurrentLinkedQueue<Object> writeQueue = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * Encodes the batch that is currently written.
+	 */
+	private final StanzaEncoder encoder = new StanzaEncoder(BUFFER_SIZE);
+
+	/**
+	 * The encoded bytes of the current batch that have not been written yet.
+	 */
+	private ByteBuffer pendingBytes = this.encoder.getBytes();
+
+	private boolean batchContainsPackets = false;
+
+	/**
+	 * The time in milliseconds by which writing a batch is delayed.
+	 */
+	private final long maxWriteDelay;
+
+	private volatile long lastActive = System.currentTimeMillis();
+
+	/**
+	 * <tt>true</tt> while the write queue is flushed by the I/O thread or
+	 * waits for the socket to become writable.
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private Listener listener;
+
+	private SelectionKey key;
+
+	/**
+	 * <tt>true</tt> while the stanzas that have been read are not processed
+	 * fast enough. Accessed by the I/O thread only.
+	 */
+	private boolean readingSuspended = false;
+
+	/**
+	 * <tt>true</tt> after the end of the input has been reached. Accessed by
+	 * the I/O thread only.
+	 */
+	private boolean inputClosed = false;
+
+	private volatile boolean closeAfterFlush = false;
+
+	private volatile boolean closed = false;
+
+	private NioConnection(NioReactor reactor, SocketChannel channel, long maxWriteDelay) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.maxWriteDelay = maxWriteDelay;
+	}
+
+	/**
+	 * Opens a connection in blocking mode.
+	 *
+	 * @param reactor
+	 *            the reactor that serves the connection once it is started.
+	 * @param address
+	 *            the address of the server.
+	 * @param connectTimeout
+	 *            the timeout in milliseconds.
+	 * @param maxWriteDelay
+	 *            the time in milliseconds by which writes may be delayed to
+	 *            be batched with subsequent writes, or 0 to write as soon as
+	 *            possible.
+	 * @return the connection.
+	 * @throws IOException
+	 *             if the server cannot be connected.
+	 */
+	static NioConnection open(NioReactor reactor, InetSocketAddress address,
+			int connectTimeout, long maxWriteDelay) throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(address, connectTimeout);
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new NioConnection(reactor, channel, maxWriteDelay);
+	}
+
+	/**
+	 * Writes data before the connection has been started.
+	 *
+	 * @param data
+	 *            the data to write.
+	 * @throws IOException
+	 *             if the data cannot be written.
+	 */
+	void writeBlocking(String data) throws IOException {
+		final ByteBuffer buffer = CHARSET.encode(data);
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads until the start tag of the stream element has been received,
+	 * before the connection has been started.
+	 *
+	 * @return the start tag of the stream element.
+	 * @throws IOException
+	 *             if the stream cannot be read.
+	 */
+	String readStreamHeader() throws IOException {
+		while (this.framer.getStreamHeader() == null) {
+			readBlocking();
+		}
+		return this.framer.getStreamHeader();
+	}
+
+	/**
+	 * Reads until a stanza has been received, before the connection has been
+	 * started.
+	 *
+	 * @return the XML of the stanza.
+	 * @throws IOException
+	 *             if the stream cannot be read.
+	 */
+	String readStanza() throws IOException {
+		while (this.stanzas.isEmpty()) {
+			readBlocking();
+		}
+		return this.stanzas.poll();
+	}
+
+	private void readBlocking() throws IOException {
+		if (this.framer.isClosed() || !fill()) {
+			throw new EOFException("Stream closed by the server");
+		}
+	}
+
+	/**
+	 * Reads the available bytes from the socket and frames them.
+	 *
+	 * @return <tt>false</tt> if the end of the input has been reached.
+	 */
+	private boolean fill() throws IOException {
+		if (this.channel.read(this.readBuffer) < 0) {
+			return false;
+		}
+		this.readBuffer.flip();
+		this.decoder.decode(this.readBuffer, this.charBuffer, false);
+		// keep the bytes of an incomplete character for the next read
+		this.readBuffer.compact();
+		this.charBuffer.flip();
+		this.framer.feed(this.charBuffer, this.stanzas);
+		this.charBuffer.clear();
+		return true;
+	}
+
+	/**
+	 * Hands the connection over to the I/O thread of the reactor. Stanzas
+	 * that have already been received are dispatched first.
+	 *
+	 * @param listener
+	 *            the listener that receives the events of the connection.
+	 */
+	void start(Listener listener) {
+		this.listener = listener;
+		this.reactor.register(this);
+	}
+
+	/**
+	 * Registers the connection with the selector of the I/O thread.
+	 */
+	void register(Selector selector) {
+		try {
+			this.channel.configureBlocking(false);
+			this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		updateReadInterest();
+		dispatchStanzas();
+		if (this.framer.isClosed()) {
+			closeInput();
+		}
+		flush();
+	}
+
+	/**
+	 * Called by the I/O thread when the socket can be read.
+	 */
+	void onReadable() {
+		try {
+			if (!fill()) {
+				closeInput();
+				return;
+			}
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		dispatchStanzas();
+		if (this.framer.isClosed()) {
+			closeInput();
+		}
+	}
+
+	private void closeInput() {
+		this.inputClosed = true;
+		updateReadInterest();
+		this.listener.streamClosed();
+	}
+
+	/**
+	 * Stops or resumes reading from the socket, so that the server cannot
+	 * send more stanzas than can be processed. May be called by any thread.
+	 *
+	 * @param suspended
+	 *            <tt>true</tt> to stop reading.
+	 */
+	void setReadingSuspended(final boolean suspended) {
+		this.reactor.execute(new Runnable() {
+			public void run() {
+				readingSuspended = suspended;
+				updateReadInterest();
+			}
+		});
+	}
+
+	private void updateReadInterest() {
+		if (this.key == null || !this.key.isValid()) {
+			return;
+		}
+		if (this.readingSuspended || this.inputClosed) {
+			this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+		} else {
+			this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private void dispatchStanzas() {
+		String stanza;
+		while ((stanza = this.stanzas.poll()) != null) {
+			this.listener.stanzaRead(stanza);
+		}
+	}
+
+	/**
+	 * Called by the I/O thread when the socket can be written.
+	 */
+	void onWritable() {
+		flush();
+	}
+
+	/**
+	 * Queues a packet to be written by the I/O thread. The packet must not be
+	 * modified afterwards. Failures are reported to the listener.
+	 *
+	 * @param packet
+	 *            the packet to write.
+	 */
+	void write(Packet packet) {
+		enqueue(packet);
+	}
+
+	/**
+	 * Queues raw data to be written by the I/O thread, e.g. a heartbeat.
+	 *
+	 * @param data
+	 *            the data to write.
+	 */
+	void write(String data) {
+		enqueue(data);
+	}
+
+	private void enqueue(Object item) {
+		if (this.closed) {
+			return;
+		}
+		this.writeQueue.offer(item);
+		if (this.flushScheduled.compareAndSet(false, true)) {
+			if (this.maxWriteDelay > 0) {
+				// give other producers the chance to join the batch
+				this.reactor.schedule(this.flushTask, this.maxWriteDelay);
+			} else {
+				this.reactor.execute(this.flushTask);
+			}
+		}
+	}
+
+	/**
+	 * Encodes and writes the queued items until the socket does not accept
+	 * more. The items are encoded in batches, so that every batch is written
+	 * with a single system call. Executed by the I/O thread only.
+	 */
+	private void flush() {
+		if (this.closed) {
+			return;
+		}
+		if (this.key == null) {
+			// flushed once the connection has been registered
+			if (this.closeAfterFlush) {
+				close();
+			}
+			return;
+		}
+		// the flush is scheduled until it has drained the queue or waits for
+		// the socket, a failed flush must not keep later writes from
+		// scheduling the next one
+		boolean release = true;
+		try {
+			while (true) {
+				if (this.pendingBytes.hasRemaining()) {
+					this.channel.write(this.pendingBytes);
+					if (this.pendingBytes.hasRemaining()) {
+						// continue once the socket is writable again
+						this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+						release = false;
+						return;
+					}
+					if (this.batchContainsPackets) {
+						this.lastActive = System.currentTimeMillis();
+					}
+				}
+				if (encodeBatch()) {
+					continue;
+				}
+				if (this.closeAfterFlush) {
+					close();
+					return;
+				}
+				this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+				this.flushScheduled.set(false);
+				release = false;
+				if (this.writeQueue.isEmpty() || !this.flushScheduled.compareAndSet(false, true)) {
+					return;
+				}
+				release = true;
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			if (release) {
+				this.flushScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the queued items until the batch is full. A packet that cannot
+	 * be encoded is dropped, so that it does not stop the connection.
+	 *
+	 * @return <tt>false</tt> if the queue is empty.
+	 */
+	private boolean encodeBatch() {
+		this.encoder.reset();
+		this.batchContainsPackets = false;
+		Object item;
+		while (this.encoder.size() < BUFFER_SIZE && (item = this.writeQueue.poll()) != null) {
+			if (item instanceof Packet) {
+				try {
+					this.encoder.encode((Packet) item);
+					this.batchContainsPackets = true;
+				} catch (RuntimeException e) {
+					log.error("Packet dropped, it cannot be encoded", e);
+				}
+			} else {
+				this.encoder.encodeRaw((String) item);
+			}
+		}
+		this.pendingBytes = this.encoder.getBytes();
+		return this.pendingBytes.hasRemaining();
+	}
+
+	/**
+	 * Writes the queued data and the given final data, and closes the
+	 * connection afterwards.
+	 *
+	 * @param data
+	 *            the data to write last.
+	 */
+	void closeGracefully(String data) {
+		this.closeAfterFlush = true;
+		this.writeQueue.offer(data);
+		this.flushScheduled.set(true);
+		this.reactor.execute(this.flushTask);
+	}
+
+	/**
+	 * @return the time in milliseconds at which a packet has been written
+	 *         last.
+	 */
+	long getLastActive() {
+		return this.lastActive;
+	}
+
+	/**
+	 * Closes the connection immediately.
+	 */
+	void close() {
+		this.closed = true;
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// Do nothing
+		}
+	}
+
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	private void fail(IOException cause) {
+		if (this.closed) {
+			return;
+		}
+		close();
+		if (this.listener != null) {
+			this.listener.connectionFailed(cause);
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single I/O thread that serves the connections of all external components
+ * of a component manager. The thread waits on a selector for connections
+ * that can be read or written and executes tasks that other threads hand
+ * over, e.g. the registration of connections or the flushing of their write
+ * queues, either immediately or after a delay. All operations on selection
+ * keys are performed by this thread.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+class NioReactor implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(NioReactor.class);
+
+	private final String name;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * The delayed tasks ordered by their due time, accessed by the I/O thread
+	 * only.
+	 */
+	private final PriorityQueue<DelayedTask> delayedTasks = new PriorityQueue<DelayedTask>();
+
+	private volatile Selector selector;
+
+	private volatile Thread thread;
+
+	NioReactor(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Starts the I/O thread unless it is already running.
+	 *
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	synchronized void start() throws IOException {
+		if (this.thread != null) {
+			return;
+		}
+		this.selector = Selector.open();
+		this.thread = new Thread(this, this.name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the I/O thread after the pending tasks have been executed.
+	 * Connections that are still registered are closed.
+	 */
+	synchronized void stop() {
+		if (this.thread == null) {
+			return;
+		}
+		this.thread = null;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Executes a task on the I/O thread.
+	 *
+	 * @param task
+	 *            the task to execute.
+	 */
+	void execute(Runnable task) {
+		this.tasks.offer(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Executes a task on the I/O thread after a delay.
+	 *
+	 * @param task
+	 *            the task to execute.
+	 * @param delayMillis
+	 *            the delay in milliseconds.
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		final DelayedTask delayed = new DelayedTask(task,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		execute(new Runnable() {
+			public void run() {
+				delayedTasks.add(delayed);
+			}
+		});
+	}
+
+	/**
+	 * Registers a connection, so that it is notified when it can be read or
+	 * written.
+	 *
+	 * @param connection
+	 *            the connection to register.
+	 */
+	void register(final NioConnection connection) {
+		execute(new Runnable() {
+			public void run() {
+				connection.register(selector);
+			}
+		});
+	}
+
+	public void run() {
+		final Thread current = Thread.currentThread();
+		final Selector selector = this.selector;
+		while (this.thread == current) {
+			try {
+				selector.select(getSelectTimeout());
+			} catch (IOException e) {
+				log.error("Error selecting connections", e);
+			}
+			runTasks();
+			runDelayedTasks();
+			final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				final SelectionKey key = it.next();
+				it.remove();
+				final NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isReadable()) {
+						connection.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.onWritable();
+					}
+				} catch (CancelledKeyException e) {
+					// the connection has been closed concurrently
+				} catch (RuntimeException e) {
+					log.error("Error serving connection", e);
+				}
+			}
+		}
+		runTasks();
+		for (SelectionKey key : selector.keys()) {
+			((NioConnection) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Do nothing
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds until the next delayed task is due, or
+	 *         0 to wait without timeout.
+	 */
+	private long getSelectTimeout() {
+		final DelayedTask next = this.delayedTasks.peek();
+		if (next == null) {
+			return 0;
+		}
+		final long remaining = next.due - System.nanoTime();
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999999));
+	}
+
+	private void runDelayedTasks() {
+		final long now = System.nanoTime();
+		DelayedTask next;
+		while ((next = this.delayedTasks.peek()) != null && next.due - now <= 0) {
+			this.delayedTasks.poll();
+			try {
+				next.task.run();
+			} catch (RuntimeException e) {
+				log.error("Error executing I/O task", e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.error("Error executing I/O task", e);
+			}
+		}
+	}
+
+	private static final class DelayedTask implements Comparable<DelayedTask> {
+
+		private final Runnable task;
+
+		private final long due;
+
+		private DelayedTask(Runnable task, long due) {
+			this.task = task;
+			this.due = due;
+		}
+
+		public int compareTo(DelayedTask other) {
+			return Long.signum(this.due - other.due);
+		}
+	}
+
+}
@@ -1,12 +1,130 @@
 package de.tu_berlin.cit.rwx4j.xmpp.whack;
 
 import java.io.IOException;
+import java.io.StringReader;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.io.XPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Message;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Presence;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.RawStanza;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Roster;
 
 /**
+ * Parses the stanzas of a stream into packets. Each stanza is parsed in the
+ * context of the stream header, so that the namespaces declared by the
+ * stream apply. Instances are thread safe, every thread uses its own parser
+ * and document factory, so that the names of the parsed elements are cached
+ * per thread without contention.
+ *
+ * Packets are read lazily if possible: the stanza is only scanned for the
+ * information that is needed to route it and parsed when its content is
+ * accessed.
  *
  * @author Matt Tucker
  */
-public class PacketReader {
+public class PacketReader implements RawStanza.Parser {
+
+    private final ThreadLocal<XPPPacketReader> readers;
+
+    private final String streamHeader;
+
+    /**
+     * Creates a reader for the stanzas of a stream.
+     *
+     * @param factory the factory of the pull parser.
+     * @param streamHeader the start tag of the stream element.
+     */
+    public PacketReader(final XmlPullParserFactory factory, String streamHeader) {
+        this.readers = new ThreadLocal<XPPPacketReader>() {
+            @Override
+            protected XPPPacketReader initialValue() {
+                XPPPacketReader reader = new XPPPacketReader(new DocumentFactory());
+                reader.setXPPFactory(factory);
+                return reader;
+            }
+        };
+        this.streamHeader = streamHeader;
+    }
+
+    /**
+     * Parses a stanza into an element.
+     *
+     * @param stanza the XML of the stanza.
+     * @return the element of the stanza.
+     */
+    public Element readElement(String stanza)
+            throws IOException, XmlPullParserException, DocumentException {
+        XPPPacketReader reader = readers.get();
+        XmlPullParser xpp = reader.getXPPParser();
+        xpp.setInput(new StringReader(streamHeader + stanza));
+        // Skip the stream header
+        for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+            eventType = xpp.next();
+        }
+        return reader.parseElement();
+    }
 
+    /**
+     * Parses a stanza into a packet.
+     *
+     * @param stanza the XML of the stanza.
+     * @return the message, presence or IQ packet.
+     * @throws XmlPullParserException if the stanza is not a packet.
+     */
+    public Packet read(String stanza)
+            throws IOException, XmlPullParserException, DocumentException {
+        RawStanza raw = RawStanza.scan(stanza, this);
+        if (raw != null) {
+            String tag = raw.getName();
+            if ("message".equals(tag)) {
+                return new Message(raw);
+            }
+            else if ("presence".equals(tag)) {
+                return new Presence(raw);
+            }
+            else if ("iq".equals(tag)) {
+                if ("query".equals(raw.getChildName())
+                        && "jabber:iq:roster".equals(raw.getChildNamespace())) {
+                    return new Roster(raw);
+                }
+                return new IQ(raw);
+            }
+            else {
+                throw new XmlPullParserException("Unknown packet type was read: " + tag);
+            }
+        }
+        Element doc = readElement(stanza);
+        String tag = doc.getName();
+        if ("message".equals(tag)) {
+            return new Message(doc);
+        }
+        else if ("presence".equals(tag)) {
+            return new Presence(doc);
+        }
+        else if ("iq".equals(tag)) {
+            return getIQ(doc);
+        }
+        else {
+            throw new XmlPullParserException("Unknown packet type was read: " + tag);
+        }
+    }
 
+    private IQ getIQ(Element doc) {
+        Element query = doc.element("query");
+        if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI())) {
+            return new Roster(doc);
+        }
+        else {
+            return new IQ(doc);
+        }
+    }
 }
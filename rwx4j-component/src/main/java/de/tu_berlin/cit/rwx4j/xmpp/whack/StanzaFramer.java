@@ -0,0 +1,315 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.IOException;
+import java.util.Queue;
+
+/**
+ * Splits an XMPP stream into its stanzas without parsing them. The framer
+ * is fed with the characters of the stream as they arrive and only tracks
+ * the nesting depth of the elements, quoted attribute values, CDATA sections,
+ * comments and processing instructions. Every complete element below the
+ * stream element is emitted as a string, which can be parsed independently
+ * in the context of the stream header.
+ *
+ * Whitespace between stanzas, e.g. keep alive heartbeats, is discarded.
+ * Instances are not thread safe.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+class StanzaFramer {
+
+	/**
+	 * The default maximum size (in characters) of a single stanza.
+	 */
+	static final int DEFAULT_MAX_STANZA_SIZE = 10 * 1024 * 1024;
+
+	private static final String CDATA = "<![CDATA[";
+
+	private static final String COMMENT = "<!--";
+
+	private static final int TEXT = 0;
+
+	private static final int MARKUP = 1;
+
+	private static final int START_TAG = 2;
+
+	private static final int END_TAG = 3;
+
+	private static final int SPECIAL = 4;
+
+	private final int maxStanzaSize;
+
+	/**
+	 * The characters that have been received but not emitted yet.
+	 */
+	private final StringBuilder buffer = new StringBuilder();
+
+	/**
+	 * The position in the buffer up to which the characters have been emitted
+	 * or discarded. They are removed from the buffer once per call of
+	 * {@link #feed(CharSequence, Queue)}, so that a chunk with many stanzas is
+	 * not copied again for each of them.
+	 */
+	private int consumed = 0;
+
+	/**
+	 * The position in the buffer up to which the stream has been scanned.
+	 */
+	private int position = 0;
+
+	/**
+	 * The position of the markup that starts the current stanza or stream
+	 * level element.
+	 */
+	private int markupStart = 0;
+
+	/**
+	 * The position at which the terminator of a special section may start,
+	 * i.e. the end of its opening sequence.
+	 */
+	private int specialStart = 0;
+
+	private String terminator = null;
+
+	private char quote = 0;
+
+	private int state = TEXT;
+
+	private int depth = 0;
+
+	private String streamHeader = null;
+
+	private boolean closed = false;
+
+	StanzaFramer() {
+		this(DEFAULT_MAX_STANZA_SIZE);
+	}
+
+	StanzaFramer(int maxStanzaSize) {
+		this.maxStanzaSize = maxStanzaSize;
+	}
+
+	/**
+	 * @return the start tag of the stream element or <tt>null</tt> if it has
+	 *         not been received yet.
+	 */
+	String getStreamHeader() {
+		return this.streamHeader;
+	}
+
+	/**
+	 * @return <tt>true</tt> if the end tag of the stream element has been
+	 *         received.
+	 */
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Appends received characters to the stream and emits all stanzas that
+	 * have been completed.
+	 *
+	 * @param chars
+	 *            the received characters.
+	 * @param stanzas
+	 *            the queue to which complete stanzas are added.
+	 * @throws IOException
+	 *             if a stanza exceeds the maximum size.
+	 */
+	void feed(CharSequence chars, Queue<String> stanzas) throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.buffer.append(chars);
+		while (this.position < this.buffer.length()) {
+			final char c = this.buffer.charAt(this.position);
+			switch (this.state) {
+			case TEXT:
+				if (c == '<') {
+					if (this.depth <= 1) {
+						this.markupStart = this.position;
+					}
+					this.state = MARKUP;
+				}
+				break;
+			case MARKUP:
+				if (c == '/') {
+					this.state = END_TAG;
+				} else if (c == '?') {
+					this.terminator = "?>";
+					this.specialStart = this.position + 1;
+					this.state = SPECIAL;
+				} else if (c == '!') {
+					if (!startSpecial()) {
+						// wait for the characters that identify the section
+						compact();
+						return;
+					}
+				} else {
+					this.state = START_TAG;
+				}
+				break;
+			case START_TAG:
+				if (this.quote != 0) {
+					if (c == this.quote) {
+						this.quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					this.quote = c;
+				} else if (c == '>') {
+					this.state = TEXT;
+					if (this.buffer.charAt(this.position - 1) != '/') {
+						this.depth++;
+						if (this.depth == 1) {
+							this.streamHeader = this.buffer.substring(
+									this.markupStart, this.position + 1);
+							discard();
+							continue;
+						}
+					} else if (this.depth == 1) {
+						emit(stanzas);
+						continue;
+					}
+				}
+				break;
+			case END_TAG:
+				if (c == '>') {
+					this.state = TEXT;
+					this.depth--;
+					if (this.depth == 1) {
+						emit(stanzas);
+						continue;
+					}
+					if (this.depth <= 0) {
+						this.closed = true;
+						this.buffer.setLength(0);
+						this.position = 0;
+						this.consumed = 0;
+						return;
+					}
+				}
+				break;
+			case SPECIAL:
+				if (isTerminated()) {
+					this.state = TEXT;
+					if (this.depth <= 1) {
+						// processing instructions and comments outside of
+						// stanzas are ignored
+						discard();
+						continue;
+					}
+				}
+				break;
+			}
+			this.position++;
+		}
+		if (this.depth <= 1 && this.state == TEXT) {
+			// only whitespace between stanzas is left
+			this.buffer.setLength(0);
+			this.position = 0;
+			this.consumed = 0;
+		} else if (this.buffer.length() - this.markupStart > this.maxStanzaSize) {
+			throw new IOException("Stanza exceeds the maximum size of "
+					+ this.maxStanzaSize + " characters");
+		} else {
+			compact();
+		}
+	}
+
+	/**
+	 * Determines the kind of a section that starts with "&lt;!".
+	 *
+	 * @return <tt>false</tt> if more characters are needed.
+	 */
+	private boolean startSpecial() {
+		final int start = this.position - 1;
+		final int available = this.buffer.length() - start;
+		if (matches(start, CDATA, available)) {
+			if (available < CDATA.length()) {
+				return false;
+			}
+			this.terminator = "]]>";
+			this.specialStart = start + CDATA.length();
+		} else if (matches(start, COMMENT, available)) {
+			if (available < COMMENT.length()) {
+				return false;
+			}
+			this.terminator = "-->";
+			this.specialStart = start + COMMENT.length();
+		} else {
+			// a document type declaration, which is not allowed in XMPP
+			this.terminator = ">";
+			this.specialStart = this.position + 1;
+		}
+		this.state = SPECIAL;
+		return true;
+	}
+
+	private boolean matches(int start, String prefix, int available) {
+		final int length = Math.min(prefix.length(), available);
+		for (int i = 0; i < length; i++) {
+			if (this.buffer.charAt(start + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isTerminated() {
+		final int start = this.position + 1 - this.terminator.length();
+		if (start < this.specialStart) {
+			return false;
+		}
+		for (int i = 0; i < this.terminator.length(); i++) {
+			if (this.buffer.charAt(start + i) != this.terminator.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void emit(Queue<String> stanzas) {
+		stanzas.add(this.buffer.substring(this.markupStart, this.position + 1));
+		discard();
+	}
+
+	/**
+	 * Marks everything up to the current position as consumed.
+	 */
+	private void discard() {
+		this.position++;
+		this.consumed = this.position;
+		this.markupStart = this.position;
+	}
+
+	/**
+	 * Removes the consumed characters from the buffer.
+	 */
+	private void compact() {
+		if (this.consumed == 0) {
+			return;
+		}
+		this.buffer.delete(0, this.consumed);
+		this.position -= this.consumed;
+		this.markupStart -= this.consumed;
+		this.specialStart -= this.consumed;
+		this.consumed = 0;
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+
+/**
+ * Parses the stanzas of a connection on worker threads and dispatches the
+ * resulting packets in the order in which the stanzas have been received.
+ *
+ * The I/O thread only submits the raw stanzas. They are parsed in parallel
+ * and the packets are dispatched by whichever worker completes the oldest
+ * pending stanza, one packet at a time. The number of pending stanzas is
+ * bounded: once the bound is reached, the connection stops reading until
+ * half of the stanzas have been dispatched, so that the server is slowed
+ * down by TCP flow control instead of filling up the memory.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+class StanzaPipeline {
+
+	/**
+	 * Receives the parsed packets in order.
+	 */
+	interface Handler {
+
+		/**
+		 * Processes a received packet.
+		 *
+		 * @param packet
+		 *            the packet.
+		 */
+		void packetRead(Packet packet);
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(StanzaPipeline.class);
+
+	private final Executor executor;
+
+	private final PacketReader packetReader;
+
+	private final Handler handler;
+
+	private final NioConnection connection;
+
+	private final int maxPending;
+
+	/**
+	 * The stanzas that have been submitted but not dispatched yet, in the
+	 * order of their submission.
+	 */
+	private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+
+	/**
+	 * <tt>true</tt> while a worker dispatches packets.
+	 */
+	private boolean dispatching = false;
+
+	private boolean readingSuspended = false;
+
+	/**
+	 * Creates a pipeline.
+	 *
+	 * @param executor
+	 *            the workers that parse the stanzas.
+	 * @param packetReader
+	 *            the parser of the stanzas.
+	 * @param handler
+	 *            the handler of the packets.
+	 * @param connection
+	 *            the connection which is suspended if too many stanzas are
+	 *            pending.
+	 * @param maxPending
+	 *            the maximum number of pending stanzas.
+	 */
+	StanzaPipeline(Executor executor, PacketReader packetReader, Handler handler,
+			NioConnection connection, int maxPending) {
+		this.executor = executor;
+		this.packetReader = packetReader;
+		this.handler = handler;
+		this.connection = connection;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Submits a stanza to be parsed. Called by the I/O thread.
+	 *
+	 * @param stanza
+	 *            the XML of the stanza.
+	 */
+	void submit(String stanza) {
+		final Entry entry = new Entry(stanza);
+		synchronized (this) {
+			this.pending.add(entry);
+			if (!this.readingSuspended && this.pending.size() >= this.maxPending) {
+				this.readingSuspended = true;
+				this.connection.setReadingSuspended(true);
+			}
+		}
+		try {
+			this.executor.execute(entry);
+		} catch (RejectedExecutionException e) {
+			// the component is shutting down
+			entry.complete(null);
+		}
+	}
+
+	/**
+	 * @return the number of stanzas that have not been dispatched yet.
+	 */
+	synchronized int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * @return <tt>true</tt> while the connection is asked not to read.
+	 */
+	synchronized boolean isReadingSuspended() {
+		return this.readingSuspended;
+	}
+
+	/**
+	 * Dispatches the packets of all completed stanzas at the head of the
+	 * queue, unless another worker already does.
+	 */
+	private void dispatch() {
+		synchronized (this) {
+			if (this.dispatching) {
+				return;
+			}
+			this.dispatching = true;
+		}
+		while (true) {
+			final Entry head;
+			synchronized (this) {
+				head = this.pending.peek();
+				if (head == null || !head.completed) {
+					this.dispatching = false;
+					return;
+				}
+				this.pending.poll();
+				if (this.readingSuspended && this.pending.size() <= this.maxPending / 2) {
+					this.readingSuspended = false;
+					this.connection.setReadingSuspended(false);
+				}
+			}
+			if (head.packet != null) {
+				try {
+					this.handler.packetRead(head.packet);
+				} catch (Exception e) {
+					log.warn("Error processing packet: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * A submitted stanza and its packet.
+	 */
+	private final class Entry implements Runnable {
+
+		private final String stanza;
+
+		private Packet packet;
+
+		private boolean completed = false;
+
+		private Entry(String stanza) {
+			this.stanza = stanza;
+		}
+
+		public void run() {
+			Packet packet = null;
+			try {
+				packet = packetReader.read(this.stanza);
+			} catch (Exception e) {
+				log.error("Error parsing stanza: " + e.getMessage());
+			}
+			complete(packet);
+		}
+
+		private void complete(Packet packet) {
+			synchronized (StanzaPipeline.this) {
+				this.packet = packet;
+				this.completed = true;
+			}
+			dispatch();
+		}
+	}
+
+}
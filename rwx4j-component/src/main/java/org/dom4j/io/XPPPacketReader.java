@@ -64,6 +64,11 @@ public class XPPPacketReader {
      */
     private DispatchHandler dispatchHandler;
 
+    /**
+     * Caches the names of the parsed elements and attributes
+     */
+    private QNameTable qnameTable;
+
 
     public XPPPacketReader() {
     }
@@ -228,6 +233,7 @@ public class XPPPacketReader {
      */
     public void setDocumentFactory(DocumentFactory factory) {
         this.factory = factory;
+        this.qnameTable = null;
     }
 
 
@@ -269,8 +275,32 @@ public class XPPPacketReader {
     // Implementation methods
     //-------------------------------------------------------------------------
     public Document parseDocument() throws DocumentException, IOException, XmlPullParserException {
+        Document document = getDocumentFactory().createDocument();
+        parse(document);
+        return document;
+    }
+
+    /**
+     * <p>Reads the next element from the parser without wrapping it into a
+     * <code>Document</code>. This avoids the allocation of a document for every
+     * stanza of an XMPP stream.</p>
+     *
+     * @return the element or <code>null</code> if the end of the enclosing element
+     *         or document has been reached.
+     * @throws DocumentException if an error occurs during parsing.
+     */
+    public Element parseElement() throws DocumentException, IOException, XmlPullParserException {
+        return parse(null);
+    }
+
+    /**
+     * Parses the next element. Processing instructions and comments outside of the
+     * element are added to the document, or dropped if there is no document.
+     */
+    private Element parse(Document document) throws DocumentException, IOException, XmlPullParserException {
         DocumentFactory df = getDocumentFactory();
-        Document document = df.createDocument();
+        QNameTable names = getQNameTable();
+        Element root = null;
         Element parent = null;
         XmlPullParser pp = getXPPParser();
         int count = 0;
@@ -279,19 +309,21 @@ public class XPPPacketReader {
             type = pp.nextToken();
             switch (type) {
                 case XmlPullParser.PROCESSING_INSTRUCTION: {
-                    String text = pp.getText();
-                    int loc = text.indexOf(" ");
-                    if (loc >= 0) {
-                        document.addProcessingInstruction(text.substring(0, loc), text.substring(loc + 1));
+                    if (document != null) {
+                        String text = pp.getText();
+                        int loc = text.indexOf(" ");
+                        if (loc >= 0) {
+                            document.addProcessingInstruction(text.substring(0, loc), text.substring(loc + 1));
+                        }
+                        else
+                            document.addProcessingInstruction(text, "");
                     }
-                    else
-                        document.addProcessingInstruction(text, "");
                     break;
                 }
                 case XmlPullParser.COMMENT: {
                     if (parent != null)
                         parent.addComment(pp.getText());
-                    else
+                    else if (document != null)
                         document.addComment(pp.getText());
                     break;
                 }
@@ -321,22 +353,22 @@ public class XPPPacketReader {
                     break;
                 }
                 case XmlPullParser.END_DOCUMENT: {
-                    return document;
+                    return root;
                 }
                 case XmlPullParser.START_TAG: {
-                    QName qname = (pp.getPrefix() == null) ? df.createQName(pp.getName(), pp.getNamespace()) : df.createQName(pp.getName(), pp.getPrefix(), pp.getNamespace());
+                    String namespace = pp.getNamespace();
                     Element newElement = null;
                     // Do not include the namespace if this is the start tag of a new packet
                     // This avoids including "jabber:client", "jabber:server" or
                     // "jabber:component:accept"
-                    if ("jabber:client".equals(qname.getNamespaceURI()) ||
-                            "jabber:server".equals(qname.getNamespaceURI()) ||
-                            "jabber:component:accept".equals(qname.getNamespaceURI()) ||
-                            "http://jabber.org/protocol/httpbind".equals(qname.getNamespaceURI())) {
-                        newElement = df.createElement(pp.getName());
+                    if ("jabber:client".equals(namespace) ||
+                            "jabber:server".equals(namespace) ||
+                            "jabber:component:accept".equals(namespace) ||
+                            "http://jabber.org/protocol/httpbind".equals(namespace)) {
+                        newElement = df.createElement(names.get(pp.getName(), null, ""));
                     }
                     else {
-                        newElement = df.createElement(qname);
+                        newElement = df.createElement(names.get(pp.getName(), pp.getPrefix(), namespace));
                     }
                     int nsStart = pp.getNamespaceCount(pp.getDepth() - 1);
                     int nsEnd = pp.getNamespaceCount(pp.getDepth());
@@ -344,14 +376,17 @@ public class XPPPacketReader {
                         if (pp.getNamespacePrefix(i) != null)
                             newElement.addNamespace(pp.getNamespacePrefix(i), pp.getNamespaceUri(i));
                     for (int i = 0; i < pp.getAttributeCount(); i++) {
-                        QName qa = (pp.getAttributePrefix(i) == null) ? df.createQName(pp.getAttributeName(i)) : df.createQName(pp.getAttributeName(i), pp.getAttributePrefix(i), pp.getAttributeNamespace(i));
+                        QName qa = (pp.getAttributePrefix(i) == null) ? names.get(pp.getAttributeName(i), null, "") : names.get(pp.getAttributeName(i), pp.getAttributePrefix(i), pp.getAttributeNamespace(i));
                         newElement.addAttribute(qa, pp.getAttributeValue(i));
                     }
                     if (parent != null) {
                         parent.add(newElement);
                     }
                     else {
-                        document.add(newElement);
+                        root = newElement;
+                        if (document != null) {
+                            document.add(newElement);
+                        }
                     }
                     parent = newElement;
                     count++;
@@ -363,7 +398,7 @@ public class XPPPacketReader {
                     }
                     count--;
                     if (count < 1) {
-                        return document;
+                        return root;
                     }
                     break;
                 }
@@ -387,6 +422,13 @@ public class XPPPacketReader {
         }
     }
 
+    private QNameTable getQNameTable() {
+        if (qnameTable == null) {
+            qnameTable = new QNameTable(getDocumentFactory());
+        }
+        return qnameTable;
+    }
+
     protected DispatchHandler getDispatchHandler() {
         if (dispatchHandler == null) {
             dispatchHandler = new DispatchHandler();
@@ -404,6 +446,44 @@ public class XPPPacketReader {
     protected Reader createReader(InputStream in) throws IOException {
         return new BufferedReader(new InputStreamReader(in));
     }
+
+    /**
+     * <p>A bounded table of the names that have been parsed. Every combination of
+     * local name, prefix and namespace is mapped to a slot by its hash. A lookup
+     * that hits returns the cached <code>QName</code> without any allocation, a
+     * miss replaces the slot. Thus the strings created by the parser for names
+     * are garbage immediately and the parsed elements share their names. The
+     * table is not thread safe, like the reader that owns it.</p>
+     */
+    private static final class QNameTable {
+
+        private static final int SIZE = 1024;
+
+        private final DocumentFactory factory;
+
+        private final QName[] slots = new QName[SIZE];
+
+        private QNameTable(DocumentFactory factory) {
+            this.factory = factory;
+        }
+
+        private QName get(String name, String prefix, String namespace) {
+            if (prefix == null) {
+                prefix = "";
+            }
+            int hash = name.hashCode() * 31 + namespace.hashCode();
+            hash = hash * 31 + prefix.hashCode();
+            int index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+            QName qname = slots[index];
+            if (qname == null || !name.equals(qname.getName())
+                    || !namespace.equals(qname.getNamespaceURI())
+                    || !prefix.equals(qname.getNamespacePrefix())) {
+                qname = factory.createQName(name, prefix, namespace);
+                slots[index] = qname;
+            }
+            return qname;
+        }
+    }
 }
 
 /*
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.component.CircuitBreaker.Outcome;
+import de.tu_berlin.cit.rwx4j.component.CircuitBreaker.Permit;
+import de.tu_berlin.cit.rwx4j.component.CircuitBreaker.State;
+
+/**
+ * Tests the state changes of the circuit breaker.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void breakerOpensOnFailuresAndClosesAfterProbes() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, 50, 2);
+		breaker.acquire("peer").record(Outcome.SUCCESS);
+		breaker.acquire("peer").record(Outcome.SUCCESS);
+		breaker.acquire("peer").record(Outcome.ERROR);
+		Assert.assertEquals(State.CLOSED, breaker.getState("peer"));
+		Permit stale = breaker.acquire("peer");
+		breaker.acquire("peer").record(Outcome.TIMEOUT);
+		Assert.assertEquals(State.OPEN, breaker.getState("peer"));
+		Assert.assertEquals(0.25, breaker.getErrorRate("peer"), 0.001);
+		Assert.assertEquals(0.25, breaker.getTimeoutRate("peer"), 0.001);
+
+		Assert.assertNull(breaker.acquire("peer"));
+		Assert.assertEquals(1, breaker.getRejected("peer"));
+		// other peers are not affected
+		Assert.assertNotNull(breaker.acquire("other"));
+
+		Thread.sleep(100);
+		Permit first = breaker.acquire("peer");
+		Permit second = breaker.acquire("peer");
+		Assert.assertEquals(State.HALF_OPEN, breaker.getState("peer"));
+		Assert.assertNotNull(first);
+		Assert.assertNotNull(second);
+		Assert.assertNull(breaker.acquire("peer"));
+		// requests permitted before the breaker opened are not probes
+		stale.record(Outcome.SUCCESS);
+		first.record(Outcome.SUCCESS);
+		Assert.assertEquals(State.HALF_OPEN, breaker.getState("peer"));
+		second.record(Outcome.SUCCESS);
+		Assert.assertEquals(State.CLOSED, breaker.getState("peer"));
+		Assert.assertEquals(0, breaker.getErrorRate("peer"), 0.001);
+	}
+
+	@Test
+	public void failedProbeReopensBreaker() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 2, 1.0, 60000, 1);
+		breaker.acquire("peer").record(Outcome.TIMEOUT);
+		breaker.acquire("peer").record(Outcome.IGNORED);
+		Assert.assertEquals(State.CLOSED, breaker.getState("peer"));
+		breaker.acquire("peer").record(Outcome.TIMEOUT);
+		Assert.assertEquals(State.OPEN, breaker.getState("peer"));
+
+		// a sign of life ends the open time early
+		breaker.alive("peer");
+		Permit probe = breaker.acquire("peer");
+		Assert.assertNotNull(probe);
+		probe.record(Outcome.ERROR);
+		Assert.assertEquals(State.OPEN, breaker.getState("peer"));
+		Assert.assertNull(breaker.acquire("peer"));
+	}
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the caching of discovery results and the verification of entity
+ * capabilities with the examples of XEP-0115.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class DiscoveryCacheTest {
+
+	private static final String SIMPLE = "<query xmlns='http://jabber.org/protocol/disco#info'>"
+			+ "<identity category='client' name='Exodus 0.9.1' type='pc'/>"
+			+ "<feature var='http://jabber.org/protocol/caps'/>"
+			+ "<feature var='http://jabber.org/protocol/disco#info'/>"
+			+ "<feature var='http://jabber.org/protocol/disco#items'/>"
+			+ "<feature var='http://jabber.org/protocol/muc'/></query>";
+
+	private static final String COMPLEX = "<query xmlns='http://jabber.org/protocol/disco#info'>"
+			+ "<identity xml:lang='en' category='client' name='Psi 0.11' type='pc'/>"
+			+ "<identity xml:lang='el' category='client' name='\u03a8 0.11' type='pc'/>"
+			+ "<feature var='http://jabber.org/protocol/caps'/>"
+			+ "<feature var='http://jabber.org/protocol/disco#info'/>"
+			+ "<feature var='http://jabber.org/protocol/disco#items'/>"
+			+ "<feature var='http://jabber.org/protocol/muc'/>"
+			+ "<x xmlns='jabber:x:data' type='result'>"
+			+ "<field var='FORM_TYPE' type='hidden'><value>urn:xmpp:dataforms:softwareinfo</value></field>"
+			+ "<field var='ip_version'><value>ipv4</value><value>ipv6</value></field>"
+			+ "<field var='os'><value>Mac</value></field>"
+			+ "<field var='os_version'><value>10.5.1</value></field>"
+			+ "<field var='software'><value>Psi</value></field>"
+			+ "<field var='software_version'><value>0.11</value></field>"
+			+ "</x></query>";
+
+	private static Element parse(String xml) throws Exception {
+		return DocumentHelper.parseText(xml).getRootElement();
+	}
+
+	private static class CountingDiscovery implements Function<String, CompletableFuture<IntercloudDiscoFeatures>> {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final CompletableFuture<IntercloudDiscoFeatures> result = new CompletableFuture<IntercloudDiscoFeatures>();
+
+		public CompletableFuture<IntercloudDiscoFeatures> apply(String jid) {
+			this.count.incrementAndGet();
+			return this.result;
+		}
+	}
+
+	@Test
+	public void computesCapabilityHashes() throws Exception {
+		Assert.assertEquals("QgayPKawpkPSDYmwT/WM94uAlu0=", DiscoveryCache.computeHash(parse(SIMPLE)));
+		Assert.assertEquals("q07IKJEyjvHSyhy//CH0CxmKi8w=", DiscoveryCache.computeHash(parse(COMPLEX)));
+	}
+
+	@Test
+	public void concurrentLookupsShareOneRequest() throws Exception {
+		DiscoveryCache cache = new DiscoveryCache(60000);
+		CountingDiscovery discovery = new CountingDiscovery();
+		CompletableFuture<IntercloudDiscoFeatures> first = cache.getFeatures("a@example.com", discovery);
+		CompletableFuture<IntercloudDiscoFeatures> second = cache.getFeatures("a@example.com", discovery);
+		Assert.assertFalse(first.isDone());
+		discovery.result.complete(cache.verify("a@example.com", parse(SIMPLE)));
+		Assert.assertEquals(4, second.join().getFeatures().size());
+		Assert.assertSame(first.join(), cache.getFeatures("a@example.com", discovery).join());
+		Assert.assertEquals(1, discovery.count.get());
+	}
+
+	@Test
+	public void failedLookupsAreRepeated() {
+		DiscoveryCache cache = new DiscoveryCache(60000);
+		CountingDiscovery discovery = new CountingDiscovery();
+		CompletableFuture<IntercloudDiscoFeatures> first = cache.getFeatures("a@example.com", discovery);
+		discovery.result.completeExceptionally(new IllegalStateException());
+		Assert.assertTrue(first.isCompletedExceptionally());
+		Assert.assertEquals(0, cache.size());
+		cache.getFeatures("a@example.com", discovery);
+		Assert.assertEquals(2, discovery.count.get());
+	}
+
+	@Test
+	public void verifiedCapabilitiesAreReused() throws Exception {
+		DiscoveryCache cache = new DiscoveryCache(60000);
+		cache.verify("a@example.com", parse(SIMPLE));
+
+		// another entity with the same capabilities is not queried
+		CountingDiscovery discovery = new CountingDiscovery();
+		cache.advertise("b@example.com", "sha-1", "QgayPKawpkPSDYmwT/WM94uAlu0=");
+		IntercloudDiscoFeatures features = cache.getFeatures("b@example.com", discovery).join();
+		Assert.assertEquals("b@example.com", features.getJid());
+		Assert.assertEquals(4, features.getFeatures().size());
+		Assert.assertEquals(0, discovery.count.get());
+
+		// a hash that does not match the features is discarded
+		cache.advertise("c@example.com", "sha-1", "QgayPKawpkPSDYmwT/WM94uAlu0=");
+		cache.verify("c@example.com", parse(COMPLEX));
+		cache.advertise("d@example.com", "sha-1", "forged");
+		cache.getFeatures("d@example.com", discovery);
+		Assert.assertEquals(1, discovery.count.get());
+	}
+
+}
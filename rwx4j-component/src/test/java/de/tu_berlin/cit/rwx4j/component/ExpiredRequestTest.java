@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Parameter;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.container.ResourceInstance;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.RawStanza;
+
+/**
+ * Tests the handling of requests whose deadline has expired.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class ExpiredRequestTest {
+
+	@Path("/echo")
+	public static class EchoResource extends ResourceInstance {
+
+		@XmppAction("echo")
+		public String echo(@Parameter("text") String text) {
+			return text;
+		}
+	}
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+	}
+
+	private static class CountingParser implements RawStanza.Parser {
+
+		private int count = 0;
+
+		public Element readElement(String stanza) throws Exception {
+			this.count++;
+			return DocumentHelper.parseText(stanza).getRootElement();
+		}
+	}
+
+	private static IQ createRequest(String timeout, CountingParser parser) {
+		return new IQ(RawStanza.scan("<iq type='set' id='1' from='user@example.org/a' to='test.example.org'>"
+				+ "<rest xmlns='urn:xmpp:xml-rest' path='/echo' idempotencyKey='key'" + timeout + ">"
+				+ "<action name='echo'><parameter name='text'><STRING>hello</STRING></parameter></action>"
+				+ "</rest></iq>", parser));
+	}
+
+	@Test
+	public void expiredRequestsAreAnsweredWithoutExecution() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		container.addResource(new EchoResource());
+		TestComponent component = new TestComponent(container);
+
+		CountingParser parser = new CountingParser();
+		IQ response = component.handleIQSet(createRequest(" timeout='0'", parser));
+		Assert.assertEquals(IQ.Type.error, response.getType());
+		Assert.assertEquals(Condition.resource_constraint, response.getErrorReadOnly().getCondition());
+		Assert.assertEquals(1, component.getExpiredRequestCount());
+		Assert.assertEquals(0, parser.count);
+
+		// the expired request has not been stored, so a retry is executed
+		response = component.handleIQSet(createRequest("", parser));
+		Assert.assertEquals(IQ.Type.result, response.getType());
+		Assert.assertEquals(1, component.getExpiredRequestCount());
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the windows of the flow control.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class FlowControlTest {
+
+	private static class CountingSender implements Runnable {
+
+		private final AtomicInteger sent = new AtomicInteger();
+
+		public void run() {
+			this.sent.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void requestsBeyondTheWindowAreQueued() {
+		FlowControl flowControl = new FlowControl(2, 1, 4, 2);
+		CountingSender sender = new CountingSender();
+		List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 4; i++) {
+			CompletableFuture<String> response = new CompletableFuture<String>();
+			flowControl.send("peer", response, sender);
+			responses.add(response);
+		}
+		Assert.assertEquals(2, sender.sent.get());
+		Assert.assertEquals(2, flowControl.getInFlight("peer"));
+		Assert.assertEquals(2, flowControl.getQueueDepth("peer"));
+		try {
+			flowControl.send("peer", new CompletableFuture<String>(), sender);
+			Assert.fail();
+		} catch (RejectedExecutionException e) {
+			// the queue is full
+		}
+		// other peers have their own window
+		flowControl.send("other", new CompletableFuture<String>(), sender);
+		Assert.assertEquals(3, sender.sent.get());
+
+		// a queued request that times out is not sent
+		responses.get(2).completeExceptionally(new TimeoutException());
+		Assert.assertEquals(1, flowControl.getQueueDepth("peer"));
+
+		responses.get(0).complete("response");
+		Assert.assertEquals(4, sender.sent.get());
+		Assert.assertEquals(2, flowControl.getInFlight("peer"));
+		Assert.assertEquals(0, flowControl.getQueueDepth("peer"));
+	}
+
+	@Test
+	public void queuedRequestsThatTimeOutAreSkipped() {
+		FlowControl flowControl = new FlowControl(1, 1, 1, 100);
+		final List<Integer> sent = new ArrayList<Integer>();
+		List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 101; i++) {
+			final int index = i;
+			CompletableFuture<String> response = new CompletableFuture<String>();
+			flowControl.send("peer", response, new Runnable() {
+				public void run() {
+					sent.add(index);
+				}
+			});
+			responses.add(response);
+		}
+		Assert.assertEquals(100, flowControl.getQueueDepth("peer"));
+
+		// every other queued request times out
+		for (int i = 1; i <= 100; i += 2) {
+			responses.get(i).completeExceptionally(new TimeoutException());
+		}
+		Assert.assertEquals(50, flowControl.getQueueDepth("peer"));
+		// the queue accepts new requests again
+		flowControl.send("peer", new CompletableFuture<String>(), new CountingSender());
+
+		// the remaining requests are sent in order
+		for (int i = 0; i < 100; i += 2) {
+			responses.get(i).complete("response");
+			Assert.assertEquals(i + 2, (int) sent.get(sent.size() - 1));
+		}
+		Assert.assertEquals(51, sent.size());
+		Assert.assertEquals(1, flowControl.getQueueDepth("peer"));
+	}
+
+	@Test
+	public void windowAdaptsToLatencyAndTimeouts() {
+		FlowControl flowControl = new FlowControl(4, 1, 8, 100);
+		CountingSender sender = new CountingSender();
+		// responses without delay let the window grow
+		for (int i = 0; i < 100; i++) {
+			CompletableFuture<String> response = new CompletableFuture<String>();
+			flowControl.send("peer", response, sender);
+			response.complete("response");
+		}
+		Assert.assertEquals(8, flowControl.getLimit("peer"));
+
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		flowControl.send("peer", response, sender);
+		response.completeExceptionally(new TimeoutException());
+		Assert.assertEquals(4, flowControl.getLimit("peer"));
+		Assert.assertEquals(0, flowControl.getInFlight("peer"));
+	}
+
+}
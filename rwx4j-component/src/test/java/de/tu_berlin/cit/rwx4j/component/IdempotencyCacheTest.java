@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the deduplication of request executions.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class IdempotencyCacheTest {
+
+	@Test
+	public void duplicateReceivesRegisteredExecution() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(10, 60000);
+		CompletableFuture<String> first = new CompletableFuture<String>();
+		Assert.assertNull(cache.register("a", first));
+
+		// in-flight duplicate attaches to the running execution
+		Assert.assertSame(first, cache.register("a", new CompletableFuture<String>()));
+		first.complete("done");
+		// retry receives the stored response
+		Assert.assertEquals("done", cache.register("a", new CompletableFuture<String>()).join());
+	}
+
+	@Test
+	public void reusedKeyWithAnotherFingerprintConflicts() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(10, 60000);
+		CompletableFuture<String> first = new CompletableFuture<String>();
+		Assert.assertNull(cache.register("a", "payload", first));
+		Assert.assertSame(first, cache.register("a", "payload", new CompletableFuture<String>()));
+		try {
+			cache.register("a", "other", new CompletableFuture<String>());
+			Assert.fail();
+		} catch (IdempotencyCache.ConflictException e) {
+			// expected
+		}
+		// executions without fingerprint are not compared
+		Assert.assertSame(first, cache.register("a", new CompletableFuture<String>()));
+	}
+
+	@Test
+	public void removedExecutionIsExecutedAgain() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(10, 60000);
+		CompletableFuture<String> first = new CompletableFuture<String>();
+		cache.register("a", first);
+		cache.remove("a", first);
+		Assert.assertNull(cache.register("a", new CompletableFuture<String>()));
+	}
+
+	@Test
+	public void completedExecutionsAreBounded() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(2, 60000);
+		for (int i = 0; i < 10; i++) {
+			cache.register("key" + i, CompletableFuture.completedFuture("value"));
+		}
+		Assert.assertTrue(cache.size() <= 3);
+	}
+
+	@Test
+	public void runningExecutionDoesNotStopEviction() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(2, 60000);
+		CompletableFuture<String> running = new CompletableFuture<String>();
+		cache.register("running", running);
+		for (int i = 0; i < 10; i++) {
+			cache.register("key" + i, CompletableFuture.completedFuture("value"));
+		}
+		Assert.assertTrue(cache.size() <= 3);
+		// the running execution is kept
+		Assert.assertSame(running, cache.register("running", new CompletableFuture<String>()));
+	}
+
+	@Test
+	public void completedExecutionsExpire() throws InterruptedException {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(10, 1);
+		cache.register("a", CompletableFuture.completedFuture("value"));
+		Thread.sleep(10);
+		Assert.assertNull(cache.register("a", new CompletableFuture<String>()));
+	}
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Parameter;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.Produces;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.annotations.XmppMethod;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.container.ResourceInstance;
+import de.tu_berlin.cit.rwx4j.representations.PlainText;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+
+/**
+ * Tests the handling of retried requests with an idempotency key.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class IdempotentRequestTest {
+
+	private static final CountDownLatch started = new CountDownLatch(1);
+
+	private static final CountDownLatch release = new CountDownLatch(1);
+
+	@Path("/echo")
+	public static class EchoResource extends ResourceInstance {
+
+		@XmppAction("echo")
+		public String echo(@Parameter("text") String text) {
+			return text;
+		}
+	}
+
+	@Path("/counter")
+	public static class CounterResource extends ResourceInstance {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@XmppMethod(XmppMethod.GET)
+		@Produces(value = PlainText.MEDIA_TYPE, serializer = PlainText.class)
+		public PlainText getCount() {
+			return new PlainText(String.valueOf(this.count.incrementAndGet()));
+		}
+	}
+
+	@Path("/slow")
+	public static class SlowResource extends ResourceInstance {
+
+		@XmppAction("echo")
+		public String echo(@Parameter("text") String text) throws InterruptedException {
+			started.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return text;
+		}
+	}
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+
+		@Override
+		protected void send(Packet packet) {
+			this.sent.add(packet);
+		}
+
+		private boolean isDeferred(IQ response) {
+			return response == DEFERRED_RESPONSE;
+		}
+	}
+
+	private static IQ createRequest(String id, String path, String text) throws DocumentException {
+		return new IQ(DocumentHelper.parseText("<iq type='set' id='" + id + "' from='user@example.org/a' to='test.example.org'>"
+				+ "<rest xmlns='urn:xmpp:xml-rest' path='" + path + "' idempotencyKey='key'>"
+				+ "<action name='echo'><parameter name='text'><STRING>" + text + "</STRING></parameter></action>"
+				+ "</rest></iq>").getRootElement());
+	}
+
+	@Test
+	public void reusedKeyWithAnotherPayloadIsRejected() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		container.addResource(new EchoResource());
+		TestComponent component = new TestComponent(container);
+
+		IQ response = component.handleIQSet(createRequest("1", "/echo", "hello"));
+		Assert.assertEquals(IQ.Type.result, response.getType());
+
+		// a retry is answered with the stored response
+		response = component.handleIQSet(createRequest("2", "/echo", "hello"));
+		Assert.assertEquals(IQ.Type.result, response.getType());
+		Assert.assertEquals("2", response.getID());
+
+		response = component.handleIQSet(createRequest("3", "/echo", "other"));
+		Assert.assertEquals(IQ.Type.error, response.getType());
+		Assert.assertEquals(Condition.conflict, response.getErrorReadOnly().getCondition());
+	}
+
+	@Test
+	public void readsAreNotStored() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		CounterResource resource = new CounterResource();
+		container.addResource(resource);
+		TestComponent component = new TestComponent(container);
+
+		for (int i = 0; i < 2; i++) {
+			IQ response = component.handleIQSet(new IQ(DocumentHelper.parseText(
+					"<iq type='set' id='1' from='user@example.org/a' to='test.example.org'>"
+					+ "<rest xmlns='urn:xmpp:xml-rest' path='/counter'>"
+					+ "<method type='GET'><response mediaType='" + PlainText.MEDIA_TYPE + "'/></method>"
+					+ "</rest></iq>").getRootElement()));
+			Assert.assertEquals(IQ.Type.result, response.getType());
+		}
+		// the read with the reused id has been executed again
+		Assert.assertEquals(2, resource.count.get());
+	}
+
+	@Test
+	public void retryOfRunningRequestIsAnsweredLater() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		container.addResource(new SlowResource());
+		final TestComponent component = new TestComponent(container);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<IQ> first = executor.submit(new Callable<IQ>() {
+				public IQ call() throws Exception {
+					return component.handleIQSet(createRequest("1", "/slow", "hello"));
+				}
+			});
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			// the retry does not block the calling thread
+			IQ retry = component.handleIQSet(createRequest("2", "/slow", "hello"));
+			Assert.assertTrue(component.isDeferred(retry));
+			Assert.assertTrue(component.sent.isEmpty());
+
+			release.countDown();
+			Assert.assertEquals(IQ.Type.result, first.get(5, TimeUnit.SECONDS).getType());
+			IQ response = (IQ) component.sent.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull(response);
+			Assert.assertEquals(IQ.Type.result, response.getType());
+			Assert.assertEquals("2", response.getID());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Parameter;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.container.ResourceInstance;
+import de.tu_berlin.cit.rwx4j.rest.RestDocument;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+import de.tu_berlin.cit.rwx4j.xwadl.XwadlDocument;
+
+/**
+ * Tests the requests of sockets to components in the same process.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class LocalRoutingTest {
+
+	@Path("/echo")
+	public static class EchoResource extends ResourceInstance {
+
+		@XmppAction("echo")
+		public String echo(@Parameter("text") String text) {
+			return text;
+		}
+	}
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+	}
+
+	private static RestDocument createEchoRequest(String path) {
+		RestDocument request = RestDocument.Factory.newInstance();
+		request.addNewRest().setPath(path);
+		request.getRest().addNewAction().setName("echo");
+		request.getRest().getAction().addNewParameter().setName("text");
+		request.getRest().getAction().getParameterArray(0).setSTRING("hello");
+		return request;
+	}
+
+	@Test
+	public void requestsToLocalComponentsBypassXmpp() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("b.example.org", ""));
+		container.addResource(new EchoResource());
+		TestComponent a = new TestComponent(new ResourceContainer(new XmppURI("a.example.org", "")));
+		// a second component in the same process gets its own socket manager
+		TestComponent b = new TestComponent(container);
+		a.initialize(new JID("a.example.org"), null);
+		b.initialize(new JID("b.example.org"), null);
+		b.start();
+		try {
+			ResourceContainerSocket socket = ResourceContainerSocketManager.getInstance()
+					.createSocket("b.example.org");
+
+			RestDocument response = socket.invokeRestXMLAsync(createEchoRequest("/echo"))
+					.get(5, TimeUnit.SECONDS);
+			Assert.assertEquals("hello", response.getRest().getAction().getResult().getSTRING());
+
+			XwadlDocument xwadl = socket.requestXWADLAsync("/echo").get(5, TimeUnit.SECONDS);
+			Assert.assertEquals("/echo", xwadl.getXwadl().getPath());
+
+			// failures are reported like the error responses of remote components
+			try {
+				socket.invokeRestXMLAsync(createEchoRequest("/missing")).get(5, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException e) {
+				RemoteRequestException failure = (RemoteRequestException) e.getCause();
+				Assert.assertEquals("b.example.org", failure.getJid());
+				Assert.assertEquals(Condition.item_not_found, failure.getError().getCondition());
+			}
+
+			// the timeout applies to requests with an idempotency key as well
+			RestDocument expired = createEchoRequest("/echo");
+			expired.getRest().setIdempotencyKey("key");
+			expired.getRest().setTimeout(0);
+			try {
+				socket.invokeRestXMLAsync(expired).get(5, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException e) {
+				RemoteRequestException failure = (RemoteRequestException) e.getCause();
+				Assert.assertEquals(Condition.resource_constraint, failure.getError().getCondition());
+			}
+		} finally {
+			b.preComponentShutdown();
+		}
+		Assert.assertNull(ResourceContainerSocketManager.getInstance().getLocalComponent("b.example.org"));
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.util.TimingWheel;
+
+/**
+ * Tests the correlation of requests with their responses.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class PendingRequestsTest {
+
+	private final TimingWheel timer = new TimingWheel("test", 5, 64);
+
+	@Test
+	public void responsesCompleteTheirRequests() {
+		PendingRequests requests = new PendingRequests(this.timer);
+		IQ first = new IQ(IQ.Type.get, "1");
+		IQ second = new IQ(IQ.Type.set, "2");
+		CompletableFuture<IQ> firstResponse = requests.register(first, 60000);
+		CompletableFuture<IQ> secondResponse = requests.register(second, 60000);
+		Assert.assertEquals(2, requests.size());
+
+		// responses may arrive in any order
+		IQ error = IQ.createResultIQ(second);
+		error.setType(IQ.Type.error);
+		Assert.assertTrue(requests.complete(error));
+		Assert.assertSame(error, secondResponse.join());
+		Assert.assertFalse(firstResponse.isDone());
+		Assert.assertFalse(requests.complete(error));
+
+		IQ result = IQ.createResultIQ(first);
+		Assert.assertTrue(requests.complete(result));
+		Assert.assertSame(result, firstResponse.join());
+		Assert.assertEquals(0, requests.size());
+	}
+
+	@Test
+	public void responsesFromOtherEntitiesAreIgnored() {
+		PendingRequests requests = new PendingRequests(this.timer);
+		IQ request = new IQ(IQ.Type.get, "1");
+		request.setTo("container.example.org");
+		CompletableFuture<IQ> response = requests.register(request, 60000);
+
+		IQ spoofed = IQ.createResultIQ(request);
+		spoofed.setFrom("other.example.org");
+		Assert.assertFalse(requests.complete(spoofed));
+		Assert.assertFalse(response.isDone());
+
+		IQ result = IQ.createResultIQ(request);
+		Assert.assertTrue(requests.complete(result));
+		Assert.assertSame(result, response.join());
+	}
+
+	@Test
+	public void unansweredRequestsTimeOut() throws Exception {
+		PendingRequests requests = new PendingRequests(this.timer);
+		CompletableFuture<IQ> response = requests.register(new IQ(IQ.Type.get, "1"), 10);
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertEquals(0, requests.size());
+	}
+
+	@Test
+	public void cancelledRequestsAreRemoved() {
+		PendingRequests requests = new PendingRequests(this.timer);
+		requests.register(new IQ(IQ.Type.get, "1"), 60000).cancel(false);
+		Assert.assertEquals(0, requests.size());
+
+		CompletableFuture<IQ> response = requests.register(new IQ(IQ.Type.get, "1"), 60000);
+		// the id is still pending
+		CompletableFuture<IQ> duplicate = requests.register(new IQ(IQ.Type.get, "1"), 60000);
+		try {
+			duplicate.join();
+			Assert.fail();
+		} catch (CompletionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		Assert.assertFalse(response.isDone());
+		requests.cancelAll();
+		Assert.assertTrue(response.isCompletedExceptionally());
+		Assert.assertEquals(0, requests.size());
+	}
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.RateLimit;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.container.ResourceInstance;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.RawStanza;
+
+/**
+ * Tests the rate limits of the operations of resources.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RateLimitTest {
+
+	@Path("/limited")
+	public static class LimitedResource extends ResourceInstance {
+
+		@XmppAction("ping")
+		@RateLimit(value = 1, burst = 1)
+		public void ping() {
+		}
+
+		@XmppAction("broken")
+		@RateLimit(0)
+		public void broken() {
+		}
+	}
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+	}
+
+	private static class FailingParser implements RawStanza.Parser {
+
+		public Element readElement(String stanza) throws Exception {
+			throw new AssertionError("the request must not be parsed");
+		}
+	}
+
+	private static IQ createRequest(String operation) {
+		return new IQ(RawStanza.scan("<iq type='set' id='1' from='user@example.org/a' to='test.example.org'>"
+				+ "<rest xmlns='urn:xmpp:xml-rest' path='/limited'>" + operation + "</rest></iq>",
+				new FailingParser()));
+	}
+
+	@Test
+	public void limitsAreCheckedWithoutParsing() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		container.addResource(new LimitedResource());
+		TestComponent component = new TestComponent(container);
+
+		Assert.assertTrue(component.isWithinRequestRateLimit(createRequest("<action name='ping'/>")));
+		Assert.assertFalse(component.isWithinRequestRateLimit(createRequest("<action name='ping'/>")));
+		// operations without a limit
+		Assert.assertTrue(component.isWithinRequestRateLimit(createRequest("<method type='GET'/>")));
+		Assert.assertTrue(component.isWithinRequestRateLimit(createRequest("<action name='other'/>")));
+	}
+
+	@Test
+	public void invalidLimitsRejectRequests() throws Exception {
+		ResourceContainer container = new ResourceContainer(new XmppURI("test.example.org", ""));
+		container.addResource(new LimitedResource());
+		TestComponent component = new TestComponent(container);
+
+		Assert.assertFalse(component.isWithinRequestRateLimit(createRequest("<action name='broken'/>")));
+		Assert.assertFalse(component.isWithinRequestRateLimit(createRequest("<action name='broken'/>")));
+	}
+
+}
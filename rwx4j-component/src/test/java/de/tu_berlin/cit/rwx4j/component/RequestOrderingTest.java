@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.container.ResourceInstance;
+import de.tu_berlin.cit.rwx4j.rest.RestDocument;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+
+/**
+ * Tests the order in which the REST requests of a sender are processed.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RequestOrderingTest {
+
+	@Path("/wait")
+	public static class WaitingResource extends ResourceInstance {
+
+		private final CountDownLatch latch;
+
+		public WaitingResource(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@XmppAction("wait")
+		public String await() throws InterruptedException {
+			return this.latch.await(5, TimeUnit.SECONDS) ? "released" : "timeout";
+		}
+	}
+
+	@Path("/release")
+	public static class ReleasingResource extends ResourceInstance {
+
+		private final CountDownLatch latch;
+
+		public ReleasingResource(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@XmppAction("release")
+		public String release() {
+			this.latch.countDown();
+			return "ok";
+		}
+	}
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+
+		@Override
+		protected void send(Packet packet) {
+			this.sent.add(packet);
+		}
+	}
+
+	private static IQ createRequest(String id, String path, String action) throws DocumentException {
+		return new IQ(DocumentHelper.parseText("<iq type='set' id='" + id
+				+ "' from='b.example.org' to='a.example.org'>"
+				+ "<rest xmlns='urn:xmpp:xml-rest' path='" + path + "'><action name='" + action + "'/></rest>"
+				+ "</iq>").getRootElement());
+	}
+
+	private static String getResult(Packet packet) throws Exception {
+		IQ response = (IQ) packet;
+		Assert.assertEquals(IQ.Type.result, response.getType());
+		RestDocument xml = RestDocument.Factory.parse(response.getChildElementXML());
+		return xml.getRest().getAction().getResult().getSTRING();
+	}
+
+	/**
+	 * Models two containers that call each other while handling a request:
+	 * the first request of the sender waits until its second request, which
+	 * addresses another resource, has been processed.
+	 */
+	@Test
+	public void requestsToOtherResourcesDoNotWait() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		ResourceContainer container = new ResourceContainer(new XmppURI("a.example.org", ""));
+		container.addResource(new WaitingResource(latch));
+		container.addResource(new ReleasingResource(latch));
+		TestComponent component = new TestComponent(container);
+		component.initialize(new JID("a.example.org"), null);
+		component.start();
+		try {
+			component.processPacket(createRequest("1", "/wait", "wait"));
+			component.processPacket(createRequest("2", "/release", "release"));
+
+			Map<String, Packet> responses = new HashMap<String, Packet>();
+			for (int i = 0; i < 2; i++) {
+				Packet response = component.sent.poll(10, TimeUnit.SECONDS);
+				Assert.assertNotNull(response);
+				responses.put(response.getID(), response);
+			}
+			// the waiting request has been released by the second request
+			// instead of timing out
+			Assert.assertEquals("released", getResult(responses.get("1")));
+			Assert.assertEquals("ok", getResult(responses.get("2")));
+		} finally {
+			component.shutdown();
+		}
+	}
+
+}
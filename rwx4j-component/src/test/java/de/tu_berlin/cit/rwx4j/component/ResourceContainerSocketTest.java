@@ -0,0 +1,195 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.dom4j.DocumentHelper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.container.ResourceContainer;
+import de.tu_berlin.cit.rwx4j.rest.RestDocument;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+
+/**
+ * Tests the completion of the asynchronous requests of sockets to remote
+ * components.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class ResourceContainerSocketTest {
+
+	private static final String REMOTE = "remote.example.org";
+
+	private static class TestComponent extends ResourceContainerComponent {
+
+		private final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+
+		private TestComponent(ResourceContainer container) {
+			super(container);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+
+		@Override
+		protected void sendPacket(Packet packet) {
+			this.sent.add(packet);
+		}
+	}
+
+	private TestComponent component;
+
+	private ResourceContainerSocketManager manager;
+
+	private ResourceContainerSocket socket;
+
+	@Before
+	public void setUp() throws Exception {
+		this.component = new TestComponent(new ResourceContainer(new XmppURI("local.example.org", "")));
+		this.component.initialize(new JID("local.example.org"), null);
+		this.manager = ResourceContainerSocketManager.buildInstance(this.component);
+		this.socket = new ResourceContainerSocket(this.manager, REMOTE);
+	}
+
+	private static RestDocument createRequest() {
+		RestDocument request = RestDocument.Factory.newInstance();
+		request.addNewRest().setPath("/echo");
+		request.getRest().addNewAction().setName("echo");
+		return request;
+	}
+
+	private IQ nextRequest() throws InterruptedException {
+		IQ request = (IQ) this.component.sent.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(request);
+		Assert.assertEquals(REMOTE, request.getTo().toString());
+		return request;
+	}
+
+	@Test
+	public void resultCompletesFuture() throws Exception {
+		CompletableFuture<RestDocument> future = this.socket.invokeRestXMLAsync(createRequest());
+		IQ request = nextRequest();
+		Assert.assertFalse(future.isDone());
+
+		RestDocument result = createRequest();
+		result.getRest().getAction().addNewResult().setSTRING("hello");
+		IQ response = IQ.createResultIQ(request);
+		response.setChildElement(DocumentHelper.parseText(result.toString()).getRootElement());
+		this.manager.handleIQResult(response);
+
+		RestDocument received = future.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals("hello", received.getRest().getAction().getResult().getSTRING());
+	}
+
+	@Test
+	public void errorCompletesFutureExceptionally() throws Exception {
+		CompletableFuture<RestDocument> future = this.socket.invokeRestXMLAsync(createRequest());
+		IQ request = nextRequest();
+
+		IQ response = IQ.createResultIQ(request);
+		response.setError(new PacketError(Condition.item_not_found));
+		this.manager.handleIQError(response);
+
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			RemoteRequestException failure = (RemoteRequestException) e.getCause();
+			Assert.assertEquals(REMOTE, failure.getJid());
+			Assert.assertEquals(Condition.item_not_found, failure.getError().getCondition());
+		}
+	}
+
+	@Test
+	public void missingResponseTimesOut() throws Exception {
+		this.manager.setRequestTimeout(200);
+		CompletableFuture<RestDocument> future = this.socket.invokeRestXMLAsync(createRequest());
+		IQ request = nextRequest();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		// a late response is ignored
+		this.manager.handleIQResult(IQ.createResultIQ(request));
+	}
+
+	@Test
+	public void cancellationGivesUpRequest() throws Exception {
+		CompletableFuture<RestDocument> future = this.socket.invokeRestXMLAsync(createRequest());
+		IQ request = nextRequest();
+		Assert.assertEquals(1, this.manager.getFlowControl().getInFlight(REMOTE));
+
+		Assert.assertTrue(future.cancel(false));
+		Assert.assertEquals(0, this.manager.getFlowControl().getInFlight(REMOTE));
+
+		// a late response is ignored
+		this.manager.handleIQResult(IQ.createResultIQ(request));
+	}
+
+	@Test
+	public void shutdownGivesUpRequestsUntilRestart() throws Exception {
+		CompletableFuture<RestDocument> future = this.socket.invokeRestXMLAsync(createRequest());
+		nextRequest();
+		this.manager.shutdown();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			// the request has been given up
+		}
+
+		// the timer is started again by the next request
+		this.manager.setRequestTimeout(200);
+		future = this.socket.invokeRestXMLAsync(createRequest());
+		nextRequest();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void synchronousRequestReturnsNullOnFailure() throws Exception {
+		this.manager.setRequestTimeout(200);
+		Assert.assertNull(this.socket.invokeRestXML(createRequest()));
+	}
+
+}
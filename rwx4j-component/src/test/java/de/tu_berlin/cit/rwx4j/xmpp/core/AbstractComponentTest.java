@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ.Type;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.JID;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.PacketError.Condition;
+
+/**
+ * Tests the lanes and the admission control of the component.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class AbstractComponentTest {
+
+	private static final String NAMESPACE_BLOCK = "urn:test:block";
+
+	/**
+	 * A component with a single thread and a single admitted request per
+	 * lane, whose requests block until they are released.
+	 */
+	private static class TestComponent extends AbstractComponent {
+
+		private final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final CountDownLatch started = new CountDownLatch(2);
+
+		private TestComponent() {
+			super(1, 1, 1, 1, true);
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "test";
+		}
+
+		@Override
+		protected IQ handleIQGet(IQ iq) throws Exception {
+			return block(iq);
+		}
+
+		@Override
+		protected IQ handleIQSet(IQ iq) throws Exception {
+			return block(iq);
+		}
+
+		private IQ block(IQ iq) throws InterruptedException {
+			this.started.countDown();
+			this.release.await(10, TimeUnit.SECONDS);
+			return IQ.createResultIQ(iq);
+		}
+
+		@Override
+		protected void send(Packet packet) {
+			this.sent.add(packet);
+		}
+	}
+
+	private TestComponent component;
+
+	@Before
+	public void setUp() throws Exception {
+		this.component = new TestComponent();
+		this.component.initialize(new JID("component.example.org"), null);
+		// occupy the thread of the read and the write lane
+		this.component.processPacket(createRequest("reader", Type.get, NAMESPACE_BLOCK));
+		this.component.processPacket(createRequest("writer", Type.set, NAMESPACE_BLOCK));
+		Assert.assertTrue(this.component.started.await(5, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		this.component.release.countDown();
+		this.component.shutdown();
+	}
+
+	private static IQ createRequest(String sender, Type type, String namespace) {
+		IQ request = new IQ(type);
+		request.setFrom(sender + "@example.org/test");
+		request.setTo("component.example.org");
+		request.setChildElement("query", namespace);
+		return request;
+	}
+
+	private IQ nextResponse() throws InterruptedException {
+		IQ response = (IQ) this.component.sent.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(response);
+		return response;
+	}
+
+	@Test
+	public void controlStanzasAreAnsweredWhileLanesAreBusy() throws Exception {
+		IQ ping = createRequest("client", Type.get, AbstractComponent.NAMESPACE_XMPP_PING);
+		this.component.processPacket(ping);
+		IQ response = nextResponse();
+		Assert.assertEquals(ping.getID(), response.getID());
+		Assert.assertEquals(Type.result, response.getType());
+
+		IQ discoInfo = createRequest("client", Type.get, AbstractComponent.NAMESPACE_DISCO_INFO);
+		this.component.processPacket(discoInfo);
+		response = nextResponse();
+		Assert.assertEquals(discoInfo.getID(), response.getID());
+		Assert.assertEquals(Type.result, response.getType());
+	}
+
+	@Test
+	public void rejectedRequestIsAnsweredWithRetryAfter() throws Exception {
+		IQ request = createRequest("client", Type.get, NAMESPACE_BLOCK);
+		this.component.processPacket(request);
+		IQ response = nextResponse();
+		Assert.assertEquals(request.getID(), response.getID());
+		Assert.assertEquals(Type.error, response.getType());
+		Assert.assertEquals(Condition.resource_constraint, response.getError().getCondition());
+
+		Element retryAfter = response.getError().getElement().element(
+				QName.get("retry-after", AbstractComponent.NAMESPACE_RETRY_AFTER));
+		Assert.assertNotNull(retryAfter);
+		Assert.assertTrue(Long.parseLong(retryAfter.attributeValue("millis"))
+				>= AbstractComponent.TARGET_QUEUEING_DELAY_MILLIS);
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the copy-on-write behavior of packet copies.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class PacketCopyTest {
+
+	@Test
+	public void copySharesElementUntilModified() {
+		IQ iq = new IQ(IQ.Type.set, "1");
+		iq.setChildElement("query", "urn:test").addAttribute("value", "a");
+		IQ copy = iq.createCopy();
+		Assert.assertSame(iq.getChildElementReadOnly(), copy.getChildElementReadOnly());
+
+		copy.setType(IQ.Type.result);
+		Assert.assertNotSame(iq.getChildElementReadOnly(), copy.getChildElementReadOnly());
+		Assert.assertEquals(IQ.Type.set, iq.getType());
+		Assert.assertEquals(IQ.Type.result, copy.getType());
+		Assert.assertEquals("a", copy.getChildElement().attributeValue("value"));
+	}
+
+	@Test
+	public void publicAccessorsMayModifyTheElement() {
+		IQ iq = new IQ(IQ.Type.set, "1");
+		iq.setChildElement("query", "urn:test");
+		iq.setError(PacketError.Condition.bad_request);
+		IQ copy = iq.createCopy();
+
+		copy.getChildElement().addAttribute("value", "b");
+		Assert.assertNull(iq.getChildElementReadOnly().attributeValue("value"));
+		Assert.assertEquals("b", copy.getChildElementReadOnly().attributeValue("value"));
+
+		IQ other = iq.createCopy();
+		other.getError().setText("changed");
+		Assert.assertNull(iq.getErrorReadOnly().getText());
+	}
+
+	@Test
+	public void originalIsCopiedOnModification() {
+		Message message = new Message();
+		message.setBody("original");
+		Message copy = message.createCopy();
+
+		message.setBody("changed");
+		Assert.assertEquals("original", copy.getBody());
+		Assert.assertEquals("changed", message.getBody());
+
+		copy.getElement().addAttribute("id", "2");
+		Assert.assertNull(message.getID());
+	}
+
+}
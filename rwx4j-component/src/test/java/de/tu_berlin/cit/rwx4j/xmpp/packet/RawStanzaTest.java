@@ -0,0 +1,128 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the scan of raw stanzas and the lazy parsing of packets.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RawStanzaTest {
+
+	private static final String REQUEST = "<iq type='get' id='a&amp;1' to='component.example.com' from='user@example.com/res'>"
+			+ "<query xmlns='http://jabber.org/protocol/disco#info' node='n'><feature var='x'/></query></iq>";
+
+	private static class CountingParser implements RawStanza.Parser {
+
+		private int count = 0;
+
+		public Element readElement(String stanza) throws Exception {
+			this.count++;
+			return DocumentHelper.parseText(stanza).getRootElement();
+		}
+	}
+
+	@Test
+	public void routesWithoutParsing() {
+		CountingParser parser = new CountingParser();
+		IQ iq = new IQ(RawStanza.scan(REQUEST, parser));
+		Assert.assertEquals(IQ.Type.get, iq.getType());
+		Assert.assertEquals("a&1", iq.getID());
+		Assert.assertEquals("component.example.com", iq.getTo().toString());
+		Assert.assertEquals("user@example.com/res", iq.getFrom().toString());
+		Assert.assertEquals("http://jabber.org/protocol/disco#info", iq.getChildNamespace());
+		Assert.assertEquals(0, parser.count);
+
+		Assert.assertEquals("n", iq.getChildElement().attributeValue("node"));
+		Assert.assertEquals(1, parser.count);
+		Assert.assertNull(iq.getRawStanza());
+		Assert.assertEquals("http://jabber.org/protocol/disco#info", iq.getChildNamespace());
+	}
+
+	@Test
+	public void skipsElementsInStreamNamespace() {
+		RawStanza stanza = RawStanza.scan("<iq type='error' id='1'><error type='cancel'>"
+				+ "<item-not-found xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error>"
+				+ "<p:ping xmlns:p='urn:xmpp:ping'/></iq>", null);
+		Assert.assertEquals("ping", stanza.getChildName());
+		Assert.assertEquals("urn:xmpp:ping", stanza.getChildNamespace());
+
+		stanza = RawStanza.scan("<iq type='result' id='1'/>", null);
+		Assert.assertEquals("iq", stanza.getName());
+		Assert.assertNull(stanza.getChildNamespace());
+	}
+
+	@Test
+	public void providesSelfContainedChildXML() {
+		RawStanza stanza = RawStanza.scan(REQUEST, null);
+		Assert.assertEquals("<query xmlns='http://jabber.org/protocol/disco#info' node='n'><feature var='x'/></query>",
+				stanza.getChildXML());
+
+		stanza = RawStanza.scan("<iq type='get' id='1' xmlns:p='urn:test'><p:query/></iq>", null);
+		Assert.assertEquals("urn:test", stanza.getChildNamespace());
+		Assert.assertNull(stanza.getChildXML());
+	}
+
+	@Test
+	public void readsChildAttributesWithoutParsing() {
+		CountingParser parser = new CountingParser();
+		IQ iq = new IQ(RawStanza.scan("<iq type='set' id='1'><rest xmlns='urn:xmpp:xml-rest' path='/a'>"
+				+ "<method type='GET'><parameter name='x'/></method></rest></iq>", parser));
+		Assert.assertEquals("/a", iq.getChildAttribute("path"));
+		Assert.assertEquals("GET", iq.getChildContentAttribute("method", "type"));
+		Assert.assertNull(iq.getChildContentAttribute("action", "type"));
+		Assert.assertNull(iq.getChildContentAttribute("parameter", "name"));
+		Assert.assertEquals(0, parser.count);
+
+		// the parsed element gives the same answers
+		iq.getChildElement();
+		Assert.assertEquals(1, parser.count);
+		Assert.assertEquals("/a", iq.getChildAttribute("path"));
+		Assert.assertEquals("GET", iq.getChildContentAttribute("method", "type"));
+		Assert.assertNull(iq.getChildContentAttribute("parameter", "name"));
+
+		RawStanza stanza = RawStanza.scan("<iq type='set' id='1'><rest xmlns='urn:xmpp:xml-rest'/></iq>", null);
+		Assert.assertNull(stanza.getChildContentName());
+		Assert.assertNull(stanza.childAttributeValue("path"));
+	}
+
+	@Test
+	public void rejectsUnsupportedStanzas() {
+		Assert.assertNull(RawStanza.scan("<p:iq xmlns:p='jabber:client' type='get'/>", null));
+		Assert.assertNull(RawStanza.scan("<iq id='&custom;'/>", null));
+		Assert.assertNull(RawStanza.scan("<iq id='a\nb'/>", null));
+		Assert.assertNull(RawStanza.scan("<iq type='get'><s:query/></iq>", null));
+	}
+
+	@Test
+	public void copiesParseSeparately() {
+		CountingParser parser = new CountingParser();
+		IQ iq = new IQ(RawStanza.scan(REQUEST, parser));
+		IQ copy = iq.createCopy();
+		copy.setType(IQ.Type.result);
+		Assert.assertEquals(1, parser.count);
+		Assert.assertEquals(IQ.Type.get, iq.getType());
+		Assert.assertEquals(IQ.Type.result, copy.getType());
+		Assert.assertEquals("user@example.com/res", copy.getElement().attributeValue("from"));
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.dom4j.io.XMLWriter;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the stanza encoder produces the same bytes as a dom4j
+ * <code>XMLWriter</code> whose output is encoded as UTF-8.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class StanzaEncoderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static byte[] writeWithXMLWriter(Element... elements) throws Exception {
+		StringWriter out = new StringWriter();
+		XMLWriter writer = new XMLWriter(out);
+		for (Element element : elements) {
+			writer.write(element);
+		}
+		writer.flush();
+		ByteBuffer bytes = UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.encode(CharBuffer.wrap(out.toString()));
+		return Arrays.copyOf(bytes.array(), bytes.limit());
+	}
+
+	private static byte[] encode(StanzaEncoder encoder, Element... elements) {
+		encoder.reset();
+		for (Element element : elements) {
+			encoder.encode(element);
+		}
+		ByteBuffer bytes = encoder.getBytes();
+		byte[] result = new byte[bytes.remaining()];
+		bytes.get(result);
+		return result;
+	}
+
+	private static void assertCompatible(Element... elements) throws Exception {
+		byte[] expected = writeWithXMLWriter(elements);
+		byte[] actual = encode(new StanzaEncoder(16), elements);
+		Assert.assertEquals(new String(expected, UTF8), new String(actual, UTF8));
+		Assert.assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void encodesBuiltPackets() throws Exception {
+		IQ iq = new IQ(IQ.Type.set, "id<&>\"'");
+		iq.setTo("component.example.com");
+		iq.setFrom("user@example.com/res");
+		Element child = iq.setChildElement("rest", "urn:xmpp:xml-rest");
+		child.addAttribute("path", "/a b\t\n\r\u0001\u00e4\u20ac");
+		child.addElement("method").addAttribute("type", "GET")
+				.addText("text <&> \"quoted\" 'single' \u0002 \u00e4\u20ac\ud83d\ude00");
+		child.addElement("plain", "");
+		child.addElement(QName.get("x", Namespace.get("p", "urn:prefixed")))
+				.addAttribute(QName.get("attr", Namespace.get("q", "urn:attribute")), "v");
+		child.addCDATA("<cdata & stuff>");
+		child.addComment(" comment ");
+		child.addProcessingInstruction("target", "data");
+		child.addElement("empty");
+
+		Message message = new Message();
+		message.setBody("lone \ud83d surrogate");
+		message.getElement().addAttribute(QName.get("lang", Namespace.XML_NAMESPACE), "de");
+
+		Presence presence = new Presence(Presence.Type.unavailable);
+		presence.setError(PacketError.Condition.item_not_found);
+
+		assertCompatible(iq.getElement(), message.getElement(), presence.getElement());
+	}
+
+	@Test
+	public void encodesParsedStanzas() throws Exception {
+		Element parsed = DocumentHelper.parseText(
+				"<iq xmlns='jabber:component:accept' type='result' id='1'>"
+				+ "<query xmlns='http://jabber.org/protocol/disco#info' xmlns:x='urn:x'>"
+				+ "<identity category='rest' type='rest' name='A &amp; B'/>"
+				+ "<x:feature var='urn:xmpp:ping'/><feature xmlns='' var='&#233;'/>"
+				+ "</query></iq>").getRootElement();
+		assertCompatible(parsed, parsed);
+	}
+
+	@Test
+	public void encodesPacketsAndRawData() throws Exception {
+		IQ iq = new IQ(IQ.Type.get, "1");
+		iq.setChildElement("ping", "urn:xmpp:ping");
+		StanzaEncoder encoder = new StanzaEncoder(4);
+		encoder.encodeRaw(" ");
+		encoder.encode(iq);
+		encoder.encodeRaw("</stream:stream>");
+		ByteBuffer bytes = encoder.getBytes();
+		Assert.assertEquals(" <iq type=\"get\" id=\"1\"><ping xmlns=\"urn:xmpp:ping\"/></iq></stream:stream>",
+				UTF8.decode(bytes).toString());
+
+		encoder.reset();
+		Assert.assertEquals(0, encoder.size());
+		Assert.assertEquals(0, encoder.getBytes().remaining());
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.packet;
+
+import java.nio.ByteBuffer;
+
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that replies created from templates equal the replies that are
+ * built element by element.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class StanzaTemplateTest {
+
+	private static IQ createRequest() {
+		IQ request = new IQ(IQ.Type.get, "id<&>\"");
+		request.setTo("component.example.com");
+		request.setFrom("user@example.com/res");
+		request.setChildElement("query", "http://jabber.org/protocol/disco#info");
+		return request;
+	}
+
+	private static byte[] encode(Packet packet) {
+		StanzaEncoder encoder = new StanzaEncoder(64);
+		encoder.encode(packet);
+		ByteBuffer bytes = encoder.getBytes();
+		byte[] result = new byte[bytes.remaining()];
+		bytes.get(result);
+		return result;
+	}
+
+	@Test
+	public void errorRepliesEqualBuiltReplies() {
+		IQ request = createRequest();
+		for (PacketError.Condition condition : PacketError.Condition.values()) {
+			IQ built = IQ.createResultIQ(request);
+			built.setError(condition);
+			IQ templated = IQ.createErrorIQ(request, condition);
+			Assert.assertArrayEquals(encode(built), encode(templated));
+			Assert.assertEquals(built.toXML(), templated.toXML());
+		}
+	}
+
+	@Test
+	public void repliesAreEncodedWithoutElement() {
+		IQ prototype = new IQ(IQ.Type.result, null);
+		Element query = prototype.setChildElement("query", "http://jabber.org/protocol/disco#info");
+		query.addElement("identity").addAttribute("category", "component").addAttribute("name", "A & B");
+		query.addElement("feature").addAttribute("var", "urn:xmpp:ping");
+		StanzaTemplate template = new StanzaTemplate(prototype);
+
+		IQ request = createRequest();
+		IQ built = IQ.createResultIQ(request);
+		built.setChildElement(query.createCopy());
+		IQ reply = template.createReply(request);
+
+		Assert.assertEquals(IQ.Type.result, reply.getType());
+		Assert.assertEquals(request.getID(), reply.getID());
+		Assert.assertEquals(request.getFrom(), reply.getTo());
+		Assert.assertEquals(request.getTo(), reply.getFrom());
+		Assert.assertArrayEquals(encode(built), encode(reply.createCopy()));
+		Assert.assertNotNull(reply.getTemplate());
+
+		reply.setTo("other@example.com");
+		Assert.assertNull(reply.getTemplate());
+		Assert.assertEquals("other@example.com", reply.getElement().attributeValue("to"));
+		Assert.assertEquals("A & B", reply.getChildElement().element("identity").attributeValue("name"));
+		Assert.assertEquals(1, template.createReply(request).getChildElement().elements("feature").size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsRequestPrototypes() {
+		new StanzaTemplate(new IQ(IQ.Type.get, "1"));
+	}
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the adaptation of the admission limit.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class AdmissionControllerTest {
+
+	@Test
+	public void requestsBeyondTheLimitAreRejected() {
+		AdmissionController admission = new AdmissionController(1, 2, 10);
+		Assert.assertTrue(admission.tryAcquire());
+		Assert.assertTrue(admission.tryAcquire());
+		Assert.assertFalse(admission.tryAcquire());
+		Assert.assertEquals(1, admission.getRejectedCount());
+		admission.release();
+		Assert.assertTrue(admission.tryAcquire());
+	}
+
+	@Test
+	public void limitAdaptsToQueueingDelay() throws InterruptedException {
+		AdmissionController admission = new AdmissionController(10, 1000, 1);
+		long highDelay = TimeUnit.MILLISECONDS.toNanos(50);
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(2);
+			admission.onQueueingDelay(highDelay);
+		}
+		int reduced = admission.getLimit();
+		Assert.assertTrue(reduced < 1000);
+		Assert.assertTrue(reduced >= 10);
+		Assert.assertTrue(admission.getRetryAfterMillis() > 1);
+
+		for (int i = 0; i < 1000; i++) {
+			admission.onQueueingDelay(0);
+		}
+		Assert.assertTrue(admission.getLimit() > reduced);
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the per key ordering of the keyed executor.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class KeyedExecutorTest {
+
+	@Test
+	public void tasksOfAKeyAreExecutedInOrder() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		KeyedExecutor executor = new KeyedExecutor(pool, 10000, 100000);
+		final CountDownLatch done = new CountDownLatch(4000);
+		final List<List<Integer>> executed = new ArrayList<List<Integer>>();
+		for (int key = 0; key < 4; key++) {
+			executed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		for (int i = 0; i < 1000; i++) {
+			for (int key = 0; key < 4; key++) {
+				final List<Integer> log = executed.get(key);
+				final int value = i;
+				executor.execute("key" + key, new Runnable() {
+					public void run() {
+						log.add(value);
+						done.countDown();
+					}
+				});
+			}
+		}
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+		for (List<Integer> log : executed) {
+			Assert.assertEquals(1000, log.size());
+			for (int i = 0; i < log.size(); i++) {
+				Assert.assertEquals(i, log.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void failingTaskIsReportedAndDoesNotStopTheKey() throws InterruptedException {
+		final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+		ExecutorService pool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+					public void uncaughtException(Thread t, Throwable e) {
+						uncaught.add(e);
+					}
+				});
+				return thread;
+			}
+		});
+		KeyedExecutor executor = new KeyedExecutor(pool, 10, 100);
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute("key", new Runnable() {
+			public void run() {
+				throw new IllegalStateException("failed");
+			}
+		});
+		executor.execute("key", new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+		Assert.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, uncaught.size());
+		Assert.assertEquals("failed", uncaught.get(0).getMessage());
+		Assert.assertEquals(0, executor.getPendingCount());
+	}
+
+	@Test
+	public void orderOfAKeyHoldsAcrossExecutors() throws InterruptedException {
+		ExecutorService read = Executors.newFixedThreadPool(4);
+		ExecutorService write = Executors.newFixedThreadPool(4);
+		KeyedExecutor executor = new KeyedExecutor(write, 10000, 100000);
+		final CountDownLatch done = new CountDownLatch(1000);
+		final List<Integer> log = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i < 1000; i++) {
+			final int value = i;
+			executor.execute("key", i % 3 == 0 ? read : write, new Runnable() {
+				public void run() {
+					log.add(value);
+					done.countDown();
+				}
+			});
+		}
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		read.shutdown();
+		write.shutdown();
+		for (int i = 0; i < log.size(); i++) {
+			Assert.assertEquals(i, log.get(i).intValue());
+		}
+		Assert.assertEquals(0, executor.getPendingCount());
+	}
+
+	@Test
+	public void differentKeysAreExecutedInParallel() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		KeyedExecutor executor = new KeyedExecutor(pool, 10, 100);
+		final CountDownLatch started = new CountDownLatch(2);
+		for (String key : new String[] { "a", "b" }) {
+			executor.execute(key, new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						// blocks unless the other key runs concurrently
+						started.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+			});
+		}
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void queueOfAKeyIsBounded() {
+		ExecutorService pool = Executors.newFixedThreadPool(1);
+		KeyedExecutor executor = new KeyedExecutor(pool, 2, 100);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocking = new Runnable() {
+			public void run() {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		try {
+			for (int i = 0; i < 4; i++) {
+				executor.execute("a", blocking);
+			}
+		} finally {
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the token buckets of the rate limiter.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void burstIsAdmittedAndThenLimited() {
+		RateLimiter limiter = new RateLimiter();
+		RateLimiter.Rate rate = new RateLimiter.Rate(1, 3);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(limiter.tryAcquire("a", rate));
+		}
+		Assert.assertFalse(limiter.tryAcquire("a", rate));
+		// other keys have their own bucket
+		Assert.assertTrue(limiter.tryAcquire("b", rate));
+	}
+
+	@Test
+	public void bucketsRefillAndBecomeIdle() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter();
+		RateLimiter.Rate rate = new RateLimiter.Rate(100, 1);
+		Assert.assertTrue(limiter.tryAcquire("a", rate));
+		Assert.assertFalse(limiter.tryAcquire("a", rate));
+		Thread.sleep(20);
+		Assert.assertTrue(limiter.tryAcquire("a", rate));
+
+		Thread.sleep(20);
+		limiter.removeIdleBuckets();
+		Assert.assertEquals(0, limiter.size());
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the scheduling and the statistics of the task engine.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class TaskEngineTest {
+
+	private static class CountingTask extends TimerTask {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final long sleepMillis;
+
+		private CountingTask(long sleepMillis) {
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public void run() {
+			this.count.incrementAndGet();
+			try {
+				Thread.sleep(this.sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Test
+	public void slowTasksDoNotDelayOthers() throws InterruptedException {
+		TaskEngine engine = new TaskEngine(4);
+		CountingTask slow = new CountingTask(200);
+		CountingTask fast = new CountingTask(0);
+		engine.scheduleAtFixedRate(slow, 0, 10);
+		engine.scheduleAtFixedRate(fast, 0, 10);
+		Thread.sleep(150);
+		engine.cancelScheduledTask(slow);
+		TaskEngine.Statistics statistics = engine.getStatistics(fast);
+		engine.cancelScheduledTask(fast);
+
+		// the slow task is not executed concurrently with itself
+		Assert.assertEquals(1, slow.count.get());
+		Assert.assertTrue(fast.count.get() >= 5);
+		Assert.assertTrue(statistics.getExecutionCount() >= 5);
+		Assert.assertEquals(0, statistics.getFailureCount());
+		Assert.assertNull(engine.getStatistics(fast));
+
+		// an execution that has already been started is completed
+		Thread.sleep(20);
+		int count = fast.count.get();
+		Thread.sleep(50);
+		Assert.assertEquals(count, fast.count.get());
+		engine.shutdown();
+	}
+
+	@Test
+	public void overlappingExecutionsAreSkipped() throws InterruptedException {
+		TaskEngine engine = new TaskEngine(4);
+		CountingTask task = new CountingTask(30);
+		engine.scheduleAtFixedRate(task, 0, 10);
+		Thread.sleep(100);
+		TaskEngine.Statistics statistics = engine.getStatistics(task);
+		engine.cancelScheduledTask(task);
+		Assert.assertTrue(statistics.getSkippedCount() > 0);
+		Assert.assertTrue(statistics.getMaxRunTime() >= 30);
+		engine.shutdown();
+	}
+
+	@Test
+	public void oneShotAndFixedDelayTasks() throws InterruptedException {
+		TaskEngine engine = new TaskEngine(2);
+		final CountDownLatch latch = new CountDownLatch(3);
+		TimerTask once = new TimerTask() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+		TimerTask repeated = new TimerTask() {
+			@Override
+			public void run() {
+				latch.countDown();
+				throw new IllegalStateException("failure is counted");
+			}
+		};
+		engine.schedule(once, 0);
+		engine.schedule(repeated, 0, 5);
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(engine.getStatistics(repeated).getFailureCount() >= 1);
+		engine.shutdown();
+		Assert.assertNull(engine.getStatistics(repeated));
+	}
+
+	@Test
+	public void blockingTasksDoNotDelayScheduledTasks() throws InterruptedException {
+		TaskEngine engine = new TaskEngine(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(4);
+		for (int i = 0; i < 4; i++) {
+			engine.execute(new Runnable() {
+				public void run() {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		// every submitted task gets a thread of its own
+		Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		final CountDownLatch scheduled = new CountDownLatch(1);
+		engine.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				scheduled.countDown();
+			}
+		}, 0);
+		Assert.assertTrue(scheduled.await(5, TimeUnit.SECONDS));
+		release.countDown();
+		engine.shutdown();
+	}
+
+}
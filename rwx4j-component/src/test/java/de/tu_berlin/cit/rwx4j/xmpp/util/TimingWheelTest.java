@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the expiry and cancellation of the timeouts of the timing wheel.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class TimingWheelTest {
+
+	@Test
+	public void timeoutsExpireAfterTheirDelay() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test", 5, 4);
+		final CountDownLatch latch = new CountDownLatch(2);
+		Runnable task = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		long start = System.nanoTime();
+		// the second timeout needs more than one rotation of the wheel
+		TimingWheel.Timeout first = wheel.schedule(task, 10);
+		TimingWheel.Timeout second = wheel.schedule(task, 50);
+		Assert.assertEquals(2, wheel.size());
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertTrue(first.isExpired());
+		Assert.assertTrue(second.isExpired());
+		Assert.assertFalse(first.cancel());
+		Assert.assertEquals(0, wheel.size());
+		wheel.stop();
+	}
+
+	@Test
+	public void cancelledTimeoutsDoNotExpire() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test", 5, 8);
+		final AtomicInteger expired = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				expired.incrementAndGet();
+			}
+		};
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[100];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = wheel.schedule(task, 20);
+		}
+		for (int i = 0; i < timeouts.length; i += 2) {
+			Assert.assertTrue(timeouts[i].cancel());
+			Assert.assertFalse(timeouts[i].cancel());
+			Assert.assertTrue(timeouts[i].isCancelled());
+		}
+		Assert.assertEquals(50, wheel.size());
+		Thread.sleep(100);
+		Assert.assertEquals(50, expired.get());
+		Assert.assertEquals(0, wheel.size());
+		wheel.stop();
+	}
+
+	@Test
+	public void stopCancelsPendingTimeouts() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel("test", 5, 8);
+		final AtomicInteger expired = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				expired.incrementAndGet();
+			}
+		};
+		TimingWheel.Timeout timeout = wheel.schedule(task, 20);
+		wheel.stop();
+		Assert.assertTrue(timeout.isCancelled());
+		Assert.assertEquals(0, wheel.size());
+
+		// the wheel is restarted on demand
+		wheel.schedule(task, 0);
+		Thread.sleep(100);
+		Assert.assertEquals(1, expired.get());
+		wheel.stop();
+	}
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.dom4j.Element;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.IQ;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Message;
+import de.tu_berlin.cit.rwx4j.xmpp.packet.RawStanza;
+
+/**
+ * Tests the batched writing of packets by the I/O thread.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class NioConnectionTest {
+
+	private static final NioConnection.Listener IGNORING_LISTENER = new NioConnection.Listener() {
+		public void stanzaRead(String stanza) {
+		}
+
+		public void streamClosed() {
+		}
+
+		public void connectionFailed(IOException cause) {
+		}
+	};
+
+	private static String readAll(Socket socket) throws IOException {
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		InputStream in = socket.getInputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			received.write(buffer, 0, n);
+		}
+		return received.toString("UTF-8");
+	}
+
+	@Test
+	public void queuedPacketsAreWrittenInOrder() throws IOException {
+		NioReactor reactor = new NioReactor("Test I/O");
+		reactor.start();
+		ServerSocket server = new ServerSocket(0);
+		try {
+			NioConnection connection = NioConnection.open(reactor,
+					new InetSocketAddress("localhost", server.getLocalPort()), 2000, 1);
+			Socket socket = server.accept();
+			connection.start(IGNORING_LISTENER);
+
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 2000; i++) {
+				Message message = new Message();
+				message.setID("m" + i);
+				message.setBody("\u00e4 & " + i);
+				connection.write(message);
+				expected.append(message.toXML());
+			}
+			connection.closeGracefully("</stream:stream>");
+			expected.append("</stream:stream>");
+
+			Assert.assertEquals(expected.toString(), readAll(socket));
+			Assert.assertTrue(connection.isClosed());
+		} finally {
+			server.close();
+			reactor.stop();
+		}
+	}
+
+	@Test
+	public void packetsThatCannotBeEncodedAreDropped() throws Exception {
+		NioReactor reactor = new NioReactor("Test I/O");
+		reactor.start();
+		ServerSocket server = new ServerSocket(0);
+		try {
+			NioConnection connection = NioConnection.open(reactor,
+					new InetSocketAddress("localhost", server.getLocalPort()), 2000, 1);
+			Socket socket = server.accept();
+			connection.start(IGNORING_LISTENER);
+
+			Message first = new Message();
+			first.setID("first");
+			connection.write(first);
+			connection.write(new IQ(RawStanza.scan("<iq type='get' id='bad'><query xmlns='urn:test'/></iq>",
+					new RawStanza.Parser() {
+						public Element readElement(String stanza) throws Exception {
+							throw new IllegalStateException("malformed");
+						}
+					})));
+			Thread.sleep(100);
+			// later writes are still flushed
+			Message second = new Message();
+			second.setID("second");
+			connection.write(second);
+			connection.closeGracefully("</stream:stream>");
+
+			Assert.assertEquals(first.toXML() + second.toXML() + "</stream:stream>", readAll(socket));
+		} finally {
+			server.close();
+			reactor.stop();
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the detection of stanza boundaries in a stream.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class StanzaFramerTest {
+
+	private static final String HEADER = "<stream:stream xmlns='jabber:component:accept'"
+			+ " xmlns:stream='http://etherx.jabber.org/streams' id='1'>";
+
+	@Test
+	public void stanzasAreFramedAcrossChunks() throws IOException {
+		String stream = "<?xml version='1.0'?>" + HEADER
+				+ "<handshake/> <iq id='a' to='x>y'><query xmlns='q'>a &gt; b"
+				+ "<![CDATA[</iq>]]></query></iq>\n<message><body/></message>"
+				+ "</stream:stream>";
+		// feed the stream in chunks of every size
+		for (int size = 1; size <= stream.length(); size++) {
+			StanzaFramer framer = new StanzaFramer();
+			ArrayDeque<String> stanzas = new ArrayDeque<String>();
+			for (int i = 0; i < stream.length(); i += size) {
+				framer.feed(stream.substring(i, Math.min(stream.length(), i + size)), stanzas);
+			}
+			Assert.assertEquals(HEADER, framer.getStreamHeader());
+			Assert.assertEquals("<handshake/>", stanzas.poll());
+			Assert.assertEquals("<iq id='a' to='x>y'><query xmlns='q'>a &gt; b"
+					+ "<![CDATA[</iq>]]></query></iq>", stanzas.poll());
+			Assert.assertEquals("<message><body/></message>", stanzas.poll());
+			Assert.assertTrue(stanzas.isEmpty());
+			Assert.assertTrue(framer.isClosed());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void oversizedStanzaIsRejected() throws IOException {
+		StanzaFramer framer = new StanzaFramer(16);
+		ArrayDeque<String> stanzas = new ArrayDeque<String>();
+		framer.feed(HEADER + "<message><body>", stanzas);
+		framer.feed("0123456789", stanzas);
+	}
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.xmpp.whack;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import de.tu_berlin.cit.rwx4j.xmpp.packet.Packet;
+
+/**
+ * Tests the parallel parsing and the ordered dispatching of stanzas.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class StanzaPipelineTest {
+
+	private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:component:accept'"
+			+ " xmlns:stream='http://etherx.jabber.org/streams' id='1' from='example.org'>";
+
+	/**
+	 * Collects the tasks, so that the test decides when and in which order
+	 * the stanzas are parsed.
+	 */
+	private static class ManualExecutor implements Executor {
+
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		public void execute(Runnable task) {
+			this.tasks.add(task);
+		}
+	}
+
+	private static class RecordingHandler implements StanzaPipeline.Handler {
+
+		private final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+
+		public void packetRead(Packet packet) {
+			this.ids.add(packet.getID());
+		}
+	}
+
+	private NioReactor reactor;
+
+	private ServerSocket server;
+
+	private Socket socket;
+
+	private NioConnection connection;
+
+	private PacketReader packetReader;
+
+	@Before
+	public void setUp() throws Exception {
+		this.reactor = new NioReactor("Test I/O");
+		this.reactor.start();
+		this.server = new ServerSocket(0);
+		this.connection = NioConnection.open(this.reactor,
+				new InetSocketAddress("localhost", this.server.getLocalPort()), 2000, 1);
+		this.socket = this.server.accept();
+		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		this.packetReader = new PacketReader(factory, STREAM_HEADER);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.socket.close();
+		this.server.close();
+		this.reactor.stop();
+	}
+
+	private static String createMessage(int i) {
+		return "<message id='m" + i + "' to='user@example.org'><body>" + i + "</body></message>";
+	}
+
+	@Test
+	public void packetsAreDispatchedInOrderOfSubmission() {
+		ManualExecutor executor = new ManualExecutor();
+		RecordingHandler handler = new RecordingHandler();
+		StanzaPipeline pipeline = new StanzaPipeline(executor, this.packetReader, handler,
+				this.connection, 1000);
+		for (int i = 0; i < 3; i++) {
+			pipeline.submit(createMessage(i));
+		}
+
+		// later stanzas wait for the earlier ones
+		executor.tasks.get(2).run();
+		executor.tasks.get(1).run();
+		Assert.assertTrue(handler.ids.isEmpty());
+		Assert.assertEquals(3, pipeline.getPendingCount());
+
+		executor.tasks.get(0).run();
+		Assert.assertEquals(Arrays.asList("m0", "m1", "m2"), handler.ids);
+		Assert.assertEquals(0, pipeline.getPendingCount());
+	}
+
+	@Test
+	public void parallelParsingKeepsOrder() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		final int count = 5000;
+		final CountDownLatch dispatched = new CountDownLatch(count);
+		final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		try {
+			StanzaPipeline pipeline = new StanzaPipeline(executor, this.packetReader,
+					new StanzaPipeline.Handler() {
+						public void packetRead(Packet packet) {
+							ids.add(packet.getID());
+							dispatched.countDown();
+						}
+					}, this.connection, 1000);
+			Random random = new Random(42);
+			for (int i = 0; i < count; i++) {
+				// stanzas of different sizes take different times to parse
+				StringBuilder stanza = new StringBuilder("<message id='m" + i + "'><body>");
+				for (int j = random.nextInt(50); j > 0; j--) {
+					stanza.append("<b>").append(j).append("</b>");
+				}
+				pipeline.submit(stanza.append("</body></message>").toString());
+			}
+			Assert.assertTrue(dispatched.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < count; i++) {
+				Assert.assertEquals("m" + i, ids.get(i));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void readingIsSuspendedUntilHalfIsDispatched() {
+		ManualExecutor executor = new ManualExecutor();
+		RecordingHandler handler = new RecordingHandler();
+		StanzaPipeline pipeline = new StanzaPipeline(executor, this.packetReader, handler,
+				this.connection, 1000);
+		for (int i = 0; i < 999; i++) {
+			pipeline.submit(createMessage(i));
+		}
+		Assert.assertFalse(pipeline.isReadingSuspended());
+		pipeline.submit(createMessage(999));
+		Assert.assertTrue(pipeline.isReadingSuspended());
+
+		for (int i = 0; i < 499; i++) {
+			executor.tasks.get(i).run();
+		}
+		Assert.assertEquals(501, pipeline.getPendingCount());
+		Assert.assertTrue(pipeline.isReadingSuspended());
+
+		executor.tasks.get(499).run();
+		Assert.assertEquals(500, pipeline.getPendingCount());
+		Assert.assertFalse(pipeline.isReadingSuspended());
+		Assert.assertEquals(500, handler.ids.size());
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dom4j.io;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Tests that parsing single elements with cached names yields the same
+ * elements as parsing documents.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class XPPPacketReaderTest {
+
+	private static final String[] STANZAS = {
+			// prefixed names and attributes
+			"<p:query xmlns:p='urn:test:p' xmlns:q='urn:test:q' p:a='1' q:b='2' c='3'>"
+					+ "<p:item q:name='x'>text</p:item><q:item/></p:query>",
+			// default namespaces, redefined in a child
+			"<query xmlns='urn:test:a' id='1'><item xmlns='urn:test:b'><sub/></item><item/></query>",
+			// the same local name with different prefixes and namespaces
+			"<x:e xmlns:x='urn:test:1' xmlns:y='urn:test:2'><y:e><e xmlns='urn:test:3'/></y:e>"
+					+ "<x:e y:e='v'/><e/></x:e>",
+			// mixed content, comments and CDATA
+			"<body xmlns='urn:test:a'>one<!-- comment --><![CDATA[<two>]]>&amp;three</body>" };
+
+	private XmlPullParserFactory factory;
+
+	@Before
+	public void setUp() throws Exception {
+		this.factory = XmlPullParserFactory.newInstance();
+		this.factory.setNamespaceAware(true);
+	}
+
+	private XPPPacketReader createReader() {
+		XPPPacketReader reader = new XPPPacketReader();
+		reader.setXPPFactory(this.factory);
+		return reader;
+	}
+
+	private static Element parseElement(XPPPacketReader reader, String xml) throws Exception {
+		reader.getXPPParser().setInput(new StringReader(xml));
+		return reader.parseElement();
+	}
+
+	private static void assertSameName(QName expected, QName actual) {
+		Assert.assertEquals(expected.getName(), actual.getName());
+		Assert.assertEquals(expected.getNamespacePrefix(), actual.getNamespacePrefix());
+		Assert.assertEquals(expected.getNamespaceURI(), actual.getNamespaceURI());
+	}
+
+	/**
+	 * Compares the names, attributes and text of two elements. Declarations
+	 * of default namespaces are not added by the pull parser, so only the
+	 * prefixed declarations are compared.
+	 */
+	private static void assertSameElement(Element expected, Element actual) {
+		assertSameName(expected.getQName(), actual.getQName());
+
+		for (Object declared : expected.declaredNamespaces()) {
+			Namespace namespace = (Namespace) declared;
+			if (!namespace.getPrefix().isEmpty()) {
+				Assert.assertEquals(namespace.getURI(),
+						actual.getNamespaceForPrefix(namespace.getPrefix()).getURI());
+			}
+		}
+
+		Assert.assertEquals(expected.attributeCount(), actual.attributeCount());
+		for (int i = 0; i < expected.attributeCount(); i++) {
+			Attribute attribute = expected.attribute(i);
+			Attribute other = actual.attribute(attribute.getQName());
+			Assert.assertNotNull(attribute.getQualifiedName(), other);
+			assertSameName(attribute.getQName(), other.getQName());
+			Assert.assertEquals(attribute.getValue(), other.getValue());
+		}
+
+		Assert.assertEquals(expected.getText(), actual.getText());
+		Assert.assertEquals(expected.elements().size(), actual.elements().size());
+		for (int i = 0; i < expected.elements().size(); i++) {
+			assertSameElement((Element) expected.elements().get(i), (Element) actual.elements().get(i));
+		}
+	}
+
+	@Test
+	public void parsedElementEqualsRootOfParsedDocument() throws Exception {
+		XPPPacketReader reader = createReader();
+		for (String xml : STANZAS) {
+			Element element = parseElement(reader, xml);
+			Element root = createReader().read(new StringReader(xml)).getRootElement();
+			Assert.assertNull(element.getDocument());
+			Assert.assertEquals(root.asXML(), element.asXML());
+			assertSameElement(root, element);
+			// the reference parser agrees on names, namespaces and attributes
+			assertSameElement(DocumentHelper.parseText(xml).getRootElement(), element);
+		}
+	}
+
+	@Test
+	public void stanzaNamespacesAreOmitted() throws Exception {
+		String xml = "<iq xmlns='jabber:component:accept' type='get' id='1'>"
+				+ "<query xmlns='jabber:iq:version'/></iq>";
+		Element element = parseElement(createReader(), xml);
+		Element root = createReader().read(new StringReader(xml)).getRootElement();
+		Assert.assertEquals(root.asXML(), element.asXML());
+		Assert.assertEquals("", element.getNamespaceURI());
+		Assert.assertEquals("jabber:iq:version", element.element("query").getNamespaceURI());
+	}
+
+	@Test
+	public void namesSharingSlotsAreNotConfused() throws Exception {
+		// more names than slots, so that names are mapped to the same slot
+		// and replace each other
+		XPPPacketReader reader = createReader();
+		StringBuilder xml = new StringBuilder("<root xmlns:p='urn:test:p'>");
+		for (int i = 0; i < 3000; i++) {
+			xml.append("<e").append(i).append(" a").append(i).append("='v'/>");
+			xml.append("<p:e").append(i).append(" p:a").append(i).append("='v'/>");
+			xml.append("<e").append(i).append(" xmlns='urn:test:").append(i).append("'/>");
+		}
+		xml.append("</root>");
+		for (int pass = 0; pass < 2; pass++) {
+			Element root = parseElement(reader, xml.toString());
+			List<?> children = root.elements();
+			Assert.assertEquals(9000, children.size());
+			for (int i = 0; i < 3000; i++) {
+				Element plain = (Element) children.get(3 * i);
+				Assert.assertEquals("e" + i, plain.getName());
+				Assert.assertEquals("", plain.getNamespaceURI());
+				Assert.assertEquals("v", plain.attributeValue("a" + i));
+
+				Element prefixed = (Element) children.get(3 * i + 1);
+				Assert.assertEquals("p:e" + i, prefixed.getQualifiedName());
+				Assert.assertEquals("urn:test:p", prefixed.getNamespaceURI());
+				Assert.assertEquals("v", prefixed.attributeValue(QName.get("a" + i, "p", "urn:test:p")));
+
+				Element qualified = (Element) children.get(3 * i + 2);
+				Assert.assertEquals("e" + i, qualified.getQualifiedName());
+				Assert.assertEquals("urn:test:" + i, qualified.getNamespaceURI());
+			}
+			assertSameElement(DocumentHelper.parseText(xml.toString()).getRootElement(), root);
+		}
+	}
+
+}
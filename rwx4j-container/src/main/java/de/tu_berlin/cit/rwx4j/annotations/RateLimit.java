@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+
+/**
+ * Limits the rate at which a single sender may invoke an {@link XmppMethod}
+ * or {@link XmppAction}. Requests beyond the limit are rejected by the
+ * component with a 'policy-violation' error before they are queued.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+@Target(java.lang.annotation.ElementType.METHOD)
+@Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+	/**
+	 * The sustained number of invocations per second.
+	 * @return permits per second
+	 */
+	double value();
+	
+	/**
+	 * The number of invocations that may be performed at once.
+	 * @return burst size
+	 */
+	int burst() default 1;
+
+}
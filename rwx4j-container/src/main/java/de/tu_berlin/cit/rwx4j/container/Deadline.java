@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.container;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time after which the sender of a request is no longer
+ * interested in its response. The deadline of the invocation that is
+ * currently executed by the resource container is available to resource
+ * implementations via {@link #current()}, so that long running methods and
+ * actions can check the remaining time and abort early.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public final class Deadline {
+
+	/**
+	 * The deadline of requests that do not define a timeout.
+	 */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private final long nanos;
+
+	private Deadline(long nanos) {
+		this.nanos = nanos;
+	}
+
+	/**
+	 * Creates a deadline that expires after the given time.
+	 *
+	 * @param millis
+	 *            The remaining time in milliseconds.
+	 * @return The deadline.
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Returns the deadline of the invocation that is executed by the current
+	 * thread.
+	 *
+	 * @return The current deadline or {@link #NONE}.
+	 */
+	public static Deadline current() {
+		Deadline deadline = current.get();
+		return deadline == null ? NONE : deadline;
+	}
+
+	static Deadline enter(Deadline deadline) {
+		Deadline previous = current.get();
+		current.set(deadline);
+		return previous;
+	}
+
+	static void exit(Deadline previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * @return The remaining time in milliseconds, which is negative if the
+	 *         deadline has expired, or {@link Long#MAX_VALUE} for
+	 *         {@link #NONE}.
+	 */
+	public long remainingMillis() {
+		if (this == NONE) {
+			return Long.MAX_VALUE;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(this.nanos - System.nanoTime());
+	}
+
+	public boolean isExpired() {
+		return this != NONE && this.nanos - System.nanoTime() <= 0;
+	}
+
+	@Override
+	public String toString() {
+		if (this == NONE) {
+			return "Deadline[none]";
+		}
+		return "Deadline[" + remainingMillis() + "ms]";
+	}
+
+}
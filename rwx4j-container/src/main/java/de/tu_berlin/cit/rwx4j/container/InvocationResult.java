@@ -0,0 +1,131 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.container;
+
+/**
+ * The outcome of an invocation on the resource container. Expected failures,
+ * e.g. a request for a resource that does not exist, are reported as a value
+ * instead of an exception, so that they are cheap to produce and can be mapped
+ * to protocol errors by the caller.
+ *
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ * @param <T> The type of the invocation result.
+ */
+public final class InvocationResult<T> {
+
+	/**
+	 * The reasons why an invocation may fail.
+	 */
+	public enum Failure {
+
+		/**
+		 * The requested resource does not exist.
+		 */
+		RESOURCE_NOT_FOUND,
+
+		/**
+		 * The resource does not provide the requested method or action.
+		 */
+		NOT_IMPLEMENTED,
+
+		/**
+		 * The request is malformed, e.g. a parameter is missing or invalid.
+		 */
+		BAD_REQUEST,
+
+		/**
+		 * The deadline of the request expired before it was executed.
+		 */
+		DEADLINE_EXCEEDED,
+
+		/**
+		 * The resource failed while processing the request.
+		 */
+		INTERNAL_ERROR
+	}
+
+	private final T value;
+
+	private final Failure failure;
+
+	private final String message;
+
+	private InvocationResult(T value, Failure failure, String message) {
+		this.value = value;
+		this.failure = failure;
+		this.message = message;
+	}
+
+	/**
+	 * Creates a successful result.
+	 *
+	 * @param value The result value, may be <tt>null</tt>.
+	 * @return The successful result.
+	 */
+	public static <T> InvocationResult<T> success(T value) {
+		return new InvocationResult<T>(value, null, null);
+	}
+
+	/**
+	 * Creates a failed result.
+	 *
+	 * @param failure The reason of the failure.
+	 * @param message A human readable description of the failure.
+	 * @return The failed result.
+	 */
+	public static <T> InvocationResult<T> failure(Failure failure, String message) {
+		return new InvocationResult<T>(null, failure, message);
+	}
+
+	public boolean isSuccess() {
+		return this.failure == null;
+	}
+
+	public T getValue() {
+		return this.value;
+	}
+
+	public Failure getFailure() {
+		return this.failure;
+	}
+
+	public String getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * Passes a failed result on as a result of another type.
+	 *
+	 * @return This failed result.
+	 */
+	@SuppressWarnings("unchecked")
+	public <U> InvocationResult<U> propagate() {
+		if (this.isSuccess()) {
+			throw new IllegalStateException("Only failed results can be propagated");
+		}
+		return (InvocationResult<U>) this;
+	}
+
+	@Override
+	public String toString() {
+		if (this.isSuccess()) {
+			return "InvocationResult[success]";
+		}
+		return "InvocationResult[" + this.failure + ": " + this.message + "]";
+	}
+
+}
@@ -20,11 +20,18 @@ package de.tu_berlin.cit.rwx4j.container;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import de.tu_berlin.cit.rwx4j.XmppURI;
 import de.tu_berlin.cit.rwx4j.annotations.Consumes;
 import de.tu_berlin.cit.rwx4j.annotations.Parameter;
 import de.tu_berlin.cit.rwx4j.annotations.Produces;
+import de.tu_berlin.cit.rwx4j.annotations.RateLimit;
 import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
 import de.tu_berlin.cit.rwx4j.annotations.XmppMethod;
 import de.tu_berlin.cit.rwx4j.plugin.IContainerPlugin;
@@ -44,6 +51,30 @@ public class ResourceContainer extends ResourceInstance {
 
 	private final ArrayList<IContainerPlugin> plugins = new ArrayList<IContainerPlugin>();
 
+	/**
+	 * GET invocations that are currently running, keyed by path and media
+	 * type. Concurrent identical requests attach to these instead of invoking
+	 * the resource again.
+	 */
+	private final ConcurrentHashMap<String, PendingGet> pendingGets = new ConcurrentHashMap<String, PendingGet>();
+
+	/**
+	 * Marks operations without a rate limit in the rate limit cache.
+	 */
+	private static final Object NO_RATE_LIMIT = new Object();
+
+	/**
+	 * The rate limits of methods and actions, keyed by resource class and
+	 * operation, to avoid reflection on every request.
+	 */
+	private final ConcurrentHashMap<String, Object> rateLimits = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * The number of invocations that were skipped because their deadline had
+	 * already expired.
+	 */
+	private final AtomicLong expiredInvocations = new AtomicLong();
+
 	/**
 	 * Default constructor.
 	 * 
@@ -69,12 +100,27 @@ public class ResourceContainer extends ResourceInstance {
 	 * @return Returns the generated XWADL document.
 	 */
 	public XwadlDocument getXWADL(String path) {
+		InvocationResult<XwadlDocument> result = this.generateXWADL(path);
+		if(!result.isSuccess())
+			throw new RuntimeException("Failed: ResourceContainer: "
+					+ result.getMessage());
+		return result.getValue();
+	}
+
+	/**
+	 * Generate XWADL document for a particular resource without throwing
+	 * an exception if the resource does not exist.
+	 * 
+	 * @param path The path of the resource.
+	 * @return Returns the generated XWADL document or the reason of failure.
+	 */
+	public InvocationResult<XwadlDocument> generateXWADL(String path) {
 		logger.info("An XWADL is requested for path=" + path);
 		// search instance
 		ResourceInstance instance = this.getResource(path);
 		if(instance == null)
-			throw new RuntimeException("Failed: ResourceContainer: "
-					+ "Resource not found");
+			return InvocationResult.failure(InvocationResult.Failure.RESOURCE_NOT_FOUND,
+					"Resource not found");
 		
 		// build xwadl
 		XwadlDocument xwadl = XwadlBuilder.build(path, instance);
@@ -82,7 +128,7 @@ public class ResourceContainer extends ResourceInstance {
 		for(IContainerPlugin plugin : this.plugins) {
 			plugin.extendXwadl(xwadl, path, instance);
 		}
-		return xwadl;
+		return InvocationResult.success(xwadl);
 	}
 
 	/**
@@ -92,27 +138,193 @@ public class ResourceContainer extends ResourceInstance {
 	 * @return Returns the REST response.
 	 */
 	public RestDocument execute(RestDocument xmlRequest) {
+		InvocationResult<RestDocument> result = this.invoke(xmlRequest);
+		if(!result.isSuccess())
+			throw new RuntimeException("Failed: ResourceContainer: "
+					+ result.getMessage());
+		return result.getValue();
+	}
+
+	/**
+	 * Invoke an operation in order to transfer a resource state. Expected
+	 * failures, e.g. an unknown resource or method, are returned as a failed
+	 * result instead of being thrown. Concurrent GET requests for the same path
+	 * and media type are coalesced, i.e. the resource is invoked only once and
+	 * every caller receives a copy of its response. A GET request does not
+	 * attach to an invocation that started before another request on the
+	 * same path completed.
+	 * 
+	 * @param xmlRequest The REST request.
+	 * @return Returns the REST response or the reason of failure.
+	 */
+	public InvocationResult<RestDocument> invoke(RestDocument xmlRequest) {
+		return this.invoke(xmlRequest, Deadline.NONE);
+	}
+
+	/**
+	 * Invoke an operation in order to transfer a resource state, unless the
+	 * given deadline has already expired. The deadline is available to the
+	 * invoked resource via {@link Deadline#current()}.
+	 * 
+	 * @param xmlRequest The REST request.
+	 * @param deadline The deadline of the request.
+	 * @return Returns the REST response or the reason of failure.
+	 */
+	public InvocationResult<RestDocument> invoke(RestDocument xmlRequest, Deadline deadline) {
+		try {
+			return this.invokeAsync(xmlRequest, deadline).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Invoke an operation in order to transfer a resource state without
+	 * blocking on a coalesced request. The resource is invoked by the
+	 * calling thread, so the returned future is usually completed at once.
+	 * A GET request that is coalesced with a running one returns at once
+	 * instead, its future is completed with a copy of the response when the
+	 * running invocation completes.
+	 * 
+	 * @param xmlRequest The REST request.
+	 * @param deadline The deadline of the request.
+	 * @return Returns the future of the REST response or the reason of
+	 *         failure. It completes exceptionally if the invocation failed
+	 *         unexpectedly.
+	 */
+	public CompletableFuture<InvocationResult<RestDocument>> invokeAsync(RestDocument xmlRequest, Deadline deadline) {
+		if(deadline.isExpired()) {
+			this.expiredInvocations.incrementAndGet();
+			logger.debug("Skipping invocation on path=" + xmlRequest.getRest().getPath()
+					+ " because its deadline has expired");
+			return CompletableFuture.completedFuture(InvocationResult.<RestDocument> failure(
+					InvocationResult.Failure.DEADLINE_EXCEEDED, "Deadline expired before execution"));
+		}
+		Deadline previous = Deadline.enter(deadline);
+		try {
+			return this.invokeCoalesced(xmlRequest);
+		} finally {
+			Deadline.exit(previous);
+		}
+	}
+
+	/**
+	 * @return The number of invocations that were skipped because their
+	 *         deadline had already expired.
+	 */
+	public long getExpiredInvocationCount() {
+		return this.expiredInvocations.get();
+	}
+
+	private CompletableFuture<InvocationResult<RestDocument>> invokeCoalesced(final RestDocument xmlRequest) {
+		String key = this.getCoalescingKey(xmlRequest);
+		String path = xmlRequest.getRest().getPath();
+		PendingGet call = new PendingGet(path);
+		if(key != null) {
+			PendingGet running = this.pendingGets.putIfAbsent(key, call);
+			if(running != null) {
+				// attach to the running invocation, the response is copied by
+				// the thread that completes it
+				logger.debug("Coalescing GET request for key=" + key);
+				return running.future.thenApply(
+						new Function<InvocationResult<RestDocument>, InvocationResult<RestDocument>>() {
+					public InvocationResult<RestDocument> apply(InvocationResult<RestDocument> shared) {
+						if(!shared.isSuccess())
+							return shared;
+						return InvocationResult.success(copyResponse(shared.getValue(), xmlRequest));
+					}
+				});
+			}
+		}
+
+		try {
+			call.future.complete(this.invokeInstance(xmlRequest));
+		} catch (RuntimeException e) {
+			call.future.completeExceptionally(e);
+		} finally {
+			if(key != null)
+				this.pendingGets.remove(key, call);
+			else
+				this.detachPendingGets(path);
+		}
+		return call.future;
+	}
+
+	/**
+	 * Stops GET requests that are received from now on from attaching to
+	 * the running GET invocations of a path, after the state of the path
+	 * may have been changed. The running invocations may have read the
+	 * previous state, so only requests that started before the change may
+	 * share their responses.
+	 */
+	private void detachPendingGets(String path) {
+		Iterator<PendingGet> pending = this.pendingGets.values().iterator();
+		while (pending.hasNext()) {
+			if(pending.next().path.equals(path))
+				pending.remove();
+		}
+	}
+
+	/**
+	 * Copies a shared response for a coalesced request. The attributes
+	 * that belong to a single request are taken from the coalesced request
+	 * instead of the request whose invocation is shared.
+	 */
+	private static RestDocument copyResponse(RestDocument shared, RestDocument xmlRequest) {
+		RestDocument xmlResponse = (RestDocument) shared.copy();
+		RestDocument.Rest rest = xmlResponse.getRest();
+		RestDocument.Rest request = xmlRequest.getRest();
+		if(request.isSetIdempotencyKey())
+			rest.setIdempotencyKey(request.getIdempotencyKey());
+		else if(rest.isSetIdempotencyKey())
+			rest.unsetIdempotencyKey();
+		if(request.isSetTimeout())
+			rest.setTimeout(request.getTimeout());
+		else if(rest.isSetTimeout())
+			rest.unsetTimeout();
+		return xmlResponse;
+	}
+
+	/**
+	 * Returns the key under which concurrent requests are coalesced, or
+	 * <tt>null</tt> if the request must not be shared. Only GET methods
+	 * without a request representation are considered idempotent.
+	 * 
+	 * @param xmlRequest The REST request.
+	 * @return The coalescing key or <tt>null</tt>.
+	 */
+	protected String getCoalescingKey(RestDocument xmlRequest) {
+		if(!xmlRequest.getRest().isSetMethod())
+			return null;
+		Method xmlMethod = xmlRequest.getRest().getMethod();
+		if(!XmppMethod.GET.equals(xmlMethod.getType().toString())
+				|| xmlMethod.isSetRequest())
+			return null;
+		String mediaType = "";
+		if(xmlMethod.isSetResponse())
+			mediaType = xmlMethod.getResponse().getMediaType();
+		return xmlRequest.getRest().getPath() + " " + mediaType;
+	}
+
+	private InvocationResult<RestDocument> invokeInstance(RestDocument xmlRequest) {
 		logger.info("An invocation is requested with xml=" + xmlRequest.toString());
-		// create response document
-		RestDocument xmlResponse = (RestDocument) xmlRequest.copy();
 		String path = xmlRequest.getRest().getPath();
-		// search instance
+		// search instance before the request is copied, so that requests
+		// for unknown resources are rejected without copying them
 		ResourceInstance instance = this.getResource(path);
 		if(instance == null)
-			throw new RuntimeException("Failed: ResourceContainer: "
-					+ "Resource not found");
+			return InvocationResult.failure(InvocationResult.Failure.RESOURCE_NOT_FOUND,
+					"Resource not found");
+		// create response document
+		RestDocument xmlResponse = (RestDocument) xmlRequest.copy();
 		
 		// invoke method
 		if(xmlRequest.getRest().isSetMethod()) {
-			try {
-				this.invokeMethod(xmlResponse.getRest().getMethod(), instance);
-			} catch (InstantiationException | IllegalAccessException
-					| IllegalArgumentException | InvocationTargetException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				throw new RuntimeException("Failed: ResourceContainer: "
-						+ e.getMessage());
-			}
+			InvocationResult<Void> result = this.invokeMethod(xmlResponse.getRest().getMethod(), instance);
+			if(!result.isSuccess())
+				return result.propagate();
 			// remove request part
 			if(xmlResponse.getRest().getMethod().isSetRequest()) {
 				xmlResponse.getRest().getMethod().unsetRequest();
@@ -121,59 +333,100 @@ public class ResourceContainer extends ResourceInstance {
 		
 		// invoke action
 		if(xmlRequest.getRest().isSetAction()) {
-			try {
-				this.invokeAction(xmlResponse.getRest().getAction(), instance);
-			} catch (URISyntaxException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				throw new RuntimeException("Failed: ResourceContainer: "
-						+ e.getMessage());
-			}
+			InvocationResult<Void> result = this.invokeAction(xmlResponse.getRest().getAction(), instance);
+			if(!result.isSuccess())
+				return result.propagate();
 			// remove request part
 			de.tu_berlin.cit.rwx4j.rest.ParameterDocument.Parameter[] params = 
 					xmlResponse.getRest().getAction().getParameterArray();
-			for(int i = params.length; i >= 0; i--) {
+			for(int i = params.length - 1; i >= 0; i--) {
 				xmlResponse.getRest().getAction().removeParameter(i);
 			}
 		}
 		
 //		logger.info("An invocation was performed and returned is xml=" + xmlResponse.toString());
-		return xmlResponse;
+		return InvocationResult.success(xmlResponse);
 	}
 
-	protected void invokeMethod(Method xmlMethod, ResourceInstance instance) throws InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+	protected InvocationResult<Void> invokeMethod(Method xmlMethod, ResourceInstance instance) {
 		
 		java.lang.reflect.Method method = this.searchMethod(xmlMethod, instance);
 		if(method == null) {
-			throw new RuntimeException("Failed: ResourceContainer: "
-					+ "Method not found");
+			return InvocationResult.failure(InvocationResult.Failure.NOT_IMPLEMENTED,
+					"Method not found");
 		}
 		
-		// create representations
-		Representation input = null;
-		if(method.isAnnotationPresent(Consumes.class)) {
-			input = method.getAnnotation(Consumes.class).serializer().newInstance();
-			input.readRepresentation(xmlMethod.getRequest().getRepresentation());
+		try {
+			// create representations
+			Representation input = null;
+			if(method.isAnnotationPresent(Consumes.class)) {
+				input = method.getAnnotation(Consumes.class).serializer().newInstance();
+				input.readRepresentation(xmlMethod.getRequest().getRepresentation());
+			}
+
+			// with or without a response
+			if(method.isAnnotationPresent(Produces.class)) {
+				Representation output = null;
+				if(input == null)
+					output = (Representation) method.invoke(instance, new Object[] {});
+				else
+					output = (Representation) method.invoke(instance, input);
+				if(output == null)
+					return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+							"Method returned no representation");
+			
+				StringBuilder builder = new StringBuilder();
+				builder = output.writeRepresentation(builder);
+				xmlMethod.getResponse().setRepresentation(builder.toString());
+			} else {
+				if(input == null)
+					method.invoke(instance, new Object[] {});
+				else
+					method.invoke(instance, input);
+			}
+		} catch (InvocationTargetException e) {
+			logger.warn("Method " + method.getName() + " failed", e.getCause());
+			return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+					String.valueOf(e.getCause()));
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException e) {
+			logger.warn("Method " + method.getName() + " could not be invoked", e);
+			return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+					e.toString());
 		}
+		return InvocationResult.success(null);
+	}
 
-		// with or without a response
-		if(method.isAnnotationPresent(Produces.class)) {
-			Representation output = null;
-			if(input == null)
-				output = (Representation) method.invoke(instance, new Object[] {});
-			else
-				output = (Representation) method.invoke(instance, input);
-		
-			StringBuilder builder = new StringBuilder();
-			builder = output.writeRepresentation(builder);
-			xmlMethod.getResponse().setRepresentation(builder.toString());
-		} else {
-			if(input == null)
-				method.invoke(instance, new Object[] {});
-			else
-				method.invoke(instance, input);
+	/**
+	 * Returns the rate limit of a method or action of a resource.
+	 * 
+	 * @param path The path of the resource.
+	 * @param operation The method type, e.g. GET, or the action name.
+	 * @param action True if the operation is an action.
+	 * @return The {@link RateLimit} annotation of the operation or
+	 *         <tt>null</tt> if it is not limited.
+	 */
+	public RateLimit getRateLimit(String path, String operation, boolean action) {
+		ResourceInstance instance = this.getResource(path);
+		if(instance == null)
+			return null;
+		String key = instance.getClass().getName() + (action ? " action " : " method ") + operation;
+		Object limit = this.rateLimits.get(key);
+		if(limit == null) {
+			limit = NO_RATE_LIMIT;
+			for(java.lang.reflect.Method method : instance.getClass().getMethods()) {
+				if(!method.isAnnotationPresent(RateLimit.class))
+					continue;
+				if((action && method.isAnnotationPresent(XmppAction.class)
+						&& operation.equals(method.getAnnotation(XmppAction.class).value()))
+						|| (!action && method.isAnnotationPresent(XmppMethod.class)
+						&& operation.equals(method.getAnnotation(XmppMethod.class).value()))) {
+					limit = method.getAnnotation(RateLimit.class);
+					break;
+				}
+			}
+			this.rateLimits.putIfAbsent(key, limit);
 		}
-		
+		return limit == NO_RATE_LIMIT ? null : (RateLimit) limit;
 	}
 
 	protected java.lang.reflect.Method searchMethod(Method xmlMethod,
@@ -222,12 +475,12 @@ public class ResourceContainer extends ResourceInstance {
 		return false;
 	}
 
-	protected void invokeAction(Action xmlAction, ResourceInstance instance) throws URISyntaxException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+	protected InvocationResult<Void> invokeAction(Action xmlAction, ResourceInstance instance) {
 		
 		java.lang.reflect.Method method = this.searchAction(xmlAction, instance);
 		if(method == null) {
-			throw new RuntimeException("Failed: ResourceContainer: "
-					+ "Action not found");
+			return InvocationResult.failure(InvocationResult.Failure.NOT_IMPLEMENTED,
+					"Action not found");
 		}
 		
 		// create parameters array
@@ -236,86 +489,109 @@ public class ResourceContainer extends ResourceInstance {
 		for (int i = 0; i < parameters.length; i++) {
 			java.lang.reflect.Parameter parameter = parameters[i];
 			if (parameter.isAnnotationPresent(Parameter.class)) {
-				params[i] = createParameter(parameter, xmlAction.getParameterArray());
+				InvocationResult<Object> param = createParameter(parameter, xmlAction.getParameterArray());
+				if(!param.isSuccess())
+					return param.propagate();
+				params[i] = param.getValue();
 			} else {
-				throw new RuntimeException("Failed: ResourceContainer: "
-						+ "Parameter is not annotated");
+				return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+						"Parameter is not annotated");
 			}
 		}
 
-		// switch result
-		Class<?> returnType = method.getReturnType();
-		if(returnType.isAssignableFrom(String.class)) {
-			String result = (String) method.invoke(instance, params);
-			xmlAction.addNewResult().setSTRING(result);
-		} else if(returnType.isAssignableFrom(Integer.class)) {
-			Integer result = (Integer) method.invoke(instance, params);
-			xmlAction.addNewResult().setINTEGER(result);
-		} else if(returnType.isAssignableFrom(Double.class)) {
-			Double result = (Double) method.invoke(instance, params);
-			xmlAction.addNewResult().setDOUBLE(result);
-		} else if(returnType.isAssignableFrom(Boolean.class)) {
-			Boolean result = (Boolean) method.invoke(instance, params);
-			xmlAction.addNewResult().setBOOLEAN(result);
-		} else if(returnType.isAssignableFrom(XmppURI.class)) {
-			String result = method.invoke(instance, params).toString();
-			xmlAction.addNewResult().setLINK(result);
-		} else { // void
-			method.invoke(instance, params);
+		try {
+			// switch result
+			Class<?> returnType = method.getReturnType();
+			if(returnType.isAssignableFrom(String.class)) {
+				String result = (String) method.invoke(instance, params);
+				xmlAction.addNewResult().setSTRING(result);
+			} else if(returnType.isAssignableFrom(Integer.class)) {
+				Integer result = (Integer) method.invoke(instance, params);
+				xmlAction.addNewResult().setINTEGER(result);
+			} else if(returnType.isAssignableFrom(Double.class)) {
+				Double result = (Double) method.invoke(instance, params);
+				xmlAction.addNewResult().setDOUBLE(result);
+			} else if(returnType.isAssignableFrom(Boolean.class)) {
+				Boolean result = (Boolean) method.invoke(instance, params);
+				xmlAction.addNewResult().setBOOLEAN(result);
+			} else if(returnType.isAssignableFrom(XmppURI.class)) {
+				String result = method.invoke(instance, params).toString();
+				xmlAction.addNewResult().setLINK(result);
+			} else { // void
+				method.invoke(instance, params);
+			}
+		} catch (InvocationTargetException e) {
+			logger.warn("Action " + method.getName() + " failed", e.getCause());
+			return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+					String.valueOf(e.getCause()));
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			logger.warn("Action " + method.getName() + " could not be invoked", e);
+			return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+					e.toString());
 		}
-
+		return InvocationResult.success(null);
 	}
 
-	private Object createParameter(java.lang.reflect.Parameter parameter,
-			de.tu_berlin.cit.rwx4j.rest.ParameterDocument.Parameter[] parameterArray) throws URISyntaxException {
+	private InvocationResult<Object> createParameter(java.lang.reflect.Parameter parameter,
+			de.tu_berlin.cit.rwx4j.rest.ParameterDocument.Parameter[] parameterArray) {
 		// search parameter by name
 		Parameter parAnno = parameter.getAnnotation(Parameter.class);
 		String name = parAnno.value();
-		for(de.tu_berlin.cit.rwx4j.rest.ParameterDocument.Parameter xmlParameter : parameterArray) {
-			if(name.equals(xmlParameter.getName())) {
-				// if parameter was found
-				Class<?> parameterType = parameter.getType();
-				// check type
-				if(parameterType.isAssignableFrom(String.class)
-						&& xmlParameter.isSetSTRING()) {
-					return xmlParameter.getSTRING();
-				} else if(parameterType.isAssignableFrom(Integer.class)
-						&& xmlParameter.isSetINTEGER()) {
-					return new Integer(xmlParameter.getINTEGER());
-				} else if(parameterType.isAssignableFrom(Double.class)
-						&& xmlParameter.isSetDOUBLE()) {
-					return new Double(xmlParameter.getDOUBLE());
-				} else if(parameterType.isAssignableFrom(Boolean.class)
-						&& xmlParameter.isSetBOOLEAN()) {
-					return new Boolean(xmlParameter.getBOOLEAN());
-				} else if(parameterType.isAssignableFrom(XmppURI.class)
-						&& xmlParameter.isSetLINK()) {
-					return new XmppURI(xmlParameter.getLINK());
+		try {
+			for(de.tu_berlin.cit.rwx4j.rest.ParameterDocument.Parameter xmlParameter : parameterArray) {
+				if(name.equals(xmlParameter.getName())) {
+					// if parameter was found
+					Class<?> parameterType = parameter.getType();
+					// check type
+					if(parameterType.isAssignableFrom(String.class)
+							&& xmlParameter.isSetSTRING()) {
+						return InvocationResult.success((Object) xmlParameter.getSTRING());
+					} else if(parameterType.isAssignableFrom(Integer.class)
+							&& xmlParameter.isSetINTEGER()) {
+						return InvocationResult.success((Object) new Integer(xmlParameter.getINTEGER()));
+					} else if(parameterType.isAssignableFrom(Double.class)
+							&& xmlParameter.isSetDOUBLE()) {
+						return InvocationResult.success((Object) new Double(xmlParameter.getDOUBLE()));
+					} else if(parameterType.isAssignableFrom(Boolean.class)
+							&& xmlParameter.isSetBOOLEAN()) {
+						return InvocationResult.success((Object) new Boolean(xmlParameter.getBOOLEAN()));
+					} else if(parameterType.isAssignableFrom(XmppURI.class)
+							&& xmlParameter.isSetLINK()) {
+						return InvocationResult.success((Object) new XmppURI(xmlParameter.getLINK()));
+					}
 				}
 			}
+		} catch (URISyntaxException e) {
+			return InvocationResult.failure(InvocationResult.Failure.BAD_REQUEST,
+					"Parameter " + name + " is not a valid URI");
 		}
 		
 		// set default
 		if(!parAnno.defaultValue().isEmpty()) {
 			Class<?> parameterType = parameter.getType();
-			if(parameterType.isAssignableFrom(String.class)) {
-				return parAnno.defaultValue();
-			} else if(parameterType.isAssignableFrom(Integer.class)) {
-				return new Integer(parAnno.defaultValue());
-			} else if(parameterType.isAssignableFrom(Double.class)) {
-				return new Double(parAnno.defaultValue());
-			} else if(parameterType.isAssignableFrom(Boolean.class)) {
-				return new Boolean(parAnno.defaultValue());
-			} else if(parameterType.isAssignableFrom(XmppURI.class)) {
-				return new XmppURI(parAnno.defaultValue());
+			try {
+				if(parameterType.isAssignableFrom(String.class)) {
+					return InvocationResult.success((Object) parAnno.defaultValue());
+				} else if(parameterType.isAssignableFrom(Integer.class)) {
+					return InvocationResult.success((Object) new Integer(parAnno.defaultValue()));
+				} else if(parameterType.isAssignableFrom(Double.class)) {
+					return InvocationResult.success((Object) new Double(parAnno.defaultValue()));
+				} else if(parameterType.isAssignableFrom(Boolean.class)) {
+					return InvocationResult.success((Object) new Boolean(parAnno.defaultValue()));
+				} else if(parameterType.isAssignableFrom(XmppURI.class)) {
+					return InvocationResult.success((Object) new XmppURI(parAnno.defaultValue()));
+				}
+			} catch (URISyntaxException | NumberFormatException e) {
+				return InvocationResult.failure(InvocationResult.Failure.INTERNAL_ERROR,
+						"Default value of parameter " + name + " is invalid");
 			}
 		} else {
-			throw new RuntimeException("Failed: ResourceContainer: "
-					+ "Parameter cannot be localized");
+			return InvocationResult.failure(InvocationResult.Failure.BAD_REQUEST,
+					"Parameter " + name + " cannot be localized");
 		}
 
 		// this point should never be reached
-		return null;
+		return InvocationResult.success(null);
 	}
 
 	protected java.lang.reflect.Method searchAction(Action xmlAction,
@@ -331,4 +607,18 @@ public class ResourceContainer extends ResourceInstance {
 		return null;
 	}
 	
+	/**
+	 * A running GET invocation and the path it reads.
+	 */
+	private static final class PendingGet {
+
+		private final String path;
+
+		private final CompletableFuture<InvocationResult<RestDocument>> future = new CompletableFuture<InvocationResult<RestDocument>>();
+
+		private PendingGet(String path) {
+			this.path = path;
+		}
+	}
+
 }
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2010-2015 Complex and Distributed IT Systems, TU Berlin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.tu_berlin.cit.rwx4j.container;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.tu_berlin.cit.rwx4j.XmppURI;
+import de.tu_berlin.cit.rwx4j.annotations.Parameter;
+import de.tu_berlin.cit.rwx4j.annotations.Path;
+import de.tu_berlin.cit.rwx4j.annotations.Produces;
+import de.tu_berlin.cit.rwx4j.annotations.RateLimit;
+import de.tu_berlin.cit.rwx4j.annotations.XmppAction;
+import de.tu_berlin.cit.rwx4j.annotations.XmppMethod;
+import de.tu_berlin.cit.rwx4j.representations.PlainText;
+import de.tu_berlin.cit.rwx4j.rest.MethodDocument.Method;
+import de.tu_berlin.cit.rwx4j.rest.MethodType;
+import de.tu_berlin.cit.rwx4j.rest.RestDocument;
+
+/**
+ * Tests the request handling of the resource container.
+ * 
+ * @author Alexander Stanik <alexander.stanik@tu-berlin.de>
+ */
+public class ResourceContainerTest {
+
+	@Path("/slow")
+	public static class SlowResource extends ResourceInstance {
+
+		private final AtomicInteger invocations = new AtomicInteger();
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@XmppMethod(XmppMethod.GET)
+		@Produces(value = PlainText.MEDIA_TYPE, serializer = PlainText.class)
+		public PlainText getText() throws InterruptedException {
+			this.invocations.incrementAndGet();
+			this.release.await(5, TimeUnit.SECONDS);
+			return new PlainText("hello");
+		}
+	}
+
+	@Path("/state")
+	public static class StateResource extends ResourceInstance {
+
+		private final AtomicInteger invocations = new AtomicInteger();
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private volatile String state = "old";
+
+		@XmppMethod(XmppMethod.GET)
+		@Produces(value = PlainText.MEDIA_TYPE, serializer = PlainText.class)
+		public PlainText getText() throws InterruptedException {
+			String current = this.state;
+			// only the first invocation is blocked
+			if(this.invocations.incrementAndGet() == 1)
+				this.release.await(5, TimeUnit.SECONDS);
+			return new PlainText(current);
+		}
+
+		@XmppMethod(XmppMethod.PUT)
+		public void update() {
+			this.state = "new";
+		}
+	}
+
+	@Path("/echo")
+	public static class EchoResource extends ResourceInstance {
+
+		@XmppAction("echo")
+		@RateLimit(value = 5, burst = 10)
+		public String echo(@Parameter("text") String text) {
+			return text;
+		}
+	}
+
+	private static RestDocument createGetRequest(String path) {
+		RestDocument request = RestDocument.Factory.newInstance();
+		request.addNewRest().setPath(path);
+		Method method = request.getRest().addNewMethod();
+		method.setType(MethodType.GET);
+		method.addNewResponse().setMediaType(PlainText.MEDIA_TYPE);
+		return request;
+	}
+
+	@Test
+	public void concurrentGetsAreCoalesced() throws URISyntaxException, InterruptedException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		SlowResource resource = new SlowResource();
+		container.addResource(resource);
+
+		final RestDocument[] responses = new RestDocument[4];
+		Thread[] threads = new Thread[responses.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					responses[index] = container.execute(createGetRequest("/slow"));
+				}
+			});
+			threads[i].start();
+		}
+		// give all requests the chance to attach before releasing the first one
+		Thread.sleep(200);
+		resource.release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		Assert.assertEquals(1, resource.invocations.get());
+		for (RestDocument response : responses) {
+			Assert.assertEquals("hello", response.getRest().getMethod().getResponse().getRepresentation());
+		}
+	}
+
+	@Test
+	public void coalescedGetsDoNotBlock() throws Exception {
+		final ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		SlowResource resource = new SlowResource();
+		container.addResource(resource);
+
+		final CompletableFuture<InvocationResult<RestDocument>> first = new CompletableFuture<InvocationResult<RestDocument>>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				RestDocument request = createGetRequest("/slow");
+				request.getRest().setIdempotencyKey("first");
+				request.getRest().setTimeout(60000);
+				first.complete(container.invokeAsync(request, Deadline.NONE).join());
+			}
+		});
+		thread.start();
+		while (resource.invocations.get() == 0) {
+			Thread.sleep(10);
+		}
+
+		// the coalesced request returns while the first one is running
+		RestDocument request = createGetRequest("/slow");
+		request.getRest().setIdempotencyKey("second");
+		CompletableFuture<InvocationResult<RestDocument>> second = container.invokeAsync(
+				request, Deadline.NONE);
+		Assert.assertFalse(second.isDone());
+
+		resource.release.countDown();
+		RestDocument shared = first.get(5, TimeUnit.SECONDS).getValue();
+		RestDocument copy = second.get(5, TimeUnit.SECONDS).getValue();
+		Assert.assertEquals(1, resource.invocations.get());
+		Assert.assertNotSame(shared, copy);
+		Assert.assertEquals("hello", copy.getRest().getMethod().getResponse().getRepresentation());
+		// the attributes of the shared request are not passed on
+		Assert.assertEquals("first", shared.getRest().getIdempotencyKey());
+		Assert.assertEquals("second", copy.getRest().getIdempotencyKey());
+		Assert.assertFalse(copy.getRest().isSetTimeout());
+	}
+
+	@Test
+	public void getAfterPutDoesNotAttachToOlderGet() throws Exception {
+		final ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		final StateResource resource = new StateResource();
+		container.addResource(resource);
+
+		final CompletableFuture<InvocationResult<RestDocument>> first = new CompletableFuture<InvocationResult<RestDocument>>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				first.complete(container.invoke(createGetRequest("/state")));
+			}
+		});
+		thread.start();
+		while (resource.invocations.get() == 0) {
+			Thread.sleep(10);
+		}
+
+		// the older GET has read the state before the update
+		RestDocument put = RestDocument.Factory.newInstance();
+		put.addNewRest().setPath("/state");
+		put.getRest().addNewMethod().setType(MethodType.PUT);
+		Assert.assertTrue(container.invoke(put).isSuccess());
+
+		CompletableFuture<InvocationResult<RestDocument>> second = container.invokeAsync(
+				createGetRequest("/state"), Deadline.NONE);
+		Assert.assertTrue(second.isDone());
+		Assert.assertEquals("new", second.get().getValue().getRest().getMethod().getResponse().getRepresentation());
+
+		resource.release.countDown();
+		Assert.assertEquals("old", first.get(5, TimeUnit.SECONDS).getValue()
+				.getRest().getMethod().getResponse().getRepresentation());
+		Assert.assertEquals(2, resource.invocations.get());
+	}
+
+	@Test
+	public void unknownResourceIsReportedAsFailure() throws URISyntaxException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+
+		InvocationResult<RestDocument> result = container.invoke(createGetRequest("/missing"));
+		Assert.assertFalse(result.isSuccess());
+		Assert.assertEquals(InvocationResult.Failure.RESOURCE_NOT_FOUND, result.getFailure());
+		Assert.assertEquals(InvocationResult.Failure.RESOURCE_NOT_FOUND,
+				container.generateXWADL("/missing").getFailure());
+	}
+
+	@Test
+	public void unknownMethodIsReportedAsFailure() throws URISyntaxException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		container.addResource(new EchoResource());
+
+		InvocationResult<RestDocument> result = container.invoke(createGetRequest("/echo"));
+		Assert.assertEquals(InvocationResult.Failure.NOT_IMPLEMENTED, result.getFailure());
+	}
+
+	@Test
+	public void missingParameterIsReportedAsFailure() throws URISyntaxException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		container.addResource(new EchoResource());
+
+		RestDocument request = RestDocument.Factory.newInstance();
+		request.addNewRest().setPath("/echo");
+		request.getRest().addNewAction().setName("echo");
+		InvocationResult<RestDocument> result = container.invoke(request);
+		Assert.assertEquals(InvocationResult.Failure.BAD_REQUEST, result.getFailure());
+
+		request.getRest().getAction().addNewParameter().setName("text");
+		request.getRest().getAction().getParameterArray(0).setSTRING("hello");
+		result = container.invoke(request);
+		Assert.assertTrue(result.isSuccess());
+		Assert.assertEquals("hello", result.getValue().getRest().getAction().getResult().getSTRING());
+	}
+
+	@Test
+	public void expiredRequestIsNotExecuted() throws URISyntaxException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		SlowResource resource = new SlowResource();
+		container.addResource(resource);
+
+		InvocationResult<RestDocument> result = container.invoke(createGetRequest("/slow"), Deadline.after(-1));
+		Assert.assertEquals(InvocationResult.Failure.DEADLINE_EXCEEDED, result.getFailure());
+		Assert.assertEquals(0, resource.invocations.get());
+		Assert.assertEquals(1, container.getExpiredInvocationCount());
+	}
+
+	@Test
+	public void rateLimitOfActionIsFound() throws URISyntaxException {
+		ResourceContainer container = new ResourceContainer(new XmppURI("container.example.org", ""));
+		container.addResource(new EchoResource());
+
+		RateLimit limit = container.getRateLimit("/echo", "echo", true);
+		Assert.assertEquals(10, limit.burst());
+		Assert.assertNull(container.getRateLimit("/echo", XmppMethod.GET, false));
+		Assert.assertNull(container.getRateLimit("/missing", "echo", true));
+	}
+
+}